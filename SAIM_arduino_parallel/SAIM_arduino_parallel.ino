@@ -10,6 +10,29 @@ short dataD2[1536]; // <-- Array where readout of the photodiodes is stored, as
 char serialCommand = '0';
 int port = 0; // used to detect which port is connected, 0 = programming port; 1 = native port
 
+// Framed protocol (command '2'), decoded by FrameDecoder.java in the plugin.  All numbers little-endian:
+// magic "SAIM", protocol version (1 byte), flags (1 byte), sequence id (uint16), pixels per detector (uint16),
+// pixels of detector 1, pixels of detector 2, CRC32 (uint32) over everything between the magic and the CRC
+// With flag bit 0 (flagPacked12) set, the 12 bit pixels are packed two in three bytes: byte 0 holds bits 0-7 of
+// the first pixel, byte 1 holds bits 8-11 of the first pixel in its low and bits 0-3 of the second pixel in its
+// high nibble, byte 2 holds bits 4-11 of the second pixel.  Saves 25% of the bytes to be sent.
+// Protocol version 2 adds the index of the first pixel sent for detector 1 and detector 2 (uint16 each) to the
+// header, so that only a window (region of interest) of each detector needs to be sent.  The window is set with
+// the command "r<first pixel detector 1>,<first pixel detector 2>,<number of pixels>\n", e.g. "r700,650,192\n",
+// and stays in effect until the next r command.  Use "r0,0,1536\n" to go back to full frames.
+const uint8_t protocolVersion = 2;
+const int headerSize = 14;
+const uint8_t flagPacked12 = 0x01;
+uint16_t frameSequence = 0;
+bool streaming = false; // when true, frames are sent back to back (start with '3' or '6', stop with '4')
+bool packed = false;    // when true, frames are sent packed (commands '5' and '6')
+uint8_t packedD1[2304]; // <-- Packed pixels of Detector 1 (1536 * 3 / 2 bytes)
+uint8_t packedD2[2304]; // <-- Packed pixels of Detector 2
+uint16_t roiStart1 = 0;   // <-- First pixel of the window sent for Detector 1
+uint16_t roiStart2 = 0;   // <-- First pixel of the window sent for Detector 2
+uint16_t roiWidth = 1536; // <-- Number of pixels sent per detector (even)
+uint32_t crcTable[256];
+
 // Note, the native USB port is much faster than the programming port, however, it does not work
 // with Micro-Manager since some kind of handshaking needs to take place.  It seems possible to modify the
 // Arduino code so that this is mo longer needed, see:
@@ -31,9 +54,13 @@ void setup() {
   
   Serial.begin(115200);
   SerialUSB.begin(115200);
+
+  InitCrcTable();
 }
 
-// Main loop to take picture and blink led when 1 is communicated through serial port
+// Main loop to take picture when 1 (raw data), 2 (framed data) or 5 (packed framed data) is communicated
+// through serial port, or to start streaming framed (3) or packed framed (6) data, to stop streaming (4),
+// and to set the region of interest (r)
 void loop() {
   if ( Serial.available() != 0 || SerialUSB.available() != 0) {
     if (Serial.available() != 0) {
@@ -45,10 +72,37 @@ void loop() {
     }
     if (serialCommand == '1') {
       Initialize();
-      ReadAnalog();
+      ReadAnalog(false);
       SendReading();
+    } else if (serialCommand == '2') {
+      Initialize();
+      ReadAnalog(true);
+      packed = false;
+      SendFrame();
+    } else if (serialCommand == '3') {
+      Initialize();
+      packed = false;
+      streaming = true;
+    } else if (serialCommand == '5') {
+      Initialize();
+      ReadAnalog(true);
+      packed = true;
+      SendFrame();
+    } else if (serialCommand == '6') {
+      Initialize();
+      packed = true;
+      streaming = true;
+    } else if (serialCommand == '4') {
+      streaming = false;
+    } else if (serialCommand == 'r') {
+      SetRoi();
     }
   }
+  if (streaming) {
+    // no need to Initialize, ReadAnalog starts a fresh integration
+    ReadAnalog(true);
+    SendFrame();
+  }
 }
 
 // Function to turn off led for debugging
@@ -77,6 +131,38 @@ void ClockPulse() {
   digitalWrite(CLKpin, LOW);
 }
 
+// Read a decimal number from the port through which the last command came in
+long ReadNumber() {
+  if (port == 0) {
+    return Serial.parseInt();
+  }
+  return SerialUSB.parseInt();
+}
+
+// Read the arguments of the r command, and only accept windows that fit on the detectors
+void SetRoi() {
+  long start1 = ReadNumber();
+  long start2 = ReadNumber();
+  long width = ReadNumber();
+  if (width < 2 || width > 1536 || width % 2 != 0 || start1 < 0 || start2 < 0
+      || start1 + width > 1536 || start2 + width > 1536) {
+    start1 = 0;
+    start2 = 0;
+    width = 1536;
+  }
+  roiStart1 = start1;
+  roiStart2 = start2;
+  roiWidth = width;
+}
+
+bool InRoi1(int pixel) {
+  return pixel >= roiStart1 && pixel < roiStart1 + roiWidth;
+}
+
+bool InRoi2(int pixel) {
+  return pixel >= roiStart2 && pixel < roiStart2 + roiWidth;
+}
+
 //Clear the register so camera is ready to expose an image
 void Initialize() {
   // Clock out any existing SI pulse through the ccd register:
@@ -105,7 +191,8 @@ void ClearAnalog() {
   
 }
 
-void ReadAnalog() {
+// Expose and digitize both detectors.  With roiOnly, only pixels in the region of interest are digitized
+void ReadAnalog(bool roiOnly) {
   // Stop the ongoing integration of light quanta from each photodiode by clocking in a SI pulse 
   // into the sensors register:
   digitalWrite(SIpin, HIGH);
@@ -125,12 +212,15 @@ void ReadAnalog() {
   ClockPulse();
   digitalWrite(SIpin, LOW);
   
+  // pixels outside the region of interest are clocked out without digitizing them
   for(int i=0; i < 768; i++) {
-    delayMicroseconds(20);// <-- We add a delay to stabilize the AO output from the sensor
-    dataD1[i] = analogRead(AOpin1);
-    dataD1[i+768] = analogRead(AOpin2);
-    dataD2[i] = analogRead(AOpin4);
-    dataD2[i+768] = analogRead(AOpin3);
+    if (!roiOnly || InRoi1(i) || InRoi1(i + 768) || InRoi2(i) || InRoi2(i + 768)) {
+      delayMicroseconds(20);// <-- We add a delay to stabilize the AO output from the sensor
+      dataD1[i] = analogRead(AOpin1);
+      dataD1[i+768] = analogRead(AOpin2);
+      dataD2[i] = analogRead(AOpin4);
+      dataD2[i+768] = analogRead(AOpin3);
+    }
     ClockPulse();
   }
 }
@@ -152,3 +242,76 @@ void SendReading() {
   //Serial.println("\n"); // <-- Send a linebreak to indicate the measurement is transmitted.
 }
 
+// Fill the lookup table for the standard (zip) CRC32, same as java.util.zip.CRC32
+void InitCrcTable() {
+  for (uint32_t n = 0; n < 256; n++) {
+    uint32_t c = n;
+    for (int k = 0; k < 8; k++) {
+      if (c & 1) {
+        c = 0xEDB88320 ^ (c >> 1);
+      } else {
+        c = c >> 1;
+      }
+    }
+    crcTable[n] = c;
+  }
+}
+
+uint32_t UpdateCrc(uint32_t crc, const uint8_t* data, int length) {
+  for (int i = 0; i < length; i++) {
+    crc = crcTable[(crc ^ data[i]) & 0xFF] ^ (crc >> 8);
+  }
+  return crc;
+}
+
+// Write to the port through which the last command came in
+void WriteBytes(const uint8_t* data, int length) {
+  if (port == 0) {
+    Serial.write(data, length);
+  } else if (port == 1) { // native port
+    SerialUSB.write(data, length);
+  }
+}
+
+// Pack 12 bit pixels, two pixels in three bytes (1536 pixels take 2304 bytes)
+void PackPixels(const short* src, uint8_t* dest, int count) {
+  for (int i = 0; i < count; i += 2) {
+    uint16_t first = src[i];
+    uint16_t second = src[i + 1];
+    *dest++ = (uint8_t) (first & 0xFF);
+    *dest++ = (uint8_t) (((first >> 8) & 0x0F) | ((second & 0x0F) << 4));
+    *dest++ = (uint8_t) (second >> 4);
+  }
+}
+
+void SendFrame() {
+  const uint8_t* payloadD1 = (uint8_t*) (dataD1 + roiStart1);
+  const uint8_t* payloadD2 = (uint8_t*) (dataD2 + roiStart2);
+  int payloadSize = roiWidth * 2;
+  if (packed) {
+    PackPixels(dataD1 + roiStart1, packedD1, roiWidth);
+    PackPixels(dataD2 + roiStart2, packedD2, roiWidth);
+    payloadD1 = packedD1;
+    payloadD2 = packedD2;
+    payloadSize = roiWidth / 2 * 3;
+  }
+  uint8_t header[headerSize] = { 'S', 'A', 'I', 'M', protocolVersion,
+      (uint8_t) (packed ? flagPacked12 : 0),
+      (uint8_t) (frameSequence & 0xFF), (uint8_t) (frameSequence >> 8),
+      (uint8_t) (roiWidth & 0xFF), (uint8_t) (roiWidth >> 8),
+      (uint8_t) (roiStart1 & 0xFF), (uint8_t) (roiStart1 >> 8),
+      (uint8_t) (roiStart2 & 0xFF), (uint8_t) (roiStart2 >> 8) };
+  uint32_t crc = 0xFFFFFFFF;
+  crc = UpdateCrc(crc, header + 4, headerSize - 4);
+  crc = UpdateCrc(crc, payloadD1, payloadSize);
+  crc = UpdateCrc(crc, payloadD2, payloadSize);
+  crc = crc ^ 0xFFFFFFFF;
+  uint8_t trailer[4] = { (uint8_t) (crc & 0xFF), (uint8_t) ((crc >> 8) & 0xFF),
+      (uint8_t) ((crc >> 16) & 0xFF), (uint8_t) ((crc >> 24) & 0xFF) };
+
+  WriteBytes(header, headerSize);
+  WriteBytes(payloadD1, payloadSize);
+  WriteBytes(payloadD2, payloadSize);
+  WriteBytes(trailer, 4);
+  frameSequence++;
+}
@@ -19,16 +19,20 @@
 //               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
 package org.micromanager.saim;
 
+import ij.ImagePlus;
+import ij.WindowManager;
 import java.awt.Dimension;
 import java.awt.dnd.DropTarget;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.prefs.Preferences;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JFileChooser;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
@@ -41,11 +45,15 @@ import javax.swing.event.ChangeListener;
 import mmcorej.CMMCore;
 import net.miginfocom.swing.MigLayout;
 import org.micromanager.api.ScriptInterface;
+import org.micromanager.saim.calibration.CalibrationModel;
 import org.micromanager.saim.gui.GuiUtils;
 import org.micromanager.utils.FileDialogs;
 import org.micromanager.MMStudio;
 import org.micromanager.saim.exceptions.SAIMException;
 import org.micromanager.saim.gui.DragFileToTextField;
+import org.micromanager.saim.reconstruct.HeightReconstructor;
+import org.micromanager.saim.reconstruct.ReconstructionResult;
+import org.micromanager.saim.model.SaimModel;
 
 /**
  *
@@ -60,8 +68,11 @@ public class AcquisitionPanel extends JPanel {
    private final JSpinner angleStepSizeSpinner_;
    private final JTextField startAngleField_;
    private final JCheckBox doubleZeroCheckBox_;
+   private final JCheckBox sequencedCheckBox_;
    private final JPanel calPanel_;
    private final JCheckBox saveImagesCheckBox_;
+   private final JCheckBox livePreviewCheckBox_;
+   private final JCheckBox directSaveCheckBox_;
 
    private final JFileChooser acqdirRootChooser_;
    private final JTextField acqdirRootField_;
@@ -74,6 +85,10 @@ public class AcquisitionPanel extends JPanel {
    private final JTextField coeff2Field_;
    private final JTextField coeff1Field_;
    private final JTextField coeff0Field_;
+   private final JTextField oxideThicknessField_;
+   private final JTextField maxHeightField_;
+   private final JComboBox<HeightReconstructor.Method> methodComboBox_;
+   private final JButton reconstructButton_;
 
 
    public AcquisitionPanel(ScriptInterface gui, Preferences prefs) {
@@ -127,6 +142,16 @@ public class AcquisitionPanel extends JPanel {
       });
       setupPanel.add(doubleZeroCheckBox_, "span 2, growx, wrap");
 
+      // use hardware sequencing when the TIRF device supports it
+      sequencedCheckBox_ = new JCheckBox("Hardware Sequencing (when available)");
+      sequencedCheckBox_.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent e) {
+            prefs_.putBoolean(PrefUtils.SEQUENCED, sequencedCheckBox_.isSelected());
+         }
+      });
+      setupPanel.add(sequencedCheckBox_, "span 2, growx, wrap");
+
       // Calibration Values
       calPanel_ = new JPanel(new MigLayout(
               "", ""));
@@ -149,28 +174,24 @@ public class AcquisitionPanel extends JPanel {
       calPanel_.add(new JLabel("<html>x<sup>3</sup>: </html>"));
       coeff3Field_ = new JTextField("");
       GuiUtils.setTextAttributes(coeff3Field_, componentSize);
-      GuiUtils.tieTextFieldToPrefs(prefs, coeff3Field_, PrefUtils.parseCal(3, prefs_, gui_));
       calPanel_.add(coeff3Field_, "span, center, wrap");
 
       //x2 coefficient
       calPanel_.add(new JLabel("<html>x<sup>2</sup>: </html>"));
       coeff2Field_ = new JTextField("");
       GuiUtils.setTextAttributes(coeff2Field_, componentSize);
-      GuiUtils.tieTextFieldToPrefs(prefs, coeff2Field_, PrefUtils.parseCal(2, prefs_, gui_));
       calPanel_.add(coeff2Field_, "span, center, wrap");
 
       //x coefficient
       calPanel_.add(new JLabel("x: "));
       coeff1Field_ = new JTextField("");
       GuiUtils.setTextAttributes(coeff1Field_, componentSize);
-      GuiUtils.tieTextFieldToPrefs(prefs, coeff1Field_, PrefUtils.parseCal(1, prefs_, gui_));
       calPanel_.add(coeff1Field_, "span, center, wrap");
 
       //x0 constant
       calPanel_.add(new JLabel("<html>x<sup>0</sup>: </html>"));
       coeff0Field_ = new JTextField("");
       GuiUtils.setTextAttributes(coeff0Field_, componentSize);
-      GuiUtils.tieTextFieldToPrefs(prefs, coeff0Field_, PrefUtils.parseCal(0, prefs_, gui_));
       calPanel_.add(coeff0Field_, "span, center, wrap");
 
       // Acquire Panel
@@ -240,6 +261,27 @@ public class AcquisitionPanel extends JPanel {
       });
       acquirePanel.add(saveImagesCheckBox_, "span 2, growx, wrap");
 
+      // save as raw file and json, without going through Micro-Manager,
+      // so that images are not shown
+      directSaveCheckBox_ = new JCheckBox("Save Directly to Disk (raw + json, no display)");
+      directSaveCheckBox_.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent e) {
+            prefs_.putBoolean(PrefUtils.DIRECTSAVE, directSaveCheckBox_.isSelected());
+         }
+      });
+      acquirePanel.add(directSaveCheckBox_, "span 2, growx, wrap");
+
+      // show heights while acquiring, with the settings of the Reconstruct panel
+      livePreviewCheckBox_ = new JCheckBox("Live Height Preview");
+      livePreviewCheckBox_.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent e) {
+            prefs_.putBoolean(PrefUtils.LIVEPREVIEW, livePreviewCheckBox_.isSelected());
+         }
+      });
+      acquirePanel.add(livePreviewCheckBox_, "span 2, growx, wrap");
+
       // set run button
       runButton_ = new JToggleButton("Run Acquisition");
       runButton_.addActionListener(new ActionListener() {
@@ -250,16 +292,59 @@ public class AcquisitionPanel extends JPanel {
                runButton_.setText("Abort Acquisition");
                runAcquisition();
             } else {
+               SAIMCommon.abortAcquisition();
                runButton_.setText("Run Acquisition");
             }
          }
       });
       acquirePanel.add(runButton_, "span 3, center, wrap");
 
+      // Reconstruction Panel
+      JPanel reconstructPanel = new JPanel(new MigLayout(
+              "", ""));
+      reconstructPanel.setBorder(GuiUtils.makeTitledBorder("Reconstruct Heights"));
+
+      // set oxide thickness
+      reconstructPanel.add(new JLabel("Oxide Thickness (nm):"));
+      oxideThicknessField_ = new JTextField("");
+      GuiUtils.setTextAttributes(oxideThicknessField_, componentSize);
+      GuiUtils.tieTextFieldToPrefs(prefs, oxideThicknessField_, PrefUtils.OXIDETHICKNESS);
+      reconstructPanel.add(oxideThicknessField_, "span, growx, wrap");
+
+      // set highest height to look for
+      reconstructPanel.add(new JLabel("Maximum Height (nm):"));
+      maxHeightField_ = new JTextField("");
+      GuiUtils.setTextAttributes(maxHeightField_, componentSize);
+      GuiUtils.tieTextFieldToPrefs(prefs, maxHeightField_, PrefUtils.MAXHEIGHT);
+      reconstructPanel.add(maxHeightField_, "span, growx, wrap");
+
+      // set reconstruction method
+      reconstructPanel.add(new JLabel("Method:"));
+      methodComboBox_ = new JComboBox<HeightReconstructor.Method>(
+              HeightReconstructor.Method.values());
+      methodComboBox_.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent e) {
+            prefs_.put(PrefUtils.RECONMETHOD, methodComboBox_.getSelectedItem().toString());
+         }
+      });
+      reconstructPanel.add(methodComboBox_, "span, growx, wrap");
+
+      // set reconstruct button
+      reconstructButton_ = new JButton("Reconstruct Current Image");
+      reconstructButton_.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent e) {
+            runReconstruction();
+         }
+      });
+      reconstructPanel.add(reconstructButton_, "span 3, center, wrap");
+
       // Combine them all
       add(setupPanel, "span, growx, wrap");
       add(calPanel_, "span, growx, wrap");
       add(acquirePanel, "span, growx, wrap");
+      add(reconstructPanel, "span, growx, wrap");
       updateGUIFromPrefs();
 
    }
@@ -292,8 +377,12 @@ public class AcquisitionPanel extends JPanel {
             String acq;
             try {
                acq = SAIMCommon.runAcquisition(gui_, prefs_, acqdirRootField_.getText(),
-                       acqnamePrefixField_.getText(), true, saveImagesCheckBox_.isSelected());
-               gui_.closeAcquisition(acq);
+                       acqnamePrefixField_.getText(), true, saveImagesCheckBox_.isSelected(),
+                       livePreviewCheckBox_.isSelected());
+               // saved directly to disk, there is no acquisition to close
+               if (acq != null) {
+                  gui_.closeAcquisition(acq);
+               }
             } catch (SAIMException saimEx) {
                ij.IJ.error(saimEx.getMessage());
             } catch (Exception ex) {
@@ -312,21 +401,93 @@ public class AcquisitionPanel extends JPanel {
    }
    
    
+   /**
+    * Reconstructs the heights of the image in the front window, which
+    * should be an acquisition with the angles currently set up in this panel.
+    * The wavelength is the one entered in the calibration panel.
+    */
+   private void runReconstruction() {
+      final ImagePlus imp = WindowManager.getCurrentImage();
+      if (imp == null) {
+         ij.IJ.error("Please open the SAIM acquisition to reconstruct first");
+         return;
+      }
+      class ReconstructionThread extends Thread {
+
+         ReconstructionThread(String threadName) {
+            super(threadName);
+         }
+
+         @Override
+         public void run() {
+            try {
+               List<Double> angleList = SAIMCommon.acquisitionAngles(prefs_);
+               double[] angles = new double[angleList.size()];
+               for (int i = 0; i < angles.length; i++) {
+                  angles[i] = angleList.get(i);
+               }
+               double wavelength = parseSetting(PrefUtils.WAVELENGTH, "Excitation Wavelength");
+               double oxideThickness = parseSetting(PrefUtils.OXIDETHICKNESS,
+                       "Oxide Thickness");
+               double maxHeight = parseSetting(PrefUtils.MAXHEIGHT, "Maximum Height");
+               SaimModel model = new SaimModel(angles, wavelength, oxideThickness);
+               HeightReconstructor.Method method = HeightReconstructor.Method.fromName(
+                       prefs_.get(PrefUtils.RECONMETHOD, ""));
+               HeightReconstructor reconstructor = new HeightReconstructor(model, 0.0,
+                       maxHeight, method, Runtime.getRuntime().availableProcessors());
+               ij.IJ.showStatus("Reconstructing heights of " + imp.getTitle());
+               long start = System.currentTimeMillis();
+               ReconstructionResult result = reconstructor.reconstruct(imp.getStack());
+               ij.IJ.log("Reconstructed " + imp.getTitle() + " (" + method + ") in "
+                       + (System.currentTimeMillis() - start) + " ms");
+               result.toImagePlus(imp.getTitle() + " Heights").show();
+            } catch (SAIMException saimEx) {
+               ij.IJ.error(saimEx.getMessage());
+            } catch (Exception ex) {
+               ij.IJ.log(ex.getMessage());
+               ij.IJ.error("Something went wrong.  Aborting!");
+            } finally {
+               reconstructButton_.setEnabled(true);
+            }
+         }
+
+      }
+      reconstructButton_.setEnabled(false);
+      new ReconstructionThread("SAIM Reconstruction").start();
+   }
+
+   private double parseSetting(String key, String name) throws SAIMException {
+      String tmpString = prefs_.get(key, "");
+      try {
+         return Double.parseDouble(tmpString);
+      } catch (NumberFormatException nfe) {
+         throw new SAIMException("Failed to parse " + name + " \"" + tmpString
+                 + "\" to a numeric value");
+      }
+   }
+   
    //function to add preferences values to each field that uses them
    public final void updateGUIFromPrefs() {
        try {
            angleStepSizeSpinner_.setValue(Double.parseDouble(prefs_.get(PrefUtils.ANGLESTEPSIZE, "0.0")));
            startAngleField_.setText(prefs_.get(PrefUtils.STARTANGLE, ""));
            doubleZeroCheckBox_.setSelected(Boolean.parseBoolean(prefs_.get(PrefUtils.DOUBLEZERO, "")));
+           sequencedCheckBox_.setSelected(Boolean.parseBoolean(prefs_.get(PrefUtils.SEQUENCED, "false")));
            saveImagesCheckBox_.setSelected(Boolean.parseBoolean(prefs_.get(PrefUtils.ACQSAVEIMAGES, "")));
+           directSaveCheckBox_.setSelected(Boolean.parseBoolean(prefs_.get(PrefUtils.DIRECTSAVE, "")));
+           livePreviewCheckBox_.setSelected(Boolean.parseBoolean(prefs_.get(PrefUtils.LIVEPREVIEW, "")));
            acqdirRootField_.setText(prefs_.get(PrefUtils.ACQDIRROOT, ""));
            acqnamePrefixField_.setText(prefs_.get(PrefUtils.ACQNAMEPREFIX, ""));
+           oxideThicknessField_.setText(prefs_.get(PrefUtils.OXIDETHICKNESS, "1900"));
+           maxHeightField_.setText(prefs_.get(PrefUtils.MAXHEIGHT, "1000"));
+           methodComboBox_.setSelectedItem(HeightReconstructor.Method.fromName(
+                   prefs_.get(PrefUtils.RECONMETHOD, "")));
            String channelGroup = core_.getChannelGroup();
            prefs_.put(PrefUtils.CHANNEL, channelGroup + ": " + core_.getCurrentConfig(channelGroup));
-           coeff3Field_.setText(PrefUtils.parseCal(3, prefs_, gui_));
-           coeff2Field_.setText(PrefUtils.parseCal(2, prefs_, gui_));
-           coeff1Field_.setText(PrefUtils.parseCal(1, prefs_, gui_));
-           coeff0Field_.setText(PrefUtils.parseCal(0, prefs_, gui_));
+           coeff3Field_.setText(CalibrationModel.currentCoefficient(prefs_, gui_, 3));
+           coeff2Field_.setText(CalibrationModel.currentCoefficient(prefs_, gui_, 2));
+           coeff1Field_.setText(CalibrationModel.currentCoefficient(prefs_, gui_, 1));
+           coeff0Field_.setText(CalibrationModel.currentCoefficient(prefs_, gui_, 0));
            channelField_.setText(prefs_.get(PrefUtils.CHANNEL,""));
        } catch (Exception ex) {
            Logger.getLogger(AcquisitionPanel.class.getName()).log(Level.SEVERE, null, ex);
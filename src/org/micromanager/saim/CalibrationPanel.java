@@ -23,35 +23,62 @@ import java.awt.Dimension;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.geom.Point2D;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.prefs.Preferences;
 import javax.swing.DefaultComboBoxModel;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
 import javax.swing.JLabel;
+import javax.swing.JList;
 import javax.swing.JPanel;
+import javax.swing.JScrollPane;
 import javax.swing.JSpinner;
 import javax.swing.JTextField;
 import javax.swing.JToggleButton;
+import javax.swing.ListSelectionModel;
 import javax.swing.SpinnerNumberModel;
+import javax.swing.SwingUtilities;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.event.ListSelectionEvent;
+import javax.swing.event.ListSelectionListener;
 import mmcorej.CMMCore;
-import mmcorej.CharVector;
 import mmcorej.DeviceType;
 import mmcorej.StrVector;
 import net.miginfocom.swing.MigLayout;
 import org.jfree.data.xy.XYSeries;
 import org.micromanager.api.ScriptInterface;
+import org.micromanager.saim.calibration.AdaptiveSampler;
+import org.micromanager.saim.calibration.CalibrationModel;
+import org.micromanager.saim.calibration.ChannelCalibration;
+import org.micromanager.saim.calibration.LiveCalibration;
+import org.micromanager.saim.calibration.RoiTracker;
+import org.micromanager.saim.calibration.SaimOptics;
+import org.micromanager.saim.calibration.ScanFitSession;
+import org.micromanager.saim.calibration.ScanPipeline;
+import org.micromanager.saim.calibration.ScanStep;
+import org.micromanager.saim.detector.DetectorFrame;
+import org.micromanager.saim.detector.DetectorFrameReader;
+import org.micromanager.saim.detector.LineSensorSource;
+import org.micromanager.saim.detector.MMCoreSerialLink;
+import org.micromanager.saim.detector.MMCoreTirfMotor;
+import org.micromanager.saim.detector.SerialLineSensorSource;
+import org.micromanager.saim.detector.SerialLink;
+import org.micromanager.saim.detector.TtySerialLink;
 import org.micromanager.saim.exceptions.SAIMException;
 import org.micromanager.saim.fit.Fitter;
+import org.micromanager.saim.fit.GaussianFitter;
+import org.micromanager.saim.fit.PeakEstimator;
 import org.micromanager.saim.gui.GuiUtils;
 import org.micromanager.saim.plot.PlotUtils;
-import org.micromanager.saim.data.RI;
 
 /**
  *
@@ -59,6 +86,9 @@ import org.micromanager.saim.data.RI;
  */
 public class CalibrationPanel extends JPanel {
 
+    // number of pixels per detector read while tracking the beam
+    private static final int ROIWIDTH = 192;
+
     private final ScriptInterface gui_;
     private final Preferences prefs_;
     private final CMMCore core_;
@@ -67,6 +97,7 @@ public class CalibrationPanel extends JPanel {
     private final JComboBox serialPortBox_;
     private final JComboBox tirfDeviceBox_;
     private final JComboBox tirfPropBox_;
+    private final JTextField ttyField_;
     //private final JLabel offsetLabel_;
     private final JTextField wavelengthField_;
     private final JTextField sampleRIField_;
@@ -74,10 +105,27 @@ public class CalibrationPanel extends JPanel {
     private final JTextField startMotorPosField_;
     private final JTextField endMotorPosField_;
     private final JSpinner numberOfCalibrationStepsSpinner_;
+    private final JCheckBox adaptiveCheckBox_;
+    private final JTextField targetField_;
+    private final JCheckBox earlyStopCheckBox_;
+    private final JTextField toleranceField_;
+    private final JCheckBox multiChannelCheckBox_;
+    private final JList<String> channelList_;
+    private final JLabel channelWavelengthLabel_;
+    private final JTextField channelWavelengthField_;
+    // channel whose wavelength is shown in channelWavelengthField_
+    private String wavelengthChannel_;
     private final JToggleButton runButton_;
     private final JLabel channelField_;
     private final JButton updateChannelButton_;
     private final JLabel fitLabel_;
+    private final JCheckBox streamCheckBox_;
+    private final JCheckBox packedCheckBox_;
+    private final JCheckBox roiCheckBox_;
+    private final JComboBox<String> beamFitBox_;
+    private volatile Fitter.FunctionType beamFit_;
+    private final JToggleButton liveButton_;
+    private final DetectorFrame snapFrame_ = new DetectorFrame();
 
     public CalibrationPanel(ScriptInterface gui, Preferences prefs) throws Exception {
         super(new MigLayout(
@@ -114,6 +162,14 @@ public class CalibrationPanel extends JPanel {
         });
         setupPanel.add(serialPortBox_, "span, wrap");
 
+        // talk to the detector directly, bypassing Micro-Manager's serial port
+        setupPanel.add(new JLabel("Or detector tty (optional):"));
+        ttyField_ = new JTextField("");
+        setTextAttributes(ttyField_, componentSize);
+        ttyField_.setHorizontalAlignment(JTextField.LEFT);
+        GuiUtils.tieTextFieldToPrefs(prefs_, ttyField_, PrefUtils.DETECTORTTY);
+        setupPanel.add(ttyField_, "span, growx, wrap");
+
         setupPanel.add(new JLabel("Select TIRF motor device:"));
         tirfDeviceBox_ = new JComboBox();
         tirfDeviceBox_.setMaximumSize(componentSize);
@@ -143,6 +199,56 @@ public class CalibrationPanel extends JPanel {
             }
         });
 
+        // let the detector send frames continuously during a calibration
+        streamCheckBox_ = new JCheckBox("Stream detector during calibration");
+        streamCheckBox_.setSelected(prefs_.getBoolean(PrefUtils.DETECTORSTREAM, false));
+        streamCheckBox_.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                prefs_.putBoolean(PrefUtils.DETECTORSTREAM, streamCheckBox_.isSelected());
+            }
+        });
+        setupPanel.add(streamCheckBox_, "span 2, wrap");
+
+        // 12 bit pixels can be sent two in three bytes (needs recent firmware)
+        packedCheckBox_ = new JCheckBox("Packed 12-bit detector transfer");
+        packedCheckBox_.setSelected(prefs_.getBoolean(PrefUtils.DETECTORPACKED, false));
+        packedCheckBox_.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                prefs_.putBoolean(PrefUtils.DETECTORPACKED, packedCheckBox_.isSelected());
+            }
+        });
+        setupPanel.add(packedCheckBox_, "span 2, wrap");
+
+        // only read the part of the detectors where the beam is expected
+        roiCheckBox_ = new JCheckBox("Track beam with detector window");
+        roiCheckBox_.setSelected(prefs_.getBoolean(PrefUtils.DETECTORROI, false));
+        roiCheckBox_.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                prefs_.putBoolean(PrefUtils.DETECTORROI, roiCheckBox_.isSelected());
+            }
+        });
+        setupPanel.add(roiCheckBox_, "span 2, wrap");
+
+        // how the beam center is found on the detectors
+        setupPanel.add(new JLabel("Find beam center by:"));
+        beamFitBox_ = new JComboBox<String>(Fitter.getBeamFunctionTypes());
+        beamFitBox_.setMaximumSize(componentSize);
+        beamFitBox_.setMinimumSize(componentSize);
+        beamFitBox_.setSelectedItem(prefs_.get(PrefUtils.BEAMFIT,
+                Fitter.getFunctionTypeAsString(Fitter.FunctionType.Gaussian)));
+        beamFit_ = Fitter.getFunctionTypeAsType((String) beamFitBox_.getSelectedItem());
+        beamFitBox_.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                prefs_.put(PrefUtils.BEAMFIT, (String) beamFitBox_.getSelectedItem());
+                beamFit_ = Fitter.getFunctionTypeAsType((String) beamFitBox_.getSelectedItem());
+            }
+        });
+        setupPanel.add(beamFitBox_, "span, wrap");
+
         // Calibrate Panel
         JPanel runPanel = new JPanel(new MigLayout(
                 "", ""));
@@ -193,6 +299,98 @@ public class CalibrationPanel extends JPanel {
         });
         runPanel.add(numberOfCalibrationStepsSpinner_, "span, growx, wrap");
 
+        // scan coarsely first, and only add steps where they improve the
+        // calibration, until the angle is known to the target precision
+        adaptiveCheckBox_ = new JCheckBox("Adaptive sampling");
+        adaptiveCheckBox_.setSelected(prefs_.getBoolean(PrefUtils.ADAPTIVECAL, false));
+        adaptiveCheckBox_.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                prefs_.putBoolean(PrefUtils.ADAPTIVECAL, adaptiveCheckBox_.isSelected());
+                targetField_.setEnabled(adaptiveCheckBox_.isSelected());
+            }
+        });
+        runPanel.add(adaptiveCheckBox_, "span, wrap");
+
+        runPanel.add(new JLabel("Target Angle Precision (deg):"));
+        targetField_ = new JTextField(prefs_.get(PrefUtils.CALTARGET, "0.05"));
+        setTextAttributes(targetField_, calBoxSize);
+        GuiUtils.tieTextFieldToPrefs(prefs_, targetField_, PrefUtils.CALTARGET);
+        targetField_.setEnabled(adaptiveCheckBox_.isSelected());
+        runPanel.add(targetField_, "span, growx, wrap");
+
+        // end the scan as soon as the coefficients of the calibration are
+        // known well enough
+        earlyStopCheckBox_ = new JCheckBox("Stop when calibration converges");
+        earlyStopCheckBox_.setSelected(prefs_.getBoolean(PrefUtils.EARLYSTOP, false));
+        earlyStopCheckBox_.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                prefs_.putBoolean(PrefUtils.EARLYSTOP, earlyStopCheckBox_.isSelected());
+                toleranceField_.setEnabled(earlyStopCheckBox_.isSelected());
+            }
+        });
+        runPanel.add(earlyStopCheckBox_, "span, wrap");
+
+        runPanel.add(new JLabel("Convergence Tolerance (deg):"));
+        toleranceField_ = new JTextField(prefs_.get(PrefUtils.CALTOLERANCE, "0.02"));
+        setTextAttributes(toleranceField_, calBoxSize);
+        GuiUtils.tieTextFieldToPrefs(prefs_, toleranceField_, PrefUtils.CALTOLERANCE);
+        toleranceField_.setEnabled(earlyStopCheckBox_.isSelected());
+        runPanel.add(toleranceField_, "span, growx, wrap");
+
+        // calibrate several channels in one sweep, switching channels at
+        // every motor position
+        multiChannelCheckBox_ = new JCheckBox("Calibrate channels in one sweep:");
+        multiChannelCheckBox_.setSelected(prefs_.getBoolean(PrefUtils.MULTICHANNEL, false));
+        multiChannelCheckBox_.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                prefs_.putBoolean(PrefUtils.MULTICHANNEL, multiChannelCheckBox_.isSelected());
+                channelList_.setEnabled(multiChannelCheckBox_.isSelected());
+                updateChannelWavelength();
+            }
+        });
+        runPanel.add(multiChannelCheckBox_, "span, wrap");
+        // excitation wavelength of the channel last clicked in the list
+        channelWavelengthLabel_ = new JLabel("Channel wavelength (nm):");
+        channelWavelengthField_ = new JTextField();
+        setTextAttributes(channelWavelengthField_, calBoxSize);
+        channelWavelengthField_.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                storeChannelWavelength();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                storeChannelWavelength();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                storeChannelWavelength();
+            }
+        });
+        channelList_ = new JList<String>();
+        channelList_.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+        channelList_.setVisibleRowCount(4);
+        channelList_.addListSelectionListener(new ListSelectionListener() {
+            @Override
+            public void valueChanged(ListSelectionEvent e) {
+                if (!e.getValueIsAdjusting() && channelList_.getModel().getSize() > 0) {
+                    prefs_.put(PrefUtils.CALCHANNELS, join(channelList_.getSelectedValuesList()));
+                }
+                updateChannelWavelength();
+            }
+        });
+        updateChannelList();
+        channelList_.setEnabled(multiChannelCheckBox_.isSelected());
+        runPanel.add(new JScrollPane(channelList_), "span, growx, wrap");
+        runPanel.add(channelWavelengthLabel_);
+        runPanel.add(channelWavelengthField_, "span, growx, wrap");
+        updateChannelWavelength();
+
         runButton_ = new JToggleButton("Run Calibration");
         runButton_.addActionListener(new ActionListener() {
             @Override
@@ -222,7 +420,21 @@ public class CalibrationPanel extends JPanel {
                 runOnce();
             }
         });
-        runPanel.add(calcOffsetButton, "span, center, wrap");
+        runPanel.add(calcOffsetButton, "span, center, split 2");
+
+        liveButton_ = new JToggleButton("Live");
+        liveButton_.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (liveButton_.isSelected()) {
+                    liveButton_.setText("Stop Live");
+                    runLive();
+                } else {
+                    liveButton_.setText("Live");
+                }
+            }
+        });
+        runPanel.add(liveButton_, "wrap");
         runPanel.add(runButton_, "span, center, wrap");
 
 
@@ -244,6 +456,7 @@ public class CalibrationPanel extends JPanel {
             @Override
             public void actionPerformed(ActionEvent e) {
                 updateChannelCalibration();
+                updateChannelList();
             }
         });
         calibrationPanel.add(updateChannelButton_, "span, center, wrap");
@@ -272,165 +485,300 @@ public class CalibrationPanel extends JPanel {
         jtf.setMinimumSize(size);
     }
 
+    /**
+     * Shows the calibration of the current channel.  Call on the EDT.
+     */
     private void updateChannelCalibration() {
         try {
             String channelGroup = core_.getChannelGroup();
             prefs_.put(PrefUtils.CHANNEL, channelGroup + ": " + core_.getCurrentConfig(channelGroup));
             channelField_.setText(prefs_.get(PrefUtils.CHANNEL, ""));
-            String coeff3 = new DecimalFormat("0.###E0").format(
-                    Double.parseDouble(PrefUtils.parseCal(3, prefs_, gui_)));
-            String coeff2 = new DecimalFormat("0.###E0").format(
-                    Double.parseDouble(PrefUtils.parseCal(2, prefs_, gui_)));
-            String coeff1 = new DecimalFormat("0.###E0").format(
-                    Double.parseDouble(PrefUtils.parseCal(1, prefs_, gui_)));
-            String offset = new DecimalFormat("#.##").format(
-                    Double.parseDouble(PrefUtils.parseCal(0, prefs_, gui_)));
-            fitLabel_.setText("y = " + coeff3 + "* x^3 + " + coeff2 + "* x^2 + " + coeff1 + "x + " + offset);
+            CalibrationModel calibration = CalibrationModel.forCurrentChannel(prefs_, gui_);
+            fitLabel_.setText(formatCalibration(
+                    Arrays.copyOf(calibration.getCoefficients(), 4)));
         } catch (Exception ex) {
             //ij.IJ.log(ex.getMessage());
             fitLabel_.setText("Uncalibrated");
         }
     }
 
+    /**
+     * @param coefficients coefficients of the calibration curve, lowest order first
+     * @return text for the "Current Calibration" label
+     */
+    private static String formatCalibration(double[] coefficients) {
+        String coeff3 = new DecimalFormat("0.###E0").format(coefficients[3]);
+        String coeff2 = new DecimalFormat("0.###E0").format(coefficients[2]);
+        String coeff1 = new DecimalFormat("0.###E0").format(coefficients[1]);
+        String offset = new DecimalFormat("#.##").format(coefficients[0]);
+        return "y = " + coeff3 + "* x^3 + " + coeff2 + "* x^2 + " + coeff1 + "x + " + offset;
+    }
+
+    /**
+     * Shows the calibration curve of a running scan in the "Current
+     * Calibration" label.  The label is set on the EDT, in the order of the
+     * calls, so that the calibration shown when the scan ends (see
+     * CalThread) replaces all live curves.
+     *
+     * @param channel channel whose calibration is being built
+     */
+    private void showLiveCalibration(ChannelCalibration channel) {
+        LiveCalibration live = channel.getLive();
+        if (!live.isValid()) {
+            return;
+        }
+        final String text = channel.getName() + ": "
+                + formatCalibration(live.getCoefficients())
+                + String.format(" (%d points, +/- %.3f deg)", live.getCount(),
+                        live.getAngleError());
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                fitLabel_.setText(text);
+            }
+        });
+    }
+
     /**
      * This function opens the shutter and reads out the position of the beam on
      * both CCDs. Used for testing before running the calibration
      *
      */
     private void runOnce() {
-       
-        final String deviceName = tirfDeviceBox_.getSelectedItem().toString();
-        final String propName = tirfPropBox_.getSelectedItem().toString();
-        
-        //Initialize xyseries to collect pixel intensity values
-        double currentPos = 0;
-        try {
-            currentPos = Double.parseDouble(core_.getPropertyFromCache(deviceName, propName));
-        } catch (Exception ex) {
-            ij.IJ.log("Motor position cannot be converted to double, is setup correct?");
-        }
+        LineSensorSource source = null;
         try {
+            source = createSource();
             core_.setShutterOpen(true);
-            Point2D.Double positionVal = takeSnapshot(currentPos, "Intensity Profile");
-            core_.setShutterOpen(false);
-            if (positionVal != null) {
+            try {
+                DetectorFrame frame = source.snap(snapFrame_);
+                double pos = frame.getPosition();
+                if (Double.isNaN(pos)) {
+                    ij.IJ.log("Motor position cannot be converted to double, is setup correct?");
+                    pos = 0;
+                }
+                Point2D.Double positionVal = analyzeFrame(frame, pos, "Intensity Profile");
                 Double position = positionVal.x - positionVal.y;
                 ij.IJ.log("Detector position: " + position + "\n");
+            } finally {
+                core_.setShutterOpen(false);
             }
         } catch (Exception ex) {
-            ij.IJ.log(ex.getMessage() + ", Failed to open/close the shutter");
+            ex.printStackTrace();
+            ij.IJ.log(ex.getMessage());
+        } finally {
+            closeSource(source);
+        }
+    }
+
+    /**
+     * Creates the source of detector frames as set up in the GUI: the
+     * calibration device is reached through the tty when one is given,
+     * otherwise through the selected Micro-Manager serial port.  The TIRF
+     * motor is the selected property of the selected device.
+     *
+     * @param streaming if true, let the device stream frames continuously
+     * @return source of detector frames.  Close when done.
+     * @throws Exception when the device could not be reached
+     */
+    private SerialLineSensorSource createSource(boolean streaming) throws Exception {
+        SerialLink link;
+        String tty = ttyField_.getText().trim();
+        if (tty.length() > 0) {
+            link = new TtySerialLink(tty);
+        } else {
+            link = new MMCoreSerialLink(core_, serialPortBox_.getSelectedItem().toString());
+        }
+        SerialLineSensorSource source = new SerialLineSensorSource(link,
+                new MMCoreTirfMotor(core_, tirfDeviceBox_.getSelectedItem().toString(),
+                        tirfPropBox_.getSelectedItem().toString()));
+        try {
+            source.setPacked(packedCheckBox_.isSelected());
+            source.setStreaming(streaming);
+        } catch (Exception ex) {
+            closeSource(source);
+            throw ex;
+        }
+        return source;
+    }
+
+    private SerialLineSensorSource createSource() throws Exception {
+        return createSource(false);
+    }
+
+    private static void closeSource(LineSensorSource source) {
+        if (source == null) {
+            return;
+        }
+        try {
+            source.close();
+        } catch (Exception ex) {
+            ij.IJ.log(ex.getMessage());
         }
     }
 
     /**
-     * Opens the shutter, reads out the center position on the top and bottom
-     * CCD, returns these position (as a Point2D.Double)
+     * Finds the beam in a window of one detector, using the fitter or the
+     * estimator of the calling thread
      *
+     * @param type Gaussian, or one of the closed-form estimators
+     * @param session scan session that starts Gaussian fits from the beam
+     *        expected at this position, null to fit each frame on its own
+     * @param detector ScanFitSession.LOWER or ScanFitSession.UPPER
      * @param pos position of the "TIRF" motor
+     * @param pixels pixel values of the detector
+     * @param offset index of the first pixel of the window
+     * @param width number of pixels in the window
+     * @return norm, mean, sigma, offset of the beam
+     */
+    private static double[] findBeam(Fitter.FunctionType type, ScanFitSession session,
+            int detector, double pos, short[] pixels, int offset, int width) {
+        if (type == Fitter.FunctionType.Gaussian && session != null) {
+            return session.fit(detector, pos, pixels, offset, width);
+        }
+        if (type == Fitter.FunctionType.Gaussian) {
+            return GaussianFitter.forThread().fit(pixels, offset, width,
+                    Fitter.WeightMethod.Top50Linear, null, null);
+        }
+        return PeakEstimator.forThread().estimate(type, pixels, offset, width,
+                Fitter.WeightMethod.Top50Linear, null);
+    }
+
+    /**
+     * Fits Gaussians to the readout of both detectors, and plots the data
+     * and the fits
+     *
+     * @param frame pixel values of both detectors
+     * @param pos position of the "TIRF" motor (only used in the plot)
      * @param plotTitle String used as title in the plot of the CCD readout
      * @return Point2D.double. x = bottom CCD, y = top CCD
      */
-    private Point2D.Double takeSnapshot(double pos, String plotTitle) {
-        int i = 0;
-        try {
-            //Set up communication with devices
-            final String port = serialPortBox_.getSelectedItem().toString();
-            final String deviceName = tirfDeviceBox_.getSelectedItem().toString();
-            final String propName = "Position";
-            //Initialize xyseries to collect pixel intensity values
-            XYSeries dect1readings = new XYSeries("lower", false, true);
-            XYSeries dect2readings = new XYSeries("upper", false, true);
-            //Set motor position
-            core_.setProperty(deviceName, propName, pos);
-            core_.waitForDevice(deviceName);
-            ij.IJ.log("Pos: " + pos);
-
-            // Read any junk remaining in serial port buffer
-            CharVector tmp = core_.readFromSerialPort(port);
-            if (!tmp.isEmpty()) {
-                ij.IJ.log("Found " + tmp.size() + " characters in serial port buffer");
-            }
+    private Point2D.Double analyzeFrame(DetectorFrame frame, double pos, final String plotTitle) {
+        return analyzeFrame(frame, pos, plotTitle, null);
+    }
 
-            // log time for optimization purposes (can deleted afterwards)
-            long startTime = System.currentTimeMillis();
+    /**
+     * Fits Gaussians to the readout of both detectors, and plots the data
+     * and the fits
+     *
+     * @param frame pixel values of both detectors
+     * @param pos position of the "TIRF" motor
+     * @param plotTitle String used as title in the plot of the CCD readout
+     * @param session scan session that starts the fits from the beam expected
+     *        at this position, may be null
+     * @return Point2D.double. x = bottom CCD, y = top CCD
+     */
+    private Point2D.Double analyzeFrame(DetectorFrame frame, double pos,
+            final String plotTitle, ScanFitSession session) {
+        //Initialize xyseries to collect pixel intensity values
+        XYSeries dect1readings = new XYSeries("lower", false, true);
+        XYSeries dect2readings = new XYSeries("upper", false, true);
+        short[] lower = frame.getLower();
+        short[] upper = frame.getUpper();
+        // only the window sent by the detector is valid
+        for (int i = 0; i < frame.getWidth(); i++) {
+            dect1readings.add(frame.getLowerOffset() + i, lower[frame.getLowerOffset() + i]);
+            dect2readings.add(frame.getUpperOffset() + i, upper[frame.getUpperOffset() + i]);
+        }
 
-            //Send command to calibration device, record pixel intensity vales
-            core_.setSerialPortCommand(port, "1", "");
+        //Not needed for calibrator verson 3.0 and beyong
+        //shuffle values of detector 1 to match physical layout of pixels
+        //int size = dect1readings.getItemCount();
+        //XYSeries dect1readingsFlip = new XYSeries("lower", false, true);
+        //for (int a = 0; a < size; a++) {
+        //    Number pxvalue = dect1readings.getY(size - 1 - a);
+        //    dect1readingsFlip.add(a, pxvalue);
+        //}
 
-            // read binary data from Arduino
-            byte[] buffer = new byte[6144];
-            int charsRead = 0;
-            long timeOut = System.currentTimeMillis() + 4500;
-            while (charsRead < 6144 && System.currentTimeMillis() < timeOut) {
-                tmp = core_.readFromSerialPort(port);
-                for (int j = 0; j < tmp.size(); j++) {
-                    buffer[charsRead + j] = (byte) tmp.get(j);
-                }
-                charsRead += tmp.size();
-            }
-            if (charsRead != 6144) {
-                throw new Exception("Device did not send epected data: Received only " + charsRead + " bytes");
-            }
-            //ij.IJ.log("Device needed " + (System.currentTimeMillis() - startTime) + " ms to acquired and send the data");
-            for (i = 0; i < 1536; i++) {
-                short dect1px = shortFrom2Bytes(buffer[i * 2], buffer[i * 2 + 1]);
-                short dect2px = shortFrom2Bytes(buffer[3072 + i * 2],
-                        buffer[3072 + i * 2 + 1]);
-                dect1readings.add(i, dect1px);
-                dect2readings.add(i, dect2px);
-            }
+        // setup plotting detector readings
+        PlotUtils myPlotter = new PlotUtils(prefs_);
+        XYSeries[] toPlot = new XYSeries[4];
+        toPlot[0] = dect1readings;
+        toPlot[1] = dect2readings;
+        boolean[] showShapes = {true, true, false, false};
 
-            //Not needed for calibrator verson 3.0 and beyong
-            //shuffle values of detector 1 to match physical layout of pixels
-            //int size = dect1readings.getItemCount();
-            //XYSeries dect1readingsFlip = new XYSeries("lower", false, true);
-            //for (int a = 0; a < size; a++) {
-            //    Number pxvalue = dect1readings.getY(size - 1 - a);
-            //    dect1readingsFlip.add(a, pxvalue);
-            //}
-            
-            // setup plotting detector readings
-            PlotUtils myPlotter = new PlotUtils(prefs_);
-            XYSeries[] toPlot = new XYSeries[4];
-            toPlot[0] = dect1readings;
-            toPlot[1] = dect2readings;
-            boolean[] showShapes = {true, true, false, false};
-
-            // Fit result to a gaussian
-            double[] result1 = new double[4];
-            double[] result2 = new double[4];
-            toPlot[2] = new XYSeries(3);
-            toPlot[3] = new XYSeries(4);
-            try {
-                result1 = Fitter.fit(dect1readings, Fitter.FunctionType.Gaussian, null, Fitter.WeightMethod.Top50Linear);
-                toPlot[2] = Fitter.getFittedSeries(dect1readings, Fitter.FunctionType.Gaussian, result1);
-                ij.IJ.log("Dectector 1 Mean: " + result1[1] + "\n");
-                result2 = Fitter.fit(dect2readings, Fitter.FunctionType.Gaussian, null, Fitter.WeightMethod.Top50Linear);
-                toPlot[3] = Fitter.getFittedSeries(dect2readings, Fitter.FunctionType.Gaussian, result2);
-                ij.IJ.log("Dectector 2 Mean: " + result2[1] + "\n");
-            } catch (Exception ex) {
-                ij.IJ.log("Fit failed");
+        // Fit result to a gaussian, or estimate its parameters
+        final Fitter.FunctionType beamFit = beamFit_;
+        double[] result1;
+        double[] result2;
+        // a failed fit gives no beam position, rather than pixel 0
+        double lowerMean = Double.NaN;
+        double upperMean = Double.NaN;
+        toPlot[2] = new XYSeries(3);
+        toPlot[3] = new XYSeries(4);
+        // work directly on the pixel values, the series are only needed for the plot
+        try {
+            result1 = findBeam(beamFit, session, ScanFitSession.LOWER, pos, lower,
+                    frame.getLowerOffset(), frame.getWidth());
+            toPlot[2] = Fitter.getFittedSeries(dect1readings, beamFit, result1);
+            ij.IJ.log("Dectector 1 Mean: " + result1[1] + "\n");
+            result2 = findBeam(beamFit, session, ScanFitSession.UPPER, pos, upper,
+                    frame.getUpperOffset(), frame.getWidth());
+            toPlot[3] = Fitter.getFittedSeries(dect2readings, beamFit, result2);
+            ij.IJ.log("Dectector 2 Mean: " + result2[1] + "\n");
+            lowerMean = result1[1];
+            upperMean = result2[1];
+        } catch (Exception ex) {
+            ij.IJ.log("Fit failed");
+        }
+
+        //Plot detector readings and gaussian fits.  This may be called from
+        //several threads at once, so leave the plotting to the EDT
+        final PlotUtils plotter = myPlotter;
+        final XYSeries[] plotData = toPlot;
+        final boolean[] plotShapes = showShapes;
+        final String annotation = "Pos: " + pos;
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                plotter.plotDataN(plotTitle, plotData, "Pixel", "Intensity", plotShapes, annotation);
             }
+        });
 
-            //Plot detector readings and gaussian fits
-            myPlotter.plotDataN(plotTitle, toPlot, "Pixel", "Intensity", showShapes, "Pos: " + pos);
+        //Return gaussian means as detectorMeans object
+        return new Point2D.Double(lowerMean, upperMean);
+    }
 
-            //Return gaussian means as detectorMeans object
-            return new Point2D.Double(result1[1], result2[1]);
+    /**
+     * Continuously shows the beam profile on both detectors, and the
+     * detector position, while the Live button is pressed.  Useful for aligning.
+     */
+    private void runLive() {
 
-        } catch (Exception ex) {
-            ex.printStackTrace();;
-            ij.IJ.log(ex.getMessage() + "\nRan until # " + i);
+        class LiveThread extends Thread {
+
+            LiveThread(String threadName) {
+                super(threadName);
+            }
+
+            @Override
+            public void run() {
+                LineSensorSource source = null;
+                try {
+                    source = createSource(true);
+                    core_.setShutterOpen(true);
+                    DetectorFrame frame = new DetectorFrame();
+                    while (liveButton_.isSelected()) {
+                        source.snap(frame);
+                        Point2D.Double positionVal = analyzeFrame(frame, 0, "Live Intensity Profile");
+                        ij.IJ.log("Detector position: " + (positionVal.x - positionVal.y) + "\n");
+                    }
+                } catch (Exception ex) {
+                    ij.IJ.log(ex.getMessage());
+                } finally {
+                    try {
+                        core_.setShutterOpen(false);
+                    } catch (Exception ex) {
+                        ij.IJ.log(ex.getMessage());
+                    }
+                    closeSource(source);
+                    liveButton_.setText("Live");
+                    liveButton_.setSelected(false);
+                }
+            }
         }
-        return null;
-    }
 
-    private short shortFrom2Bytes(byte byte1, byte byte2) {
-        ByteBuffer bb = ByteBuffer.allocate(2);
-        bb.order(ByteOrder.LITTLE_ENDIAN);
-        bb.put(byte1);
-        bb.put(byte2);
-        return bb.getShort(0);
+        LiveThread livet = new LiveThread("SAIM Live");
+        livet.start();
     }
 
     /**
@@ -449,6 +797,8 @@ public class CalibrationPanel extends JPanel {
             @Override
             public void run() {
 
+                LineSensorSource source = null;
+                String originalChannel = null;
                 try {
                     //Check for channel group before running calibration
                     if (core_.getChannelGroup().equals("")) {
@@ -456,7 +806,7 @@ public class CalibrationPanel extends JPanel {
                         throw new SAIMException("Channel group is not defined");
                     }
                     //Check for offset before running calibration
-                    Double detectorOffset = 0.0;
+                    final double detectorOffset = 0.0;
                     //try {
                     //    Double tmp = Double.parseDouble(offsetLabel_.getText());
                     //} catch (Exception e) {
@@ -490,87 +840,186 @@ public class CalibrationPanel extends JPanel {
                     }
                     final int nrAngles = prefs_.getInt(PrefUtils.NUMCALSTEPS, 0);
                     final double angleStepSize = (endPosition - startPosition) / nrAngles;
-                    //Take image of laser position
-                    XYSeries dect1gaussianMeans = new XYSeries(new Double(nrAngles), false, true);
-                    XYSeries dect2gaussianMeans = new XYSeries(new Double(nrAngles), false, true);
-                    core_.setShutterOpen(true);
-                    double pos = startPosition;
+                    final double[] positions = new double[nrAngles + 1];
                     for (int angle = 0; angle <= nrAngles; angle++) {
-                        //Check state of user Abort button 
-                        if (runButton_.isSelected()) {
-                        } else {
-                            throw new Exception("User aborted calibration");
-                        }
-                        Point2D.Double laserPos = takeSnapshot(pos, "Saim Scan");
-                        if (laserPos != null) {
-                            dect1gaussianMeans.add(pos, laserPos.x);
-                            dect2gaussianMeans.add(pos, laserPos.y);
-                            pos = pos + angleStepSize;
+                        positions[angle] = startPosition + angle * angleStepSize;
+                    }
+                    source = createSource(streamCheckBox_.isSelected());
+                    final RoiTracker tracker = roiCheckBox_.isSelected()
+                            ? new RoiTracker(source, ROIWIDTH) : null;
+                    if (tracker != null) {
+                        source = tracker;
+                    }
+                    final double startAngle = acquisitionStartAngle();
+                    final AdaptiveSampler sampler = adaptiveCheckBox_.isSelected()
+                            ? createSampler(startPosition, endPosition, nrAngles, startAngle)
+                            : null;
+                    final boolean earlyStop = earlyStopCheckBox_.isSelected();
+                    final double tolerance = earlyStop ? parseTolerance() : 0.0;
+                    //Channels to calibrate, each with the optics at its wavelength
+                    final String group = core_.getChannelGroup();
+                    originalChannel = core_.getCurrentConfig(group);
+                    final String[] channelNames = multiChannelCheckBox_.isSelected()
+                            ? selectedChannels() : new String[] {originalChannel};
+                    if (channelNames.length == 0) {
+                        ij.IJ.error("Select the channels to calibrate");
+                        throw new SAIMException("No channels selected");
+                    }
+                    final ChannelCalibration[] channels =
+                            new ChannelCalibration[channelNames.length];
+                    for (int i = 0; i < channelNames.length; i++) {
+                        double wavelength = channelNames.length == 1
+                                ? parseWavelength()
+                                : channelWavelength(group, channelNames[i]);
+                        channels[i] = new ChannelCalibration(channelNames[i], wavelength,
+                                SaimOptics.fromPreferences(prefs_, detectorOffset, wavelength),
+                                new ScanFitSession(Fitter.WeightMethod.Top50Linear),
+                                new LiveCalibration(tolerance, startAngle, -startAngle));
+                        if (channelNames.length > 1) {
+                            ij.IJ.log("Channel " + channelNames[i] + ": " + wavelength
+                                    + " nm, acrylic RI " + channels[i].getOptics().getAcrylicRI());
                         }
                     }
+                    final ScanPipeline.ChannelSwitcher switcher = channels.length == 1 ? null
+                            : new ScanPipeline.ChannelSwitcher() {
+                        @Override
+                        public void select(int channel) throws Exception {
+                            core_.setConfig(group, channelNames[channel]);
+                            core_.waitForConfig(group, channelNames[channel]);
+                        }
+                    };
+                    core_.setShutterOpen(true);
+                    //Take image of laser position while the previous one is analyzed,
+                    //and determine angle of laser light at each motor position
+                    final ScanPipeline.Analyzer analyzer = new ScanPipeline.Analyzer() {
+                        @Override
+                        public void analyze(ScanStep step) {
+                            Point2D.Double laserPos = analyzeFrame(step.getFrame(),
+                                    step.getPosition(), "Saim Scan",
+                                    channels[step.getChannel()].getFitSession());
+                            step.setMeans(laserPos.x, laserPos.y);
+                            //the window follows the beam of the first channel
+                            if (tracker != null && step.getChannel() == 0) {
+                                tracker.update(step.getPosition(), laserPos.x, laserPos.y);
+                            }
+                        }
+                    };
+                    final ScanPipeline.Monitor monitor = new ScanPipeline.Monitor() {
+                        @Override
+                        public boolean isAborted() {
+                            //Check state of user Abort button
+                            return !runButton_.isSelected();
+                        }
+
+                        @Override
+                        public boolean isFinished() {
+                            return earlyStop && ChannelCalibration.allConverged(channels);
+                        }
 
-                    //Determine angle of laser light at each motor position
-                    XYSeries observedAngles = new XYSeries("angles", false, true);
-                    for (int l = 0; l <= nrAngles; l++) {
-                        Double motorPosition = dect1gaussianMeans.getX(l).doubleValue();
-                        Double dect1val = dect1gaussianMeans.getY(l).doubleValue();
-                        Double dect2val = detectorOffset + dect2gaussianMeans.getY(l).doubleValue();
-                        //pixel center to center distance is 63.5 um 
-                        double xdisp = (dect1val.floatValue() - dect2val.floatValue()) * 0.0635;
-                        //detector1 center to detector2 center is 12.95 mm (old detector design was 20.64 mm)
-                        double ydisp = 12.95;
-                        Double observedAngle = Math.toDegrees(Math.atan(xdisp / ydisp));
-                        //Snells law correction angle of laser light for refractive index 
-                        //Refractive indeces: water = 1.33, user input = RI
-                        //determine true angle coming out of objective (correct for acrylic)
-                        double wavelength = Double.parseDouble(prefs_.get(PrefUtils.WAVELENGTH,"0.0"));
-                        double immersionRI = Double.parseDouble(prefs_.get(PrefUtils.IMMERSIONRI, "1.33"));
-                        double sampleRI = Double.parseDouble(prefs_.get(PrefUtils.SAMPLERI, "1.33"));
-                        double nAcr = RI.getRI(RI.Compound.ACRYLIC, wavelength);
-                        Double firstCorrect = snellIt(observedAngle, nAcr, immersionRI);
-                        //determine true angle hitting the sample (correct for water/buffer)
-                        Double trueAngle = snellIt(firstCorrect, immersionRI, sampleRI);
-                        observedAngles.add(trueAngle, motorPosition);
+                        @Override
+                        public void stepCompleted(ScanStep step) {
+                            ChannelCalibration channel = channels[step.getChannel()];
+                            ij.IJ.log("Pos: " + step.getPosition() + (channels.length > 1
+                                    ? ", " + channel.getName() : ""));
+                            step.setTrueAngle(channel.getOptics().trueAngle(
+                                    step.getLowerMean(), step.getUpperMean()));
+                            channel.getLive().add(step);
+                            showLiveCalibration(channel);
+                        }
+
+                        @Override
+                        public void acquisitionFailed(double position, Exception ex) {
+                            ij.IJ.log("Pos: " + position + ", " + ex.getMessage());
+                        }
+                    };
+                    final ScanPipeline pipeline = new ScanPipeline();
+                    //the tracker follows channel 0, so that channel comes first everywhere
+                    pipeline.setAlternating(tracker == null);
+                    List<ScanStep> steps;
+                    if (sampler == null) {
+                        //When stopping early, cover the whole range coarsely first
+                        steps = pipeline.run(earlyStop
+                                ? LiveCalibration.coarseToFine(positions) : positions,
+                                channels.length, switcher, source, analyzer, monitor);
+                    } else {
+                        //Coarse sweep first, then refine where the calibration
+                        //(of the first channel) is least certain
+                        steps = new ArrayList<ScanStep>();
+                        double[] roundPositions = sampler.initialPositions();
+                        while (roundPositions.length > 0 && !monitor.isFinished()) {
+                            steps.addAll(pipeline.run(roundPositions, channels.length,
+                                    switcher, source, analyzer, monitor));
+                            roundPositions = sampler.nextPositions(
+                                    ChannelCalibration.stepsOf(steps, 0));
+                        }
+                        ij.IJ.log(String.format("Adaptive calibration: %d of %d steps in "
+                                + "%d rounds, angle uncertainty %.3f deg",
+                                sampler.getScannedCount(), nrAngles + 1,
+                                sampler.getRounds(), sampler.getUncertainty()));
                     }
-                    //Plot calibration curve
+                    if (earlyStop && ChannelCalibration.allConverged(channels)) {
+                        ij.IJ.log(String.format("Calibration converged after %d steps",
+                                steps.size() / channels.length));
+                    }
+
+                    //Fit, plot and store the calibration curve of each channel
                     PlotUtils myPlotter2 = new PlotUtils(prefs_);
-                    double[] calCurve = Fitter.fit(observedAngles, Fitter.FunctionType.Pol3, null);
-                    XYSeries[] toPlot = new XYSeries[2];
-                    toPlot[0] = observedAngles;
-                    toPlot[1] = Fitter.getFittedSeries(toPlot[0], Fitter.FunctionType.Pol3, calCurve);
-                    boolean[] showShapes = {true, false};
-                    myPlotter2.plotDataN("Calibration Curve", toPlot, "True Angle", "Position", showShapes, "");
-                    String calString = java.util.Arrays.toString(calCurve);
-                    String chString = PrefUtils.channelCoeffKey(prefs_, gui_);
-                    prefs_.put(chString, calString);
-                    //Print cal as stored in preferences (for debugging)
-                    //ij.IJ.log(chString + prefs_.get(chString, ""));
-                    //Print parsed coeffs (for debugging)
-                    //ij.IJ.log(PrefUtils.parseCal(3, prefs_, gui_));
-                    //ij.IJ.log(PrefUtils.parseCal(2, prefs_, gui_));
-                    //ij.IJ.log(PrefUtils.parseCal(1, prefs_, gui_));
-                    //ij.IJ.log(PrefUtils.parseCal(0, prefs_, gui_));
-
-                    String coeff3 = new DecimalFormat("0.###E0").format(Double.parseDouble(PrefUtils.parseCal(3, prefs_, gui_)));
-                    String coeff2 = new DecimalFormat("0.###E0").format(Double.parseDouble(PrefUtils.parseCal(2, prefs_, gui_)));
-                    String coeff1 = new DecimalFormat("0.###E0").format(Double.parseDouble(PrefUtils.parseCal(1, prefs_, gui_)));
-                    String offset = new DecimalFormat("#.##").format(Double.parseDouble(PrefUtils.parseCal(0, prefs_, gui_)));
-                    
-                    updateChannelCalibration();
-
-                    ij.IJ.log("Channel: " + core_.getCurrentConfig("Channel"));
-                    ij.IJ.log("y = " + PrefUtils.parseCal(3, prefs_, gui_) + "* x^3 + " + PrefUtils.parseCal(2, prefs_, gui_) + "* x^2 + " + PrefUtils.parseCal(1, prefs_, gui_) + "x + " + PrefUtils.parseCal(0, prefs_, gui_));
+                    for (int c = 0; c < channels.length; c++) {
+                        ScanFitSession fitSession = channels[c].getFitSession();
+                        if (fitSession.getWarmFits() + fitSession.getColdFits() > 0) {
+                            ij.IJ.log(String.format("Beam fits: %.1f iterations per fit, "
+                                    + "%d of %d warm starts redone",
+                                    fitSession.getIterationsPerFit(),
+                                    fitSession.getFallbacks(), fitSession.getWarmFits()));
+                        }
+                        XYSeries observedAngles = new XYSeries("angles", false, true);
+                        for (ScanStep step : ChannelCalibration.stepsOf(steps, c)) {
+                            if (step.isValid()) {
+                                observedAngles.add(step.getTrueAngle(), step.getPosition());
+                            }
+                        }
+                        double[] calCurve = Fitter.fit(observedAngles, Fitter.FunctionType.Pol3, null);
+                        XYSeries[] toPlot = new XYSeries[2];
+                        toPlot[0] = observedAngles;
+                        toPlot[1] = Fitter.getFittedSeries(toPlot[0], Fitter.FunctionType.Pol3, calCurve);
+                        boolean[] showShapes = {true, false};
+                        myPlotter2.plotDataN(channels.length == 1 ? "Calibration Curve"
+                                : "Calibration Curve " + channels[c].getName(), toPlot,
+                                "True Angle", "Position", showShapes, "");
+                        CalibrationModel calibration = new CalibrationModel(calCurve);
+                        String chString = CalibrationModel.channelKey(group, channels[c].getName());
+                        prefs_.put(chString, calibration.toString());
+                        //Print cal as stored in preferences (for debugging)
+                        //ij.IJ.log(chString + prefs_.get(chString, ""));
+
+                        ij.IJ.log("Channel: " + channels[c].getName());
+                        ij.IJ.log("y = " + calibration.getCoefficient(3) + "* x^3 + "
+                                + calibration.getCoefficient(2) + "* x^2 + "
+                                + calibration.getCoefficient(1) + "x + "
+                                + calibration.getCoefficient(0));
+                    }
 
                 } catch (Exception ex) {
                     ij.IJ.log(ex.getMessage());
                 } finally {
                     try {
                         core_.setShutterOpen(false);
+                        if (originalChannel != null) {
+                            core_.setConfig(core_.getChannelGroup(), originalChannel);
+                        }
                     } catch (Exception ex) {
                         ij.IJ.log(ex.getMessage());
                     }
-                    runButton_.setText("Run Calibration");
-                    runButton_.setSelected(false);
+                    closeSource(source);
+                    // after the live updates that are still queued
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            updateChannelCalibration();
+                            runButton_.setText("Run Calibration");
+                            runButton_.setSelected(false);
+                        }
+                    });
                 }
             }
         }
@@ -579,10 +1028,188 @@ public class CalibrationPanel extends JPanel {
         calt.start();
     }
 
-    //Snell's Law function
-    private static double snellIt(double startAngle, double startRI, double endRI) {
-        Double trueAngle = Math.toDegrees(Math.asin((startRI / endRI) * Math.sin(Math.toRadians(startAngle))));
-        return trueAngle;
+    /**
+     * Sets up adaptive sampling of the calibration scan.  The angles used for
+     * acquisitions (start angle to minus start angle) get most of the steps.
+     *
+     * @param startPosition first motor position of the scan
+     * @param endPosition last motor position of the scan
+     * @param nrSteps number of steps of a uniform scan, the most that will be used
+     * @param startAngle first angle of acquisitions, NaN if unknown
+     * @return sampler
+     * @throws SAIMException when the target precision can not be parsed
+     */
+    private AdaptiveSampler createSampler(double startPosition, double endPosition,
+            int nrSteps, double startAngle) throws SAIMException {
+        String tmpString = prefs_.get(PrefUtils.CALTARGET, "0.05");
+        double target;
+        try {
+            target = Double.parseDouble(tmpString);
+        } catch (NumberFormatException nfe) {
+            ij.IJ.error("Failed to parse Target Angle Precision \"" + tmpString
+                    + "\" to a numeric value");
+            throw new SAIMException("Failure parsing target angle precision");
+        }
+        return new AdaptiveSampler(startPosition, endPosition, nrSteps, target,
+                startAngle, -startAngle);
+    }
+
+    /**
+     * Fills the list of channels that can be calibrated in one sweep with the
+     * configs of the channel group, and selects those selected before
+     */
+    private void updateChannelList() {
+        String[] configs;
+        try {
+            StrVector available = core_.getAvailableConfigs(core_.getChannelGroup());
+            configs = new String[(int) available.size()];
+            for (int i = 0; i < configs.length; i++) {
+                configs[i] = available.get(i);
+            }
+        } catch (Exception ex) {
+            configs = new String[0];
+        }
+        // replacing the list data clears the selection stored in the prefs
+        List<String> selected = Arrays.asList(
+                prefs_.get(PrefUtils.CALCHANNELS, "").split(","));
+        channelList_.setListData(configs);
+        List<Integer> indices = new ArrayList<Integer>();
+        for (int i = 0; i < configs.length; i++) {
+            if (selected.contains(configs[i])) {
+                indices.add(i);
+            }
+        }
+        int[] toSelect = new int[indices.size()];
+        for (int i = 0; i < toSelect.length; i++) {
+            toSelect[i] = indices.get(i);
+        }
+        channelList_.setSelectedIndices(toSelect);
+    }
+
+    /**
+     * @return channels selected for a multi-channel calibration
+     */
+    private String[] selectedChannels() {
+        String channels = prefs_.get(PrefUtils.CALCHANNELS, "");
+        return channels.isEmpty() ? new String[0] : channels.split(",");
+    }
+
+    private static String join(List<String> values) {
+        StringBuilder sb = new StringBuilder();
+        for (String value : values) {
+            if (sb.length() > 0) {
+                sb.append(",");
+            }
+            sb.append(value);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param group channel group
+     * @param channel config of the channel group
+     * @return preferences key of the excitation wavelength of the channel
+     */
+    private static String channelWavelengthKey(String group, String channel) {
+        return PrefUtils.WAVELENGTH + "-" + group + "-" + channel;
+    }
+
+    /**
+     * Shows the wavelength of the channel last clicked in the channel list,
+     * so that it can be edited
+     */
+    private void updateChannelWavelength() {
+        String channel = channelList_.getSelectedValue();
+        boolean enabled = multiChannelCheckBox_.isSelected() && channel != null;
+        // do not store the text set here
+        wavelengthChannel_ = null;
+        channelWavelengthField_.setText(channel == null ? "" : prefs_.get(
+                channelWavelengthKey(core_.getChannelGroup(), channel), ""));
+        wavelengthChannel_ = channel;
+        channelWavelengthLabel_.setText(channel == null ? "Channel wavelength (nm):"
+                : "Wavelength of " + channel + " (nm):");
+        channelWavelengthLabel_.setEnabled(enabled);
+        channelWavelengthField_.setEnabled(enabled);
+    }
+
+    /**
+     * Stores the text of the channel wavelength field as the wavelength of
+     * the channel it shows
+     */
+    private void storeChannelWavelength() {
+        if (wavelengthChannel_ != null) {
+            prefs_.put(channelWavelengthKey(core_.getChannelGroup(), wavelengthChannel_),
+                    channelWavelengthField_.getText());
+        }
+    }
+
+    /**
+     * Excitation wavelength of a channel in a multi-channel calibration, as
+     * entered for that channel in the panel
+     *
+     * @param group channel group
+     * @param channel config of the channel group
+     * @return wavelength (nm)
+     * @throws SAIMException when no valid wavelength was entered for the channel
+     */
+    private double channelWavelength(String group, String channel) throws SAIMException {
+        String tmpString = prefs_.get(channelWavelengthKey(group, channel), "");
+        double wavelength;
+        try {
+            wavelength = Double.parseDouble(tmpString);
+        } catch (NumberFormatException nfe) {
+            wavelength = 0.0;
+        }
+        if (!(wavelength > 0.0)) {
+            ij.IJ.error("Enter the excitation wavelength of channel " + channel
+                    + " (select the channel in the list)");
+            throw new SAIMException("No wavelength for channel " + channel);
+        }
+        return wavelength;
+    }
+
+    /**
+     * @return excitation wavelength (nm) entered in the panel
+     * @throws SAIMException when the wavelength can not be parsed
+     */
+    private double parseWavelength() throws SAIMException {
+        String tmpString = prefs_.get(PrefUtils.WAVELENGTH, "0.0");
+        try {
+            return Double.parseDouble(tmpString);
+        } catch (NumberFormatException nfe) {
+            ij.IJ.error("Failed to parse Excitation Wavelength \"" + tmpString
+                    + "\" to a numeric value");
+            throw new SAIMException("Failure parsing excitation wavelength");
+        }
+    }
+
+    /**
+     * @return tolerance (degrees) at which the calibration has converged
+     * @throws SAIMException when the tolerance can not be parsed
+     */
+    private double parseTolerance() throws SAIMException {
+        String tmpString = prefs_.get(PrefUtils.CALTOLERANCE, "0.02");
+        try {
+            return Double.parseDouble(tmpString);
+        } catch (NumberFormatException nfe) {
+            ij.IJ.error("Failed to parse Convergence Tolerance \"" + tmpString
+                    + "\" to a numeric value");
+            throw new SAIMException("Failure parsing convergence tolerance");
+        }
+    }
+
+    /**
+     * @return first angle used for acquisitions (they run from this angle to
+     * minus this angle), NaN when not set
+     */
+    private double acquisitionStartAngle() {
+        double startAngle;
+        try {
+            startAngle = Double.parseDouble(prefs_.get(PrefUtils.STARTANGLE, ""));
+        } catch (NumberFormatException nfe) {
+            startAngle = Double.NaN;
+        }
+        return startAngle == 0.0 ? Double.NaN : startAngle;
     }
 
     //function to update panel with stored preferences values
@@ -598,6 +1225,13 @@ public class CalibrationPanel extends JPanel {
         endMotorPosField_.setText(prefs_.get(PrefUtils.ENDMOTORPOS, ""));
         numberOfCalibrationStepsSpinner_.setValue(Integer.parseInt(
                 prefs_.get(PrefUtils.NUMCALSTEPS, "1")));
+        adaptiveCheckBox_.setSelected(prefs_.getBoolean(PrefUtils.ADAPTIVECAL, false));
+        targetField_.setText(prefs_.get(PrefUtils.CALTARGET, "0.05"));
+        earlyStopCheckBox_.setSelected(prefs_.getBoolean(PrefUtils.EARLYSTOP, false));
+        toleranceField_.setText(prefs_.get(PrefUtils.CALTOLERANCE, "0.02"));
+        multiChannelCheckBox_.setSelected(prefs_.getBoolean(PrefUtils.MULTICHANNEL, false));
+        channelList_.setEnabled(multiChannelCheckBox_.isSelected());
+        updateChannelWavelength();
         updateChannelCalibration();
     }
 
@@ -51,6 +51,7 @@ import javax.swing.event.ChangeListener;
 import mmcorej.CMMCore;
 import net.miginfocom.swing.MigLayout;
 import org.micromanager.api.ScriptInterface;
+import org.micromanager.saim.calibration.CalibrationModel;
 import org.micromanager.saim.gui.GuiUtils;
 import org.micromanager.acquisition.MMAcquisition;
 import org.micromanager.saim.exceptions.SAIMException;
@@ -143,28 +144,24 @@ public class FlatFieldPanel extends JPanel {
         calPanel_.add(new JLabel("<html>x<sup>3</sup>: </html>"));
         coeff3Field_ = new JTextField("");
         GuiUtils.setTextAttributes(coeff3Field_, componentSize);
-        GuiUtils.tieTextFieldToPrefs(prefs, coeff3Field_, PrefUtils.parseCal(3, prefs_, gui_));
         calPanel_.add(coeff3Field_, "span, center, wrap");
 
         //x2 coefficient
         calPanel_.add(new JLabel("<html>x<sup>2</sup>: </html>"));
         coeff2Field_ = new JTextField("");
         GuiUtils.setTextAttributes(coeff2Field_, componentSize);
-        GuiUtils.tieTextFieldToPrefs(prefs, coeff2Field_, PrefUtils.parseCal(2, prefs_, gui_));
         calPanel_.add(coeff2Field_, "span, center, wrap");
 
         //x coefficient
         calPanel_.add(new JLabel("x: "));
         coeff1Field_ = new JTextField("");
         GuiUtils.setTextAttributes(coeff1Field_, componentSize);
-        GuiUtils.tieTextFieldToPrefs(prefs, coeff1Field_, PrefUtils.parseCal(1, prefs_, gui_));
         calPanel_.add(coeff1Field_, "span, center, wrap");
 
         //x0 constant
         calPanel_.add(new JLabel("<html>x<sup>0</sup>: </html>"));
         coeff0Field_ = new JTextField("");
         GuiUtils.setTextAttributes(coeff0Field_, componentSize);
-        GuiUtils.tieTextFieldToPrefs(prefs, coeff0Field_, PrefUtils.parseCal(0, prefs_, gui_));
         calPanel_.add(coeff0Field_, "span, center, wrap");
 
         // FlatField Panel
@@ -383,9 +380,9 @@ public class FlatFieldPanel extends JPanel {
       startAngleField_.setText(prefs_.get(PrefUtils.STARTANGLE, ""));
       doubleZeroCheckBox_.setSelected(Boolean.parseBoolean(prefs_.get(PrefUtils.DOUBLEZERO, "")));
       ffShowImagesCheckBox_.setSelected(Boolean.parseBoolean(prefs_.get(PrefUtils.FFSHOWIMAGES, "")));
-      coeff3Field_.setText(PrefUtils.parseCal(3, prefs_, gui_));
-      coeff2Field_.setText(PrefUtils.parseCal(2, prefs_, gui_));
-      coeff1Field_.setText(PrefUtils.parseCal(1, prefs_, gui_));
-      coeff0Field_.setText(PrefUtils.parseCal(0, prefs_, gui_));
+      coeff3Field_.setText(CalibrationModel.currentCoefficient(prefs_, gui_, 3));
+      coeff2Field_.setText(CalibrationModel.currentCoefficient(prefs_, gui_, 2));
+      coeff1Field_.setText(CalibrationModel.currentCoefficient(prefs_, gui_, 1));
+      coeff0Field_.setText(CalibrationModel.currentCoefficient(prefs_, gui_, 0));
    }
 }
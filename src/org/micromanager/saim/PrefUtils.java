@@ -5,6 +5,7 @@ import java.util.logging.Logger;
 import mmcorej.CMMCore;
 import java.util.prefs.Preferences;
 import org.micromanager.api.ScriptInterface;
+import org.micromanager.saim.calibration.CalibrationModel;
 
 /**
  *
@@ -37,6 +38,23 @@ public class PrefUtils {
     public final static String ACQDIRROOT = "acqdirroot";
     public final static String ACQNAMEPREFIX = "acqnameprefix";
     public final static String CHANNEL = "channel";
+    public final static String DETECTORSTREAM = "detectorstream";
+    public final static String DETECTORTTY = "detectortty";
+    public final static String DETECTORPACKED = "detectorpacked";
+    public final static String DETECTORROI = "detectorroi";
+    public final static String BEAMFIT = "beamfit";
+    public final static String ADAPTIVECAL = "adaptivecalibration";
+    public final static String CALTARGET = "calibrationtarget";
+    public final static String EARLYSTOP = "calibrationearlystop";
+    public final static String CALTOLERANCE = "calibrationtolerance";
+    public final static String MULTICHANNEL = "multichannelcalibration";
+    public final static String CALCHANNELS = "calibrationchannels";
+    public final static String SEQUENCED = "sequencedacquisition";
+    public final static String OXIDETHICKNESS = "oxidethickness";
+    public final static String MAXHEIGHT = "maxheight";
+    public final static String RECONMETHOD = "reconstructionmethod";
+    public final static String LIVEPREVIEW = "livepreview";
+    public final static String DIRECTSAVE = "directtodisk";
 
     /**
      * Utility to convert channel group into PrefString
@@ -52,30 +70,13 @@ public class PrefUtils {
         String grp;
         try {
             grp = core.getChannelGroup();
-            channelString = "CALIBRATIONS-" + grp + "-" + core.getCurrentConfigFromCache(grp);
+            channelString = CalibrationModel.channelKey(grp, core.getCurrentConfigFromCache(grp));
             prefs.put(PrefUtils.CHANNEL, core.getCurrentConfigFromCache(grp));
         } catch (Exception ex) {
             Logger.getLogger(PrefUtils.class.getName()).log(Level.SEVERE, null, ex);
-            channelString = "CALIBRATIONS-";
+            channelString = CalibrationModel.KEYPREFIX;
         }
         return channelString;
     }
     
-    public static String parseCal(int index, final Preferences prefs, final ScriptInterface gui){
-        CMMCore core = gui.getMMCore();
-        String channelString;
-        String grp;
-        String coeff;
-        try {
-            grp = core.getChannelGroup();
-            channelString = "CALIBRATIONS-" + grp + "-"+ core.getCurrentConfigFromCache(grp);
-            String calString = prefs.get(channelString, "");
-            String parts[] = calString.split(" ");
-            coeff = parts[index].replaceAll("\\[|\\,|\\]", "");
-        } catch (Exception ex) {
-            Logger.getLogger(PrefUtils.class.getName()).log(Level.SEVERE, null, ex);
-            coeff = "";
-        }
-        return coeff;
-    }
 }
@@ -16,39 +16,128 @@
 
 package org.micromanager.saim;
 
+import java.util.ArrayList;
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.prefs.Preferences;
 import mmcorej.CMMCore;
+import mmcorej.StrVector;
 import mmcorej.TaggedImage;
 import org.micromanager.api.ScriptInterface;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.micromanager.saim.calibration.CalibrationModel;
+import org.micromanager.saim.data.RawStackWriter;
 import org.micromanager.saim.exceptions.SAIMException;
+import org.micromanager.saim.model.SaimModel;
+import org.micromanager.saim.reconstruct.LivePreview;
 
 /**
  * Functions that are used in multiple panels
  */
 public class SAIMCommon {
 
+   // time (on top of the exposure) to wait for the next frame of a sequence
+   private static final long SEQUENCETIMEOUTMS = 5000;
+   // number of images that can wait to be stored
+   private static final int STOREQUEUE = 8;
+   // number of frames between updates of the live preview
+   private static final int PREVIEWEVERY = 5;
+
+   private static volatile boolean abortRequested_ = false;
+
    /**
     * Utility to convert angle to tirf positions using our polynomial equation
+    * Looks up the calibration of the current channel on every call, so when
+    * converting many angles, get the CalibrationModel once and use that.
     * @param prefs - Java prefs used to store our coefficients
     * @param gui
     * @param angle Desired angle
     * @return Tirf motor position
+    * @throws Exception when the current channel is not calibrated
     */
-   public static int tirfPosFromAngle(Preferences prefs, final ScriptInterface gui, double angle) {
-      // TirfPosition = slope * angle plus Offset
+   public static int tirfPosFromAngle(Preferences prefs, final ScriptInterface gui, 
+           double angle) throws Exception {
       // Output motor position must be an integer to be interpreted by TITIRF
+      return CalibrationModel.forCurrentChannel(prefs, gui).motorPosition(angle);
+   }
 
-      double tempPos = (Double.parseDouble(PrefUtils.parseCal(3, prefs, gui)) * Math.pow(angle, 3)
-              + Double.parseDouble(PrefUtils.parseCal(2, prefs, gui)) * Math.pow(angle, 2)
-              + Double.parseDouble(PrefUtils.parseCal(1, prefs, gui)) * angle
-              + Double.parseDouble(PrefUtils.parseCal(0, prefs, gui)));
-      int pos = Math.round((float) tempPos);
-      return pos;
+   /**
+    * Angles of an acquisition, as set up in the AcquisitionPanel: from the
+    * start angle to minus the start angle, with zero twice when so desired.
+    *
+    * @param prefs Java Preferences used to store all our data
+    * @return angles (degrees), in acquisition order
+    * @throws SAIMException when start angle and step size do not make sense
+    */
+   public static List<Double> acquisitionAngles(final Preferences prefs)
+           throws SAIMException {
+      double startAngle = Double.parseDouble(prefs.get(PrefUtils.STARTANGLE, "0.0"));
+      if (startAngle > 0) {
+         throw new SAIMException ("Start angle should be <= 0");
+      }
+      double angleStepSize = prefs.getDouble(PrefUtils.ANGLESTEPSIZE, 0);
+      boolean doubleZero = Boolean.parseBoolean(prefs.get(PrefUtils.DOUBLEZERO, ""));
+      if (startAngle % angleStepSize != 0) {
+         throw new SAIMException("Start angle is not divisible by the angle step size");
+      }
+      List<Double> angles = new ArrayList<Double>();
+      boolean doubled = false;
+      for (double angle = startAngle; angle <= -startAngle; angle += angleStepSize) {
+         angles.add(angle);
+         if (doubleZero && !doubled && (angle == 0) ) {
+            angle = -angleStepSize;
+            doubled = true;
+         }
+      }
+      return angles;
+   }
+
+   /**
+    * Asks the running acquisition to stop after the frame it is taking now.
+    * The images taken so far are kept.
+    */
+   public static void abortAcquisition() {
+      abortRequested_ = true;
+   }
+
+   /**
+    * Runs an acquisition without live preview, see runAcquisition(
+    * ScriptInterface, Preferences, String, String, boolean, boolean, boolean)
+    *
+    * @param gui MMScriptInterface
+    * @param prefs Java Preferences used to store all our data
+    * @param rootDir where to save this acquisition (if desired)
+    * @param acqName
+    * @param show whether or not to show this acquisition
+    * @param save whether or not to sava this acquisition
+    * @return
+    * @throws Exception 
+    */
+   public static String runAcquisition(final ScriptInterface gui,
+           final Preferences prefs, final String rootDir, final String acqName, 
+           final boolean show, final boolean save) 
+           throws Exception {
+      return runAcquisition(gui, prefs, rootDir, acqName, show, save, false);
    }
 
    /**
     * This code runs the actual acquisition while flat-fielding and when executing
     * an acquisition.  
+    * When the TIRF motor supports property sequences that are long enough
+    * (and sequencing is not switched off), all motor positions are loaded
+    * into the device up front and the frames are taken as one camera
+    * sequence, with the camera triggering each motor step.  Otherwise the
+    * motor is moved and an image snapped for each angle in turn.
+    * With live preview, a binned height map is worked out from the frames
+    * as they come in (see LivePreview), on a thread of its own.
+    * When saving directly to disk is switched on, saved frames only go into
+    * a raw file with a json sidecar (see RawStackWriter) in rootDir.  No
+    * Micro-Manager acquisition is opened then, and nothing is shown (other
+    * than the live preview).
     * 
     * @param gui MMScriptInterface
     * @param prefs Java Preferences used to store all our data
@@ -56,62 +145,387 @@ public class SAIMCommon {
     * @param acqName
     * @param show whether or not to show this acquisition
     * @param save whether or not to sava this acquisition
-    * @return
+    * @param livePreview whether or not to show a height map while acquiring
+    * @return name of the Micro-Manager acquisition, null when the frames
+    * were saved directly to disk
     * @throws Exception 
     */
    public static String runAcquisition(final ScriptInterface gui,
            final Preferences prefs, final String rootDir, final String acqName, 
-           final boolean show, final boolean save) 
+           final boolean show, final boolean save, final boolean livePreview) 
            throws Exception {
       
       CMMCore core = gui.getMMCore();
-      double startAngle = Double.parseDouble(prefs.get(PrefUtils.STARTANGLE, "0.0"));
-      if (startAngle > 0) {
-         throw new SAIMException ("Start angle should be <= 0");
-      }
-      double angleStepSize = prefs.getDouble(PrefUtils.ANGLESTEPSIZE, 0);
-      boolean doubleZero = Boolean.parseBoolean(prefs.get(PrefUtils.DOUBLEZERO, ""));
-      if (startAngle % angleStepSize != 0) {
-         throw new SAIMException("Start angle is not divisible by the angle step size");
-      }
+      List<Double> angles = acquisitionAngles(prefs);
+      abortRequested_ = false;
       
       // Set these variables to the correct values and leave
       final String deviceName = prefs.get(PrefUtils.TIRFDEVICE, "");
       final String propName = prefs.get(PrefUtils.TIRFPROP, "");
 
-      // Usually no need to edit below this line
-      double tempnrAngles = Math.abs(startAngle) * 2 / angleStepSize;
-      int nrAngles = (Integer) Math.round((float) tempnrAngles);
+      // look up the calibration once, not for every angle
+      CalibrationModel calibration = CalibrationModel.forCurrentChannel(prefs, gui);
+
+      // motor positions, in acquisition order
+      int nrFrames = angles.size();
+      int[] positions = new int[nrFrames];
+      for (int i = 0; i < nrFrames; i++) {
+         positions[i] = calibration.motorPosition(angles.get(i));
+      }
 
       //gui_.closeAllAcquisitions();
       String acq = gui.getUniqueAcquisitionName(acqName);
 
-      int nrFrames = nrAngles + 1;
-      if (doubleZero) {
-         nrFrames = nrAngles + 2;
+      // everything that can go wrong with saving directly to disk is checked
+      // before the acquisition is opened or the motor is set up
+      boolean direct = save && Boolean.parseBoolean(prefs.get(PrefUtils.DIRECTSAVE, "false"));
+      RawStackWriter writer = null;
+      if (direct) {
+         if (rootDir.isEmpty()) {
+            throw new SAIMException("Please choose a directory to save to");
+         }
+         writer = new RawStackWriter(new File(rootDir), acq, (int) core.getImageWidth(),
+                 (int) core.getImageHeight(), (int) core.getBytesPerPixel(), nrFrames,
+                 summary(core, calibration, angles));
       }
 
-      gui.openAcquisition(acq, rootDir, 1, 1, nrFrames, 1, show, save); 
+      LivePreview preview = null;
+      ImageStore store = null;
+      boolean finished = false;
+      try {
+         if (!direct) {
+            gui.openAcquisition(acq, rootDir, 1, 1, nrFrames, 1, show, save);
+         }
+         if (livePreview) {
+            preview = createPreview(core, prefs, angles, acq);
+         }
+         store = new ImageStore(gui, direct ? null : acq, writer);
 
-      boolean doubled = false;
-      int frameNr = 0;
-      for (double angle = startAngle; angle <= -startAngle; angle += angleStepSize) {
-         double pos = SAIMCommon.tirfPosFromAngle(prefs, gui, angle);
-         gui.message("Angle: " + Double.toString(angle) + ", position: " + Double.toString(pos));
-         core.setProperty(deviceName, propName, pos);
+         boolean sequenced = Boolean.parseBoolean(prefs.get(PrefUtils.SEQUENCED, "false"))
+                 && canSequence(core, deviceName, propName, nrFrames);
+         if (sequenced) {
+            try {
+               loadSequence(core, deviceName, propName, positions);
+            } catch (Exception ex) {
+               ij.IJ.log("Could not load the TIRF position sequence, acquiring frame by "
+                       + "frame: " + ex.getMessage());
+               sequenced = false;
+            }
+         }
+         if (sequenced) {
+            runSequenced(gui, deviceName, propName, store, preview, angles, positions);
+         } else {
+            runPipelined(gui, deviceName, propName, store, preview, angles, positions);
+         }
+         store.finish();
+         finished = true;
+      } finally {
+         if (!finished) {
+            if (store != null) {
+               store.abort();
+            } else if (writer != null) {
+               writer.abort();
+            }
+         }
+         if (preview != null) {
+            preview.finish();
+         }
+      }
+      
+      return direct ? null : acq;
+   }
+
+   /**
+    * @return what goes into the json file of an acquisition saved directly
+    * to disk: channel, exposure, calibration and angles
+    */
+   private static JSONObject summary(CMMCore core, CalibrationModel calibration,
+           List<Double> angles) throws Exception {
+      JSONObject summary = new JSONObject();
+      String channelGroup = core.getChannelGroup();
+      summary.put("Channel", channelGroup + ": " + core.getCurrentConfig(channelGroup));
+      summary.put("Exposure-ms", core.getExposure());
+      JSONArray coefficients = new JSONArray();
+      for (double coefficient : calibration.getCoefficients()) {
+         coefficients.put(coefficient);
+      }
+      summary.put("CalibrationCoefficients", coefficients);
+      summary.put("Angles", new JSONArray(angles));
+      return summary;
+   }
+
+   /**
+    * Sets up the live preview of an acquisition, with the reconstruction
+    * settings of the AcquisitionPanel
+    *
+    * @return preview, or null when the settings or the camera do not allow one
+    */
+   private static LivePreview createPreview(CMMCore core, Preferences prefs,
+           List<Double> angleList, String acq) {
+      if (core.getNumberOfComponents() > 1) {
+         ij.IJ.log("No live preview of color images");
+         return null;
+      }
+      try {
+         double[] angles = new double[angleList.size()];
+         for (int i = 0; i < angles.length; i++) {
+            angles[i] = angleList.get(i);
+         }
+         double wavelength = Double.parseDouble(prefs.get(PrefUtils.WAVELENGTH, ""));
+         double oxideThickness = Double.parseDouble(prefs.get(PrefUtils.OXIDETHICKNESS, ""));
+         double maxHeight = Double.parseDouble(prefs.get(PrefUtils.MAXHEIGHT, ""));
+         SaimModel model = new SaimModel(angles, wavelength, oxideThickness);
+         return new LivePreview(model, 0.0, maxHeight, (int) core.getImageWidth(),
+                 (int) core.getImageHeight(), PREVIEWEVERY, acq + " Height Preview");
+      } catch (NumberFormatException nfe) {
+         ij.IJ.log("No live preview, wavelength, oxide thickness or maximum height "
+                 + "is not a number");
+         return null;
+      }
+   }
+
+   /**
+    * Throws when the acquisition was asked to stop
+    */
+   private static void checkAbort(int frameNr, int nrFrames) throws SAIMException {
+      if (abortRequested_) {
+         throw new SAIMException("Acquisition aborted after " + frameNr + " of "
+                 + nrFrames + " frames");
+      }
+   }
+
+   /**
+    * Moves the motor and snaps an image for each angle in turn.  As soon as
+    * the exposure is over, the motor is sent on its way to the next angle,
+    * so that the move overlaps with the readout of the camera and with
+    * storing the image (on the thread of the ImageStore).
+    */
+   private static void runPipelined(final ScriptInterface gui, String deviceName,
+           String propName, ImageStore store, LivePreview preview, List<Double> angles,
+           int[] positions) throws Exception {
+      CMMCore core = gui.getMMCore();
+      final int nrFrames = positions.length;
+      core.setProperty(deviceName, propName, positions[0]);
+      for (int frameNr = 0; frameNr < nrFrames; frameNr++) {
+         checkAbort(frameNr, nrFrames);
+         double angle = angles.get(frameNr);
+         gui.message("Angle: " + Double.toString(angle) + ", position: "
+                 + Integer.toString(positions[frameNr]));
          core.waitForDevice(deviceName);
          //gui.sleep(250);
          core.snapImage();
+         // the exposure is over, move while the image is read out
+         if (frameNr + 1 < nrFrames) {
+            core.setProperty(deviceName, propName, positions[frameNr + 1]);
+         }
          TaggedImage taggedImg = core.getTaggedImage();
-         taggedImg.tags.put("Angle", angle);
-         gui.addImageToAcquisition(acq, 0, 0, frameNr, 0, taggedImg);
-         frameNr++;
-         if (doubleZero && !doubled && (angle == 0) ) {
-            angle = -angleStepSize;
-            doubled = true;
+         // the system state in the tags already has the next position
+         tagImage(taggedImg, angle, deviceName, propName, positions[frameNr]);
+         store.put(frameNr, taggedImg);
+         if (preview != null) {
+            preview.offer(frameNr, taggedImg.pix);
+         }
+      }
+   }
+
+   /**
+    * Adds the angle to the tags of an image, and sets the position of the
+    * TIRF motor in the system state tags to the position at which the image
+    * was exposed (the motor may have moved on since)
+    */
+   private static void tagImage(TaggedImage taggedImg, double angle, String deviceName,
+           String propName, int position) throws JSONException {
+      taggedImg.tags.put("Angle", angle);
+      taggedImg.tags.put(deviceName + "-" + propName, Integer.toString(position));
+   }
+
+   /**
+    * @return true when the TIRF motor can run through a sequence of positions
+    * triggered by the camera, and the sequence fits in the device
+    */
+   private static boolean canSequence(CMMCore core, String deviceName, String propName,
+           int nrFrames) {
+      try {
+         return core.isPropertySequenceable(deviceName, propName)
+                 && core.getPropertySequenceMaxLength(deviceName, propName) >= nrFrames;
+      } catch (Exception ex) {
+         return false;
+      }
+   }
+
+   /**
+    * Moves the TIRF motor to the first position, and sends all positions to
+    * the device, so that each camera trigger advances it to the next one
+    */
+   private static void loadSequence(CMMCore core, String deviceName, String propName,
+           int[] positions) throws Exception {
+      core.setProperty(deviceName, propName, positions[0]);
+      core.waitForDevice(deviceName);
+      StrVector sequence = new StrVector();
+      for (int position : positions) {
+         sequence.add(Integer.toString(position));
+      }
+      core.loadPropertySequence(deviceName, propName, sequence);
+   }
+
+   /**
+    * Runs the acquisition as a single camera sequence, while the TIRF motor
+    * steps through the loaded position sequence on the camera triggers.
+    * Frames are taken from the circular buffer as they arrive.
+    */
+   private static void runSequenced(final ScriptInterface gui, String deviceName,
+           String propName, ImageStore store, LivePreview preview, List<Double> angles,
+           int[] positions) throws Exception {
+      CMMCore core = gui.getMMCore();
+      final int nrFrames = positions.length;
+      final long frameTimeOutMs = SEQUENCETIMEOUTMS + (long) core.getExposure();
+      gui.message("Sequenced acquisition of " + nrFrames + " angles");
+      core.startPropertySequence(deviceName, propName);
+      try {
+         core.startSequenceAcquisition(nrFrames, 0, true);
+         int frameNr = 0;
+         long lastFrame = System.currentTimeMillis();
+         while (frameNr < nrFrames) {
+            checkAbort(frameNr, nrFrames);
+            if (core.getRemainingImageCount() > 0) {
+               TaggedImage taggedImg = core.popNextTaggedImage();
+               tagImage(taggedImg, angles.get(frameNr), deviceName, propName,
+                       positions[frameNr]);
+               store.put(frameNr, taggedImg);
+               if (preview != null) {
+                  preview.offer(frameNr, taggedImg.pix);
+               }
+               frameNr++;
+               lastFrame = System.currentTimeMillis();
+            } else if (core.isBufferOverflowed()) {
+               throw new SAIMException("Circular buffer overflowed after " + frameNr
+                       + " of " + nrFrames + " frames");
+            } else if (!core.isSequenceRunning()
+                    && core.getRemainingImageCount() == 0) {
+               throw new SAIMException("Camera stopped after " + frameNr + " of "
+                       + nrFrames + " frames");
+            } else if (System.currentTimeMillis() - lastFrame > frameTimeOutMs) {
+               throw new SAIMException("No frame from the camera after " + frameNr
+                       + " of " + nrFrames + " frames");
+            } else {
+               Thread.sleep(1);
+            }
+         }
+      } finally {
+         if (core.isSequenceRunning()) {
+            core.stopSequenceAcquisition();
+         }
+         core.stopPropertySequence(deviceName, propName);
+      }
+   }
+
+   /**
+    * Adds images to an acquisition on a thread of its own, so that saving
+    * and display do not hold up the camera and the TIRF motor.  At most
+    * STOREQUEUE images wait to be stored, put blocks when storage falls
+    * behind.  Errors on the storage thread are thrown by the next put, or
+    * by finish.  Images are also handed to the RawStackWriter, when there
+    * is one, which writes them on a thread of its own.
+    */
+   private static class ImageStore implements Runnable {
+
+      private static class Item {
+         final int frameNr_;
+         final TaggedImage image_;
+
+         Item(int frameNr, TaggedImage image) {
+            frameNr_ = frameNr;
+            image_ = image;
+         }
+      }
+
+      // marks the end of the acquisition
+      private static final Item END = new Item(-1, null);
+
+      private final ScriptInterface gui_;
+      private final String acq_;
+      private final RawStackWriter writer_;
+      private final BlockingQueue<Item> queue_ = new ArrayBlockingQueue<Item>(STOREQUEUE);
+      private final Thread thread_;
+      private volatile Exception error_ = null;
+
+      /**
+       * @param acq acquisition to add the images to, null for none
+       * @param writer writer of the images, null for none
+       */
+      ImageStore(ScriptInterface gui, String acq, RawStackWriter writer) {
+         gui_ = gui;
+         acq_ = acq;
+         writer_ = writer;
+         if (acq != null) {
+            thread_ = new Thread(this, "SAIM Image Store");
+            thread_.setDaemon(true);
+            thread_.start();
+         } else {
+            thread_ = null;
+         }
+      }
+
+      void put(int frameNr, TaggedImage image) throws Exception {
+         throwError();
+         if (writer_ != null) {
+            writer_.put(frameNr, image);
+         }
+         if (thread_ != null) {
+            queue_.put(new Item(frameNr, image));
+         }
+      }
+
+      /**
+       * Waits until all images are stored
+       */
+      void finish() throws Exception {
+         if (thread_ != null) {
+            queue_.put(END);
+            thread_.join();
+         }
+         if (writer_ != null) {
+            writer_.finish();
+         }
+         throwError();
+      }
+
+      /**
+       * Stops storing, images still in the queue are dropped
+       */
+      void abort() {
+         if (thread_ != null) {
+            thread_.interrupt();
+         }
+         if (writer_ != null) {
+            writer_.abort();
+         }
+      }
+
+      @Override
+      public void run() {
+         try {
+            Item item = queue_.take();
+            while (item != END) {
+               // after an error, keep taking images so that put does not block
+               if (error_ == null) {
+                  try {
+                     gui_.addImageToAcquisition(acq_, 0, 0, item.frameNr_, 0, item.image_);
+                  } catch (Exception ex) {
+                     error_ = ex;
+                  }
+               }
+               item = queue_.take();
+            }
+         } catch (InterruptedException ie) {
+            // aborted
+         }
+      }
+
+      private void throwError() throws Exception {
+         if (error_ != null) {
+            throw error_;
          }
       }
-      
-      return acq;
    }
 }
@@ -0,0 +1,389 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          AdaptiveSampler.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.calibration;
+
+
+import java.util.Arrays;
+import java.util.List;
+import org.micromanager.saim.fit.PolynomialFitter;
+
+/**
+ * Chooses the motor positions of an adaptive calibration scan.  Rather than
+ * stepping uniformly from the start to the end position, the scan starts
+ * with a coarse sweep, fits the calibration curve (a cubic of the motor
+ * position as a function of the true angle), and then only adds positions
+ * where they improve the calibration most.
+ *
+ * After each round, every gap between positions scanned so far is scored
+ * by how far off the calibration may be in that gap: the uncertainty of the
+ * fitted curve (scatter of the points times the square root of the
+ * leverage), or the error of interpolating across the gap given the
+ * curvature of the curve, whichever is larger.  Gaps next to points that
+ * do not follow the curve score higher, and gaps outside the range of
+ * angles used for acquisitions score lower.  The best gaps are split in
+ * half in the next round.  The scan ends when the uncertainty of the angle
+ * predicted by the curve falls below the target everywhere in the angle
+ * range that matters, when the step budget is used up, or when the gaps
+ * become too small to split.
+ *
+ * Not thread safe.  Call nextPositions from the thread that runs the scan.
+ *
+ * @author nico
+ */
+public class AdaptiveSampler {
+
+   private static final int DEGREE = CalibrationModel.DEGREE;
+   // fraction of the step budget spent on the coarse sweep
+   private static final int COARSEFRACTION = 6;
+   private static final int MINCOARSESTEPS = 9;
+   // gaps are not split when they would become narrower than this fraction
+   // of a uniform step
+   private static final double MINGAPFRACTION = 0.5;
+   // weight of gaps outside the angle range used for acquisitions
+   private static final double OUTSIDEWEIGHT = 0.25;
+   // number of points at which the uncertainty is checked
+   private static final int NRCHECKS = 50;
+
+   private final double start_;
+   private final double end_;
+   private final int maxSteps_;
+   private final double targetError_;
+   private final double minAngle_;
+   private final double maxAngle_;
+   private final int coarseSteps_;
+   private final double minGap_;
+   private final PolynomialFitter fitter_ = new PolynomialFitter(DEGREE);
+   private final double[] curve_ = new double[DEGREE + 1];
+   private double[] scanned_ = new double[0];
+   private int rounds_ = 0;
+   private double uncertainty_ = Double.POSITIVE_INFINITY;
+
+   /**
+    * @param start first motor position of the scan
+    * @param end last motor position of the scan
+    * @param maxSteps largest number of steps to take, the same number of
+    * steps would be taken by a uniform scan
+    * @param targetError uncertainty of the calibrated angle (degrees) at
+    * which the scan stops
+    * @param minAngle lowest angle (degrees) used for acquisitions, NaN when
+    * all angles matter equally
+    * @param maxAngle highest angle (degrees) used for acquisitions, NaN when
+    * all angles matter equally
+    */
+   public AdaptiveSampler(double start, double end, int maxSteps, double targetError,
+           double minAngle, double maxAngle) {
+      start_ = start;
+      end_ = end;
+      maxSteps_ = Math.max(maxSteps, DEGREE + 2);
+      targetError_ = targetError;
+      minAngle_ = Math.min(minAngle, maxAngle);
+      maxAngle_ = Math.max(minAngle, maxAngle);
+      coarseSteps_ = Math.min(maxSteps_,
+              Math.max(MINCOARSESTEPS, maxSteps_ / COARSEFRACTION));
+      minGap_ = MINGAPFRACTION * Math.abs(end - start) / maxSteps_;
+   }
+
+   /**
+    * @return positions of the coarse sweep, evenly spread from start to end
+    */
+   public double[] initialPositions() {
+      double[] positions = new double[coarseSteps_ + 1];
+      for (int i = 0; i <= coarseSteps_; i++) {
+         positions[i] = start_ + i * (end_ - start_) / coarseSteps_;
+      }
+      addScanned(positions);
+      rounds_ = 1;
+      return positions;
+   }
+
+   /**
+    * Fits the calibration curve to the steps taken so far, and decides where
+    * to look next
+    *
+    * @param steps all steps of the scan so far, with their true angles
+    * @return positions to scan in the next round, in scan order.  Empty when
+    * the calibration is good enough, or can not be improved.
+    */
+   public double[] nextPositions(List<ScanStep> steps) {
+      final int budget = maxSteps_ + 1 - scanned_.length;
+      if (budget <= 0 || !fit(steps)) {
+         return new double[0];
+      }
+      final int n = validCount(steps);
+      final double[] angles = new double[n];
+      final double[] positions = new double[n];
+      int j = 0;
+      for (ScanStep step : steps) {
+         if (step.isValid()) {
+            angles[j] = step.getTrueAngle();
+            positions[j] = step.getPosition();
+            j++;
+         }
+      }
+      // scatter of the points around the curve, in degrees
+      double sumAngleSquares = 0.0;
+      final double[] angleResiduals = new double[n];
+      for (int i = 0; i < n; i++) {
+         double residual = positions[i] - evaluate(angles[i]);
+         double slope = derivative(angles[i]);
+         angleResiduals[i] = slope == 0.0 ? 0.0 : residual / slope;
+         sumAngleSquares += angleResiduals[i] * angleResiduals[i];
+      }
+      final int degreesOfFreedom = n - DEGREE - 1;
+      final double angleSigma = degreesOfFreedom > 0
+              ? Math.sqrt(sumAngleSquares / degreesOfFreedom) : Double.POSITIVE_INFINITY;
+
+      uncertainty_ = maxUncertainty(angles);
+      if (uncertainty_ <= targetError_) {
+         return new double[0];
+      }
+
+      // score the gaps between all positions scanned so far
+      final int nrGaps = scanned_.length - 1;
+      final double[] scores = new double[nrGaps];
+      int nrCandidates = 0;
+      for (int g = 0; g < nrGaps; g++) {
+         double low = scanned_[g];
+         double high = scanned_[g + 1];
+         if (high - low < 2 * minGap_) {
+            scores[g] = -1.0;
+            continue;
+         }
+         double angle = angleAt((low + high) / 2.0, angles, positions);
+         double lowAngle = angleAt(low, angles, positions);
+         double highAngle = angleAt(high, angles, positions);
+         double score = Math.max(fitter_.getInverseError(angle),
+                 interpolationError(angle, high - low));
+         double residual = Math.max(residualNear(low, positions, angleResiduals),
+                 residualNear(high, positions, angleResiduals));
+         if (angleSigma > 0.0) {
+            score *= 1.0 + residual / angleSigma;
+         }
+         if (!inRange(lowAngle) && !inRange(highAngle) && !inRange(angle)) {
+            score *= OUTSIDEWEIGHT;
+         }
+         scores[g] = score;
+         nrCandidates++;
+      }
+      if (nrCandidates == 0) {
+         return new double[0];
+      }
+
+      // split the best gaps, at most half of the gaps per round
+      final int nrNew = Math.min(budget, Math.max(1, Math.min(nrCandidates,
+              (nrGaps + 1) / 2)));
+      final double[] sorted = scores.clone();
+      Arrays.sort(sorted);
+      final double threshold = sorted[nrGaps - nrNew];
+      double[] next = new double[nrNew];
+      int nrNext = 0;
+      for (int g = 0; g < nrGaps && nrNext < nrNew; g++) {
+         if (scores[g] >= threshold && scores[g] >= 0.0) {
+            next[nrNext++] = (scanned_[g] + scanned_[g + 1]) / 2.0;
+         }
+      }
+      next = Arrays.copyOf(next, nrNext);
+      if (end_ < start_) {
+         // keep moving in the direction of the scan
+         for (int i = 0; i < nrNext / 2; i++) {
+            double tmp = next[i];
+            next[i] = next[nrNext - 1 - i];
+            next[nrNext - 1 - i] = tmp;
+         }
+      }
+      addScanned(next);
+      rounds_++;
+      return next;
+   }
+
+   /**
+    * @return number of rounds (including the coarse sweep) handed out so far
+    */
+   public int getRounds() {
+      return rounds_;
+   }
+
+   /**
+    * @return number of positions handed out so far
+    */
+   public int getScannedCount() {
+      return scanned_.length;
+   }
+
+   /**
+    * @return largest uncertainty (degrees) of the calibrated angle in the
+    * range that matters, as of the last call to nextPositions
+    */
+   public double getUncertainty() {
+      return uncertainty_;
+   }
+
+   /**
+    * @return coefficients of the calibration curve fitted by the last call
+    * to nextPositions, lowest order first
+    */
+   public double[] getCurve() {
+      return curve_.clone();
+   }
+
+   private boolean fit(List<ScanStep> steps) {
+      int n = validCount(steps);
+      if (n < DEGREE + 1) {
+         return false;
+      }
+      double min = Double.POSITIVE_INFINITY;
+      double max = Double.NEGATIVE_INFINITY;
+      for (ScanStep step : steps) {
+         if (step.isValid()) {
+            min = Math.min(min, step.getTrueAngle());
+            max = Math.max(max, step.getTrueAngle());
+         }
+      }
+      fitter_.setDomain(min, max);
+      for (ScanStep step : steps) {
+         if (step.isValid()) {
+            fitter_.add(step.getTrueAngle(), step.getPosition(), 1.0);
+         }
+      }
+      try {
+         fitter_.solve(curve_);
+      } catch (RuntimeException ex) {
+         // commons math exceptions: too few distinct angles
+         return false;
+      }
+      return true;
+   }
+
+   /**
+    * Largest uncertainty of the angle predicted by the curve, checked in
+    * the angle range used for acquisitions, or in the range of angles seen
+    * when that is not known or not covered by the scan
+    */
+   private double maxUncertainty(double[] angles) {
+      double low = Double.POSITIVE_INFINITY;
+      double high = Double.NEGATIVE_INFINITY;
+      for (double angle : angles) {
+         low = Math.min(low, angle);
+         high = Math.max(high, angle);
+      }
+      if (!Double.isNaN(minAngle_) && minAngle_ >= low && maxAngle_ <= high) {
+         low = minAngle_;
+         high = maxAngle_;
+      }
+      double result = 0.0;
+      for (int i = 0; i <= NRCHECKS; i++) {
+         double angle = low + i * (high - low) / NRCHECKS;
+         result = Math.max(result, fitter_.getInverseError(angle));
+      }
+      return result;
+   }
+
+   /**
+    * Error (degrees) made by interpolating the angle linearly across a gap
+    * of the given width (motor steps), from the curvature of the curve:
+    * the angle is the inverse of the curve, so its second derivative with
+    * respect to the position is -p'' / p'^3
+    */
+   private double interpolationError(double angle, double gap) {
+      double slope = derivative(angle);
+      if (slope == 0.0) {
+         return Double.POSITIVE_INFINITY;
+      }
+      double secondDerivative = 2.0 * curve_[2] + 6.0 * curve_[3] * angle;
+      return Math.abs(secondDerivative / (slope * slope * slope)) * gap * gap / 8.0;
+   }
+
+   /**
+    * Angle at a motor position, interpolated between the valid steps
+    */
+   private static double angleAt(double position, double[] angles, double[] positions) {
+      int below = -1;
+      int above = -1;
+      for (int i = 0; i < positions.length; i++) {
+         if (positions[i] <= position && (below < 0 || positions[i] > positions[below])) {
+            below = i;
+         }
+         if (positions[i] >= position && (above < 0 || positions[i] < positions[above])) {
+            above = i;
+         }
+      }
+      if (below < 0) {
+         return angles[above];
+      }
+      if (above < 0 || positions[above] == positions[below]) {
+         return angles[below];
+      }
+      return angles[below] + (angles[above] - angles[below])
+              * (position - positions[below]) / (positions[above] - positions[below]);
+   }
+
+   /**
+    * Absolute residual (degrees) of the valid step at the given position,
+    * 0 when there is none (the frame could not be analyzed)
+    */
+   private static double residualNear(double position, double[] positions,
+           double[] angleResiduals) {
+      for (int i = 0; i < positions.length; i++) {
+         if (positions[i] == position) {
+            return Math.abs(angleResiduals[i]);
+         }
+      }
+      return 0.0;
+   }
+
+   private boolean inRange(double angle) {
+      return Double.isNaN(minAngle_) || (angle >= minAngle_ && angle <= maxAngle_);
+   }
+
+   private void addScanned(double[] positions) {
+      double[] scanned = Arrays.copyOf(scanned_, scanned_.length + positions.length);
+      System.arraycopy(positions, 0, scanned, scanned_.length, positions.length);
+      Arrays.sort(scanned);
+      scanned_ = scanned;
+   }
+
+   private static int validCount(List<ScanStep> steps) {
+      int n = 0;
+      for (ScanStep step : steps) {
+         if (step.isValid()) {
+            n++;
+         }
+      }
+      return n;
+   }
+
+   private double evaluate(double angle) {
+      double result = 0.0;
+      for (int k = curve_.length - 1; k >= 0; k--) {
+         result = result * angle + curve_[k];
+      }
+      return result;
+   }
+
+   private double derivative(double angle) {
+      double result = 0.0;
+      for (int k = curve_.length - 1; k >= 1; k--) {
+         result = result * angle + k * curve_[k];
+      }
+      return result;
+   }
+
+}
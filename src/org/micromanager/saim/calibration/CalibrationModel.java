@@ -0,0 +1,323 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          CalibrationModel.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.calibration;
+
+import java.util.Arrays;
+import java.util.prefs.Preferences;
+import mmcorej.CMMCore;
+import org.micromanager.api.ScriptInterface;
+import org.micromanager.saim.exceptions.SAIMException;
+
+/**
+ * Calibration of the TIRF motor for one channel: the polynomial that gives
+ * the motor position for a desired angle (in degrees), as fitted by
+ * CalibrationPanel and stored in the preferences.
+ *
+ * Models are immutable and can be shared between threads.  Build one per
+ * channel (or get it with forCurrentChannel) before an acquisition, rather
+ * than parsing the preferences for every angle.  Positions are evaluated
+ * with Horner's scheme.  Angles for a motor position are found in a table
+ * of positions, computed once when the model is built, after which a single
+ * Newton step makes the result exact.
+ *
+ * The table covers the range of angles where the polynomial is monotonic,
+ * within MINANGLE to MAXANGLE.  Positions outside that range have no angle
+ * (NaN).
+ *
+ * @author nico
+ */
+public final class CalibrationModel {
+
+   public static final double MINANGLE = -75.0;
+   public static final double MAXANGLE = 75.0;
+   /** Degree of the calibration curve, as fitted by CalibrationPanel (Pol3) */
+   public static final int DEGREE = 3;
+   /** Start of the preferences keys of all calibrations, see channelKey */
+   public static final String KEYPREFIX = "CALIBRATIONS-";
+   private static final int TABLESIZE = 4096;
+
+   /**
+    * A calibration string and the model built from it
+    */
+   private static final class Parsed {
+      final String calibration_;
+      final CalibrationModel model_;
+
+      Parsed(String calibration, CalibrationModel model) {
+         calibration_ = calibration;
+         model_ = model;
+      }
+   }
+
+   // the model parsed last, so that repeated lookups of the same channel
+   // are cheap.  Only one is kept, other channels are parsed again.
+   private static volatile Parsed lastParsed_;
+
+   private final double[] coefficients_;
+   private final double[] derivative_;
+   // positions in increasing order, and the angles they belong to
+   private final double[] tablePositions_;
+   private final double[] tableAngles_;
+
+   /**
+    * @param coefficients coefficients of the polynomial, lowest order first,
+    * as returned by Fitter.fit
+    * @throws SAIMException when there are no coefficients, or when the
+    * polynomial does not change with the angle
+    */
+   public CalibrationModel(double[] coefficients) throws SAIMException {
+      if (coefficients == null || coefficients.length == 0) {
+         throw new SAIMException("Calibration has no coefficients");
+      }
+      for (double c : coefficients) {
+         if (Double.isNaN(c) || Double.isInfinite(c)) {
+            throw new SAIMException("Invalid calibration coefficient: " + c);
+         }
+      }
+      coefficients_ = coefficients.clone();
+      derivative_ = new double[Math.max(1, coefficients.length - 1)];
+      for (int i = 1; i < coefficients.length; i++) {
+         derivative_[i - 1] = i * coefficients[i];
+      }
+
+      // sample the polynomial, and keep the monotonic run around angle 0
+      final double step = (MAXANGLE - MINANGLE) / (TABLESIZE - 1);
+      double[] positions = new double[TABLESIZE];
+      for (int i = 0; i < TABLESIZE; i++) {
+         positions[i] = horner(coefficients_, MINANGLE + i * step);
+      }
+      final int center = (int) Math.round(-MINANGLE / step);
+      final boolean increasing = positions[center + 1] > positions[center];
+      if (positions[center + 1] == positions[center]) {
+         throw new SAIMException("Calibration does not depend on the angle");
+      }
+      int first = center;
+      while (first > 0 && (positions[first] > positions[first - 1]) == increasing
+              && positions[first] != positions[first - 1]) {
+         first--;
+      }
+      int last = center + 1;
+      while (last < TABLESIZE - 1 && (positions[last + 1] > positions[last]) == increasing
+              && positions[last + 1] != positions[last]) {
+         last++;
+      }
+      final int size = last - first + 1;
+      tablePositions_ = new double[size];
+      tableAngles_ = new double[size];
+      for (int i = 0; i < size; i++) {
+         int j = increasing ? first + i : last - i;
+         tablePositions_[i] = positions[j];
+         tableAngles_[i] = MINANGLE + j * step;
+      }
+   }
+
+   /**
+    * Parses a calibration as stored in the preferences by CalibrationPanel
+    * (e.g. "[12000.5, 310.1, -2.1, 0.05]").  The last model parsed is
+    * kept, so calling this repeatedly for the same calibration is cheap.
+    *
+    * @param calibration coefficients, lowest order first
+    * @return model for the calibration
+    * @throws SAIMException when the string is empty or can not be parsed
+    */
+   public static CalibrationModel parse(String calibration) throws SAIMException {
+      if (calibration == null || calibration.trim().isEmpty()) {
+         throw new SAIMException("Uncalibrated");
+      }
+      Parsed last = lastParsed_;
+      if (last != null && last.calibration_.equals(calibration)) {
+         return last.model_;
+      }
+      String[] parts = calibration.replaceAll("\\[|\\]", "").split(",");
+      double[] coefficients = new double[parts.length];
+      try {
+         for (int i = 0; i < parts.length; i++) {
+            coefficients[i] = Double.parseDouble(parts[i].trim());
+         }
+      } catch (NumberFormatException nfe) {
+         throw new SAIMException("Invalid calibration: " + calibration);
+      }
+      CalibrationModel model = new CalibrationModel(coefficients);
+      lastParsed_ = new Parsed(calibration, model);
+      return model;
+   }
+
+   /**
+    * @param core Micro-Manager core
+    * @return preferences key of the calibration of the current channel
+    * @throws Exception when the channel can not be determined
+    */
+   public static String channelKey(CMMCore core) throws Exception {
+      String group = core.getChannelGroup();
+      return channelKey(group, core.getCurrentConfigFromCache(group));
+   }
+
+   /**
+    * @param group channel group
+    * @param config config (channel) of the group
+    * @return preferences key of the calibration of the channel
+    */
+   public static String channelKey(String group, String config) {
+      return KEYPREFIX + group + "-" + config;
+   }
+
+   /**
+    * Model of the channel that is currently selected
+    *
+    * @param prefs preferences in which the calibrations are stored
+    * @param gui Micro-Manager script interface
+    * @return model for the current channel
+    * @throws SAIMException when the channel is not calibrated
+    * @throws Exception when the channel can not be determined
+    */
+   public static CalibrationModel forCurrentChannel(Preferences prefs,
+           ScriptInterface gui) throws Exception {
+      String key = channelKey(gui.getMMCore());
+      String calibration = prefs.get(key, "");
+      if (calibration.isEmpty()) {
+         throw new SAIMException("No calibration for " + key);
+      }
+      return parse(calibration);
+   }
+
+   /**
+    * Coefficient of the calibration of the current channel, for display
+    *
+    * @param prefs preferences in which the calibrations are stored
+    * @param gui Micro-Manager script interface
+    * @param order order of the term
+    * @return the coefficient as text, empty when the current channel is not
+    * calibrated
+    */
+   public static String currentCoefficient(Preferences prefs, ScriptInterface gui,
+           int order) {
+      try {
+         return Double.toString(forCurrentChannel(prefs, gui).getCoefficient(order));
+      } catch (Exception ex) {
+         return "";
+      }
+   }
+
+   /**
+    * @param angle angle in degrees
+    * @return motor position for the angle
+    */
+   public double position(double angle) {
+      return horner(coefficients_, angle);
+   }
+
+   /**
+    * @param angle angle in degrees
+    * @return motor position for the angle, rounded to the integer positions
+    * understood by the motor
+    */
+   public int motorPosition(double angle) {
+      return Math.round((float) horner(coefficients_, angle));
+   }
+
+   /**
+    * Motor positions for many angles at once
+    *
+    * @param angles angles in degrees
+    * @param positions array that receives the positions, same length as angles
+    */
+   public void positions(double[] angles, double[] positions) {
+      for (int i = 0; i < angles.length; i++) {
+         positions[i] = horner(coefficients_, angles[i]);
+      }
+   }
+
+   /**
+    * @param position motor position
+    * @return angle (degrees) at which the motor sends the beam, NaN when the
+    * position is outside the range of the calibration
+    */
+   public double angle(double position) {
+      final int n = tablePositions_.length;
+      if (!(position >= tablePositions_[0] && position <= tablePositions_[n - 1])) {
+         return Double.NaN;
+      }
+      int i = Arrays.binarySearch(tablePositions_, position);
+      if (i >= 0) {
+         return tableAngles_[i];
+      }
+      // position lies between entries i - 1 and i
+      i = -i - 1;
+      final double p0 = tablePositions_[i - 1];
+      final double p1 = tablePositions_[i];
+      final double a0 = tableAngles_[i - 1];
+      final double a1 = tableAngles_[i];
+      double angle = a0 + (position - p0) * (a1 - a0) / (p1 - p0);
+      // one Newton step on the polynomial itself
+      final double slope = horner(derivative_, angle);
+      if (slope != 0.0) {
+         angle -= (horner(coefficients_, angle) - position) / slope;
+      }
+      return angle;
+   }
+
+   /**
+    * @return lowest angle covered by angle(position)
+    */
+   public double getMinAngle() {
+      return Math.min(tableAngles_[0], tableAngles_[tableAngles_.length - 1]);
+   }
+
+   /**
+    * @return highest angle covered by angle(position)
+    */
+   public double getMaxAngle() {
+      return Math.max(tableAngles_[0], tableAngles_[tableAngles_.length - 1]);
+   }
+
+   /**
+    * @return copy of the coefficients, lowest order first
+    */
+   public double[] getCoefficients() {
+      return coefficients_.clone();
+   }
+
+   /**
+    * @param order order of the term
+    * @return coefficient of the given order, 0 when the polynomial has no
+    * such term
+    */
+   public double getCoefficient(int order) {
+      return order < coefficients_.length ? coefficients_[order] : 0.0;
+   }
+
+   /**
+    * @return the coefficients in the format stored in the preferences
+    */
+   @Override
+   public String toString() {
+      return Arrays.toString(coefficients_);
+   }
+
+   private static double horner(double[] c, double x) {
+      double result = c[c.length - 1];
+      for (int i = c.length - 2; i >= 0; i--) {
+         result = result * x + c[i];
+      }
+      return result;
+   }
+
+}
@@ -0,0 +1,107 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ChannelCalibration.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.calibration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Everything a calibration scan keeps for one channel: the optics at the
+ * wavelength of the channel, the Gaussian fit session (beams of different
+ * wavelengths do not hit the detectors at quite the same pixels, so each
+ * channel has its own history to start fits from), and the live
+ * calibration curve.
+ *
+ * @author nico
+ */
+public class ChannelCalibration {
+
+   private final String name_;
+   private final double wavelength_;
+   private final SaimOptics optics_;
+   private final ScanFitSession fitSession_;
+   private final LiveCalibration live_;
+
+   /**
+    * @param name name of the channel (config of the channel group)
+    * @param wavelength wavelength of the channel (nm)
+    * @param optics optics of the rig at this wavelength
+    * @param fitSession fits the beams of this channel
+    * @param live calibration curve of this channel
+    */
+   public ChannelCalibration(String name, double wavelength, SaimOptics optics,
+           ScanFitSession fitSession, LiveCalibration live) {
+      name_ = name;
+      wavelength_ = wavelength;
+      optics_ = optics;
+      fitSession_ = fitSession;
+      live_ = live;
+   }
+
+   public String getName() {
+      return name_;
+   }
+
+   public double getWavelength() {
+      return wavelength_;
+   }
+
+   public SaimOptics getOptics() {
+      return optics_;
+   }
+
+   public ScanFitSession getFitSession() {
+      return fitSession_;
+   }
+
+   public LiveCalibration getLive() {
+      return live_;
+   }
+
+   /**
+    * @param steps steps of a scan of several channels
+    * @param channel index of a channel
+    * @return the steps of the given channel, in scan order
+    */
+   public static List<ScanStep> stepsOf(List<ScanStep> steps, int channel) {
+      List<ScanStep> result = new ArrayList<ScanStep>(steps.size());
+      for (ScanStep step : steps) {
+         if (step.getChannel() == channel) {
+            result.add(step);
+         }
+      }
+      return result;
+   }
+
+   /**
+    * @param channels all channels of a scan
+    * @return true when the curves of all channels have converged
+    */
+   public static boolean allConverged(ChannelCalibration[] channels) {
+      for (ChannelCalibration channel : channels) {
+         if (!channel.getLive().isConverged()) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+}
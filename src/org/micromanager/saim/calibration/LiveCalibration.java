@@ -0,0 +1,238 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          LiveCalibration.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.calibration;
+
+
+import org.micromanager.saim.fit.PolynomialFitter;
+
+/**
+ * Calibration curve (motor position as a cubic of the true angle) that is
+ * kept up to date while a calibration scan runs.  Every point is added to
+ * the normal equations of a PolynomialFitter, after which solving for the
+ * new curve takes a few microseconds, regardless of the number of points.
+ *
+ * Along with the curve, the standard errors of its coefficients are
+ * tracked, as well as the standard error of the angle it predicts: the
+ * standard error of the fitted position (from the scatter of the points
+ * and the leverage of the angle) divided by the slope of the curve, at its
+ * worst in the angles of interest.  The calibration has converged when
+ * that error is below the tolerance for a few points in a row, and the
+ * points cover the angles of interest.  The scan can then stop early.
+ *
+ * Positions of a uniform scan are best taken coarse to fine (see
+ * coarseToFine), so that the curve covers the whole range of angles from
+ * the start, and only gets more precise as the scan continues.
+ *
+ * Thread safe.
+ *
+ * @author nico
+ */
+public class LiveCalibration {
+
+   private static final int DEGREE = CalibrationModel.DEGREE;
+   // fewest points before convergence is considered
+   private static final int MINPOINTS = 3 * (DEGREE + 1);
+   // number of consecutive points for which the error has to stay below the
+   // tolerance
+   private static final int STABLEPOINTS = 3;
+   // number of points at which the slope of the curve is checked
+   private static final int NRCHECKS = 20;
+   // smallest number of positions in the first pass of a coarse to fine
+   // scan.  Every pass is a sweep of the motor, so there should not be many.
+   private static final int FIRSTPASS = 16;
+
+   private final double tolerance_;
+   private final double minAngle_;
+   private final double maxAngle_;
+   private final PolynomialFitter fitter_ = new PolynomialFitter(DEGREE);
+   private final double[] coefficients_ = new double[DEGREE + 1];
+   private final double[] errors_ = new double[DEGREE + 1];
+   private double lowestAngle_ = Double.POSITIVE_INFINITY;
+   private double highestAngle_ = Double.NEGATIVE_INFINITY;
+   private boolean valid_ = false;
+   private double angleError_ = Double.POSITIVE_INFINITY;
+   private int stablePoints_ = 0;
+
+   /**
+    * @param tolerance error (degrees) of the calibrated angle below which
+    * the calibration has converged
+    * @param minAngle lowest angle (degrees) used for acquisitions, NaN when
+    * the angles seen in the scan should be used
+    * @param maxAngle highest angle (degrees) used for acquisitions, NaN when
+    * the angles seen in the scan should be used
+    */
+   public LiveCalibration(double tolerance, double minAngle, double maxAngle) {
+      tolerance_ = tolerance;
+      minAngle_ = Math.min(minAngle, maxAngle);
+      maxAngle_ = Math.max(minAngle, maxAngle);
+      fitter_.setDomain(CalibrationModel.MINANGLE, CalibrationModel.MAXANGLE);
+   }
+
+   /**
+    * Adds a step of the scan, and refits the curve.  Steps that are not
+    * valid are ignored.
+    *
+    * @param step step with its true angle
+    * @return true when the curve could be fitted
+    */
+   public synchronized boolean add(ScanStep step) {
+      if (step.isValid()) {
+         add(step.getTrueAngle(), step.getPosition());
+      }
+      return valid_;
+   }
+
+   /**
+    * Adds a point, and refits the curve
+    *
+    * @param angle true angle (degrees)
+    * @param position motor position
+    * @return true when the curve could be fitted
+    */
+   public synchronized boolean add(double angle, double position) {
+      fitter_.add(angle, position, 1.0);
+      lowestAngle_ = Math.min(lowestAngle_, angle);
+      highestAngle_ = Math.max(highestAngle_, angle);
+      valid_ = false;
+      angleError_ = Double.POSITIVE_INFINITY;
+      if (fitter_.getCount() > DEGREE) {
+         try {
+            fitter_.solve(coefficients_);
+            angleError_ = angleError();
+            fitter_.getCoefficientErrors(errors_);
+            valid_ = true;
+         } catch (RuntimeException ex) {
+            // commons math exceptions: too few distinct angles so far
+         }
+      }
+      if (valid_ && angleError_ <= tolerance_ && covers()) {
+         stablePoints_++;
+      } else {
+         stablePoints_ = 0;
+      }
+      return valid_;
+   }
+
+   /**
+    * @return true when the curve is known to within the tolerance
+    */
+   public synchronized boolean isConverged() {
+      return fitter_.getCount() >= MINPOINTS && stablePoints_ >= STABLEPOINTS;
+   }
+
+   /**
+    * @return true when a curve has been fitted
+    */
+   public synchronized boolean isValid() {
+      return valid_;
+   }
+
+   /**
+    * @return number of points in the fit
+    */
+   public synchronized int getCount() {
+      return fitter_.getCount();
+   }
+
+   /**
+    * @return coefficients of the curve, lowest order first
+    */
+   public synchronized double[] getCoefficients() {
+      return coefficients_.clone();
+   }
+
+   /**
+    * @return standard errors of the coefficients, lowest order first
+    */
+   public synchronized double[] getCoefficientErrors() {
+      return errors_.clone();
+   }
+
+   /**
+    * @return largest standard error (degrees) of the calibrated angle in
+    * the angles of interest, infinite when not known yet
+    */
+   public synchronized double getAngleError() {
+      return angleError_;
+   }
+
+   /**
+    * Reorders the positions of a uniform scan so that the first positions
+    * cover the whole range coarsely, and later ones fill in between: every
+    * 2^k-th position first (and the last one), then those halfway in
+    * between, and so on.  Each pass runs in the original direction, so that
+    * backlash of the motor does not differ between passes.
+    *
+    * @param positions positions in scan order
+    * @return the same positions, coarse to fine
+    */
+   public static double[] coarseToFine(double[] positions) {
+      final int n = positions.length;
+      if (n < 3) {
+         return positions.clone();
+      }
+      double[] result = new double[n];
+      boolean[] taken = new boolean[n];
+      int stride = 1;
+      while (stride * 2 * FIRSTPASS < n) {
+         stride *= 2;
+      }
+      int count = 0;
+      for (; stride >= 1; stride /= 2) {
+         for (int i = 0; i < n; i += stride) {
+            if (!taken[i]) {
+               taken[i] = true;
+               result[count++] = positions[i];
+            }
+         }
+         // the first pass ends at the end of the scan
+         if (!taken[n - 1]) {
+            taken[n - 1] = true;
+            result[count++] = positions[n - 1];
+         }
+      }
+      return result;
+   }
+
+   /**
+    * Largest standard error (degrees) of the angle predicted by the curve
+    * in the angles of interest (see PolynomialFitter.getInverseError)
+    */
+   private double angleError() {
+      double low = Double.isNaN(minAngle_) ? lowestAngle_ : minAngle_;
+      double high = Double.isNaN(maxAngle_) ? highestAngle_ : maxAngle_;
+      double result = 0.0;
+      for (int i = 0; i <= NRCHECKS; i++) {
+         double angle = low + i * (high - low) / NRCHECKS;
+         result = Math.max(result, fitter_.getInverseError(angle));
+      }
+      return result;
+   }
+
+   /**
+    * @return true when the points cover the angles of interest
+    */
+   private boolean covers() {
+      return Double.isNaN(minAngle_)
+              || (lowestAngle_ <= minAngle_ && highestAngle_ >= maxAngle_);
+   }
+
+}
@@ -0,0 +1,258 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          RoiTracker.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.calibration;
+
+import org.micromanager.saim.detector.DetectorFrame;
+import org.micromanager.saim.detector.DetectorFrameReader;
+import org.micromanager.saim.detector.LineSensorSource;
+
+/**
+ * LineSensorSource that asks another source for a window (region of
+ * interest) of each detector only, centered where the beam is expected.
+ * During a calibration scan the beam moves a little from one step to the
+ * next, so the window is placed by extrapolating the beam positions of the
+ * previous two steps to the new motor position.
+ *
+ * Beam positions are the peaks found in the frames as they come in, and are
+ * replaced with the fitted means when these are handed to update.  With the
+ * pipelined calibration the fits of the previous step are usually not done
+ * yet when the next step is acquired, hence the peaks.
+ *
+ * When the peak of a windowed frame comes close to the edge of the window,
+ * or is much dimmer than the beam seen so far (i.e. the beam left the
+ * window), a full frame is taken right away at the same motor position.
+ * While the beam can not be found on a full frame either, full frames are
+ * used.
+ *
+ * @author nico
+ */
+public class RoiTracker implements LineSensorSource {
+
+   private static final int NRPIXELS = DetectorFrameReader.NRPIXELS;
+
+   private final LineSensorSource source_;
+   private final int width_;
+   private final int margin_;
+
+   // beam positions at the last two steps, index 1 is the most recent
+   private final double[] positions_ = {Double.NaN, Double.NaN};
+   private final double[] lowerCenters_ = new double[2];
+   private final double[] upperCenters_ = new double[2];
+   private int nrObserved_ = 0;
+   private double bestContrast_ = 0.0;
+   private boolean lost_ = false;
+   private int roiLower_ = 0;
+   private int roiUpper_ = 0;
+   private int roiWidth_ = NRPIXELS;
+   private long roiFrames_ = 0;
+   private long fullFrames_ = 0;
+   private long fallbacks_ = 0;
+
+   /**
+    * @param source source of the frames
+    * @param width number of pixels in the window (even)
+    */
+   public RoiTracker(LineSensorSource source, int width) {
+      source_ = source;
+      width_ = Math.min(NRPIXELS, width + width % 2);
+      margin_ = width_ / 8;
+   }
+
+   @Override
+   public synchronized DetectorFrame acquire(double position, DetectorFrame dest)
+           throws Exception {
+      boolean windowed = !lost_ && nrObserved_ > 0 && width_ < NRPIXELS;
+      if (windowed) {
+         setWindow(windowStart(predict(lowerCenters_, position)),
+                 windowStart(predict(upperCenters_, position)), width_);
+      } else {
+         setWindow(0, 0, NRPIXELS);
+      }
+      source_.acquire(position, dest);
+      if (windowed) {
+         roiFrames_++;
+         if (!beamInWindow(dest)) {
+            fallbacks_++;
+            windowed = false;
+            setWindow(0, 0, NRPIXELS);
+            source_.snap(dest);
+            dest.setPosition(position);
+         }
+      }
+      if (!windowed) {
+         fullFrames_++;
+         double contrast = Math.min(contrast(dest.getLower(), dest.getLowerOffset(),
+                 dest.getWidth()), contrast(dest.getUpper(), dest.getUpperOffset(),
+                 dest.getWidth()));
+         bestContrast_ = Math.max(bestContrast_, contrast);
+         lost_ = contrast < 0.5 * bestContrast_;
+      }
+      if (!lost_) {
+         observe(position, peak(dest.getLower(), dest.getLowerOffset(), dest.getWidth()),
+                 peak(dest.getUpper(), dest.getUpperOffset(), dest.getWidth()));
+      }
+      return dest;
+   }
+
+   /**
+    * Replaces the beam positions found at the given motor position with
+    * better estimates, such as the means of Gaussian fits.  Has no effect
+    * when the position is not one of the last two steps.
+    *
+    * @param position motor position of the step
+    * @param lowerMean beam center on the lower detector (pixels)
+    * @param upperMean beam center on the upper detector (pixels)
+    */
+   public synchronized void update(double position, double lowerMean, double upperMean) {
+      if (Double.isNaN(lowerMean) || Double.isNaN(upperMean)) {
+         return;
+      }
+      for (int i = 0; i < positions_.length; i++) {
+         if (positions_[i] == position) {
+            lowerCenters_[i] = lowerMean;
+            upperCenters_[i] = upperMean;
+         }
+      }
+   }
+
+   @Override
+   public synchronized DetectorFrame snap(DetectorFrame dest) throws Exception {
+      setWindow(0, 0, NRPIXELS);
+      return source_.snap(dest);
+   }
+
+   @Override
+   public synchronized void setRoi(int lowerOffset, int upperOffset, int width)
+           throws Exception {
+      setWindow(lowerOffset, upperOffset, width);
+   }
+
+   /**
+    * Goes back to full frames, and closes the underlying source
+    */
+   @Override
+   public synchronized void close() throws Exception {
+      try {
+         setWindow(0, 0, NRPIXELS);
+      } finally {
+         source_.close();
+      }
+   }
+
+   /**
+    * @return number of frames taken with a window
+    */
+   public synchronized long getRoiFrames() {
+      return roiFrames_;
+   }
+
+   /**
+    * @return number of full frames taken
+    */
+   public synchronized long getFullFrames() {
+      return fullFrames_;
+   }
+
+   /**
+    * @return number of times the beam was not found in the window, and a full
+    * frame had to be taken
+    */
+   public synchronized long getFallbacks() {
+      return fallbacks_;
+   }
+
+   private void setWindow(int lowerOffset, int upperOffset, int width) throws Exception {
+      if (lowerOffset != roiLower_ || upperOffset != roiUpper_ || width != roiWidth_) {
+         source_.setRoi(lowerOffset, upperOffset, width);
+         roiLower_ = lowerOffset;
+         roiUpper_ = upperOffset;
+         roiWidth_ = width;
+      }
+   }
+
+   private void observe(double position, double lowerCenter, double upperCenter) {
+      positions_[0] = positions_[1];
+      lowerCenters_[0] = lowerCenters_[1];
+      upperCenters_[0] = upperCenters_[1];
+      positions_[1] = position;
+      lowerCenters_[1] = lowerCenter;
+      upperCenters_[1] = upperCenter;
+      nrObserved_++;
+   }
+
+   /**
+    * Extrapolates the beam position linearly from the last two steps
+    */
+   private double predict(double[] centers, double position) {
+      if (nrObserved_ < 2 || positions_[0] == positions_[1]) {
+         return centers[1];
+      }
+      return centers[1] + (centers[1] - centers[0])
+              * (position - positions_[1]) / (positions_[1] - positions_[0]);
+   }
+
+   private int windowStart(double center) {
+      int start = (int) Math.round(center - width_ / 2.0);
+      return Math.max(0, Math.min(NRPIXELS - width_, start));
+   }
+
+   /**
+    * @return false when the peak on either detector is close to an edge of
+    * the window that is not an edge of the detector, or much dimmer than the
+    * beam seen so far
+    */
+   private boolean beamInWindow(DetectorFrame frame) {
+      return peakInWindow(frame.getLower(), frame.getLowerOffset(), frame.getWidth())
+              && peakInWindow(frame.getUpper(), frame.getUpperOffset(), frame.getWidth());
+   }
+
+   private boolean peakInWindow(short[] pixels, int offset, int width) {
+      int peak = peak(pixels, offset, width);
+      if (offset > 0 && peak < offset + margin_) {
+         return false;
+      }
+      if (offset + width < NRPIXELS && peak >= offset + width - margin_) {
+         return false;
+      }
+      return contrast(pixels, offset, width) >= 0.5 * bestContrast_;
+   }
+
+   private static int peak(short[] pixels, int offset, int width) {
+      int peak = offset;
+      for (int i = offset + 1; i < offset + width; i++) {
+         if (pixels[i] > pixels[peak]) {
+            peak = i;
+         }
+      }
+      return peak;
+   }
+
+   private static double contrast(short[] pixels, int offset, int width) {
+      int min = Integer.MAX_VALUE;
+      int max = Integer.MIN_VALUE;
+      for (int i = offset; i < offset + width; i++) {
+         min = Math.min(min, pixels[i]);
+         max = Math.max(max, pixels[i]);
+      }
+      return max - min;
+   }
+
+}
@@ -0,0 +1,235 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          SaimOptics.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.calibration;
+
+
+import java.util.List;
+import java.util.prefs.Preferences;
+import org.micromanager.saim.PrefUtils;
+import org.micromanager.saim.data.RI;
+import org.micromanager.saim.exceptions.SAIMException;
+
+/**
+ * Geometry and refractive indices of the calibration rig, used to convert
+ * the centers of the beam on both detectors into the angle of the light
+ * hitting the sample.
+ *
+ * The angle of the beam is given by the displacement of the beam between
+ * the lower and the upper detector.  Snell's law then corrects it for the
+ * acrylic of the calibration device (acrylic to immersion medium), and
+ * for the sample (immersion medium to sample).  All of this is worked out
+ * once, when the object is built, so that converting a whole scan is a
+ * single loop over primitive arrays.
+ *
+ * Objects are immutable and can be shared between threads.
+ *
+ * @author nico
+ */
+public final class SaimOptics {
+
+   /** Distance between pixel centers (mm) */
+   public static final double PIXELSIZEMM = 0.0635;
+   /** Distance between the centers of the two detectors (mm).  The old
+    * detector design had them 20.64 mm apart. */
+   public static final double DETECTORDISTANCEMM = 12.95;
+
+   private final double pixelSize_;
+   private final double distance_;
+   private final double detectorOffset_;
+   private final double acrylicRI_;
+   private final double immersionRI_;
+   private final double sampleRI_;
+   // sine of the angle in the immersion medium over sine of the observed angle
+   private final double immersionRatio_;
+   // sine of the angle in the sample over sine of the angle in the immersion medium
+   private final double sampleRatio_;
+
+   /**
+    * @param pixelSize distance between pixel centers (mm)
+    * @param distance distance between the centers of the detectors (mm)
+    * @param detectorOffset position of the beam on the upper detector
+    * (pixels) relative to the lower detector when the beam is vertical
+    * @param acrylicRI refractive index of the calibration device
+    * @param immersionRI refractive index of the immersion medium
+    * @param sampleRI refractive index of the sample
+    */
+   public SaimOptics(double pixelSize, double distance, double detectorOffset,
+           double acrylicRI, double immersionRI, double sampleRI) {
+      pixelSize_ = pixelSize;
+      distance_ = distance;
+      detectorOffset_ = detectorOffset;
+      acrylicRI_ = acrylicRI;
+      immersionRI_ = immersionRI;
+      sampleRI_ = sampleRI;
+      immersionRatio_ = acrylicRI / immersionRI;
+      sampleRatio_ = immersionRI / sampleRI;
+   }
+
+   /**
+    * Optics of the current detector design
+    *
+    * @param detectorOffset position of the beam on the upper detector
+    * (pixels) relative to the lower detector when the beam is vertical
+    * @param wavelength wavelength of the light (nm), used to look up the
+    * refractive index of acrylic
+    * @param immersionRI refractive index of the immersion medium
+    * @param sampleRI refractive index of the sample
+    */
+   public SaimOptics(double detectorOffset, double wavelength, double immersionRI,
+           double sampleRI) {
+      this(PIXELSIZEMM, DETECTORDISTANCEMM, detectorOffset,
+              RI.getRI(RI.Compound.ACRYLIC, wavelength), immersionRI, sampleRI);
+   }
+
+   /**
+    * Optics of the current detector design, with the wavelength and
+    * refractive indices entered in the CalibrationPanel
+    *
+    * @param prefs preferences in which CalibrationPanel stores its settings
+    * @param detectorOffset position of the beam on the upper detector
+    * (pixels) relative to the lower detector when the beam is vertical
+    * @return optics of the rig
+    * @throws SAIMException when a setting can not be parsed
+    */
+   public static SaimOptics fromPreferences(Preferences prefs, double detectorOffset)
+           throws SAIMException {
+      return fromPreferences(prefs, detectorOffset,
+              parse(prefs, PrefUtils.WAVELENGTH, "0.0", "wavelength"));
+   }
+
+   /**
+    * Optics of the current detector design at the given wavelength, with
+    * the refractive indices entered in the CalibrationPanel
+    *
+    * @param prefs preferences in which CalibrationPanel stores its settings
+    * @param detectorOffset position of the beam on the upper detector
+    * (pixels) relative to the lower detector when the beam is vertical
+    * @param wavelength wavelength of the light (nm)
+    * @return optics of the rig
+    * @throws SAIMException when a setting can not be parsed
+    */
+   public static SaimOptics fromPreferences(Preferences prefs, double detectorOffset,
+           double wavelength) throws SAIMException {
+      return new SaimOptics(detectorOffset, wavelength,
+              parse(prefs, PrefUtils.IMMERSIONRI, "1.33", "immersion RI"),
+              parse(prefs, PrefUtils.SAMPLERI, "1.33", "sample RI"));
+   }
+
+   private static double parse(Preferences prefs, String key, String defaultValue,
+           String name) throws SAIMException {
+      String value = prefs.get(key, defaultValue);
+      try {
+         return Double.parseDouble(value);
+      } catch (NumberFormatException nfe) {
+         throw new SAIMException("Failed to parse " + name + " \"" + value
+                 + "\" to a numeric value");
+      }
+   }
+
+   /**
+    * @param lowerMean center of the beam on the lower detector (pixels)
+    * @param upperMean center of the beam on the upper detector (pixels)
+    * @return angle of the light hitting the sample (degrees), NaN when the
+    * light can not get there (total internal reflection)
+    */
+   public double trueAngle(double lowerMean, double upperMean) {
+      double displacement = (lowerMean - upperMean - detectorOffset_) * pixelSize_;
+      // sine of the observed angle, atan(displacement / distance)
+      double sine = displacement / Math.sqrt(displacement * displacement
+              + distance_ * distance_);
+      double immersionSine = immersionRatio_ * sine;
+      if (immersionSine > 1.0 || immersionSine < -1.0) {
+         return Double.NaN;
+      }
+      return Math.toDegrees(Math.asin(sampleRatio_ * immersionSine));
+   }
+
+   /**
+    * Converts the beam centers of a whole scan at once
+    *
+    * @param lowerMeans centers of the beam on the lower detector (pixels)
+    * @param upperMeans centers of the beam on the upper detector (pixels)
+    * @param length number of values to convert
+    * @param trueAngles receives the angles of the light hitting the sample
+    * (degrees), NaN where the light can not get there
+    */
+   public void trueAngles(double[] lowerMeans, double[] upperMeans, int length,
+           double[] trueAngles) {
+      final double offset = detectorOffset_;
+      final double pixelSize = pixelSize_;
+      final double distanceSquared = distance_ * distance_;
+      final double immersionRatio = immersionRatio_;
+      final double sampleRatio = sampleRatio_;
+      for (int i = 0; i < length; i++) {
+         double displacement = (lowerMeans[i] - upperMeans[i] - offset) * pixelSize;
+         double immersionSine = immersionRatio * displacement
+                 / Math.sqrt(displacement * displacement + distanceSquared);
+         trueAngles[i] = immersionSine > 1.0 || immersionSine < -1.0 ? Double.NaN
+                 : Math.toDegrees(Math.asin(sampleRatio * immersionSine));
+      }
+   }
+
+   /**
+    * Sets the true angle of each step from its beam centers, using
+    * trueAngles
+    *
+    * @param steps steps of a calibration scan
+    */
+   public void trueAngles(List<ScanStep> steps) {
+      final int nrSteps = steps.size();
+      double[] lowerMeans = new double[nrSteps];
+      double[] upperMeans = new double[nrSteps];
+      double[] trueAngles = new double[nrSteps];
+      for (int i = 0; i < nrSteps; i++) {
+         lowerMeans[i] = steps.get(i).getLowerMean();
+         upperMeans[i] = steps.get(i).getUpperMean();
+      }
+      trueAngles(lowerMeans, upperMeans, nrSteps, trueAngles);
+      for (int i = 0; i < nrSteps; i++) {
+         steps.get(i).setTrueAngle(trueAngles[i]);
+      }
+   }
+
+   public double getPixelSize() {
+      return pixelSize_;
+   }
+
+   public double getDistance() {
+      return distance_;
+   }
+
+   public double getDetectorOffset() {
+      return detectorOffset_;
+   }
+
+   public double getAcrylicRI() {
+      return acrylicRI_;
+   }
+
+   public double getImmersionRI() {
+      return immersionRI_;
+   }
+
+   public double getSampleRI() {
+      return sampleRI_;
+   }
+
+}
@@ -0,0 +1,273 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ScanFitSession.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.calibration;
+
+import org.micromanager.saim.fit.Fitter;
+import org.micromanager.saim.fit.GaussianFitter;
+
+/**
+ * Gaussian fits of the beam on both detectors during a calibration scan,
+ * started from the beam that is expected at the motor position rather than
+ * from a guess based on the frame itself.
+ *
+ * The session remembers the fitted parameters of the last few steps on each
+ * detector.  The mean of the next fit is extrapolated from these (linearly
+ * from two steps, quadratically from three), the other parameters are those
+ * of the last step.  During a smooth sweep this start is so close to the
+ * optimum that the fit converges in a few iterations.  Since only the beam
+ * center matters here, the fits stop as soon as the mean has settled.
+ *
+ * A warm start is not used when there is no history yet, or when the
+ * predicted mean falls outside the pixels that were read.  When the warm fit
+ * fails, or its residual is much larger than that of the steps before (the
+ * beam jumped, or the fit ended up in a local minimum), the frame is fitted
+ * again from a guess based on the frame itself, and the better of the two
+ * fits is used.
+ *
+ * Thread safe: workers fit frames concurrently, each with its own
+ * GaussianFitter.  Workers may finish out of order, in which case
+ * predictions use the steps finished so far.
+ *
+ * @author nico
+ */
+public class ScanFitSession {
+
+   public static final int LOWER = 0;
+   public static final int UPPER = 1;
+
+   // number of steps remembered per detector
+   private static final int HISTORY = 3;
+   // a warm fit whose residual exceeds the residual of earlier fits this
+   // many times is redone from a cold start
+   private static final double RESIDUALFACTOR = 4.0;
+   // fits stop when an iteration moves the mean by less than this (pixels),
+   // well below the noise in the mean
+   private static final double POSITIONTOLERANCE = 1.0e-3;
+
+   private final Fitter.WeightMethod weightMethod_;
+   private boolean warmStart_ = true;
+   // per detector, index 0 is the oldest step
+   private final double[][] positions_ = new double[2][HISTORY];
+   private final double[][][] parms_ = new double[2][HISTORY][4];
+   private final double[][] residuals_ = new double[2][HISTORY];
+   private final int[] nrSteps_ = new int[2];
+
+   private long warmFits_ = 0;
+   private long coldFits_ = 0;
+   private long fallbacks_ = 0;
+   private long iterations_ = 0;
+
+   /**
+    * @param weightMethod weighting of the pixels in the fits
+    */
+   public ScanFitSession(Fitter.WeightMethod weightMethod) {
+      weightMethod_ = weightMethod;
+   }
+
+   /**
+    * @param warmStart when false, every fit starts from a guess based on the
+    * frame itself (the way fits were done before).  Mostly useful for
+    * comparison.
+    */
+   public synchronized void setWarmStart(boolean warmStart) {
+      warmStart_ = warmStart;
+   }
+
+   /**
+    * Fits the beam in a window of one detector
+    *
+    * @param detector LOWER or UPPER
+    * @param position motor position at which the frame was taken
+    * @param pixels pixel values of the detector
+    * @param offset index of the first pixel of the window
+    * @param width number of pixels in the window
+    * @return norm, mean, sigma, offset of the beam
+    * @throws RuntimeException (from commons math) when no fit could be made
+    */
+   public double[] fit(int detector, double position, short[] pixels, int offset,
+           int width) {
+      final GaussianFitter fitter = GaussianFitter.forThread();
+      double[] guess = null;
+      double expectedResidual = Double.NaN;
+      synchronized (this) {
+         if (warmStart_ && nrSteps_[detector] > 0) {
+            guess = predict(detector, position);
+            expectedResidual = lowestResidual(detector);
+         }
+      }
+      if (guess != null && (guess[GaussianFitter.MEAN] < offset
+              || guess[GaussianFitter.MEAN] >= offset + width)) {
+         guess = null;
+      }
+
+      double[] result = null;
+      double residual = Double.NaN;
+      int iterations = 0;
+      boolean fallback = false;
+      fitter.setPositionTolerance(POSITIONTOLERANCE);
+      try {
+         if (guess != null) {
+            try {
+               result = fitter.fit(pixels, offset, width, weightMethod_, guess, null);
+               residual = fitter.getCost() / fitter.getNrPoints();
+               fallback = residual > RESIDUALFACTOR * expectedResidual;
+            } catch (RuntimeException ex) {
+               fallback = true;
+            }
+            iterations += fitter.getIterations();
+         }
+         if (result == null || fallback) {
+            double[] warm = result;
+            double warmResidual = residual;
+            try {
+               result = fitter.fit(pixels, offset, width, weightMethod_, null, null);
+               residual = fitter.getCost() / fitter.getNrPoints();
+            } catch (RuntimeException ex) {
+               if (warm == null) {
+                  count(guess != null, fallback, iterations + fitter.getIterations());
+                  throw ex;
+               }
+               result = null;
+            }
+            iterations += fitter.getIterations();
+            if (warm != null && (result == null || warmResidual <= residual)) {
+               result = warm;
+               residual = warmResidual;
+            }
+         }
+      } finally {
+         fitter.setPositionTolerance(0.0);
+      }
+      count(guess != null, fallback, iterations);
+      synchronized (this) {
+         remember(detector, position, result, residual);
+      }
+      return result;
+   }
+
+   /**
+    * Forgets all steps, e.g. at the start of a new scan
+    */
+   public synchronized void reset() {
+      nrSteps_[LOWER] = 0;
+      nrSteps_[UPPER] = 0;
+   }
+
+   /**
+    * @return number of fits that were started from a prediction
+    */
+   public synchronized long getWarmFits() {
+      return warmFits_;
+   }
+
+   /**
+    * @return number of fits that were started from a guess based on the frame
+    */
+   public synchronized long getColdFits() {
+      return coldFits_;
+   }
+
+   /**
+    * @return number of warm fits that had to be redone from a cold start
+    */
+   public synchronized long getFallbacks() {
+      return fallbacks_;
+   }
+
+   /**
+    * @return average number of Levenberg-Marquardt iterations per fit,
+    * including those of fits that were redone
+    */
+   public synchronized double getIterationsPerFit() {
+      long fits = warmFits_ + coldFits_;
+      return fits > 0 ? (double) iterations_ / fits : 0.0;
+   }
+
+   private synchronized void count(boolean warm, boolean fallback, int iterations) {
+      if (warm) {
+         warmFits_++;
+      } else {
+         coldFits_++;
+      }
+      if (fallback) {
+         fallbacks_++;
+      }
+      iterations_ += iterations;
+   }
+
+   /**
+    * Start for a fit at the given position: the mean is extrapolated from
+    * the steps in the history, all other parameters are those of the most
+    * recent step
+    */
+   private double[] predict(int detector, double position) {
+      final int n = Math.min(nrSteps_[detector], HISTORY);
+      final double[] x = positions_[detector];
+      final double[][] parms = parms_[detector];
+      double[] guess = new double[4];
+      System.arraycopy(parms[HISTORY - 1], 0, guess, 0, 4);
+      // Lagrange polynomial through the last n steps
+      double mean = 0.0;
+      for (int i = HISTORY - n; i < HISTORY; i++) {
+         double term = parms[i][GaussianFitter.MEAN];
+         for (int j = HISTORY - n; j < HISTORY; j++) {
+            if (j != i) {
+               if (x[i] == x[j]) {
+                  // repeated position, do not extrapolate
+                  return guess;
+               }
+               term *= (position - x[j]) / (x[i] - x[j]);
+            }
+         }
+         mean += term;
+      }
+      guess[GaussianFitter.MEAN] = mean;
+      return guess;
+   }
+
+   private double lowestResidual(int detector) {
+      final int n = Math.min(nrSteps_[detector], HISTORY);
+      double lowest = Double.POSITIVE_INFINITY;
+      for (int i = HISTORY - n; i < HISTORY; i++) {
+         lowest = Math.min(lowest, residuals_[detector][i]);
+      }
+      return lowest;
+   }
+
+   private void remember(int detector, double position, double[] parms,
+           double residual) {
+      final double[] x = positions_[detector];
+      final double[][] p = parms_[detector];
+      final double[] r = residuals_[detector];
+      final double[] oldest = p[0];
+      for (int i = 0; i < HISTORY - 1; i++) {
+         x[i] = x[i + 1];
+         p[i] = p[i + 1];
+         r[i] = r[i + 1];
+      }
+      System.arraycopy(parms, 0, oldest, 0, 4);
+      x[HISTORY - 1] = position;
+      p[HISTORY - 1] = oldest;
+      r[HISTORY - 1] = residual;
+      nrSteps_[detector]++;
+   }
+
+}
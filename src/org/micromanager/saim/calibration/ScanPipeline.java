@@ -0,0 +1,279 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ScanPipeline.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.calibration;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import org.micromanager.saim.detector.DetectorFrame;
+import org.micromanager.saim.detector.LineSensorSource;
+import org.micromanager.saim.exceptions.SAIMException;
+
+/**
+ * Runs a calibration scan as a two stage pipeline.  The calling thread moves
+ * the motor and reads the detector through a LineSensorSource, and hands each
+ * frame to a pool of workers that find the beam and calculate the angle.  The
+ * motor therefore travels to the next position while the previous frame is
+ * analyzed.
+ *
+ * Results are handed back in scan order, regardless of the order in which
+ * the workers finish.  Frames are taken from a small pool, so that the
+ * acquisition can not run away from the analysis.
+ *
+ * Several channels (e.g. laser lines) can be calibrated in a single sweep.
+ * At each motor position, a ChannelSwitcher selects each channel in turn,
+ * and a frame is read for every channel, so that the motor only travels
+ * and settles once.  Channels are visited in alternating order (0 to n - 1,
+ * then n - 1 to 0), which saves one channel switch per position, unless
+ * alternating is switched off.  The first channel at a position is read
+ * with LineSensorSource.acquire, the others with snap.
+ *
+ * @author nico
+ */
+public class ScanPipeline {
+
+   /**
+    * Finds the beam on both detectors and calculates the angle.
+    * Called on worker threads, so needs to be thread safe.
+    */
+   public interface Analyzer {
+      /**
+       * Fills in the means and the true angle of the step
+       * @param step step with its frame attached
+       * @throws Exception
+       */
+      void analyze(ScanStep step) throws Exception;
+   }
+
+   /**
+    * Is told about progress, and can stop the scan
+    */
+   public interface Monitor {
+      boolean isAborted();
+
+      /**
+       * Checked before each position.  Unlike an abort, the scan ends
+       * normally, with the steps taken so far.
+       * @return true when no more positions are needed
+       */
+      boolean isFinished();
+
+      /**
+       * Called in scan order, on the thread that runs the scan
+       * @param step step that was just analyzed
+       */
+      void stepCompleted(ScanStep step);
+
+      /**
+       * Called when no frame could be read at a position.  The scan skips
+       * the position and continues.
+       * @param position position of the TIRF motor
+       * @param ex reason of the failure
+       */
+      void acquisitionFailed(double position, Exception ex);
+   }
+
+   /**
+    * Selects the channel (light source) for the frames that follow.  Called
+    * on the thread that runs the scan.
+    */
+   public interface ChannelSwitcher {
+      /**
+       * @param channel index of the channel to select
+       * @throws Exception when the channel could not be selected
+       */
+      void select(int channel) throws Exception;
+   }
+
+   private final int nrWorkers_;
+   private boolean alternating_ = true;
+
+   /**
+    * @param nrWorkers number of threads used for analysis
+    */
+   public ScanPipeline(int nrWorkers) {
+      nrWorkers_ = Math.max(1, nrWorkers);
+   }
+
+   /**
+    * Creates a pipeline using all but one of the available processors
+    */
+   public ScanPipeline() {
+      this(Runtime.getRuntime().availableProcessors() - 1);
+   }
+
+   /**
+    * @param alternating true to visit the channels in alternating order,
+    * false to always start with channel 0, so that it is the channel read
+    * with acquire (e.g. by a RoiTracker) at every position
+    */
+   public void setAlternating(boolean alternating) {
+      alternating_ = alternating;
+   }
+
+   /**
+    * Runs the scan
+    *
+    * @param positions motor positions to visit, in order
+    * @param source moves the motor and reads the detector
+    * @param analyzer analyzes frames
+    * @param monitor is told about progress, may be null
+    * @return all steps for which a frame was acquired, in scan order.
+    * Check ScanStep.isValid to see if the analysis succeeded.
+    * @throws Exception when acquisition or analysis fail, or when aborted
+    */
+   public List<ScanStep> run(double[] positions, LineSensorSource source,
+           final Analyzer analyzer, Monitor monitor) throws Exception {
+      return run(positions, 1, null, source, analyzer, monitor);
+   }
+
+   /**
+    * Runs the scan, reading a frame for each channel at each position
+    *
+    * @param positions motor positions to visit, in order
+    * @param nrChannels number of channels
+    * @param switcher selects the channels, may be null when there is one channel
+    * @param source moves the motor and reads the detector
+    * @param analyzer analyzes frames
+    * @param monitor is told about progress, may be null
+    * @return all steps for which a frame was acquired, in scan order.  Each
+    * step knows its channel (ScanStep.getChannel).  Check ScanStep.isValid
+    * to see if the analysis succeeded.
+    * @throws Exception when acquisition or analysis fail, or when aborted
+    */
+   public List<ScanStep> run(double[] positions, int nrChannels, ChannelSwitcher switcher,
+           LineSensorSource source, final Analyzer analyzer, Monitor monitor)
+           throws Exception {
+      final BlockingQueue<DetectorFrame> freeFrames =
+              new ArrayBlockingQueue<DetectorFrame>(nrWorkers_ + 2);
+      for (int i = 0; i < nrWorkers_ + 2; i++) {
+         freeFrames.add(new DetectorFrame());
+      }
+      ExecutorService workers = Executors.newFixedThreadPool(nrWorkers_,
+              new ThreadFactory() {
+                 private int count_ = 0;
+                 @Override
+                 public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "SAIM Calibration Worker " + count_++);
+                    t.setDaemon(true);
+                    return t;
+                 }
+              });
+      LinkedList<Future<ScanStep>> pending = new LinkedList<Future<ScanStep>>();
+      List<ScanStep> result = new ArrayList<ScanStep>(positions.length * nrChannels);
+      try {
+         for (int i = 0; i < positions.length; i++) {
+            if (monitor != null && monitor.isAborted()) {
+               throw new SAIMException("User aborted calibration");
+            }
+            if (monitor != null && monitor.isFinished()) {
+               break;
+            }
+            for (int c = 0; c < nrChannels; c++) {
+               final int channel = !alternating_ || i % 2 == 0 ? c : nrChannels - 1 - c;
+               DetectorFrame frame = freeFrames.take();
+               try {
+                  if (switcher != null) {
+                     switcher.select(channel);
+                  }
+                  if (c == 0) {
+                     source.acquire(positions[i], frame);
+                  } else {
+                     // the motor is still in place
+                     source.snap(frame);
+                     frame.setPosition(positions[i]);
+                  }
+               } catch (InterruptedException ie) {
+                  freeFrames.add(frame);
+                  throw ie;
+               } catch (Exception ex) {
+                  freeFrames.add(frame);
+                  if (monitor != null) {
+                     monitor.acquisitionFailed(positions[i], ex);
+                  }
+                  if (c == 0) {
+                     // the motor may not be where we want it
+                     break;
+                  }
+                  continue;
+               }
+               final ScanStep step = new ScanStep(i, positions[i], channel);
+               step.setFrame(frame);
+               pending.add(workers.submit(new Callable<ScanStep>() {
+                  @Override
+                  public ScanStep call() throws Exception {
+                     try {
+                        analyzer.analyze(step);
+                     } finally {
+                        freeFrames.add(step.getFrame());
+                        step.setFrame(null);
+                     }
+                     return step;
+                  }
+               }));
+               collect(pending, result, monitor, false);
+            }
+         }
+         collect(pending, result, monitor, true);
+      } finally {
+         for (Future<ScanStep> f : pending) {
+            f.cancel(true);
+         }
+         workers.shutdownNow();
+      }
+      return result;
+   }
+
+   /**
+    * Moves finished steps from the head of the pending list into the result
+    *
+    * @param wait if true, wait for all pending steps
+    */
+   private void collect(LinkedList<Future<ScanStep>> pending, List<ScanStep> result,
+           Monitor monitor, boolean wait) throws Exception {
+      while (!pending.isEmpty() && (wait || pending.getFirst().isDone())) {
+         ScanStep step;
+         try {
+            step = pending.getFirst().get();
+         } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof Exception) {
+               throw (Exception) cause;
+            }
+            throw ex;
+         }
+         pending.removeFirst();
+         result.add(step);
+         if (monitor != null) {
+            monitor.stepCompleted(step);
+         }
+      }
+   }
+
+}
@@ -0,0 +1,125 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ScanStep.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.calibration;
+
+import org.micromanager.saim.detector.DetectorFrame;
+
+/**
+ * A single motor position of a calibration scan, and what we learned there.
+ * The frame is only attached while the step waits for analysis.
+ *
+ * @author nico
+ */
+public class ScanStep {
+
+   private final int index_;
+   private final double position_;
+   private final int channel_;
+   private DetectorFrame frame_;
+   private double lowerMean_ = Double.NaN;
+   private double upperMean_ = Double.NaN;
+   private double trueAngle_ = Double.NaN;
+
+   public ScanStep(int index, double position) {
+      this(index, position, 0);
+   }
+
+   /**
+    * @param index index of the step in the scan
+    * @param position position of the TIRF motor
+    * @param channel index of the channel the frame was taken in, for scans
+    * that calibrate several channels at once
+    */
+   public ScanStep(int index, double position, int channel) {
+      index_ = index;
+      position_ = position;
+      channel_ = channel;
+   }
+
+   /**
+    * @return index of this step in the scan
+    */
+   public int getIndex() {
+      return index_;
+   }
+
+   /**
+    * @return position of the TIRF motor
+    */
+   public double getPosition() {
+      return position_;
+   }
+
+   /**
+    * @return index of the channel the frame was taken in (0 when a single
+    * channel is calibrated)
+    */
+   public int getChannel() {
+      return channel_;
+   }
+
+   public DetectorFrame getFrame() {
+      return frame_;
+   }
+
+   public void setFrame(DetectorFrame frame) {
+      frame_ = frame;
+   }
+
+   /**
+    * @return center of the beam on the lower detector (pixels)
+    */
+   public double getLowerMean() {
+      return lowerMean_;
+   }
+
+   /**
+    * @return center of the beam on the upper detector (pixels)
+    */
+   public double getUpperMean() {
+      return upperMean_;
+   }
+
+   public void setMeans(double lowerMean, double upperMean) {
+      lowerMean_ = lowerMean;
+      upperMean_ = upperMean;
+   }
+
+   /**
+    * @return angle of the light hitting the sample (degrees)
+    */
+   public double getTrueAngle() {
+      return trueAngle_;
+   }
+
+   public void setTrueAngle(double trueAngle) {
+      trueAngle_ = trueAngle;
+   }
+
+   /**
+    * @return true when the beam was found on both detectors
+    */
+   public boolean isValid() {
+      return !Double.isNaN(lowerMean_) && !Double.isNaN(upperMean_)
+              && !Double.isNaN(trueAngle_);
+   }
+
+}
@@ -22,18 +22,21 @@
 package org.micromanager.saim.data;
 
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.Locale;
 import java.util.Scanner;
 
 /**
  * Use this class to get the refractive index of compounds of interest.
  * Refractive indices (RIs) depend on wavelength.  
  * This code uses tables from https://www.filmetrics.com.  These
- * tables are included in the jar file, and will be read when needed.
- * The RI will be deduced by linear interpolation and will be cached
- * for future use.
+ * tables are included in the jar file.  All tables are read once, the first
+ * time an RI is requested, and are kept as sorted arrays that are never
+ * changed afterwards.  The RI is deduced from these by binary search and
+ * linear (getRI) or cubic spline (getRICubic) interpolation, so that lookups
+ * do not allocate, do not lock, and can be done from any thread.
+ * The extinction coefficient k (the imaginary part of the RI) is kept as
+ * well, and can be looked up with getExtinction.
  * 
  * Use the class as follows:
  * double ri = RI.getRI(Compound.SILICON, 525.0);
@@ -50,16 +53,6 @@ public class RI {
       ACRYLIC ("acrylicRI.txt"),
       WATER ("waterRI.txt");
       
-      // Hashmaps with cached values
-      public static Map<Double, Double> siliconMap_ = 
-              new HashMap<Double, Double>();
-      public static Map<Double, Double> siliconOxideMap_ = 
-              new HashMap<Double, Double>();
-      public static Map<Double, Double> acrylicMap_ = 
-              new HashMap<Double, Double>();
-      public static Map<Double, Double> waterMap_ = 
-              new HashMap<Double, Double>();
-      
       private final String fileName_;
       Compound(String fileName) {
          fileName_ = fileName;
@@ -67,40 +60,154 @@ public class RI {
       public String getFile() {
          return fileName_;
       }
-      public static Map<Double, Double> getMap(Compound compound) {
-         if (compound.equals(Compound.SILICON)) {
-            return siliconMap_;
-         }
-         if (compound.equals(Compound.SILICONOXIDE)) {
-            return siliconOxideMap_;
+   }
+   
+   /**
+    * Refractive index table of a single compound, sorted by wavelength.
+    * Immutable once constructed.
+    */
+   private static final class Table {
+      final double[] waveLengths_;
+      final double[] ris_;
+      // extinction coefficients (imaginary part of the RI)
+      final double[] extinctions_;
+      // second derivatives of the natural cubic spline through the table
+      final double[] secondDerivatives_;
+      
+      Table(double[] waveLengths, double[] ris, double[] extinctions) {
+         waveLengths_ = waveLengths;
+         ris_ = ris;
+         extinctions_ = extinctions;
+         secondDerivatives_ = spline(waveLengths, ris);
+      }
+      
+      /**
+       * Index of the table segment used for the given wavelength, i.e. the
+       * index of its upper end.  Wavelengths below the table use the first 
+       * segment.
+       * @return index, or -1 when the wavelength is above the table (or NaN)
+       */
+      int segment(double waveLength) {
+         int n = waveLengths_.length;
+         if (n < 2 || !(waveLength <= waveLengths_[n - 1])) {
+            return -1;
          }
-         if (compound.equals(Compound.ACRYLIC)) {
-            return acrylicMap_;
+         int index = Arrays.binarySearch(waveLengths_, waveLength);
+         if (index < 0) {
+            index = -index - 1;
          }
-         if (compound.equals(Compound.WATER)) {
-            return waterMap_;
+         return Math.max(1, index);
+      }
+   }
+   
+   /**
+    * Holder of the tables, indexed by Compound ordinal.  Loaded by the class
+    * loader the first time it is used, which also takes care of safely 
+    * publishing the tables to all threads.
+    */
+   private static final class Tables {
+      static final Table[] TABLES = new Table[Compound.values().length];
+      static {
+         for (Compound compound : Compound.values()) {
+            TABLES[compound.ordinal()] = readTable(compound);
          }
-         return null;
       }
    }
    
    /**
-    * First checks the local cache for the value
-    * If not found, get the value from the data file using interpolation
-    * if needed.
+    * Returns the refractive index, linearly interpolated between the two 
+    * closest wavelengths in the table.  Wavelengths below the table are 
+    * extrapolated from its first two entries.
     * @param compound 
     * @param waveLength
-    * @return Refractive index of the given compound at the given wavelength
+    * @return Refractive index of the given compound at the given wavelength,
+    * 0.0 when the wavelength is above the range of the table
     */
    public static double getRI(Compound compound, double waveLength) {
-      Map<Double, Double> compoundMap = Compound.getMap(compound);
-      if (compoundMap.containsKey(waveLength))
-         return compoundMap.get(waveLength);
-      
-      double ri = getRIFromFile(compound, waveLength);
-      compoundMap.put(waveLength, ri);
-      return ri;
+      Table table = Tables.TABLES[compound.ordinal()];
+      int i = table.segment(waveLength);
+      if (i < 0) {
+         return 0.0;
+      }
+      return interpolate(table.waveLengths_[i - 1], table.waveLengths_[i],
+              table.ris_[i - 1], table.ris_[i], waveLength);
    } 
+   
+   /**
+    * Returns the extinction coefficient k (the imaginary part of the
+    * refractive index, i.e. the absorption), linearly interpolated between
+    * the two closest wavelengths in the table.  Wavelengths below the table
+    * are extrapolated from its first two entries.
+    * @param compound
+    * @param waveLength
+    * @return extinction coefficient of the given compound at the given
+    * wavelength, 0.0 when the wavelength is above the range of the table
+    */
+   public static double getExtinction(Compound compound, double waveLength) {
+      Table table = Tables.TABLES[compound.ordinal()];
+      int i = table.segment(waveLength);
+      if (i < 0) {
+         return 0.0;
+      }
+      return Math.max(0.0, interpolate(table.waveLengths_[i - 1], table.waveLengths_[i],
+              table.extinctions_[i - 1], table.extinctions_[i], waveLength));
+   }
+
+   /**
+    * Looks up refractive indices for a number of wavelengths at once.
+    * Same as calling getRI(compound, waveLengths[i]) for each wavelength.
+    * @param compound
+    * @param waveLengths wavelengths (in nm) to look up
+    * @param out receives the refractive indices, needs to be at least as long
+    * as waveLengths
+    */
+   public static void getRI(Compound compound, double[] waveLengths, double[] out) {
+      if (out.length < waveLengths.length) {
+         throw new IllegalArgumentException("Output array is too short: " 
+                 + out.length + " < " + waveLengths.length);
+      }
+      for (int i = 0; i < waveLengths.length; i++) {
+         out[i] = getRI(compound, waveLengths[i]);
+      }
+   }
+   
+   /**
+    * Returns the refractive index, interpolated by a natural cubic spline 
+    * through the table.  Smoother than getRI in between table entries.
+    * Wavelengths below the table are extrapolated from its first segment.
+    * @param compound 
+    * @param waveLength
+    * @return Refractive index of the given compound at the given wavelength,
+    * 0.0 when the wavelength is above the range of the table
+    */
+   public static double getRICubic(Compound compound, double waveLength) {
+      Table table = Tables.TABLES[compound.ordinal()];
+      int i = table.segment(waveLength);
+      if (i < 0) {
+         return 0.0;
+      }
+      double[] x = table.waveLengths_;
+      double[] y = table.ris_;
+      double[] d2 = table.secondDerivatives_;
+      double h = x[i] - x[i - 1];
+      double a = (x[i] - waveLength) / h;
+      double b = 1.0 - a;
+      return a * y[i - 1] + b * y[i] 
+              + ((a * a * a - a) * d2[i - 1] + (b * b * b - b) * d2[i]) * h * h / 6.0;
+   }
+   
+   /**
+    * @param compound
+    * @return shortest and longest wavelength (in nm) in the table of the 
+    * compound, or an empty array when the table could not be read
+    */
+   public static double[] getRange(Compound compound) {
+      double[] waveLengths = Tables.TABLES[compound.ordinal()].waveLengths_;
+      if (waveLengths.length == 0) {
+         return new double[0];
+      }
+      return new double[] {waveLengths[0], waveLengths[waveLengths.length - 1]};
+   }
 
    /**
     * Parse the file with refractive index information
@@ -113,34 +220,40 @@ public class RI {
     *208.7	1.066	2.937
     *209.4	1.07	2.963
     * 
+    * Entries are sorted by wavelength, and of entries with the same wavelength
+    * only the first one is kept.
+    * 
     * @param compound
-    * @param waveLength
-    * @return 
+    * @return table of the compound, empty when the file could not be found
     */
-   private static double getRIFromFile(Compound compound, double waveLength) {
+   private static Table readTable(Compound compound) {
       InputStream input = RI.class.getResourceAsStream(
               PATHINJAR + compound.getFile());
+      if (input == null) {
+         return new Table(new double[0], new double[0], new double[0]);
+      }
       
       Scanner s = new Scanner(input);
+      s.useLocale(Locale.US);
+      double[] waveLengths = new double[64];
+      double[] ris = new double[64];
+      double[] extinctions = new double[64];
       int counter = 0;
-      ArrayList<Double> waveLengths = new ArrayList<Double>();
-      ArrayList<Double> ris = new ArrayList<Double>();
       while (s.hasNext()) {
          if (s.hasNextDouble()) {
-            waveLengths.add(s.nextDouble());
-            if (s.hasNextDouble()) {
-               ris.add(s.nextDouble());
+            double waveLength = s.nextDouble();
+            if (!s.hasNextDouble()) {
+               continue;
             }
-            // throw away the third column
-            if (s.hasNextDouble()) {
-               s.nextDouble();
+            if (counter == waveLengths.length) {
+               waveLengths = Arrays.copyOf(waveLengths, 2 * counter);
+               ris = Arrays.copyOf(ris, 2 * counter);
+               extinctions = Arrays.copyOf(extinctions, 2 * counter);
             }
-            if (waveLength <= waveLengths.get(counter) && counter > 0) {
-               s.close();
-               return interpolate(
-                       waveLengths.get(counter - 1), waveLengths.get(counter),
-                       ris.get(counter -1), ris.get(counter), 
-                       waveLength);
+            waveLengths[counter] = waveLength;
+            ris[counter] = s.nextDouble();
+            if (s.hasNextDouble()) {
+               extinctions[counter] = s.nextDouble();
             }
             counter++;
          } else {
@@ -148,10 +261,66 @@ public class RI {
             s.next();
          }
       }
-      
-      // not found....
       s.close();
-      return 0.0;
+      
+      // sort by wavelength (insertion sort, the files are normally sorted)
+      for (int i = 1; i < counter; i++) {
+         double w = waveLengths[i];
+         double r = ris[i];
+         double k = extinctions[i];
+         int j = i - 1;
+         while (j >= 0 && waveLengths[j] > w) {
+            waveLengths[j + 1] = waveLengths[j];
+            ris[j + 1] = ris[j];
+            extinctions[j + 1] = extinctions[j];
+            j--;
+         }
+         waveLengths[j + 1] = w;
+         ris[j + 1] = r;
+         extinctions[j + 1] = k;
+      }
+      // remove duplicate wavelengths
+      int nr = 0;
+      for (int i = 0; i < counter; i++) {
+         if (nr == 0 || waveLengths[i] != waveLengths[nr - 1]) {
+            waveLengths[nr] = waveLengths[i];
+            ris[nr] = ris[i];
+            extinctions[nr] = extinctions[i];
+            nr++;
+         }
+      }
+      return new Table(Arrays.copyOf(waveLengths, nr), Arrays.copyOf(ris, nr),
+              Arrays.copyOf(extinctions, nr));
+   }
+   
+   /**
+    * Second derivatives of the natural cubic spline through the given points
+    * 
+    * @param x sorted x values, without duplicates
+    * @param y y values
+    * @return second derivative of the spline at each x
+    */
+   private static double[] spline(double[] x, double[] y) {
+      int n = x.length;
+      double[] d2 = new double[n];
+      if (n < 3) {
+         return d2;
+      }
+      // tridiagonal system, solved with the Thomas algorithm
+      double[] u = new double[n];
+      for (int i = 1; i < n - 1; i++) {
+         double sig = (x[i] - x[i - 1]) / (x[i + 1] - x[i - 1]);
+         double p = sig * d2[i - 1] + 2.0;
+         d2[i] = (sig - 1.0) / p;
+         u[i] = (y[i + 1] - y[i]) / (x[i + 1] - x[i]) 
+                 - (y[i] - y[i - 1]) / (x[i] - x[i - 1]);
+         u[i] = (6.0 * u[i] / (x[i + 1] - x[i - 1]) - sig * u[i - 1]) / p;
+      }
+      d2[n - 1] = 0.0;
+      for (int i = n - 2; i >= 0; i--) {
+         d2[i] = d2[i] * d2[i + 1] + u[i];
+      }
+      return d2;
    }
    
    /**
@@ -171,4 +340,4 @@ public class RI {
            
    
    
-}
\ No newline at end of file
+}
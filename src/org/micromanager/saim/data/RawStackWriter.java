@@ -0,0 +1,303 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          RawStackWriter.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import mmcorej.TaggedImage;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.micromanager.saim.exceptions.SAIMException;
+
+/**
+ * Writes the frames of an acquisition straight into a raw file, without
+ * going through the image cache and display of Micro-Manager.
+ *
+ * The file (name.raw) is made large enough for all frames when the writer
+ * is created, and is written through memory mapped segments of whole
+ * frames, frame after frame, little-endian.  It opens in ImageJ with
+ * File &gt; Import &gt; Raw.  Next to it, name.json holds the size and pixel
+ * type of the frames, the summary passed in (angles, calibration and such)
+ * and the tags of each frame.  The json file is written when the writer
+ * finishes or is aborted, and lists how many frames were written.
+ *
+ * Frames are written on a thread of their own.  At most QUEUESIZE frames
+ * wait to be written, put blocks when the disk falls behind.  Every
+ * FLUSHEVERY frames, the writer thread forces the frames written so far
+ * to disk, so that the acquisition never waits for a flush.  Errors on
+ * the writer thread are thrown by the next put, or by finish.
+ *
+ * @author nico
+ */
+public class RawStackWriter implements Runnable {
+
+   // number of frames that can wait to be written
+   private static final int QUEUESIZE = 8;
+   // number of frames between flushes
+   private static final int FLUSHEVERY = 16;
+   // largest part of the file mapped at once (bytes)
+   private static final long MAXSEGMENT = 256L * 1024 * 1024;
+
+   private static class Item {
+      final int frameNr_;
+      final TaggedImage image_;
+
+      Item(int frameNr, TaggedImage image) {
+         frameNr_ = frameNr;
+         image_ = image;
+      }
+   }
+
+   // marks the end of the acquisition
+   private static final Item END = new Item(-1, null);
+
+   private final File rawFile_;
+   private final File jsonFile_;
+   private final int width_;
+   private final int height_;
+   private final int bytesPerPixel_;
+   private final int nrFrames_;
+   private final long frameBytes_;
+   private final int framesPerSegment_;
+   private final JSONObject summary_;
+   private final JSONObject[] frameTags_;
+   private final RandomAccessFile file_;
+   private final FileChannel channel_;
+   private final BlockingQueue<Item> queue_ = new ArrayBlockingQueue<Item>(QUEUESIZE);
+   private final Thread thread_;
+   private MappedByteBuffer segment_ = null;
+   private int segmentNr_ = -1;
+   private int framesWritten_ = 0;
+   private int sinceFlush_ = 0;
+   private volatile Exception error_ = null;
+
+   /**
+    * Creates the raw file, at its full size, and starts the writer thread
+    *
+    * @param directory directory of the files
+    * @param name name of the files, without extension.  When files of that
+    * name exist, a number is added.
+    * @param width width of the frames
+    * @param height height of the frames
+    * @param bytesPerPixel 1, 2 or 4
+    * @param nrFrames number of frames of the acquisition
+    * @param summary goes into the json file as is
+    * @throws SAIMException when the file can not be created
+    */
+   public RawStackWriter(File directory, String name, int width, int height,
+           int bytesPerPixel, int nrFrames, JSONObject summary) throws SAIMException {
+      if (bytesPerPixel != 1 && bytesPerPixel != 2 && bytesPerPixel != 4) {
+         throw new SAIMException("Can not write images with " + bytesPerPixel
+                 + " bytes per pixel");
+      }
+      frameBytes_ = (long) width * height * bytesPerPixel;
+      if (frameBytes_ > Integer.MAX_VALUE) {
+         throw new SAIMException("Frames of " + width + " x " + height
+                 + " pixels are too large to write");
+      }
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+         throw new SAIMException("Could not create directory " + directory.getPath());
+      }
+      String unique = name;
+      for (int i = 1; new File(directory, unique + ".raw").exists()
+              || new File(directory, unique + ".json").exists(); i++) {
+         unique = name + "_" + i;
+      }
+      rawFile_ = new File(directory, unique + ".raw");
+      jsonFile_ = new File(directory, unique + ".json");
+      width_ = width;
+      height_ = height;
+      bytesPerPixel_ = bytesPerPixel;
+      nrFrames_ = nrFrames;
+      framesPerSegment_ = (int) Math.max(1, Math.min(nrFrames, MAXSEGMENT / frameBytes_));
+      summary_ = summary;
+      frameTags_ = new JSONObject[nrFrames];
+      try {
+         file_ = new RandomAccessFile(rawFile_, "rw");
+         file_.setLength(frameBytes_ * nrFrames);
+         channel_ = file_.getChannel();
+      } catch (IOException ioe) {
+         throw new SAIMException("Could not create " + rawFile_.getPath() + ": "
+                 + ioe.getMessage());
+      }
+      thread_ = new Thread(this, "SAIM Stack Writer");
+      thread_.setDaemon(true);
+      thread_.start();
+   }
+
+   /**
+    * @return the raw file
+    */
+   public File getRawFile() {
+      return rawFile_;
+   }
+
+   /**
+    * Queues a frame to be written, waits when the queue is full
+    *
+    * @param frameNr index of the frame in the file
+    * @param image frame and its tags
+    * @throws Exception when an earlier frame could not be written
+    */
+   public void put(int frameNr, TaggedImage image) throws Exception {
+      throwError();
+      queue_.put(new Item(frameNr, image));
+   }
+
+   /**
+    * Waits until all frames are written and the json file is saved
+    *
+    * @throws Exception when a frame or the json file could not be written
+    */
+   public void finish() throws Exception {
+      queue_.put(END);
+      thread_.join();
+      throwError();
+   }
+
+   /**
+    * Stops writing, frames still in the queue are dropped.  The json file
+    * is still written, with the frames written so far.
+    */
+   public void abort() {
+      thread_.interrupt();
+   }
+
+   @Override
+   public void run() {
+      try {
+         Item item = queue_.take();
+         while (item != END) {
+            // after an error, keep taking frames so that put does not block
+            if (error_ == null) {
+               try {
+                  write(item.frameNr_, item.image_);
+               } catch (Exception ex) {
+                  error_ = ex;
+               }
+            }
+            item = queue_.take();
+         }
+      } catch (InterruptedException ie) {
+         // aborted
+      } finally {
+         try {
+            if (segment_ != null) {
+               segment_.force();
+            }
+            writeJson();
+            channel_.close();
+            file_.close();
+         } catch (Exception ex) {
+            if (error_ == null) {
+               error_ = ex;
+            }
+         }
+      }
+   }
+
+   private void write(int frameNr, TaggedImage image) throws IOException, SAIMException {
+      if (frameNr < 0 || frameNr >= nrFrames_) {
+         throw new SAIMException("Frame " + frameNr + " is outside the " + nrFrames_
+                 + " frames of " + rawFile_.getName());
+      }
+      Object pixels = image.pix;
+      int nrPixels = width_ * height_;
+      int segmentNr = frameNr / framesPerSegment_;
+      if (segmentNr != segmentNr_) {
+         if (segment_ != null) {
+            segment_.force();
+         }
+         long start = segmentNr * framesPerSegment_ * frameBytes_;
+         long size = Math.min(framesPerSegment_, nrFrames_ - segmentNr * framesPerSegment_)
+                 * frameBytes_;
+         segment_ = channel_.map(FileChannel.MapMode.READ_WRITE, start, size);
+         segmentNr_ = segmentNr;
+      }
+      ByteBuffer buffer = segment_.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+      buffer.position((int) ((frameNr % framesPerSegment_) * frameBytes_));
+      if (pixels instanceof byte[] && bytesPerPixel_ == 1
+              && ((byte[]) pixels).length == nrPixels) {
+         buffer.put((byte[]) pixels);
+      } else if (pixels instanceof short[] && bytesPerPixel_ == 2
+              && ((short[]) pixels).length == nrPixels) {
+         buffer.asShortBuffer().put((short[]) pixels);
+      } else if (pixels instanceof int[] && bytesPerPixel_ == 4
+              && ((int[]) pixels).length == nrPixels) {
+         buffer.asIntBuffer().put((int[]) pixels);
+      } else if (pixels instanceof float[] && bytesPerPixel_ == 4
+              && ((float[]) pixels).length == nrPixels) {
+         buffer.asFloatBuffer().put((float[]) pixels);
+      } else {
+         throw new SAIMException("Frame " + frameNr + " does not match the "
+                 + width_ + " x " + height_ + " x " + bytesPerPixel_ + " byte frames of "
+                 + rawFile_.getName());
+      }
+      frameTags_[frameNr] = image.tags;
+      framesWritten_++;
+      sinceFlush_++;
+      if (sinceFlush_ >= FLUSHEVERY) {
+         segment_.force();
+         sinceFlush_ = 0;
+      }
+   }
+
+   private void writeJson() throws IOException, JSONException {
+      JSONObject json = new JSONObject();
+      json.put("RawFile", rawFile_.getName());
+      json.put("Width", width_);
+      json.put("Height", height_);
+      json.put("BytesPerPixel", bytesPerPixel_);
+      json.put("ByteOrder", "little-endian");
+      json.put("Frames", nrFrames_);
+      json.put("FramesWritten", framesWritten_);
+      json.put("Summary", summary_);
+      JSONArray frames = new JSONArray();
+      for (JSONObject tags : frameTags_) {
+         frames.put(tags == null ? JSONObject.NULL : tags);
+      }
+      json.put("FrameTags", frames);
+      Writer writer = new OutputStreamWriter(new FileOutputStream(jsonFile_), "UTF-8");
+      try {
+         writer.write(json.toString(2));
+      } finally {
+         writer.close();
+      }
+   }
+
+   private void throwError() throws Exception {
+      if (error_ != null) {
+         throw error_;
+      }
+   }
+
+}
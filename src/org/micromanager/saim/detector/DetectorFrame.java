@@ -0,0 +1,197 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          DetectorFrame.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.detector;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Pixel values of both line sensors of the calibration device, as read in a
+ * single snapshot.  Frames are meant to be allocated once and filled over and
+ * over again, so the pixel arrays are handed out directly.
+ *
+ * When the device only sent a window (region of interest) of each detector,
+ * only the pixels in that window are valid.  The arrays always cover the
+ * whole detector, pixels keep their index on the detector.
+ *
+ * @author nico
+ */
+public class DetectorFrame {
+
+   private final short[] lower_;
+   private final short[] upper_;
+   private int sequence_;
+   private long counter_;
+   private long timeStamp_;
+   private double position_ = Double.NaN;
+   private int lowerOffset_ = 0;
+   private int upperOffset_ = 0;
+   private int width_ = DetectorFrameReader.NRPIXELS;
+
+   public DetectorFrame() {
+      lower_ = new short[DetectorFrameReader.NRPIXELS];
+      upper_ = new short[DetectorFrameReader.NRPIXELS];
+   }
+
+   /**
+    * Copies pixel values from the views of a DetectorFrameReader
+    *
+    * @param lower pixel values of the lower detector
+    * @param upper pixel values of the upper detector
+    * @param sequence sequence id as sent by the device
+    */
+   public void copyFrom(ShortBuffer lower, ShortBuffer upper, int sequence) {
+      lower.position(0);
+      lower.get(lower_);
+      lower.position(0);
+      upper.position(0);
+      upper.get(upper_);
+      upper.position(0);
+      sequence_ = sequence;
+      timeStamp_ = System.nanoTime();
+      lowerOffset_ = 0;
+      upperOffset_ = 0;
+      width_ = lower_.length;
+   }
+
+   /**
+    * Copies the pixel values in a window of both detectors
+    *
+    * @param lower pixel values of the lower detector
+    * @param upper pixel values of the upper detector
+    * @param sequence sequence id as sent by the device
+    * @param lowerOffset index of the first pixel of the window on the lower detector
+    * @param upperOffset index of the first pixel of the window on the upper detector
+    * @param width number of pixels in the window
+    */
+   public void copyFrom(short[] lower, short[] upper, int sequence,
+           int lowerOffset, int upperOffset, int width) {
+      System.arraycopy(lower, lowerOffset, lower_, lowerOffset, width);
+      System.arraycopy(upper, upperOffset, upper_, upperOffset, width);
+      sequence_ = sequence;
+      timeStamp_ = System.nanoTime();
+      lowerOffset_ = lowerOffset;
+      upperOffset_ = upperOffset;
+      width_ = width;
+   }
+
+   /**
+    * Copies all content of this frame into another frame
+    *
+    * @param dest frame that will receive the copy
+    */
+   public void copyTo(DetectorFrame dest) {
+      System.arraycopy(lower_, lowerOffset_, dest.lower_, lowerOffset_, width_);
+      System.arraycopy(upper_, upperOffset_, dest.upper_, upperOffset_, width_);
+      dest.lowerOffset_ = lowerOffset_;
+      dest.upperOffset_ = upperOffset_;
+      dest.width_ = width_;
+      dest.sequence_ = sequence_;
+      dest.counter_ = counter_;
+      dest.timeStamp_ = timeStamp_;
+      dest.position_ = position_;
+   }
+
+   /**
+    * @return pixel values of the lower detector (Detector 1)
+    */
+   public short[] getLower() {
+      return lower_;
+   }
+
+   /**
+    * @return pixel values of the upper detector (Detector 2)
+    */
+   public short[] getUpper() {
+      return upper_;
+   }
+
+   /**
+    * @return sequence id as sent by the device (wraps at 65536)
+    */
+   public int getSequence() {
+      return sequence_;
+   }
+
+   /**
+    * @return number of this frame in a stream, as counted on our side
+    */
+   public long getCounter() {
+      return counter_;
+   }
+
+   public void setCounter(long counter) {
+      counter_ = counter;
+   }
+
+   /**
+    * @return System.nanoTime() at the moment the frame was received
+    */
+   public long getTimeStamp() {
+      return timeStamp_;
+   }
+
+   /**
+    * @return position of the TIRF motor while the frame was exposed,
+    * NaN if unknown
+    */
+   public double getPosition() {
+      return position_;
+   }
+
+   public void setPosition(double position) {
+      position_ = position;
+   }
+
+   /**
+    * @return index of the first valid pixel of the lower detector
+    */
+   public int getLowerOffset() {
+      return lowerOffset_;
+   }
+
+   /**
+    * @return index of the first valid pixel of the upper detector
+    */
+   public int getUpperOffset() {
+      return upperOffset_;
+   }
+
+   /**
+    * @return number of valid pixels on each detector
+    */
+   public int getWidth() {
+      return width_;
+   }
+
+   /**
+    * Marks a window of both detectors as the valid pixels
+    *
+    * @param lowerOffset index of the first pixel of the window on the lower detector
+    * @param upperOffset index of the first pixel of the window on the upper detector
+    * @param width number of pixels in the window
+    */
+   public void setWindow(int lowerOffset, int upperOffset, int width) {
+      lowerOffset_ = lowerOffset;
+      upperOffset_ = upperOffset;
+      width_ = width;
+   }
+
+}
@@ -0,0 +1,323 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          DetectorFrameReader.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.detector;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import org.micromanager.saim.exceptions.SAIMException;
+
+/**
+ * Reads the binary output of the SAIM calibration device (two TSL1412S line
+ * sensors read out by an Arduino Due) into a single, re-used buffer.
+ *
+ * The Arduino sends 1536 little-endian shorts for the lower detector,
+ * followed by 1536 little-endian shorts for the upper detector, either raw
+ * (command '1', see read) or wrapped in a frame with header and checksum
+ * (command '2', see snap and FrameDecoder).  In packed mode (command '5', see
+ * setPacked) the 12 bit pixel values are sent two in three bytes, which
+ * saves a quarter of the transfer time.  Bytes are read from the port into
+ * re-used direct buffers.  The pixel values end up in two re-used short
+ * arrays (rather than in a direct buffer, so that packed frames can be
+ * unpacked straight into them), and both detectors are exposed as
+ * ShortBuffer views onto these arrays.  All buffers and views are created
+ * once, so that reading a frame does not allocate anything.
+ *
+ * The views are overwritten by the next call to read, so copy out what you
+ * need before reading again.  Use absolute gets (getLower().get(i)) to access
+ * pixel values.
+ *
+ * @author nico
+ */
+public class DetectorFrameReader {
+
+   /** Number of pixels in a TSL1412S line sensor */
+   public static final int NRPIXELS = 1536;
+   /** Number of bytes sent by the Arduino for a single detector */
+   public static final int DETECTORBYTES = NRPIXELS * 2;
+   /** Number of bytes sent by the Arduino in response to a single snapshot */
+   public static final int FRAMEBYTES = 2 * DETECTORBYTES;
+
+   /** Command that makes the Arduino send a single raw frame */
+   public static final String RAWCOMMAND = "1";
+   /** Command that makes the Arduino send a single framed frame */
+   public static final String FRAMEDCOMMAND = "2";
+   /** Command that makes the Arduino send a single packed, framed frame */
+   public static final String PACKEDCOMMAND = "5";
+   /** Command that sets the window of each detector sent in framed mode */
+   public static final String ROICOMMAND = "r";
+
+   // time to wait when the serial port has nothing for us
+   private static final long IDLEWAITMS = 1;
+   // once a frame is arriving, bytes come in continuously.  A gap this long
+   // means that bytes were lost and that the frame will never complete
+   private static final long FRAMEGAPMS = 100;
+   // number of times a lost or corrupt frame is requested again
+   private static final int MAXRETRIES = 3;
+   // size of the buffer used to move bytes from the port to the decoder
+   private static final int CHUNKBYTES = 4096;
+
+   private final short[] lowerPixels_ = new short[NRPIXELS];
+   private final short[] upperPixels_ = new short[NRPIXELS];
+   private final ShortBuffer lower_ = ShortBuffer.wrap(lowerPixels_);
+   private final ShortBuffer upper_ = ShortBuffer.wrap(upperPixels_);
+   private final FrameDecoder decoder_ = new FrameDecoder();
+   private final ByteBuffer chunk_ = ByteBuffer.allocateDirect(CHUNKBYTES);
+   // only used for raw frames
+   private final ByteBuffer raw_ =
+           ByteBuffer.allocateDirect(FRAMEBYTES).order(ByteOrder.LITTLE_ENDIAN);
+   // little-endian view on all of raw_, lower detector first
+   private final ShortBuffer rawPixels_ = raw_.asShortBuffer();
+   private boolean packed_ = false;
+   private int lowerOffset_ = 0;
+   private int upperOffset_ = 0;
+   private int width_ = NRPIXELS;
+
+   /**
+    * @param packed if true, snap asks the device for packed frames.  Needs
+    * firmware that supports command '5'.
+    */
+   public void setPacked(boolean packed) {
+      packed_ = packed;
+   }
+
+   public boolean isPacked() {
+      return packed_;
+   }
+
+   /**
+    * Tells the device to send only a window (region of interest) of each
+    * detector in framed mode.  Needs firmware with protocol version 2.
+    *
+    * @param link connection to the calibration device
+    * @param lowerOffset first pixel of the window on the lower detector
+    * @param upperOffset first pixel of the window on the upper detector
+    * @param width number of pixels in the window.  Needs to be even.
+    * @throws SAIMException when the window does not fit on the detectors
+    * @throws Exception when the command could not be sent
+    */
+   public void sendRoi(SerialLink link, int lowerOffset, int upperOffset, int width)
+           throws Exception {
+      if (width < 2 || width % 2 != 0 || lowerOffset < 0 || upperOffset < 0
+              || lowerOffset + width > NRPIXELS || upperOffset + width > NRPIXELS) {
+         throw new SAIMException("Invalid detector window: " + lowerOffset + ", "
+                 + upperOffset + ", width " + width);
+      }
+      link.send(ROICOMMAND + lowerOffset + "," + upperOffset + "," + width + "\n");
+   }
+
+   /**
+    * Reads and discards anything left in the serial port buffer
+    *
+    * @param link connection to the calibration device
+    * @return number of bytes that were discarded
+    * @throws Exception when the port could not be read
+    */
+   public int drain(SerialLink link) throws Exception {
+      int total = 0;
+      int nrRead;
+      do {
+         chunk_.clear();
+         nrRead = link.read(chunk_);
+         total += nrRead;
+      } while (nrRead > 0);
+      return total;
+   }
+
+   /**
+    * Reads a complete raw frame from the serial port.  The command to take a
+    * snapshot (RAWCOMMAND) should already have been sent.  Only needed for
+    * firmware that does not support the framed protocol.
+    *
+    * @param link connection to the calibration device
+    * @param timeOutMs time (in ms) after which we give up
+    * @throws SAIMException when the device did not send a complete frame in time
+    * @throws Exception when the port could not be read
+    */
+   public void read(SerialLink link, long timeOutMs) throws Exception {
+      raw_.clear();
+      final long timeOut = System.currentTimeMillis() + timeOutMs;
+      while (raw_.hasRemaining() && System.currentTimeMillis() < timeOut) {
+         if (link.read(raw_) == 0) {
+            Thread.sleep(IDLEWAITMS);
+         }
+      }
+      if (raw_.hasRemaining()) {
+         throw new SAIMException("Device did not send expected data: Received only "
+                 + raw_.position() + " bytes");
+      }
+      rawPixels_.clear();
+      rawPixels_.get(lowerPixels_);
+      rawPixels_.get(upperPixels_);
+      setWindow(0, 0, NRPIXELS);
+   }
+
+   /**
+    * Requests a frame from the device using the framed protocol, and reads it.
+    * Frames that are corrupt or that stop arriving halfway are requested
+    * again right away, so that a single lost byte does not cost the whole
+    * time out.
+    *
+    * @param link connection to the calibration device
+    * @param timeOutMs time (in ms) after which we give up
+    * @return sequence id of the frame, as set by the device
+    * @throws SAIMException when no valid frame was received in time
+    * @throws Exception when the port could not be read or written
+    */
+   public int snap(SerialLink link, long timeOutMs) throws Exception {
+      final long timeOut = System.currentTimeMillis() + timeOutMs;
+      int attempt = 0;
+      boolean receivedAnything = false;
+      while (attempt <= MAXRETRIES && System.currentTimeMillis() < timeOut) {
+         attempt++;
+         drain(link);
+         decoder_.reset();
+         link.send(packed_ ? PACKEDCOMMAND : FRAMEDCOMMAND);
+         long lastByte = 0;
+         boolean retry = false;
+         while (!retry && System.currentTimeMillis() < timeOut) {
+            if (readChunk(link) == 0) {
+               if (lastByte > 0 && System.currentTimeMillis() - lastByte > FRAMEGAPMS) {
+                  // bytes were lost, this frame will never complete
+                  retry = true;
+               } else {
+                  Thread.sleep(IDLEWAITMS);
+               }
+               continue;
+            }
+            lastByte = System.currentTimeMillis();
+            receivedAnything = true;
+            FrameDecoder.Result result = decoder_.decode(lowerPixels_, upperPixels_);
+            if (result == FrameDecoder.Result.FRAME) {
+               setWindow(decoder_.getLowerOffset(), decoder_.getUpperOffset(),
+                       decoder_.getPixelCount());
+               return decoder_.getSequence();
+            } else if (result == FrameDecoder.Result.CORRUPT) {
+               retry = true;
+            }
+         }
+      }
+      if (!receivedAnything) {
+         throw new SAIMException("Device did not respond. Does its firmware support "
+                 + (packed_ ? "packed" : "framed") + " readout?");
+      }
+      throw new SAIMException("Device did not send a valid frame after " + attempt
+              + " attempts (" + decoder_.getCorruptFrames() + " corrupt frames so far)");
+   }
+
+   /**
+    * Reads whatever the serial port has available, without sending a command.
+    * Used while the device is streaming frames (see DetectorStream).
+    *
+    * @param link connection to the calibration device
+    * @return true if a complete, valid frame is now in the views
+    * @throws Exception when the port could not be read
+    */
+   public boolean poll(SerialLink link) throws Exception {
+      readChunk(link);
+      if (decoder_.decode(lowerPixels_, upperPixels_) == FrameDecoder.Result.FRAME) {
+         setWindow(decoder_.getLowerOffset(), decoder_.getUpperOffset(),
+                 decoder_.getPixelCount());
+         return true;
+      }
+      return false;
+   }
+
+   /**
+    * Copies the last frame read into dest
+    *
+    * @param dest frame that will receive the copy
+    */
+   public void copyTo(DetectorFrame dest) {
+      dest.copyFrom(lowerPixels_, upperPixels_, decoder_.getSequence(),
+              lowerOffset_, upperOffset_, width_);
+   }
+
+   private void setWindow(int lowerOffset, int upperOffset, int width) {
+      lowerOffset_ = lowerOffset;
+      upperOffset_ = upperOffset;
+      width_ = width;
+   }
+
+   /**
+    * Reads available bytes and hands them to the decoder
+    * @return number of bytes read
+    */
+   private int readChunk(SerialLink link) throws Exception {
+      chunk_.clear();
+      int nrRead = link.read(chunk_);
+      chunk_.flip();
+      decoder_.put(chunk_);
+      return nrRead;
+   }
+
+   /**
+    * Throws away all partially received data
+    */
+   public void reset() {
+      decoder_.reset();
+   }
+
+   /**
+    * @return sequence id of the last frame read with the framed protocol
+    */
+   public int getSequence() {
+      return decoder_.getSequence();
+   }
+
+   /**
+    * @return index of the first pixel of the lower detector in the last frame
+    */
+   public int getLowerOffset() {
+      return lowerOffset_;
+   }
+
+   /**
+    * @return index of the first pixel of the upper detector in the last frame
+    */
+   public int getUpperOffset() {
+      return upperOffset_;
+   }
+
+   /**
+    * @return number of pixels per detector in the last frame
+    */
+   public int getWidth() {
+      return width_;
+   }
+
+   /**
+    * @return view on the pixel values of the lower detector (Detector 1).
+    * Only the pixels in the window of the last frame are valid.
+    */
+   public ShortBuffer getLower() {
+      return lower_;
+   }
+
+   /**
+    * @return view on the pixel values of the upper detector (Detector 2).
+    * Only the pixels in the window of the last frame are valid.
+    */
+   public ShortBuffer getUpper() {
+      return upper_;
+   }
+
+}
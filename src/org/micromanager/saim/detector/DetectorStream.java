@@ -0,0 +1,175 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          DetectorStream.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.detector;
+
+import org.micromanager.saim.exceptions.SAIMException;
+
+/**
+ * Puts the calibration device in streaming mode (command '3', or '6' for
+ * packed frames), in which it
+ * sends frames back to back without waiting for a command, and reads these
+ * frames on a dedicated thread into a FrameRing.  Consumers wait for
+ * frames with awaitFrame, or look at the ring directly.
+ *
+ * @author nico
+ */
+public class DetectorStream {
+
+   /** Command that makes the Arduino start streaming frames */
+   public static final String STARTCOMMAND = "3";
+   /** Command that makes the Arduino start streaming packed frames */
+   public static final String STARTPACKEDCOMMAND = "6";
+   /** Command that makes the Arduino stop streaming frames */
+   public static final String STOPCOMMAND = "4";
+
+   private static final int RINGSIZE = 8;
+   // after the stop command, the device finishes the frame it is sending.
+   // The port is considered quiet after this much time without data
+   private static final long QUIETMS = 100;
+   private static final long STOPTIMEOUTMS = 2000;
+
+   private final SerialLink link_;
+   private final boolean packed_;
+   private final DetectorFrameReader reader_ = new DetectorFrameReader();
+   private final FrameRing ring_ = new FrameRing(RINGSIZE);
+   private volatile boolean running_ = false;
+   private volatile Exception error_;
+   private Thread thread_;
+
+   /**
+    * @param link connection to the calibration device
+    * @param packed if true, the device streams packed frames
+    */
+   public DetectorStream(SerialLink link, boolean packed) {
+      link_ = link;
+      packed_ = packed;
+   }
+
+   /**
+    * @param link connection to the calibration device
+    */
+   public DetectorStream(SerialLink link) {
+      this(link, false);
+   }
+
+   /**
+    * Tells the device to start streaming, and starts the reader thread
+    * @throws Exception when the port could not be read or written
+    */
+   public synchronized void start() throws Exception {
+      if (running_) {
+         return;
+      }
+      reader_.drain(link_);
+      reader_.reset();
+      error_ = null;
+      link_.send(packed_ ? STARTPACKEDCOMMAND : STARTCOMMAND);
+      running_ = true;
+      thread_ = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            readFrames();
+         }
+      }, "SAIM Detector Stream");
+      thread_.setDaemon(true);
+      thread_.start();
+   }
+
+   /**
+    * Stops the reader thread, tells the device to stop streaming, and waits
+    * until the device has finished sending.
+    * @throws Exception when the port could not be read or written
+    */
+   public synchronized void stop() throws Exception {
+      if (thread_ == null) {
+         return;
+      }
+      running_ = false;
+      thread_.join();
+      thread_ = null;
+      link_.send(STOPCOMMAND);
+      final long timeOut = System.currentTimeMillis() + STOPTIMEOUTMS;
+      long lastData = System.currentTimeMillis();
+      while (System.currentTimeMillis() - lastData < QUIETMS
+              && System.currentTimeMillis() < timeOut) {
+         if (reader_.drain(link_) > 0) {
+            lastData = System.currentTimeMillis();
+         } else {
+            Thread.sleep(1);
+         }
+      }
+      reader_.reset();
+   }
+
+   /**
+    * Waits for a frame that was exposed completely after this function was
+    * called, and copies it into dest.  The frame that is being transmitted
+    * at the time of the call was exposed earlier, so it is skipped.
+    *
+    * @param dest frame that will receive the copy
+    * @param timeOutMs maximum time to wait (ms)
+    * @return true if a frame was copied, false on time out
+    * @throws Exception when the reader thread ran into problems
+    */
+   public boolean awaitFrame(DetectorFrame dest, long timeOutMs) throws Exception {
+      checkError();
+      long current = ring_.getLatestCounter();
+      boolean result = ring_.awaitNewerThan(current + 1, dest, timeOutMs);
+      checkError();
+      return result;
+   }
+
+   /**
+    * @return ring with the most recently received frames
+    */
+   public FrameRing getRing() {
+      return ring_;
+   }
+
+   public boolean isRunning() {
+      return running_;
+   }
+
+   private void checkError() throws Exception {
+      Exception error = error_;
+      if (error != null) {
+         throw new SAIMException("Detector stream failed: " + error.getMessage());
+      }
+   }
+
+   private void readFrames() {
+      try {
+         while (running_) {
+            if (reader_.poll(link_)) {
+               DetectorFrame frame = ring_.claim();
+               reader_.copyTo(frame);
+               ring_.publish();
+            } else {
+               Thread.sleep(1);
+            }
+         }
+      } catch (Exception ex) {
+         error_ = ex;
+         running_ = false;
+      }
+   }
+
+}
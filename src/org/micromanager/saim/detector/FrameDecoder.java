@@ -0,0 +1,404 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          FrameDecoder.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.detector;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32;
+
+/**
+ * Decodes frames sent by the SAIM Arduino firmware in its framed mode
+ * (command '2').  A frame looks as follows (all numbers little-endian):
+ *
+ *    0  magic "SAIM" (4 bytes)
+ *    4  protocol version (1 byte)
+ *    5  flags (1 byte), bit 0 (FLAGPACKED12): pixels are packed (see Packed12)
+ *    6  sequence id (uint16)
+ *    8  number of pixels per detector (uint16)
+ *   10  index of the first pixel sent for the lower detector (uint16)
+ *   12  index of the first pixel sent for the upper detector (uint16)
+ *   14  payload: pixels of the lower detector, followed by the upper detector
+ *  end  CRC32 (uint32) over everything between the magic and the CRC
+ *
+ * The pixel indices were added in protocol version 2, which allows the
+ * device to send only a window (region of interest) of each detector.
+ * Version 1 frames lack them (the payload starts at byte 10), and always
+ * contain whole detectors.
+ *
+ * Packed frames are sent in response to command '5' (or streamed after '6'),
+ * and carry 3 bytes for every 2 pixels instead of 4.
+ *
+ * Bytes can be fed in whatever chunks they arrive in.  The decoder searches
+ * for the magic, so it will resync in the middle of a stream, and frames with
+ * an impossible header or a bad checksum are rejected as soon as they are
+ * complete.
+ *
+ * Not thread safe, use one decoder per stream.
+ *
+ * @author nico
+ */
+public class FrameDecoder {
+
+   public static final byte[] MAGIC = {'S', 'A', 'I', 'M'};
+   public static final int VERSION = 2;
+   public static final int HEADERBYTESV1 = 10;
+   public static final int HEADERBYTES = 14;
+   public static final int CRCBYTES = 4;
+   public static final int FLAGPACKED12 = 0x01;
+   // flags that this decoder understands
+   private static final int KNOWNFLAGS = FLAGPACKED12;
+   public static final int MAXPIXELS = DetectorFrameReader.NRPIXELS;
+   public static final int MAXFRAMEBYTES = HEADERBYTES
+           + 2 * MAXPIXELS * 2 + CRCBYTES;
+
+   public static enum Result {
+      /** No complete frame in the buffer yet */
+      INCOMPLETE,
+      /** A valid frame was decoded */
+      FRAME,
+      /** A complete frame was found, but its checksum was wrong */
+      CORRUPT
+   }
+
+   // heap buffer so that the CRC can be calculated on the backing array
+   private final ByteBuffer buffer_;
+   private final CRC32 crc_ = new CRC32();
+
+   private int version_;
+   private int flags_;
+   private int sequence_;
+   private int pixelCount_;
+   private int lowerOffset_;
+   private int upperOffset_;
+   private int headerBytes_ = HEADERBYTES;
+   private long skippedBytes_;
+   private long corruptFrames_;
+
+   public FrameDecoder() {
+      buffer_ = ByteBuffer.allocate(2 * MAXFRAMEBYTES).order(ByteOrder.LITTLE_ENDIAN);
+   }
+
+   /**
+    * Throws away all buffered bytes
+    */
+   public void reset() {
+      buffer_.clear();
+   }
+
+   /**
+    * @return number of bytes currently waiting to be decoded
+    */
+   public int buffered() {
+      return buffer_.position();
+   }
+
+   /**
+    * Adds a byte to the stream.  When the buffer is full (which only happens
+    * when we receive garbage), the oldest byte is dropped.
+    *
+    * @param b byte received from the device
+    */
+   public void put(byte b) {
+      if (!buffer_.hasRemaining()) {
+         discard(1);
+      }
+      buffer_.put(b);
+   }
+
+   /**
+    * Adds bytes to the stream
+    *
+    * @param src array with the bytes received from the device
+    * @param offset index of the first byte in src to use
+    * @param length number of bytes to use
+    */
+   public void put(byte[] src, int offset, int length) {
+      for (int i = offset; i < offset + length; i++) {
+         put(src[i]);
+      }
+   }
+
+   /**
+    * Adds all remaining bytes in src to the stream
+    *
+    * @param src buffer with the bytes received from the device
+    */
+   public void put(ByteBuffer src) {
+      while (src.hasRemaining()) {
+         if (!buffer_.hasRemaining()) {
+            discard(Math.min(src.remaining(), buffer_.position()));
+         }
+         int length = Math.min(src.remaining(), buffer_.remaining());
+         int limit = src.limit();
+         src.limit(src.position() + length);
+         buffer_.put(src);
+         src.limit(limit);
+      }
+   }
+
+   /**
+    * Tries to decode the next frame from the bytes received so far.
+    * When a frame is found, its payload is copied as is (i.e. packed if the
+    * frame was packed) into payload (starting at its current position), and
+    * the frame is removed from the stream.
+    *
+    * @param payload Buffer that will receive the payload.  Needs to have room
+    * for getPayloadBytes() bytes.
+    * @return FRAME when a frame was decoded, CORRUPT when a complete frame
+    * with a bad checksum was found and dropped, INCOMPLETE otherwise
+    */
+   public Result decode(ByteBuffer payload) {
+      Result result = findFrame();
+      if (result == Result.FRAME) {
+         payload.put(buffer_.array(), headerBytes_, getPayloadBytes());
+         consume(headerBytes_ + getPayloadBytes() + CRCBYTES);
+      }
+      return result;
+   }
+
+   /**
+    * Tries to decode the next frame from the bytes received so far.
+    * When a frame is found, its pixel values are unpacked if needed, and
+    * written into lower and upper at the indices they have on the detector
+    * (i.e. starting at getLowerOffset() and getUpperOffset()), and the frame
+    * is removed from the stream.  Other pixels are left alone.
+    *
+    * @param lower receives the pixel values of the lower detector.  Needs to
+    * have room for all pixels of the detector.
+    * @param upper receives the pixel values of the upper detector
+    * @return FRAME when a frame was decoded, CORRUPT when a complete frame
+    * with a bad checksum was found and dropped, INCOMPLETE otherwise
+    */
+   public Result decode(short[] lower, short[] upper) {
+      Result result = findFrame();
+      if (result == Result.FRAME) {
+         final int detectorBytes = getPayloadBytes() / 2;
+         if (isPacked()) {
+            Packed12.unpack(buffer_.array(), headerBytes_, lower, lowerOffset_,
+                    pixelCount_);
+            Packed12.unpack(buffer_.array(), headerBytes_ + detectorBytes, upper,
+                    upperOffset_, pixelCount_);
+         } else {
+            // absolute gets on the little-endian buffer, no views needed
+            for (int i = 0; i < pixelCount_; i++) {
+               lower[lowerOffset_ + i] = buffer_.getShort(headerBytes_ + 2 * i);
+               upper[upperOffset_ + i] =
+                       buffer_.getShort(headerBytes_ + detectorBytes + 2 * i);
+            }
+         }
+         consume(headerBytes_ + getPayloadBytes() + CRCBYTES);
+      }
+      return result;
+   }
+
+   /**
+    * Looks for the next complete frame, and checks it.  When a valid frame is
+    * found, it is left at the start of the buffer, and its header values are
+    * stored.
+    */
+   private Result findFrame() {
+      while (true) {
+         int start = findMagic();
+         if (start < 0) {
+            // keep the last bytes, they may be the beginning of the magic
+            int keep = Math.min(buffer_.position(), MAGIC.length - 1);
+            discard(buffer_.position() - keep);
+            return Result.INCOMPLETE;
+         }
+         discard(start);
+         if (buffer_.position() <= MAGIC.length) {
+            return Result.INCOMPLETE;
+         }
+         int version = buffer_.get(4) & 0xFF;
+         if (version < 1 || version > VERSION) {
+            // not a real header, look for the next magic
+            discard(1);
+            continue;
+         }
+         int headerBytes = version == 1 ? HEADERBYTESV1 : HEADERBYTES;
+         if (buffer_.position() < headerBytes) {
+            return Result.INCOMPLETE;
+         }
+         int flags = buffer_.get(5) & 0xFF;
+         int pixelCount = buffer_.getShort(8) & 0xFFFF;
+         int lowerOffset = 0;
+         int upperOffset = 0;
+         if (version > 1) {
+            lowerOffset = buffer_.getShort(10) & 0xFFFF;
+            upperOffset = buffer_.getShort(12) & 0xFFFF;
+         }
+         boolean packed = (flags & FLAGPACKED12) != 0;
+         if ((flags & ~KNOWNFLAGS) != 0 || pixelCount == 0
+                 || lowerOffset + pixelCount > MAXPIXELS
+                 || upperOffset + pixelCount > MAXPIXELS
+                 || (packed && pixelCount % 2 != 0)) {
+            // not a real header, look for the next magic
+            discard(1);
+            continue;
+         }
+         int payloadBytes = payloadBytes(pixelCount, flags);
+         int frameBytes = headerBytes + payloadBytes + CRCBYTES;
+         if (buffer_.position() < frameBytes) {
+            return Result.INCOMPLETE;
+         }
+         crc_.reset();
+         crc_.update(buffer_.array(), MAGIC.length,
+                 headerBytes - MAGIC.length + payloadBytes);
+         long expected = buffer_.getInt(headerBytes + payloadBytes) & 0xFFFFFFFFL;
+         if (crc_.getValue() != expected) {
+            corruptFrames_++;
+            discard(1);
+            return Result.CORRUPT;
+         }
+         version_ = version;
+         flags_ = flags;
+         sequence_ = buffer_.getShort(6) & 0xFFFF;
+         pixelCount_ = pixelCount;
+         lowerOffset_ = lowerOffset;
+         upperOffset_ = upperOffset;
+         headerBytes_ = headerBytes;
+         return Result.FRAME;
+      }
+   }
+
+   /**
+    * @param pixelCount number of pixels per detector
+    * @param flags flags in the frame header
+    * @return number of payload bytes in a frame with the given header values
+    */
+   public static int payloadBytes(int pixelCount, int flags) {
+      if ((flags & FLAGPACKED12) != 0) {
+         return 2 * Packed12.packedBytes(pixelCount);
+      }
+      return 2 * pixelCount * 2;
+   }
+
+   /**
+    * @return protocol version of the last decoded frame
+    */
+   public int getVersion() {
+      return version_;
+   }
+
+   /**
+    * @return flags of the last decoded frame
+    */
+   public int getFlags() {
+      return flags_;
+   }
+
+   /**
+    * @return true if the pixels of the last decoded frame were packed
+    */
+   public boolean isPacked() {
+      return (flags_ & FLAGPACKED12) != 0;
+   }
+
+   /**
+    * @return sequence id of the last decoded frame (wraps at 65536)
+    */
+   public int getSequence() {
+      return sequence_;
+   }
+
+   /**
+    * @return number of pixels per detector in the last decoded frame
+    */
+   public int getPixelCount() {
+      return pixelCount_;
+   }
+
+   /**
+    * @return index on the detector of the first pixel of the lower detector
+    * in the last decoded frame
+    */
+   public int getLowerOffset() {
+      return lowerOffset_;
+   }
+
+   /**
+    * @return index on the detector of the first pixel of the upper detector
+    * in the last decoded frame
+    */
+   public int getUpperOffset() {
+      return upperOffset_;
+   }
+
+   /**
+    * @return number of payload bytes in the last decoded frame
+    */
+   public int getPayloadBytes() {
+      return payloadBytes(pixelCount_, flags_);
+   }
+
+   /**
+    * @return total number of bytes thrown away while looking for frames
+    */
+   public long getSkippedBytes() {
+      return skippedBytes_;
+   }
+
+   /**
+    * @return total number of frames rejected because of a bad checksum
+    */
+   public long getCorruptFrames() {
+      return corruptFrames_;
+   }
+
+   /**
+    * Finds the first occurrence of the magic in the buffered bytes
+    * @return index of the magic, or -1 when not found
+    */
+   private int findMagic() {
+      final byte[] data = buffer_.array();
+      final int end = buffer_.position() - MAGIC.length;
+      for (int i = 0; i <= end; i++) {
+         if (data[i] == MAGIC[0] && data[i + 1] == MAGIC[1]
+                 && data[i + 2] == MAGIC[2] && data[i + 3] == MAGIC[3]) {
+            return i;
+         }
+      }
+      return -1;
+   }
+
+   /**
+    * Throws away bytes that are not part of a valid frame
+    * @param nrBytes number of bytes to throw away
+    */
+   private void discard(int nrBytes) {
+      if (nrBytes <= 0) {
+         return;
+      }
+      skippedBytes_ += nrBytes;
+      consume(nrBytes);
+   }
+
+   /**
+    * Removes bytes from the front of the buffer
+    * @param nrBytes number of bytes to remove
+    */
+   private void consume(int nrBytes) {
+      buffer_.flip();
+      buffer_.position(nrBytes);
+      buffer_.compact();
+   }
+
+}
@@ -0,0 +1,203 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          FrameRing.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.detector;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free ring of preallocated DetectorFrames, filled by a single producer
+ * (the thread reading the detector stream) and read by any number of
+ * consumers.
+ *
+ * The producer never waits: it always overwrites the oldest frame that is not
+ * being read at that moment.  Consumers do not take frames out of the ring,
+ * they copy the most recent one (or wait for a frame newer than one they have
+ * seen) into a frame of their own.  Each slot has a state that is switched
+ * with compare-and-set, so that a frame can never be overwritten while it is
+ * copied.
+ *
+ * @author nico
+ */
+public class FrameRing {
+
+   private static final int FREE = 0;
+   private static final int WRITING = 1;
+   private static final int READY = 2;
+   // READING + n means that n + 1 consumers are copying the slot
+   private static final int READING = 3;
+
+   private final DetectorFrame[] slots_;
+   private final AtomicIntegerArray states_;
+   private final AtomicLong published_ = new AtomicLong(0);
+   private int writeSlot_ = -1;
+
+   /**
+    * @param size number of frames in the ring.  Needs to be larger than the
+    * number of consumers plus one, so that the producer always finds a free slot
+    */
+   public FrameRing(int size) {
+      if (size < 3) {
+         throw new IllegalArgumentException("FrameRing needs at least 3 slots");
+      }
+      slots_ = new DetectorFrame[size];
+      for (int i = 0; i < size; i++) {
+         slots_[i] = new DetectorFrame();
+      }
+      states_ = new AtomicIntegerArray(size);
+   }
+
+   /**
+    * Producer only.  Claims the slot holding the oldest frame that is not being
+    * read, and returns it so that it can be filled.  Call publish when done.
+    *
+    * @return frame to be filled by the producer
+    */
+   public DetectorFrame claim() {
+      while (true) {
+         int oldest = -1;
+         for (int i = 0; i < slots_.length; i++) {
+            int state = states_.get(i);
+            if (state == FREE) {
+               oldest = i;
+               break;
+            }
+            if (state == READY && (oldest < 0
+                    || slots_[i].getCounter() < slots_[oldest].getCounter())) {
+               oldest = i;
+            }
+         }
+         if (oldest >= 0) {
+            int state = states_.get(oldest);
+            if ((state == FREE || state == READY)
+                    && states_.compareAndSet(oldest, state, WRITING)) {
+               writeSlot_ = oldest;
+               return slots_[oldest];
+            }
+         }
+         // all slots were being read, or a consumer beat us to the slot
+         Thread.yield();
+      }
+   }
+
+   /**
+    * Producer only.  Makes the frame returned by claim available to consumers.
+    *
+    * @return counter assigned to the frame (starts at 1)
+    */
+   public long publish() {
+      long counter = published_.get() + 1;
+      slots_[writeSlot_].setCounter(counter);
+      states_.set(writeSlot_, READY);
+      published_.set(counter);
+      writeSlot_ = -1;
+      return counter;
+   }
+
+   /**
+    * @return counter of the most recently published frame, 0 if none
+    */
+   public long getLatestCounter() {
+      return published_.get();
+   }
+
+   /**
+    * Copies the most recent frame into dest
+    *
+    * @param dest frame that will receive the copy
+    * @return false if no frame was published yet
+    */
+   public boolean copyLatest(DetectorFrame dest) {
+      return copyNewerThan(0, dest);
+   }
+
+   /**
+    * Copies the most recent frame into dest, provided it is newer than the
+    * given counter
+    *
+    * @param counter only frames with a higher counter will be copied
+    * @param dest frame that will receive the copy
+    * @return true if a frame was copied
+    */
+   public boolean copyNewerThan(long counter, DetectorFrame dest) {
+      while (true) {
+         if (published_.get() <= counter) {
+            return false;
+         }
+         int newest = -1;
+         for (int i = 0; i < slots_.length; i++) {
+            if (states_.get(i) >= READY && (newest < 0
+                    || slots_[i].getCounter() > slots_[newest].getCounter())) {
+               newest = i;
+            }
+         }
+         if (newest < 0) {
+            continue;
+         }
+         int state = states_.get(newest);
+         if (state >= READY && states_.compareAndSet(newest, state,
+                 state == READY ? READING : state + 1)) {
+            boolean copied = false;
+            if (slots_[newest].getCounter() > counter) {
+               slots_[newest].copyTo(dest);
+               copied = true;
+            }
+            releaseRead(newest);
+            if (copied) {
+               return true;
+            }
+         }
+      }
+   }
+
+   /**
+    * Waits until a frame newer than the given counter is published, and
+    * copies it into dest.
+    *
+    * @param counter only frames with a higher counter will be copied
+    * @param dest frame that will receive the copy
+    * @param timeOutMs maximum time to wait (ms)
+    * @return true if a frame was copied, false on time out
+    * @throws InterruptedException
+    */
+   public boolean awaitNewerThan(long counter, DetectorFrame dest, long timeOutMs)
+           throws InterruptedException {
+      final long timeOut = System.currentTimeMillis() + timeOutMs;
+      while (System.currentTimeMillis() < timeOut) {
+         if (copyNewerThan(counter, dest)) {
+            return true;
+         }
+         Thread.sleep(1);
+      }
+      return false;
+   }
+
+   private void releaseRead(int slot) {
+      while (true) {
+         int state = states_.get(slot);
+         int newState = state == READING ? READY : state - 1;
+         if (states_.compareAndSet(slot, state, newState)) {
+            return;
+         }
+      }
+   }
+
+}
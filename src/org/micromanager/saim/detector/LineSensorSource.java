@@ -0,0 +1,71 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          LineSensorSource.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.detector;
+
+/**
+ * Source of detector frames.  Hides how the frames are obtained (through
+ * Micro-Manager, directly from a tty, from a recording, or from a
+ * simulation), so that calibration code does not need to know.
+ *
+ * @author nico
+ */
+public interface LineSensorSource {
+
+   /**
+    * Moves the TIRF motor and reads a frame that was exposed after the motor
+    * arrived
+    *
+    * @param position position of the TIRF motor
+    * @param dest frame that receives the pixel values
+    * @return dest
+    * @throws Exception when no frame could be obtained
+    */
+   DetectorFrame acquire(double position, DetectorFrame dest) throws Exception;
+
+   /**
+    * Reads a frame without moving the motor
+    *
+    * @param dest frame that receives the pixel values
+    * @return dest
+    * @throws Exception when no frame could be obtained
+    */
+   DetectorFrame snap(DetectorFrame dest) throws Exception;
+
+   /**
+    * Limits the frames that follow to a window (region of interest) of each
+    * detector.  Use offsets 0 and width DetectorFrameReader.NRPIXELS to go
+    * back to full frames.
+    *
+    * @param lowerOffset first pixel of the window on the lower detector
+    * @param upperOffset first pixel of the window on the upper detector
+    * @param width number of pixels in the window (even)
+    * @throws Exception when the window could not be set
+    */
+   void setRoi(int lowerOffset, int upperOffset, int width) throws Exception;
+
+   /**
+    * Releases all resources held by this source
+    *
+    * @throws Exception
+    */
+   void close() throws Exception;
+
+}
@@ -0,0 +1,75 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          MMCoreSerialLink.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.detector;
+
+import java.nio.ByteBuffer;
+import mmcorej.CMMCore;
+import mmcorej.CharVector;
+
+/**
+ * SerialLink through a serial port device loaded in Micro-Manager
+ *
+ * @author nico
+ */
+public class MMCoreSerialLink implements SerialLink {
+
+   private final CMMCore core_;
+   private final String port_;
+   // MMCore hands us everything it has, keep what did not fit in dest
+   private CharVector pending_;
+   private int pendingIndex_ = 0;
+
+   /**
+    * @param core MMCore instance used to access the serial port
+    * @param port Name of the serial port to which the Arduino is connected
+    */
+   public MMCoreSerialLink(CMMCore core, String port) {
+      core_ = core;
+      port_ = port;
+   }
+
+   @Override
+   public void send(String command) throws Exception {
+      core_.setSerialPortCommand(port_, command, "");
+   }
+
+   @Override
+   public int read(ByteBuffer dest) throws Exception {
+      if (pending_ == null || pendingIndex_ >= pending_.size()) {
+         pending_ = core_.readFromSerialPort(port_);
+         pendingIndex_ = 0;
+      }
+      final int size = Math.min(dest.remaining(), (int) pending_.size() - pendingIndex_);
+      for (int j = 0; j < size; j++) {
+         dest.put((byte) pending_.get(pendingIndex_++));
+      }
+      return size;
+   }
+
+   /**
+    * The port belongs to Micro-Manager, so it is left alone
+    */
+   @Override
+   public void close() {
+      pending_ = null;
+   }
+
+}
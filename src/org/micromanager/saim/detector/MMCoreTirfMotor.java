@@ -0,0 +1,58 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          MMCoreTirfMotor.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.detector;
+
+import mmcorej.CMMCore;
+
+/**
+ * TirfMotor that is a property of a device loaded in Micro-Manager
+ *
+ * @author nico
+ */
+public class MMCoreTirfMotor implements TirfMotor {
+
+   private final CMMCore core_;
+   private final String device_;
+   private final String property_;
+
+   /**
+    * @param core MMCore instance
+    * @param device Name of the device controlling the TIRF motor
+    * @param property Name of the property holding the motor position
+    */
+   public MMCoreTirfMotor(CMMCore core, String device, String property) {
+      core_ = core;
+      device_ = device;
+      property_ = property;
+   }
+
+   @Override
+   public void setPosition(double position) throws Exception {
+      core_.setProperty(device_, property_, position);
+      core_.waitForDevice(device_);
+   }
+
+   @Override
+   public double getPosition() throws Exception {
+      return Double.parseDouble(core_.getPropertyFromCache(device_, property_));
+   }
+
+}
@@ -0,0 +1,94 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          Packed12.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.detector;
+
+/**
+ * Conversion between 12 bit pixel values and the packed format sent by the
+ * firmware in packed mode: two pixels in three bytes.  For pixels a and b:
+ *    byte 0: bits 0-7 of a
+ *    byte 1: bits 8-11 of a (low nibble), bits 0-3 of b (high nibble)
+ *    byte 2: bits 4-11 of b
+ *
+ * The loops have no branches besides the loop condition, so that the JIT can
+ * unroll them.  Pixel counts need to be even.
+ *
+ * @author nico
+ */
+public final class Packed12 {
+
+   private Packed12() {
+   }
+
+   /**
+    * @param nrPixels number of pixels (even)
+    * @return number of bytes needed to hold the packed pixels
+    */
+   public static int packedBytes(int nrPixels) {
+      return nrPixels / 2 * 3;
+   }
+
+   /**
+    * Unpacks pixel values
+    *
+    * @param src packed bytes
+    * @param srcOffset index of the first byte in src
+    * @param dest array that receives the pixel values
+    * @param destOffset index in dest of the first pixel
+    * @param nrPixels number of pixels to unpack (even)
+    */
+   public static void unpack(byte[] src, int srcOffset, short[] dest,
+           int destOffset, int nrPixels) {
+      int s = srcOffset;
+      final int end = destOffset + nrPixels;
+      for (int d = destOffset; d < end; d += 2) {
+         final int b0 = src[s] & 0xFF;
+         final int b1 = src[s + 1] & 0xFF;
+         final int b2 = src[s + 2] & 0xFF;
+         dest[d] = (short) (b0 | ((b1 & 0x0F) << 8));
+         dest[d + 1] = (short) ((b1 >>> 4) | (b2 << 4));
+         s += 3;
+      }
+   }
+
+   /**
+    * Packs pixel values.  Only the lowest 12 bits of each value are kept.
+    *
+    * @param src pixel values
+    * @param srcOffset index in src of the first pixel
+    * @param dest array that receives the packed bytes
+    * @param destOffset index of the first byte in dest
+    * @param nrPixels number of pixels to pack (even)
+    */
+   public static void pack(short[] src, int srcOffset, byte[] dest,
+           int destOffset, int nrPixels) {
+      int d = destOffset;
+      final int end = srcOffset + nrPixels;
+      for (int s = srcOffset; s < end; s += 2) {
+         final int a = src[s];
+         final int b = src[s + 1];
+         dest[d] = (byte) a;
+         dest[d + 1] = (byte) (((a >>> 8) & 0x0F) | ((b & 0x0F) << 4));
+         dest[d + 2] = (byte) (b >>> 4);
+         d += 3;
+      }
+   }
+
+}
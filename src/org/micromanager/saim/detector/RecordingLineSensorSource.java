@@ -0,0 +1,104 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          RecordingLineSensorSource.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.detector;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * LineSensorSource that passes all frames of another source through, and
+ * writes them to a file that can be played back with a
+ * ReplayLineSensorSource.
+ *
+ * @author nico
+ */
+public class RecordingLineSensorSource implements LineSensorSource {
+
+   private final LineSensorSource source_;
+   private final FileOutputStream out_;
+   private final FileChannel channel_;
+   private final ByteBuffer record_;
+
+   /**
+    * @param source source whose frames will be recorded
+    * @param recording file to write to.  Will be overwritten.
+    * @throws Exception when the file can not be written
+    */
+   public RecordingLineSensorSource(LineSensorSource source, File recording)
+           throws Exception {
+      source_ = source;
+      out_ = new FileOutputStream(recording);
+      channel_ = out_.getChannel();
+      channel_.write(ByteBuffer.wrap(ReplayLineSensorSource.TAG));
+      record_ = ByteBuffer.allocateDirect(ReplayLineSensorSource.RECORDBYTES)
+              .order(ByteOrder.LITTLE_ENDIAN);
+   }
+
+   @Override
+   public DetectorFrame acquire(double position, DetectorFrame dest) throws Exception {
+      source_.acquire(position, dest);
+      write(dest);
+      return dest;
+   }
+
+   @Override
+   public DetectorFrame snap(DetectorFrame dest) throws Exception {
+      source_.snap(dest);
+      write(dest);
+      return dest;
+   }
+
+   @Override
+   public void setRoi(int lowerOffset, int upperOffset, int width) throws Exception {
+      source_.setRoi(lowerOffset, upperOffset, width);
+   }
+
+   @Override
+   public void close() throws Exception {
+      try {
+         source_.close();
+      } finally {
+         out_.close();
+      }
+   }
+
+   private synchronized void write(DetectorFrame frame) throws Exception {
+      record_.clear();
+      record_.putDouble(frame.getPosition());
+      record_.putInt(frame.getSequence());
+      record_.putShort((short) frame.getLowerOffset());
+      record_.putShort((short) frame.getUpperOffset());
+      record_.putShort((short) frame.getWidth());
+      record_.putShort((short) 0);
+      record_.asShortBuffer().put(frame.getLower());
+      record_.position(record_.position() + DetectorFrameReader.DETECTORBYTES);
+      record_.asShortBuffer().put(frame.getUpper());
+      record_.position(record_.position() + DetectorFrameReader.DETECTORBYTES);
+      record_.flip();
+      while (record_.hasRemaining()) {
+         channel_.write(record_);
+      }
+   }
+
+}
@@ -0,0 +1,154 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ReplayLineSensorSource.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.detector;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import org.micromanager.saim.exceptions.SAIMException;
+
+/**
+ * LineSensorSource that plays back frames recorded with a
+ * RecordingLineSensorSource, so that calibration code can be run and timed
+ * without the hardware.
+ *
+ * A recording starts with the 8 byte tag "SAIMREC2", followed by one record
+ * per frame (little-endian): motor position (double), sequence id (int),
+ * first pixel of the window on the lower and upper detector, width of the
+ * window, and a reserved value (shorts), pixels of the lower detector, pixels
+ * of the upper detector (shorts, whole detectors).
+ *
+ * The file is memory mapped.  acquire returns the recorded frame whose motor
+ * position is closest to the requested one, snap returns the frames in the
+ * order in which they were recorded.  When a region of interest is set,
+ * frames are cut down to it.
+ *
+ * @author nico
+ */
+public class ReplayLineSensorSource implements LineSensorSource {
+
+   public static final byte[] TAG = {'S', 'A', 'I', 'M', 'R', 'E', 'C', '2'};
+   public static final int RECORDBYTES = 8 + 4 + 4 * 2
+           + 2 * DetectorFrameReader.DETECTORBYTES;
+
+   private final RandomAccessFile file_;
+   private final MappedByteBuffer data_;
+   private final int nrRecords_;
+   private int next_ = 0;
+   private int roiLowerOffset_ = 0;
+   private int roiUpperOffset_ = 0;
+   private int roiWidth_ = DetectorFrameReader.NRPIXELS;
+
+   /**
+    * @param recording file written by a RecordingLineSensorSource
+    * @throws Exception when the file can not be read or is not a recording
+    */
+   public ReplayLineSensorSource(File recording) throws Exception {
+      file_ = new RandomAccessFile(recording, "r");
+      FileChannel channel = file_.getChannel();
+      data_ = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      data_.order(ByteOrder.LITTLE_ENDIAN);
+      for (int i = 0; i < TAG.length; i++) {
+         if (data_.limit() <= i || data_.get(i) != TAG[i]) {
+            file_.close();
+            throw new SAIMException(recording.getName() + " is not a SAIM frame recording");
+         }
+      }
+      nrRecords_ = (data_.limit() - TAG.length) / RECORDBYTES;
+      if (nrRecords_ == 0) {
+         file_.close();
+         throw new SAIMException(recording.getName() + " does not contain any frames");
+      }
+   }
+
+   /**
+    * @return number of frames in the recording
+    */
+   public int getNrFrames() {
+      return nrRecords_;
+   }
+
+   @Override
+   public synchronized DetectorFrame acquire(double position, DetectorFrame dest) {
+      int best = 0;
+      double bestDistance = Double.MAX_VALUE;
+      for (int i = 0; i < nrRecords_; i++) {
+         double distance = Math.abs(data_.getDouble(offset(i)) - position);
+         if (distance < bestDistance) {
+            bestDistance = distance;
+            best = i;
+         }
+      }
+      readRecord(best, dest);
+      next_ = (best + 1) % nrRecords_;
+      return dest;
+   }
+
+   @Override
+   public synchronized DetectorFrame snap(DetectorFrame dest) {
+      readRecord(next_, dest);
+      next_ = (next_ + 1) % nrRecords_;
+      return dest;
+   }
+
+   @Override
+   public synchronized void setRoi(int lowerOffset, int upperOffset, int width) {
+      roiLowerOffset_ = lowerOffset;
+      roiUpperOffset_ = upperOffset;
+      roiWidth_ = width;
+   }
+
+   @Override
+   public void close() throws Exception {
+      file_.close();
+   }
+
+   private static int offset(int record) {
+      return TAG.length + record * RECORDBYTES;
+   }
+
+   private void readRecord(int record, DetectorFrame dest) {
+      ByteBuffer view = data_.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+      view.position(offset(record));
+      double position = view.getDouble();
+      int sequence = view.getInt();
+      int lowerOffset = view.getShort();
+      int upperOffset = view.getShort();
+      int width = view.getShort();
+      view.getShort();
+      view.limit(view.position() + DetectorFrameReader.DETECTORBYTES);
+      ByteBuffer lower = view.slice().order(ByteOrder.LITTLE_ENDIAN);
+      view.position(view.limit());
+      view.limit(view.position() + DetectorFrameReader.DETECTORBYTES);
+      ByteBuffer upper = view.slice().order(ByteOrder.LITTLE_ENDIAN);
+      dest.copyFrom(lower.asShortBuffer(), upper.asShortBuffer(), sequence);
+      dest.setPosition(position);
+      if (roiWidth_ < DetectorFrameReader.NRPIXELS) {
+         dest.setWindow(roiLowerOffset_, roiUpperOffset_, roiWidth_);
+      } else {
+         dest.setWindow(lowerOffset, upperOffset, width);
+      }
+   }
+
+}
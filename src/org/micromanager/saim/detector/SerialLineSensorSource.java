@@ -0,0 +1,136 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          SerialLineSensorSource.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.detector;
+
+import org.micromanager.saim.exceptions.SAIMException;
+
+/**
+ * LineSensorSource that talks to the calibration device through a SerialLink
+ * (Micro-Manager serial port or a tty), either one snapshot at a time or
+ * streaming.
+ *
+ * @author nico
+ */
+public class SerialLineSensorSource implements LineSensorSource {
+
+   /** Maximum time we wait for a single frame (ms) */
+   public static final long SNAPTIMEOUTMS = 4500;
+
+   private final SerialLink link_;
+   private final TirfMotor motor_;
+   private final DetectorFrameReader reader_ = new DetectorFrameReader();
+   private DetectorStream stream_;
+
+   /**
+    * @param link connection to the calibration device
+    * @param motor motor that sets the angle, can be null when the motor is
+    * moved by someone else
+    */
+   public SerialLineSensorSource(SerialLink link, TirfMotor motor) {
+      link_ = link;
+      motor_ = motor;
+   }
+
+   /**
+    * Switches the device between sending frames on request and streaming
+    *
+    * @param streaming true to stream frames
+    * @throws Exception when the device could not be switched
+    */
+   public synchronized void setStreaming(boolean streaming) throws Exception {
+      if (streaming && stream_ == null) {
+         DetectorStream stream = new DetectorStream(link_, reader_.isPacked());
+         stream.start();
+         stream_ = stream;
+      } else if (!streaming && stream_ != null) {
+         stream_.stop();
+         stream_ = null;
+      }
+   }
+
+   public synchronized boolean isStreaming() {
+      return stream_ != null;
+   }
+
+   /**
+    * Lets the device send 12 bit pixels packed two in three bytes, which cuts
+    * the transfer time by a quarter.  Needs firmware that supports commands
+    * '5' and '6'.
+    *
+    * @param packed true to use packed frames
+    * @throws Exception when the device could not be switched
+    */
+   public synchronized void setPacked(boolean packed) throws Exception {
+      if (packed == reader_.isPacked()) {
+         return;
+      }
+      reader_.setPacked(packed);
+      if (stream_ != null) {
+         setStreaming(false);
+         setStreaming(true);
+      }
+   }
+
+   @Override
+   public DetectorFrame acquire(double position, DetectorFrame dest) throws Exception {
+      if (motor_ != null) {
+         motor_.setPosition(position);
+      }
+      readFrame(dest);
+      dest.setPosition(position);
+      return dest;
+   }
+
+   @Override
+   public DetectorFrame snap(DetectorFrame dest) throws Exception {
+      readFrame(dest);
+      dest.setPosition(motor_ != null ? motor_.getPosition() : Double.NaN);
+      return dest;
+   }
+
+   @Override
+   public synchronized void setRoi(int lowerOffset, int upperOffset, int width)
+           throws Exception {
+      reader_.sendRoi(link_, lowerOffset, upperOffset, width);
+   }
+
+   @Override
+   public synchronized void close() throws Exception {
+      try {
+         setStreaming(false);
+      } finally {
+         link_.close();
+      }
+   }
+
+   private synchronized void readFrame(DetectorFrame dest) throws Exception {
+      if (stream_ != null) {
+         // use the first frame that was exposed after the motor stopped
+         if (!stream_.awaitFrame(dest, SNAPTIMEOUTMS)) {
+            throw new SAIMException("No frame received from detector stream");
+         }
+      } else {
+         reader_.snap(link_, SNAPTIMEOUTMS);
+         reader_.copyTo(dest);
+      }
+   }
+
+}
@@ -0,0 +1,56 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          SerialLink.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.detector;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Byte level connection to the calibration device.
+ *
+ * @author nico
+ */
+public interface SerialLink {
+
+   /**
+    * Sends a command to the device
+    *
+    * @param command command to be sent, no terminator is added
+    * @throws Exception when the command could not be sent
+    */
+   void send(String command) throws Exception;
+
+   /**
+    * Reads the bytes that are available right now, without waiting.
+    *
+    * @param dest buffer that receives the bytes, starting at its position
+    * @return number of bytes read, 0 when nothing was available
+    * @throws Exception when the port could not be read
+    */
+   int read(ByteBuffer dest) throws Exception;
+
+   /**
+    * Releases the port.  Links that do not own the port do nothing.
+    *
+    * @throws Exception
+    */
+   void close() throws Exception;
+
+}
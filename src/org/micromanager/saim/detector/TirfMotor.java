@@ -0,0 +1,44 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          TirfMotor.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.detector;
+
+/**
+ * The motor that sets the angle of the excitation light
+ *
+ * @author nico
+ */
+public interface TirfMotor {
+
+   /**
+    * Moves the motor, and returns once it arrived
+    *
+    * @param position new position of the motor
+    * @throws Exception when the motor could not be moved
+    */
+   void setPosition(double position) throws Exception;
+
+   /**
+    * @return current position of the motor
+    * @throws Exception when the position could not be read
+    */
+   double getPosition() throws Exception;
+
+}
@@ -0,0 +1,71 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          TtySerialLink.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.detector;
+
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * SerialLink that talks to the tty of the Arduino directly (e.g.
+ * /dev/ttyACM0), bypassing Micro-Manager.  Bytes are read straight into the
+ * caller's buffer.
+ *
+ * Java can not configure a tty, so set it up beforehand to be raw and
+ * non-blocking, e.g.:
+ *    stty -F /dev/ttyACM0 115200 raw -echo min 0 time 0
+ *
+ * @author nico
+ */
+public class TtySerialLink implements SerialLink {
+
+   private final RandomAccessFile file_;
+   private final FileChannel channel_;
+
+   /**
+    * @param path path to the tty device
+    * @throws Exception when the device can not be opened
+    */
+   public TtySerialLink(String path) throws Exception {
+      file_ = new RandomAccessFile(path, "rw");
+      channel_ = file_.getChannel();
+   }
+
+   @Override
+   public void send(String command) throws Exception {
+      ByteBuffer out = ByteBuffer.wrap(command.getBytes("US-ASCII"));
+      while (out.hasRemaining()) {
+         channel_.write(out);
+      }
+   }
+
+   @Override
+   public int read(ByteBuffer dest) throws Exception {
+      int nrRead = channel_.read(dest);
+      return nrRead < 0 ? 0 : nrRead;
+   }
+
+   @Override
+   public void close() throws Exception {
+      file_.close();
+   }
+
+}
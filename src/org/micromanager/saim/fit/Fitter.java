@@ -26,8 +26,6 @@ import org.apache.commons.math3.analysis.function.Gaussian;
 import org.apache.commons.math3.analysis.polynomials.PolynomialFunction;
 import org.apache.commons.math3.analysis.solvers.BracketingNthOrderBrentSolver;
 import org.apache.commons.math3.analysis.solvers.UnivariateSolver;
-import org.apache.commons.math3.fitting.PolynomialCurveFitter;
-import org.apache.commons.math3.fitting.WeightedObservedPoints;
 import org.jfree.data.xy.XYSeries;
 
 /**
@@ -41,8 +39,12 @@ public class Fitter {
    private static final String POL2 = "Polynomial 2";
    private static final String POL3 = "Polynomial 3";
    private static final String GAUSSIAN = "Gaussian";
+   private static final String CENTROID = "Centroid";
+   private static final String CARUANA = "Caruana";
+   private static final String THREEPOINT = "Three point";
    
-   public static enum FunctionType {NoFit, Pol1, Pol2, Pol3, Gaussian};
+   public static enum FunctionType {NoFit, Pol1, Pol2, Pol3, Gaussian, Centroid,
+         Caruana, ThreePoint};
    public static enum WeightMethod {Equal, Linear, Quadratic, Top50Linear, 
          Top80Linear}
    
@@ -82,6 +84,10 @@ public class Fitter {
     * @param guess initial guess for the fit.  The number and meaning of these
              parameters depends on the FunctionType.  Implemented:
              Gaussian: 0: Normalization, 1: Mean 2: Sigma
+             Centroid, Caruana, ThreePoint: ignored.  These are closed-form 
+             estimates of a Gaussian (see PeakEstimator), that use the 
+             threshold of the weightMethod, and return the same parameters 
+             as a Gaussian fit
     * @param weightMethod One of the methods in the WeightMethod enum
 
     * @return array with parameters, whose meaning depends on the FunctionType.
@@ -94,63 +100,83 @@ public class Fitter {
       if (type == FunctionType.NoFit) {
          return null;
       }
-      // create the commons math data object from the JFreeChart data object
-      final WeightedObservedPoints obs = new WeightedObservedPoints();
+      // copy the JFreeChart data object into primitive arrays
+      final int n = data.getItemCount();
+      double[] x = new double[n];
+      double[] y = new double[n];
+      for (int i = 0; i < n; i++) {
+         x[i] = data.getX(i).doubleValue();
+         y[i] = data.getY(i).doubleValue();
+      }
+      if (type == FunctionType.Gaussian) {
+         return GaussianFitter.forThread().fit(x, y, n, weightMethod, guess, null);
+      }
+      if (PeakEstimator.isEstimator(type)) {
+         return PeakEstimator.forThread().estimate(type, x, y, n, weightMethod, null);
+      }
+      
+      // add weight based on y intensity and selected weight method
+      double[] weights = new double[n];
       // range is used in weigt calculations
       double range = data.getMaxY() - data.getMinY();
-      for (int i = 0; i < data.getItemCount(); i++) {
-         // add weight based on y intensity and selected weight method
-         double weight = 1.0; // used in Equal method
-         if (weightMethod != WeightMethod.Equal) {
-            double valueMinusMin = data.getY(i).doubleValue() - data.getMinY();
-            weight = valueMinusMin / range;
-            switch (weightMethod) {
-               case Equal: 
-                  break; // weight is already linear
-               case Quadratic: 
-                  weight *= weight;
-                  break;
-               case Top50Linear: 
-                  if ( valueMinusMin < (0.5 * range))
-                     weight = 0.0;
-                  break;
-               case Top80Linear:
-                  if ( valueMinusMin < (0.8 * range))
-                     weight = 0.0;
-                  break;
-            }
-         }
-         
-         obs.add(weight, data.getX(i).doubleValue(), data.getY(i).doubleValue());
+      for (int i = 0; i < n; i++) {
+         weights[i] = weight(y[i] - data.getMinY(), range, weightMethod);
       }
       
       // Carry out the actual fit
       double[] result = null;
       switch (type) {
          case Pol1:
-            final PolynomialCurveFitter fitter1 = PolynomialCurveFitter.create(1);
-            result = fitter1.fit(obs.toList());
+            result = new PolynomialFitter(1).fit(x, y, weights, n, null);
             break;
          case Pol2:
-            final PolynomialCurveFitter fitter2 = PolynomialCurveFitter.create(2);
-            result = fitter2.fit(obs.toList());
+            result = new PolynomialFitter(2).fit(x, y, weights, n, null);
             break;
          case Pol3:
-            final PolynomialCurveFitter fitter3 = PolynomialCurveFitter.create(3);
-            result = fitter3.fit(obs.toList());
+            result = new PolynomialFitter(3).fit(x, y, weights, n, null);
             break;
-         case Gaussian:
-            GaussianWithOffsetCurveFitter gf = GaussianWithOffsetCurveFitter.create();
-            gf = gf.withMaxIterations(50);
-            if (guess != null) {
-               gf.withStartPoint(guess);
-            }
-            result = gf.fit(obs.toList());
       }
       
       return result;
    }
    
+   /**
+    * Weight of a data point, as used by all fits
+    * 
+    * @param valueMinusMin y value of the point minus the minimum y value
+    * @param range maximum minus minimum y value
+    * @param weightMethod One of the methods in the WeightMethod enum
+    * @return weight of the point, 0 if it should not be used
+    */
+   static double weight(double valueMinusMin, double range, 
+           WeightMethod weightMethod) {
+      if (weightMethod == WeightMethod.Equal) {
+         return 1.0;
+      }
+      double weight = valueMinusMin / range;
+      if (weightMethod == WeightMethod.Quadratic) {
+         weight *= weight;
+      }
+      if ( valueMinusMin < (threshold(weightMethod) * range))
+         weight = 0.0;
+      return weight;
+   }
+   
+   /**
+    * @param weightMethod One of the methods in the WeightMethod enum
+    * @return fraction of the range between minimum and maximum below which 
+    *          points get no weight
+    */
+   static double threshold(WeightMethod weightMethod) {
+      switch (weightMethod) {
+         case Top50Linear: 
+            return 0.5;
+         case Top80Linear:
+            return 0.8;
+      }
+      return 0.0;
+   }
+   
    /**
     * Given a JFreeChart dataset and a commons math function, return a JFreeChart
     * dataset in which the original x values are now accompanied by the y values
@@ -191,6 +217,9 @@ public class Fitter {
             }
             break;
          case Gaussian:
+         case Centroid:
+         case Caruana:
+         case ThreePoint:
             checkParms(type, parms);
             Gaussian.Parametric gf = new Gaussian.Parametric();
             for (int i = 0; i < data.getItemCount() * 10; i++) {
@@ -251,6 +280,9 @@ public class Fitter {
             xAtMax = solver.solve(100, derivativePolFunction, minX, maxX);
             break;
          case Gaussian:
+         case Centroid:
+         case Caruana:
+         case ThreePoint:
             // for a Gaussian we can take the mean and be sure it is the maximum
             // note that this may be outside our range of X values, but 
             // this will be caught by our sanity checks below
@@ -369,6 +401,9 @@ public class Fitter {
 
             return polFunction.value(xValue);
          case Gaussian:
+         case Centroid:
+         case Caruana:
+         case ThreePoint:
             checkParms(type, parms);
             Gaussian.Parametric gf = new Gaussian.Parametric();
             double[] parms2 = new double[3];
@@ -396,6 +431,9 @@ public class Fitter {
             }
             break;
          case Gaussian:
+         case Centroid:
+         case Caruana:
+         case ThreePoint:
             if (parms.length != 4) {
                throw new IllegalArgumentException("Needs a double[] of size 4");
             }
@@ -410,6 +448,9 @@ public class Fitter {
          case Pol2 : return POL2;
          case Pol3 : return POL2;
          case Gaussian : return GAUSSIAN;
+         case Centroid : return CENTROID;
+         case Caruana : return CARUANA;
+         case ThreePoint : return THREEPOINT;
       }
       return "";
    }
@@ -425,11 +466,26 @@ public class Fitter {
          return FunctionType.Pol3;
       if (key.equals(GAUSSIAN))
          return FunctionType.Gaussian;
+      if (key.equals(CENTROID))
+         return FunctionType.Centroid;
+      if (key.equals(CARUANA))
+         return FunctionType.Caruana;
+      if (key.equals(THREEPOINT))
+         return FunctionType.ThreePoint;
       return FunctionType.NoFit;
    }
    
    public static String[] getFunctionTypes() {
-      return new String[] {NOFIT, POL1, POL2, POL3, GAUSSIAN};
+      return new String[] {NOFIT, POL1, POL2, POL3, GAUSSIAN, CENTROID, CARUANA,
+            THREEPOINT};
+   }
+   
+   /**
+    * @return names of the functions that can be used to find the center of
+    *          a beam: the Gaussian fit and the closed-form estimators
+    */
+   public static String[] getBeamFunctionTypes() {
+      return new String[] {GAUSSIAN, CENTROID, CARUANA, THREEPOINT};
    }
    
 }
\ No newline at end of file
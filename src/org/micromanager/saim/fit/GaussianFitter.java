@@ -0,0 +1,518 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          GaussianFitter.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.fit;
+
+import org.apache.commons.math3.exception.NumberIsTooSmallException;
+import org.apache.commons.math3.exception.TooManyIterationsException;
+
+/**
+ * Levenberg-Marquardt fit of a Gaussian with offset:
+ *    f(x) = norm * exp(-(x - mean)^2 / (2 sigma^2)) + offset
+ * to data in primitive arrays.  Results are returned in the order
+ * (norm, mean, sigma, offset).  Works directly on pixel values, uses the
+ * analytical derivatives for all four parameters, and keeps all its
+ * intermediate results in a workspace that is re-used from one fit to the
+ * next.  Points that get a weight of 0 (e.g. the
+ * lower half with WeightMethod.Top50Linear) are left out of the fit
+ * altogether.
+ *
+ * Pixel data are sorted by definition, so the initial guess can be made
+ * right away.  Other data are checked, and sorted when needed.
+ *
+ * Not thread safe, use one instance per thread (see forThread).
+ *
+ * @author nico
+ */
+public class GaussianFitter {
+
+   public static final int NORM = 0;
+   public static final int MEAN = 1;
+   public static final int SIGMA = 2;
+   public static final int OFFSET = 3;
+
+   private static final double COSTTOLERANCE = 1.0e-10;
+   private static final double PARAMETERTOLERANCE = 1.0e-10;
+   // norm and offset are strongly correlated when only the top of the peak
+   // is fitted, and heavy damping slows progress along that direction a lot
+   private static final double INITIALLAMBDA = 1.0e-6;
+   private static final double FWHMTOSIGMA = 1.0 / (2.0 * Math.sqrt(2.0 * Math.log(2.0)));
+
+   private static final ThreadLocal<GaussianFitter> FITTERS =
+           new ThreadLocal<GaussianFitter>() {
+      @Override
+      protected GaussianFitter initialValue() {
+         return new GaussianFitter();
+      }
+   };
+
+   private int maxIterations_ = 50;
+   private double positionTolerance_ = 0.0;
+
+   // all data, sorted by x (only used for data that are not pixels)
+   private double[] sortedX_ = new double[0];
+   private double[] sortedY_ = new double[0];
+   // points that take part in the fit
+   private double[] x_ = new double[0];
+   private double[] y_ = new double[0];
+   private double[] w_ = new double[0];
+   private int n_;
+   // exponentials and residuals at the current and at the trial parameters
+   private double[] e_ = new double[0];
+   private double[] r_ = new double[0];
+   private double[] trialE_ = new double[0];
+   private double[] trialR_ = new double[0];
+
+   private final double[] p_ = new double[4];
+   private final double[] trial_ = new double[4];
+   private final double[] alpha_ = new double[16];
+   private final double[] beta_ = new double[4];
+   private final double[] l_ = new double[16];
+   private final double[] delta_ = new double[4];
+   private final double[] guess_ = new double[4];
+   private int iterations_;
+   private double cost_;
+
+   /**
+    * @return fitter for use by the calling thread only
+    */
+   public static GaussianFitter forThread() {
+      return FITTERS.get();
+   }
+
+   /**
+    * @param maxIterations maximum number of iterations before the fit is
+    * given up (default 50)
+    */
+   public void setMaxIterations(int maxIterations) {
+      maxIterations_ = maxIterations;
+   }
+
+   /**
+    * @param positionTolerance the fit has also converged when an iteration
+    * moves the mean by less than this (in units of x).  Close to the optimum
+    * each iteration shrinks the remaining error of the mean quadratically,
+    * so the mean is more accurate than the tolerance, but norm and offset
+    * may not have settled yet.  Default 0 (not used).
+    */
+   public void setPositionTolerance(double positionTolerance) {
+      positionTolerance_ = positionTolerance;
+   }
+
+   /**
+    * @return number of iterations used by the last fit
+    */
+   public int getIterations() {
+      return iterations_;
+   }
+
+   /**
+    * @return number of points (with weight larger than 0) in the last fit
+    */
+   public int getNrPoints() {
+      return n_;
+   }
+
+   /**
+    * @return weighted sum of squared residuals of the last fit
+    */
+   public double getCost() {
+      return cost_;
+   }
+
+   /**
+    * Fits pixel values.  The x value of a pixel is its index in the array.
+    *
+    * @param pixels pixel values
+    * @param offset index of the first pixel to use
+    * @param length number of pixels to use
+    * @param weightMethod how points are weighted, as in Fitter
+    * @param guess starting point (norm, mean, sigma, offset), or null to
+    * estimate one from the data
+    * @param result array of length 4 that receives the result, or null
+    * @return norm, mean, sigma, offset
+    * @throws NumberIsTooSmallException when fewer than 4 points have weight
+    * @throws TooManyIterationsException when the fit does not converge
+    */
+   public double[] fit(short[] pixels, int offset, int length,
+           Fitter.WeightMethod weightMethod, double[] guess, double[] result) {
+      int min = Integer.MAX_VALUE;
+      int max = Integer.MIN_VALUE;
+      int maxIndex = offset;
+      for (int i = offset; i < offset + length; i++) {
+         if (pixels[i] < min) {
+            min = pixels[i];
+         }
+         if (pixels[i] > max) {
+            max = pixels[i];
+            maxIndex = i;
+         }
+      }
+      ensureCapacity(length);
+      final double range = max - min;
+      n_ = 0;
+      for (int i = offset; i < offset + length; i++) {
+         double w = Fitter.weight(pixels[i] - min, range, weightMethod);
+         if (w > 0.0) {
+            x_[n_] = i;
+            y_[n_] = pixels[i];
+            w_[n_] = w;
+            n_++;
+         }
+      }
+      if (guess == null) {
+         // the half maximum crossings of the peak
+         final double half = min + range / 2.0;
+         double left = offset;
+         for (int i = maxIndex; i > offset; i--) {
+            if (pixels[i - 1] <= half) {
+               left = interpolate(i - 1, pixels[i - 1], i, pixels[i], half);
+               break;
+            }
+         }
+         double right = offset + length - 1;
+         for (int i = maxIndex; i < offset + length - 1; i++) {
+            if (pixels[i + 1] <= half) {
+               right = interpolate(i, pixels[i], i + 1, pixels[i + 1], half);
+               break;
+            }
+         }
+         guess = makeGuess(range, maxIndex, right - left, min);
+      }
+      return solve(guess, result);
+   }
+
+   /**
+    * Fits arbitrary data
+    *
+    * @param x x values
+    * @param y y values
+    * @param length number of points to use (starting at index 0)
+    * @param weightMethod how points are weighted, as in Fitter
+    * @param guess starting point (norm, mean, sigma, offset), or null to
+    * estimate one from the data
+    * @param result array of length 4 that receives the result, or null
+    * @return norm, mean, sigma, offset
+    * @throws NumberIsTooSmallException when fewer than 4 points have weight
+    * @throws TooManyIterationsException when the fit does not converge
+    */
+   public double[] fit(double[] x, double[] y, int length,
+           Fitter.WeightMethod weightMethod, double[] guess, double[] result) {
+      ensureCapacity(length);
+      double min = Double.POSITIVE_INFINITY;
+      double max = Double.NEGATIVE_INFINITY;
+      for (int i = 0; i < length; i++) {
+         min = Math.min(min, y[i]);
+         max = Math.max(max, y[i]);
+      }
+      final double range = max - min;
+      n_ = 0;
+      for (int i = 0; i < length; i++) {
+         double w = Fitter.weight(y[i] - min, range, weightMethod);
+         if (w > 0.0) {
+            x_[n_] = x[i];
+            y_[n_] = y[i];
+            w_[n_] = w;
+            n_++;
+         }
+      }
+      if (guess == null) {
+         double[] sx = x;
+         double[] sy = y;
+         if (!isSorted(x, length)) {
+            System.arraycopy(x, 0, sortedX_, 0, length);
+            System.arraycopy(y, 0, sortedY_, 0, length);
+            sort(sortedX_, sortedY_, length);
+            sx = sortedX_;
+            sy = sortedY_;
+         }
+         int maxIndex = 0;
+         for (int i = 1; i < length; i++) {
+            if (sy[i] > sy[maxIndex]) {
+               maxIndex = i;
+            }
+         }
+         final double half = min + range / 2.0;
+         double left = sx[0];
+         for (int i = maxIndex; i > 0; i--) {
+            if (sy[i - 1] <= half) {
+               left = interpolate(sx[i - 1], sy[i - 1], sx[i], sy[i], half);
+               break;
+            }
+         }
+         double right = length > 0 ? sx[length - 1] : 0.0;
+         for (int i = maxIndex; i < length - 1; i++) {
+            if (sy[i + 1] <= half) {
+               right = interpolate(sx[i], sy[i], sx[i + 1], sy[i + 1], half);
+               break;
+            }
+         }
+         guess = makeGuess(range, length > 0 ? sx[maxIndex] : 0.0, right - left, min);
+      }
+      return solve(guess, result);
+   }
+
+   private double[] makeGuess(double norm, double mean, double fwhm, double offset) {
+      guess_[NORM] = norm;
+      guess_[MEAN] = mean;
+      guess_[SIGMA] = fwhm * FWHMTOSIGMA;
+      guess_[OFFSET] = offset;
+      return guess_;
+   }
+
+   /**
+    * Levenberg-Marquardt minimization of the weighted sum of squares
+    */
+   private double[] solve(double[] guess, double[] result) {
+      iterations_ = 0;
+      if (n_ < 4) {
+         throw new NumberIsTooSmallException(n_, 4, true);
+      }
+      System.arraycopy(guess, 0, p_, 0, 4);
+      double cost = evaluate(p_, e_, r_);
+      double lambda = INITIALLAMBDA;
+      boolean converged = false;
+      while (!converged) {
+         if (iterations_ >= maxIterations_) {
+            throw new TooManyIterationsException(maxIterations_);
+         }
+         iterations_++;
+         buildNormalEquations();
+         while (true) {
+            boolean solved = choleskySolve(lambda);
+            double trialCost = Double.POSITIVE_INFINITY;
+            if (solved) {
+               for (int j = 0; j < 4; j++) {
+                  trial_[j] = p_[j] + delta_[j];
+               }
+               if (trial_[SIGMA] > 0.0) {
+                  trialCost = evaluate(trial_, trialE_, trialR_);
+               }
+            }
+            if (trialCost < cost) {
+               double[] tmp = e_;
+               e_ = trialE_;
+               trialE_ = tmp;
+               tmp = r_;
+               r_ = trialR_;
+               trialR_ = tmp;
+               System.arraycopy(trial_, 0, p_, 0, 4);
+               converged = (cost - trialCost) <= COSTTOLERANCE * cost
+                       || smallStep()
+                       || Math.abs(delta_[MEAN]) < positionTolerance_;
+               cost = trialCost;
+               lambda = Math.max(lambda * 0.1, 1.0e-12);
+               break;
+            }
+            lambda *= 10.0;
+            if (lambda > 1.0e16) {
+               // no step reduces the cost any further: we are at the minimum
+               converged = true;
+               break;
+            }
+         }
+      }
+      cost_ = cost;
+      if (result == null) {
+         result = new double[4];
+      }
+      System.arraycopy(p_, 0, result, 0, 4);
+      return result;
+   }
+
+   /**
+    * Calculates exponentials and residuals at the given parameters
+    *
+    * @return weighted sum of squared residuals
+    */
+   private double evaluate(double[] p, double[] e, double[] r) {
+      final double norm = p[NORM];
+      final double mean = p[MEAN];
+      final double factor = -1.0 / (2.0 * p[SIGMA] * p[SIGMA]);
+      final double offset = p[OFFSET];
+      double cost = 0.0;
+      for (int i = 0; i < n_; i++) {
+         final double d = x_[i] - mean;
+         final double ei = Math.exp(d * d * factor);
+         final double ri = y_[i] - (norm * ei + offset);
+         e[i] = ei;
+         r[i] = ri;
+         cost += w_[i] * ri * ri;
+      }
+      return cost;
+   }
+
+   /**
+    * Fills alpha (J^T W J) and beta (J^T W r) at the current parameters
+    */
+   private void buildNormalEquations() {
+      final double norm = p_[NORM];
+      final double mean = p_[MEAN];
+      final double sigma = p_[SIGMA];
+      final double invS2 = 1.0 / (sigma * sigma);
+      final double invS3 = invS2 / sigma;
+      double a00 = 0, a01 = 0, a02 = 0, a03 = 0;
+      double a11 = 0, a12 = 0, a13 = 0;
+      double a22 = 0, a23 = 0;
+      double a33 = 0;
+      double b0 = 0, b1 = 0, b2 = 0, b3 = 0;
+      for (int i = 0; i < n_; i++) {
+         final double d = x_[i] - mean;
+         final double w = w_[i];
+         final double j0 = e_[i];
+         final double ne = norm * j0;
+         final double j1 = ne * d * invS2;
+         final double j2 = ne * d * d * invS3;
+         final double wr = w * r_[i];
+         final double wj0 = w * j0;
+         final double wj1 = w * j1;
+         final double wj2 = w * j2;
+         a00 += wj0 * j0;
+         a01 += wj0 * j1;
+         a02 += wj0 * j2;
+         a03 += wj0;
+         a11 += wj1 * j1;
+         a12 += wj1 * j2;
+         a13 += wj1;
+         a22 += wj2 * j2;
+         a23 += wj2;
+         a33 += w;
+         b0 += wr * j0;
+         b1 += wr * j1;
+         b2 += wr * j2;
+         b3 += wr;
+      }
+      final double[] a = alpha_;
+      a[0] = a00;  a[1] = a01;  a[2] = a02;  a[3] = a03;
+      a[4] = a01;  a[5] = a11;  a[6] = a12;  a[7] = a13;
+      a[8] = a02;  a[9] = a12;  a[10] = a22; a[11] = a23;
+      a[12] = a03; a[13] = a13; a[14] = a23; a[15] = a33;
+      beta_[0] = b0;
+      beta_[1] = b1;
+      beta_[2] = b2;
+      beta_[3] = b3;
+   }
+
+   /**
+    * Solves (alpha + lambda * diag(alpha)) delta = beta with a Cholesky
+    * decomposition
+    *
+    * @return false when the matrix is not positive definite
+    */
+   private boolean choleskySolve(double lambda) {
+      final double[] a = alpha_;
+      final double[] l = l_;
+      for (int i = 0; i < 4; i++) {
+         for (int j = 0; j <= i; j++) {
+            double sum = a[i * 4 + j];
+            if (i == j) {
+               sum += lambda * a[i * 4 + i];
+            }
+            for (int k = 0; k < j; k++) {
+               sum -= l[i * 4 + k] * l[j * 4 + k];
+            }
+            if (i == j) {
+               if (!(sum > 0.0)) {
+                  return false;
+               }
+               l[i * 4 + i] = Math.sqrt(sum);
+            } else {
+               l[i * 4 + j] = sum / l[j * 4 + j];
+            }
+         }
+      }
+      // forward substitution: L z = beta
+      for (int i = 0; i < 4; i++) {
+         double sum = beta_[i];
+         for (int k = 0; k < i; k++) {
+            sum -= l[i * 4 + k] * delta_[k];
+         }
+         delta_[i] = sum / l[i * 4 + i];
+      }
+      // back substitution: L^T delta = z
+      for (int i = 3; i >= 0; i--) {
+         double sum = delta_[i];
+         for (int k = i + 1; k < 4; k++) {
+            sum -= l[k * 4 + i] * delta_[k];
+         }
+         delta_[i] = sum / l[i * 4 + i];
+      }
+      return true;
+   }
+
+   private boolean smallStep() {
+      for (int j = 0; j < 4; j++) {
+         if (Math.abs(delta_[j]) > PARAMETERTOLERANCE * (Math.abs(p_[j]) + PARAMETERTOLERANCE)) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private void ensureCapacity(int length) {
+      if (x_.length < length) {
+         sortedX_ = new double[length];
+         sortedY_ = new double[length];
+         x_ = new double[length];
+         y_ = new double[length];
+         w_ = new double[length];
+         e_ = new double[length];
+         r_ = new double[length];
+         trialE_ = new double[length];
+         trialR_ = new double[length];
+      }
+   }
+
+   private static double interpolate(double x1, double y1, double x2, double y2,
+           double y) {
+      if (y1 == y2) {
+         return x1;
+      }
+      return x1 + (y - y1) * (x2 - x1) / (y2 - y1);
+   }
+
+   static boolean isSorted(double[] x, int length) {
+      for (int i = 1; i < length; i++) {
+         if (x[i] < x[i - 1]) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Insertion sort of x, carrying y along.  Data are usually close to sorted.
+    */
+   static void sort(double[] x, double[] y, int length) {
+      for (int i = 1; i < length; i++) {
+         final double xi = x[i];
+         final double yi = y[i];
+         int j = i - 1;
+         while (j >= 0 && x[j] > xi) {
+            x[j + 1] = x[j];
+            y[j + 1] = y[j];
+            j--;
+         }
+         x[j + 1] = xi;
+         y[j + 1] = yi;
+      }
+   }
+
+}
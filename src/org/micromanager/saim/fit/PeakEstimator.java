@@ -0,0 +1,365 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          PeakEstimator.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.fit;
+
+import org.apache.commons.math3.exception.ConvergenceException;
+import org.apache.commons.math3.exception.NumberIsTooSmallException;
+
+/**
+ * Closed-form estimates of the position of a Gaussian beam on a detector.
+ * These take a few microseconds, where a Levenberg-Marquardt fit
+ * (GaussianFitter) needs several iterations over all pixels.  They are
+ * accurate enough to find the beam center by themselves, and make an
+ * excellent starting point for the full fit.
+ *
+ * All estimators work on the peak: the contiguous run of points around the
+ * maximum that lie above the threshold of the WeightMethod (half way between
+ * minimum and maximum for Top50Linear, 80% for Top80Linear, the minimum for
+ * all others).  Results have the same layout as the Gaussian fit (norm,
+ * mean, sigma, offset), with the minimum of the data as offset.
+ *
+ *    Centroid: center of mass of the peak, after subtraction of the
+ *       threshold.  Sigma is estimated from the full width at half maximum.
+ *    Caruana: weighted least squares fit of a parabola to the logarithm of
+ *       the peak, weighted with the square of the intensity to suppress the
+ *       noise in the tails (Guo's variant of Caruana's method).
+ *    ThreePoint: parabola through the logarithm of three adjacent bins,
+ *       each a third of the peak wide, around the brightest one.  Binning
+ *       smooths the peak, and widens it a little (sigma is slightly too
+ *       large), but keeps it symmetric.
+ *
+ * Keeps its data in a workspace, so it is not thread safe.  Use one instance
+ * per thread (see forThread).
+ *
+ * @author nico
+ */
+public class PeakEstimator {
+
+   private static final double FWHMTOSIGMA = 1.0 / (2.0 * Math.sqrt(2.0 * Math.log(2.0)));
+
+   private static final ThreadLocal<PeakEstimator> ESTIMATORS =
+           new ThreadLocal<PeakEstimator>() {
+      @Override
+      protected PeakEstimator initialValue() {
+         return new PeakEstimator();
+      }
+   };
+
+   private double[] x_ = new double[0];
+   private double[] y_ = new double[0];
+   private int n_;
+   // description of the data and of the peak, set by findPeak
+   private double min_;
+   private double range_;
+   private double level_;
+   private int max_;
+   private int first_;
+   private int last_;
+
+   /**
+    * @return estimator for use by the calling thread only
+    */
+   public static PeakEstimator forThread() {
+      return ESTIMATORS.get();
+   }
+
+   /**
+    * @param type one of the Fitter.FunctionType predefined functions
+    * @return true if type is one of the estimators implemented here
+    */
+   public static boolean isEstimator(Fitter.FunctionType type) {
+      return type == Fitter.FunctionType.Centroid
+              || type == Fitter.FunctionType.Caruana
+              || type == Fitter.FunctionType.ThreePoint;
+   }
+
+   /**
+    * Estimates the beam in pixel values.  The x value of a pixel is its index
+    * in the array.
+    *
+    * @param type Centroid, Caruana, or ThreePoint
+    * @param pixels pixel values
+    * @param offset index of the first pixel to use
+    * @param length number of pixels to use
+    * @param weightMethod determines the threshold that delimits the peak
+    * @param result array of length 4 that receives the result, or null
+    * @return norm, mean, sigma, offset
+    * @throws NumberIsTooSmallException when the peak has too few points
+    * @throws ConvergenceException when the peak does not look like a Gaussian
+    */
+   public double[] estimate(Fitter.FunctionType type, short[] pixels, int offset,
+           int length, Fitter.WeightMethod weightMethod, double[] result) {
+      ensureCapacity(length);
+      for (int i = 0; i < length; i++) {
+         x_[i] = offset + i;
+         y_[i] = pixels[offset + i];
+      }
+      n_ = length;
+      return estimate(type, weightMethod, result);
+   }
+
+   /**
+    * Estimates the beam in arbitrary data
+    *
+    * @param type Centroid, Caruana, or ThreePoint
+    * @param x x values
+    * @param y y values
+    * @param length number of points to use (starting at index 0)
+    * @param weightMethod determines the threshold that delimits the peak
+    * @param result array of length 4 that receives the result, or null
+    * @return norm, mean, sigma, offset
+    * @throws NumberIsTooSmallException when the peak has too few points
+    * @throws ConvergenceException when the peak does not look like a Gaussian
+    */
+   public double[] estimate(Fitter.FunctionType type, double[] x, double[] y,
+           int length, Fitter.WeightMethod weightMethod, double[] result) {
+      ensureCapacity(length);
+      System.arraycopy(x, 0, x_, 0, length);
+      System.arraycopy(y, 0, y_, 0, length);
+      n_ = length;
+      if (!GaussianFitter.isSorted(x_, n_)) {
+         GaussianFitter.sort(x_, y_, n_);
+      }
+      return estimate(type, weightMethod, result);
+   }
+
+   private double[] estimate(Fitter.FunctionType type,
+           Fitter.WeightMethod weightMethod, double[] result) {
+      if (result == null) {
+         result = new double[4];
+      }
+      findPeak(Fitter.threshold(weightMethod));
+      switch (type) {
+         case Centroid:
+            centroid(result);
+            break;
+         case Caruana:
+            caruana(result);
+            break;
+         case ThreePoint:
+            threePoint(result);
+            break;
+         default:
+            throw new IllegalArgumentException("Not an estimator: " + type);
+      }
+      result[GaussianFitter.OFFSET] = min_;
+      return result;
+   }
+
+   /**
+    * Finds minimum, maximum, and the run of points above the threshold
+    * around the maximum
+    *
+    * @param threshold fraction of the range between minimum and maximum
+    */
+   private void findPeak(double threshold) {
+      if (n_ < 3) {
+         throw new NumberIsTooSmallException(n_, 3, true);
+      }
+      double min = y_[0];
+      int max = 0;
+      for (int i = 1; i < n_; i++) {
+         if (y_[i] < min) {
+            min = y_[i];
+         }
+         if (y_[i] > y_[max]) {
+            max = i;
+         }
+      }
+      min_ = min;
+      max_ = max;
+      range_ = y_[max] - min;
+      level_ = min + threshold * range_;
+      first_ = max;
+      while (first_ > 0 && y_[first_ - 1] > level_) {
+         first_--;
+      }
+      last_ = max;
+      while (last_ < n_ - 1 && y_[last_ + 1] > level_) {
+         last_++;
+      }
+   }
+
+   private void centroid(double[] result) {
+      if (last_ - first_ < 2) {
+         throw new NumberIsTooSmallException(last_ - first_ + 1, 3, true);
+      }
+      double sum = 0.0;
+      double sumX = 0.0;
+      for (int i = first_; i <= last_; i++) {
+         final double m = y_[i] - level_;
+         sum += m;
+         sumX += m * x_[i];
+      }
+      // crossings of half maximum, these may lie outside the peak
+      final double half = min_ + range_ / 2.0;
+      double left = x_[0];
+      for (int i = max_; i > 0; i--) {
+         if (y_[i - 1] <= half) {
+            left = interpolate(i - 1, i, half);
+            break;
+         }
+      }
+      double right = x_[n_ - 1];
+      for (int i = max_; i < n_ - 1; i++) {
+         if (y_[i + 1] <= half) {
+            right = interpolate(i, i + 1, half);
+            break;
+         }
+      }
+      result[GaussianFitter.NORM] = range_;
+      result[GaussianFitter.MEAN] = sumX / sum;
+      result[GaussianFitter.SIGMA] = (right - left) * FWHMTOSIGMA;
+   }
+
+   private void caruana(double[] result) {
+      // ln(y - min) = a + b u + c u^2, with u = x - x[max] for precision
+      final double x0 = x_[max_];
+      double s0 = 0, s1 = 0, s2 = 0, s3 = 0, s4 = 0;
+      double t0 = 0, t1 = 0, t2 = 0;
+      int count = 0;
+      for (int i = first_; i <= last_; i++) {
+         final double v = y_[i] - min_;
+         if (v <= 0.0) {
+            continue;
+         }
+         final double w = v * v;
+         final double u = x_[i] - x0;
+         final double u2 = u * u;
+         final double l = Math.log(v);
+         s0 += w;
+         s1 += w * u;
+         s2 += w * u2;
+         s3 += w * u2 * u;
+         s4 += w * u2 * u2;
+         t0 += w * l;
+         t1 += w * u * l;
+         t2 += w * u2 * l;
+         count++;
+      }
+      if (count < 3) {
+         throw new NumberIsTooSmallException(count, 3, true);
+      }
+      // Cramer's rule on the 3x3 normal equations
+      final double det = s0 * (s2 * s4 - s3 * s3) - s1 * (s1 * s4 - s3 * s2)
+              + s2 * (s1 * s3 - s2 * s2);
+      final double detA = t0 * (s2 * s4 - s3 * s3) - s1 * (t1 * s4 - s3 * t2)
+              + s2 * (t1 * s3 - s2 * t2);
+      final double detB = s0 * (t1 * s4 - t2 * s3) - t0 * (s1 * s4 - s3 * s2)
+              + s2 * (s1 * t2 - t1 * s2);
+      final double detC = s0 * (s2 * t2 - s3 * t1) - s1 * (s1 * t2 - s2 * t1)
+              + t0 * (s1 * s3 - s2 * s2);
+      if (det == 0.0) {
+         throw new ConvergenceException();
+      }
+      vertex(detA / det, detB / det, detC / det, x0, result);
+   }
+
+   private void threePoint(double[] result) {
+      // three adjacent bins, each a third of the peak wide, around the bin
+      // with the highest sum
+      final int width = (last_ - first_ + 1) / 3;
+      if (width < 1) {
+         throw new NumberIsTooSmallException(last_ - first_ + 1, 3, true);
+      }
+      int best = first_ + width;
+      double bestSum = Double.NEGATIVE_INFINITY;
+      for (int start = first_ + width; start + 2 * width - 1 <= last_; start++) {
+         double sum = 0.0;
+         for (int i = start; i < start + width; i++) {
+            sum += y_[i];
+         }
+         if (sum > bestSum) {
+            bestSum = sum;
+            best = start;
+         }
+      }
+      final double v1 = binSum(best - width, width);
+      final double v2 = binSum(best, width);
+      final double v3 = binSum(best + width, width);
+      if (v1 <= 0.0 || v2 <= 0.0 || v3 <= 0.0) {
+         throw new ConvergenceException();
+      }
+      // parabola through the logarithms, with u = x - x0 at the bin centers
+      final double x0 = binCenter(best, width);
+      final double u1 = binCenter(best - width, width) - x0;
+      final double u3 = binCenter(best + width, width) - x0;
+      final double l1 = Math.log(v1);
+      final double l2 = Math.log(v2);
+      final double l3 = Math.log(v3);
+      final double d1 = (l1 - l2) / u1;
+      final double d3 = (l3 - l2) / u3;
+      final double c = (d3 - d1) / (u3 - u1);
+      final double b = d1 - c * u1;
+      vertex(l2, b, c, x0, result);
+      // the bins add up width points each
+      result[GaussianFitter.NORM] /= width;
+   }
+
+   /**
+    * @return sum of the points of a bin, above the minimum of the data
+    */
+   private double binSum(int start, int width) {
+      double sum = 0.0;
+      for (int i = start; i < start + width; i++) {
+         sum += y_[i] - min_;
+      }
+      return sum;
+   }
+
+   private double binCenter(int start, int width) {
+      double sum = 0.0;
+      for (int i = start; i < start + width; i++) {
+         sum += x_[i];
+      }
+      return sum / width;
+   }
+
+   /**
+    * Converts the parabola a + b u + c u^2, with u = x - x0, fitted to the
+    * logarithm of a Gaussian into the parameters of that Gaussian
+    */
+   private static void vertex(double a, double b, double c, double x0,
+           double[] result) {
+      if (!(c < 0.0)) {
+         // not a peak
+         throw new ConvergenceException();
+      }
+      result[GaussianFitter.NORM] = Math.exp(a - b * b / (4.0 * c));
+      result[GaussianFitter.MEAN] = x0 - b / (2.0 * c);
+      result[GaussianFitter.SIGMA] = Math.sqrt(-1.0 / (2.0 * c));
+   }
+
+   private double interpolate(int i1, int i2, double y) {
+      if (y_[i1] == y_[i2]) {
+         return x_[i1];
+      }
+      return x_[i1] + (y - y_[i1]) * (x_[i2] - x_[i1]) / (y_[i2] - y_[i1]);
+   }
+
+   private void ensureCapacity(int length) {
+      if (x_.length < length) {
+         x_ = new double[length];
+         y_ = new double[length];
+      }
+   }
+
+}
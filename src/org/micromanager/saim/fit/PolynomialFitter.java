@@ -0,0 +1,410 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          PolynomialFitter.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.fit;
+
+import java.util.Arrays;
+import org.apache.commons.math3.exception.NumberIsTooSmallException;
+import org.apache.commons.math3.linear.SingularMatrixException;
+
+/**
+ * Weighted least squares fit of a polynomial, solved directly.  A polynomial
+ * is linear in its coefficients, so there is no need for an iterative
+ * optimizer: the normal equations (the weighted Vandermonde system
+ * multiplied by its transpose) are accumulated point by point, and solved
+ * with a Cholesky decomposition.  The result is exact in a single pass, and
+ * does not depend on a starting point.
+ *
+ * Points can be added and removed one at a time, after which solve gives the
+ * fit of the current set of points, e.g. to refit the calibration curve
+ * while a scan is running.  To keep the normal equations well conditioned,
+ * x values are mapped onto [-1, 1] using the domain set with setDomain (or
+ * the range of the data in fit).  Coefficients are always returned for the
+ * original x, lowest order first, as by commons math PolynomialCurveFitter.
+ *
+ * Not thread safe.
+ *
+ * @author nico
+ */
+public class PolynomialFitter {
+
+   private final int degree_;
+   private final int nrCoefficients_;
+   // sum of w * u^k, k = 0 .. 2 * degree, with u the scaled x
+   private final double[] powerSums_;
+   // sum of w * u^k * y, k = 0 .. degree
+   private final double[] momentSums_;
+   // sum of w * y^2
+   private double squareSum_ = 0.0;
+   private final double[] matrix_;
+   private final double[] scaled_;
+   private final double[] binomials_;
+   private final double[] leverage_;
+   private final double[] inverse_;
+   private double center_ = 0.0;
+   private double halfWidth_ = 1.0;
+   private int count_ = 0;
+
+   /**
+    * @param degree degree of the polynomial (1 for a straight line)
+    */
+   public PolynomialFitter(int degree) {
+      if (degree < 0) {
+         throw new IllegalArgumentException("Degree can not be negative");
+      }
+      degree_ = degree;
+      nrCoefficients_ = degree + 1;
+      powerSums_ = new double[2 * degree + 1];
+      momentSums_ = new double[nrCoefficients_];
+      matrix_ = new double[nrCoefficients_ * nrCoefficients_];
+      scaled_ = new double[nrCoefficients_];
+      binomials_ = new double[nrCoefficients_];
+      leverage_ = new double[nrCoefficients_];
+      inverse_ = new double[nrCoefficients_ * nrCoefficients_];
+   }
+
+   public int getDegree() {
+      return degree_;
+   }
+
+   /**
+    * Sets the range of x values that will be used, and removes all points.
+    * Points outside the range can still be added, but the further away they
+    * are, the less precise the fit becomes.
+    *
+    * @param min lowest expected x value
+    * @param max highest expected x value
+    */
+   public void setDomain(double min, double max) {
+      clear();
+      center_ = (min + max) / 2.0;
+      halfWidth_ = max > min ? (max - min) / 2.0 : 1.0;
+   }
+
+   /**
+    * Removes all points
+    */
+   public void clear() {
+      Arrays.fill(powerSums_, 0.0);
+      Arrays.fill(momentSums_, 0.0);
+      squareSum_ = 0.0;
+      count_ = 0;
+   }
+
+   /**
+    * @return number of points that are currently part of the fit
+    */
+   public int getCount() {
+      return count_;
+   }
+
+   /**
+    * Adds a point to the fit
+    *
+    * @param x x value
+    * @param y y value
+    * @param weight weight of the point
+    */
+   public void add(double x, double y, double weight) {
+      accumulate(x, y, weight);
+      count_++;
+   }
+
+   /**
+    * Removes a point that was added before.  x, y, and weight need to be the
+    * same as when the point was added.
+    *
+    * @param x x value
+    * @param y y value
+    * @param weight weight of the point
+    */
+   public void remove(double x, double y, double weight) {
+      accumulate(x, y, -weight);
+      count_--;
+   }
+
+   /**
+    * Fits a polynomial to the given points.  Replaces all points added before.
+    *
+    * @param x x values
+    * @param y y values
+    * @param weights weights of the points, null for equal weights
+    * @param length number of points to use (starting at index 0)
+    * @param result array of length degree + 1 that receives the coefficients,
+    * or null
+    * @return coefficients, lowest order first
+    * @throws NumberIsTooSmallException when there are fewer points than
+    * coefficients
+    * @throws SingularMatrixException when the points do not determine the
+    * polynomial (e.g. too few distinct x values)
+    */
+   public double[] fit(double[] x, double[] y, double[] weights, int length,
+           double[] result) {
+      double min = Double.POSITIVE_INFINITY;
+      double max = Double.NEGATIVE_INFINITY;
+      for (int i = 0; i < length; i++) {
+         min = Math.min(min, x[i]);
+         max = Math.max(max, x[i]);
+      }
+      setDomain(min, max);
+      for (int i = 0; i < length; i++) {
+         add(x[i], y[i], weights == null ? 1.0 : weights[i]);
+      }
+      return solve(result);
+   }
+
+   /**
+    * Fits a polynomial to the points added so far
+    *
+    * @param result array of length degree + 1 that receives the coefficients,
+    * or null
+    * @return coefficients, lowest order first
+    * @throws NumberIsTooSmallException when there are fewer points than
+    * coefficients
+    * @throws SingularMatrixException when the points do not determine the
+    * polynomial (e.g. too few distinct x values)
+    */
+   public double[] solve(double[] result) {
+      final int n = nrCoefficients_;
+      if (count_ < n) {
+         throw new NumberIsTooSmallException(count_, n, true);
+      }
+      // Cholesky decomposition of the normal matrix, in place (lower triangle)
+      final double[] a = matrix_;
+      for (int i = 0; i < n; i++) {
+         for (int j = 0; j <= i; j++) {
+            double sum = powerSums_[i + j];
+            for (int k = 0; k < j; k++) {
+               sum -= a[i * n + k] * a[j * n + k];
+            }
+            if (i == j) {
+               if (!(sum > 1.0e-12 * powerSums_[2 * i])) {
+                  throw new SingularMatrixException();
+               }
+               a[i * n + i] = Math.sqrt(sum);
+            } else {
+               a[i * n + j] = sum / a[j * n + j];
+            }
+         }
+      }
+      final double[] c = scaled_;
+      for (int i = 0; i < n; i++) {
+         double sum = momentSums_[i];
+         for (int k = 0; k < i; k++) {
+            sum -= a[i * n + k] * c[k];
+         }
+         c[i] = sum / a[i * n + i];
+      }
+      for (int i = n - 1; i >= 0; i--) {
+         double sum = c[i];
+         for (int k = i + 1; k < n; k++) {
+            sum -= a[k * n + i] * c[k];
+         }
+         c[i] = sum / a[i * n + i];
+      }
+
+      // sum c_k ((x - center) / halfWidth)^k, expanded in powers of x
+      if (result == null) {
+         result = new double[n];
+      }
+      Arrays.fill(result, 0, n, 0.0);
+      double scale = 1.0;
+      for (int k = 0; k < n; k++) {
+         // binomials_ holds row k of Pascal's triangle
+         binomials_[k] = 1.0;
+         for (int j = k - 1; j > 0; j--) {
+            binomials_[j] += binomials_[j - 1];
+         }
+         final double ck = c[k] / scale;
+         double shift = 1.0;
+         for (int j = k; j >= 0; j--) {
+            // term binomial(k, j) x^j (-center)^(k - j)
+            result[j] += ck * binomials_[j] * shift;
+            shift *= -center_;
+         }
+         scale *= halfWidth_;
+      }
+      return result;
+   }
+
+   /**
+    * Leverage of an x value in the last fit: the variance of the fitted
+    * polynomial at x, in units of the variance of a point of weight 1.
+    * Multiply its square root by the standard deviation of the points to
+    * get the uncertainty of the fitted value.  Only valid right after solve
+    * (or fit), before points are added or removed.
+    *
+    * @param x x value
+    * @return leverage of x
+    */
+   public double getLeverage(double x) {
+      final int n = nrCoefficients_;
+      final double[] a = matrix_;
+      final double[] z = leverage_;
+      final double u = (x - center_) / halfWidth_;
+      // solve L z = v, with v the powers of u; the leverage is |z|^2
+      double power = 1.0;
+      double sum = 0.0;
+      for (int i = 0; i < n; i++) {
+         double zi = power;
+         for (int k = 0; k < i; k++) {
+            zi -= a[i * n + k] * z[k];
+         }
+         z[i] = zi / a[i * n + i];
+         sum += z[i] * z[i];
+         power *= u;
+      }
+      return sum;
+   }
+
+   /**
+    * Slope of the polynomial of the last fit.  Only valid right after solve
+    * (or fit), before points are added or removed.
+    *
+    * @param x x value
+    * @return first derivative of the polynomial at x
+    */
+   public double getSlope(double x) {
+      final double u = (x - center_) / halfWidth_;
+      double result = 0.0;
+      for (int k = degree_; k >= 1; k--) {
+         result = result * u + k * scaled_[k];
+      }
+      return result / halfWidth_;
+   }
+
+   /**
+    * Standard error of an x value predicted from its y value through the
+    * polynomial of the last fit (i.e. through its inverse): the standard
+    * error of the fitted value at x (from the scatter of the points and the
+    * leverage of x) divided by the slope of the polynomial at x.  Only valid
+    * right after solve (or fit), before points are added or removed.
+    *
+    * @param x x value
+    * @return standard error of x, infinite when there are no more points
+    * than coefficients, or when the polynomial is flat at x
+    */
+   public double getInverseError(double x) {
+      final int degreesOfFreedom = count_ - nrCoefficients_;
+      final double slope = Math.abs(getSlope(x));
+      if (degreesOfFreedom <= 0 || slope == 0.0) {
+         return Double.POSITIVE_INFINITY;
+      }
+      final double sigma = Math.sqrt(getResidualSumOfSquares() / degreesOfFreedom);
+      return sigma * Math.sqrt(getLeverage(x)) / slope;
+   }
+
+   /**
+    * Weighted sum of the squared residuals of the last fit.  Only valid right
+    * after solve (or fit), before points are added or removed.
+    *
+    * @return sum of w * (y - fitted y)^2
+    */
+   public double getResidualSumOfSquares() {
+      // y'Wy - c'X'Wy, since c solves the normal equations
+      double result = squareSum_;
+      for (int k = 0; k < nrCoefficients_; k++) {
+         result -= scaled_[k] * momentSums_[k];
+      }
+      return Math.max(0.0, result);
+   }
+
+   /**
+    * Standard errors of the coefficients of the last fit, estimated from the
+    * scatter of the points around the polynomial.  Only valid right after
+    * solve (or fit), before points are added or removed.
+    *
+    * @param result array of length degree + 1 that receives the standard
+    * errors, lowest order first, or null
+    * @return standard errors of the coefficients, infinite when there are no
+    * more points than coefficients
+    */
+   public double[] getCoefficientErrors(double[] result) {
+      final int n = nrCoefficients_;
+      if (result == null) {
+         result = new double[n];
+      }
+      if (count_ <= n) {
+         Arrays.fill(result, 0, n, Double.POSITIVE_INFINITY);
+         return result;
+      }
+      final double variance = getResidualSumOfSquares() / (count_ - n);
+      // inverse of the normal matrix: (L L')^-1 = L^-T L^-1.  First L^-1
+      // (lower triangle of inverse_), column by column.
+      final double[] a = matrix_;
+      final double[] inv = inverse_;
+      for (int j = 0; j < n; j++) {
+         for (int i = 0; i < j; i++) {
+            inv[i * n + j] = 0.0;
+         }
+         inv[j * n + j] = 1.0 / a[j * n + j];
+         for (int i = j + 1; i < n; i++) {
+            double sum = 0.0;
+            for (int k = j; k < i; k++) {
+               sum -= a[i * n + k] * inv[k * n + j];
+            }
+            inv[i * n + j] = sum / a[i * n + i];
+         }
+      }
+      // a_j = sum_k t_jk c_k, with t_jk = binomial(k, j) (-center)^(k - j) /
+      // halfWidth^k, so var(a_j) = sum_k sum_l t_jk t_jl cov(c_k, c_l)
+      for (int j = 0; j < n; j++) {
+         // row j of t, into leverage_ (not needed here)
+         final double[] t = leverage_;
+         for (int k = 0; k < n; k++) {
+            t[k] = k < j ? 0.0 : binomial(k, j) * Math.pow(-center_, k - j)
+                    / Math.pow(halfWidth_, k);
+         }
+         // t' L^-T L^-1 t = |L^-1 t|^2
+         double sum = 0.0;
+         for (int i = 0; i < n; i++) {
+            double z = 0.0;
+            for (int k = 0; k <= i; k++) {
+               z += inv[i * n + k] * t[k];
+            }
+            sum += z * z;
+         }
+         result[j] = Math.sqrt(variance * sum);
+      }
+      return result;
+   }
+
+   private static double binomial(int n, int k) {
+      double result = 1.0;
+      for (int i = 1; i <= k; i++) {
+         result = result * (n - k + i) / i;
+      }
+      return result;
+   }
+
+   private void accumulate(double x, double y, double weight) {
+      final double u = (x - center_) / halfWidth_;
+      squareSum_ += weight * y * y;
+      double power = weight;
+      for (int k = 0; k < powerSums_.length; k++) {
+         powerSums_[k] += power;
+         if (k < nrCoefficients_) {
+            momentSums_[k] += power * y;
+         }
+         power *= u;
+      }
+   }
+
+}
@@ -0,0 +1,105 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          Layer.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.model;
+
+/**
+ * A layer of a SAIM substrate: its refractive index n + ik and its
+ * thickness.  The layer at the bottom of the stack (the substrate itself,
+ * usually silicon) is infinitely thick.
+ *
+ * Objects are immutable.
+ *
+ * @author nico
+ */
+public final class Layer {
+
+   private final double n_;
+   private final double k_;
+   private final double thickness_;
+
+   /**
+    * @param n real part of the refractive index
+    * @param k extinction coefficient (imaginary part of the refractive index)
+    * @param thickness thickness of the layer (nm)
+    */
+   public Layer(double n, double k, double thickness) {
+      n_ = n;
+      k_ = k;
+      thickness_ = thickness;
+   }
+
+   /**
+    * @param n refractive index (transparent material)
+    * @param thickness thickness of the layer (nm)
+    */
+   public Layer(double n, double thickness) {
+      this(n, 0.0, thickness);
+   }
+
+   /**
+    * @param n real part of the refractive index
+    * @param k extinction coefficient
+    * @return infinitely thick layer, for the bottom of the stack
+    */
+   public static Layer substrate(double n, double k) {
+      return new Layer(n, k, Double.POSITIVE_INFINITY);
+   }
+
+   public double getN() {
+      return n_;
+   }
+
+   public double getK() {
+      return k_;
+   }
+
+   /**
+    * @return thickness (nm), infinite for the substrate
+    */
+   public double getThickness() {
+      return thickness_;
+   }
+
+   @Override
+   public boolean equals(Object other) {
+      if (!(other instanceof Layer)) {
+         return false;
+      }
+      Layer layer = (Layer) other;
+      return Double.compare(n_, layer.n_) == 0 && Double.compare(k_, layer.k_) == 0
+              && Double.compare(thickness_, layer.thickness_) == 0;
+   }
+
+   @Override
+   public int hashCode() {
+      long bits = Double.doubleToLongBits(n_);
+      bits = 31 * bits + Double.doubleToLongBits(k_);
+      bits = 31 * bits + Double.doubleToLongBits(thickness_);
+      return (int) (bits ^ (bits >>> 32));
+   }
+
+   @Override
+   public String toString() {
+      return "n=" + n_ + (k_ == 0.0 ? "" : "+" + k_ + "i")
+              + (Double.isInfinite(thickness_) ? "" : ", " + thickness_ + " nm");
+   }
+
+}
@@ -0,0 +1,460 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          SaimModel.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.model;
+
+import java.util.Arrays;
+import org.apache.commons.math3.complex.Complex;
+import org.micromanager.saim.data.RI;
+
+/**
+ * Excitation intensity of SAIM at a height above a reflecting substrate,
+ * for the angles of an acquisition.
+ *
+ * Light comes in through the sample at angle theta, and is reflected by a
+ * stack of thin layers on top of a substrate (usually silicon oxide on
+ * silicon).  The incoming and reflected waves interfere, so that the
+ * intensity at height h above the top layer is
+ *    I(h) = a + b cos(kh) + c sin(kh)
+ * with k = 4 pi n cos(theta) / wavelength.  For s-polarized light
+ *    I(h) = |1 + r exp(i k h)|^2
+ * so a = 1 + |r|^2, b = 2 Re(r) and c = -2 Im(r), with r the reflection
+ * coefficient of the stack.  For p-polarized light, the field parallel to
+ * the substrate and the one perpendicular to it interfere with opposite
+ * signs, which scales b and c by -cos(2 theta).  Unpolarized light is the
+ * average of both.
+ *
+ * The reflection coefficient is worked out layer by layer, from the
+ * substrate up (the same as multiplying the 2x2 transfer matrices of the
+ * layers), in complex arithmetic so that absorbing layers and evanescent
+ * waves are handled.  a, b, c and k only depend on the angle, and are
+ * worked out once, when the model is built.  An intensity then costs a sine
+ * and a cosine, and a range of evenly spaced heights (see intensities(double,
+ * double, int, double[])) a few multiplications and additions each.
+ *
+ * Angles are the angles in the sample, as set by the calibration.
+ *
+ * Objects are immutable and can be shared between threads.
+ *
+ * @author nico
+ */
+public final class SaimModel {
+
+   /**
+    * Polarization of the excitation light, relative to the plane of
+    * incidence
+    */
+   public static enum Polarization {
+      S ("s"),
+      P ("p"),
+      UNPOLARIZED ("Unpolarized");
+
+      private final String name_;
+      Polarization(String name) {
+         name_ = name;
+      }
+
+      @Override
+      public String toString() {
+         return name_;
+      }
+
+      /**
+       * @param name name as returned by toString
+       * @return polarization with that name, S when there is none
+       */
+      public static Polarization fromName(String name) {
+         for (Polarization polarization : values()) {
+            if (polarization.name_.equals(name)) {
+               return polarization;
+            }
+         }
+         return S;
+      }
+   }
+
+   // evenly spaced heights are computed exactly every so many steps, so
+   // that the rounding errors of the rotation do not add up
+   private static final int RESYNC = 256;
+
+   private final double[] angles_;
+   private final double wavelength_;
+   private final Polarization polarization_;
+   private final double sampleRI_;
+   private final Layer[] layers_;
+   private final Layer substrate_;
+   // I(h) = a + b cos(kh) + c sin(kh), for each angle
+   private final double[] a_;
+   private final double[] b_;
+   private final double[] c_;
+   // phase (radians) per nm height, for each angle
+   private final double[] k_;
+
+   /**
+    * s-polarized model of a layer of silicon oxide on silicon, in water,
+    * with refractive indices from the RI tables
+    *
+    * @param angles angles of the acquisition in the sample (degrees)
+    * @param wavelength wavelength of the excitation light (nm)
+    * @param oxideThickness thickness of the silicon oxide layer (nm)
+    */
+   public SaimModel(double[] angles, double wavelength, double oxideThickness) {
+      this(angles, wavelength, oxideThickness, Polarization.S);
+   }
+
+   /**
+    * Model of a layer of silicon oxide on silicon, in water, with refractive
+    * indices from the RI tables.  The silicon absorbs (its extinction
+    * coefficient is taken from the table as well), the oxide is transparent.
+    *
+    * @param angles angles of the acquisition in the sample (degrees)
+    * @param wavelength wavelength of the excitation light (nm)
+    * @param oxideThickness thickness of the silicon oxide layer (nm)
+    * @param polarization polarization of the excitation light
+    */
+   public SaimModel(double[] angles, double wavelength, double oxideThickness,
+           Polarization polarization) {
+      this(angles, wavelength, polarization, RI.getRI(RI.Compound.WATER, wavelength),
+              new Layer[] {new Layer(RI.getRI(RI.Compound.SILICONOXIDE, wavelength),
+                      oxideThickness)},
+              Layer.substrate(RI.getRI(RI.Compound.SILICON, wavelength),
+                      RI.getExtinction(RI.Compound.SILICON, wavelength)));
+   }
+
+   /**
+    * @param angles angles of the acquisition in the sample (degrees)
+    * @param wavelength wavelength of the excitation light (nm)
+    * @param polarization polarization of the excitation light
+    * @param sampleRI refractive index of the sample
+    * @param layers layers on top of the substrate, from the sample down
+    * @param substrate substrate below the layers, its thickness is not used
+    */
+   public SaimModel(double[] angles, double wavelength, Polarization polarization,
+           double sampleRI, Layer[] layers, Layer substrate) {
+      angles_ = angles.clone();
+      wavelength_ = wavelength;
+      polarization_ = polarization;
+      sampleRI_ = sampleRI;
+      layers_ = layers.clone();
+      substrate_ = substrate;
+      final int n = angles.length;
+      a_ = new double[n];
+      b_ = new double[n];
+      c_ = new double[n];
+      k_ = new double[n];
+      for (int i = 0; i < n; i++) {
+         double theta = Math.toRadians(angles[i]);
+         double weight;
+         Complex r;
+         if (polarization == Polarization.S) {
+            r = reflection(Math.sin(theta), false);
+            weight = 1.0;
+         } else {
+            r = reflection(Math.sin(theta), true);
+            weight = -Math.cos(2.0 * theta);
+         }
+         double a = 1.0 + r.getReal() * r.getReal() + r.getImaginary() * r.getImaginary();
+         double b = 2.0 * weight * r.getReal();
+         double c = -2.0 * weight * r.getImaginary();
+         if (polarization == Polarization.UNPOLARIZED) {
+            Complex rs = reflection(Math.sin(theta), false);
+            a = 0.5 * (a + 1.0 + rs.getReal() * rs.getReal()
+                    + rs.getImaginary() * rs.getImaginary());
+            b = 0.5 * (b + 2.0 * rs.getReal());
+            c = 0.5 * (c - 2.0 * rs.getImaginary());
+         }
+         a_[i] = a;
+         b_[i] = b;
+         c_[i] = c;
+         k_[i] = 4.0 * Math.PI * sampleRI * Math.cos(theta) / wavelength;
+      }
+   }
+
+   /**
+    * Reflection coefficient of the stack, seen from the sample
+    *
+    * @param sine sine of the angle in the sample
+    * @param p true for p-polarized light, false for s-polarized light
+    */
+   private Complex reflection(double sine, boolean p) {
+      // refractive indices from the sample down to the substrate
+      final int nrLayers = layers_.length;
+      Complex[] ris = new Complex[nrLayers + 2];
+      ris[0] = new Complex(sampleRI_);
+      for (int j = 0; j < nrLayers; j++) {
+         ris[j + 1] = new Complex(layers_[j].getN(), layers_[j].getK());
+      }
+      ris[nrLayers + 1] = new Complex(substrate_.getN(), substrate_.getK());
+      Complex[] admittances = new Complex[nrLayers + 2];
+      for (int j = 0; j < ris.length; j++) {
+         admittances[j] = admittance(ris[0], ris[j], sine, p);
+      }
+      Complex r = fresnel(admittances[nrLayers], admittances[nrLayers + 1]);
+      for (int j = nrLayers; j >= 1; j--) {
+         Complex top = fresnel(admittances[j - 1], admittances[j]);
+         // round trip through the layer
+         Complex beta = ris[j].multiply(cosine(ris[0], ris[j], sine))
+                 .multiply(4.0 * Math.PI * layers_[j - 1].getThickness() / wavelength_);
+         Complex rPhase = r.multiply(Complex.I.multiply(beta).exp());
+         r = top.add(rPhase).divide(Complex.ONE.add(top.multiply(rPhase)));
+      }
+      return r;
+   }
+
+   /**
+    * Fresnel reflection coefficient of an interface
+    */
+   private static Complex fresnel(Complex upper, Complex lower) {
+      return upper.subtract(lower).divide(upper.add(lower));
+   }
+
+   /**
+    * Cosine of the angle in a medium, following Snell's law
+    */
+   private static Complex cosine(Complex sample, Complex ri, double sine) {
+      Complex s = sample.multiply(sine).divide(ri);
+      return Complex.ONE.subtract(s.multiply(s)).sqrt();
+   }
+
+   /**
+    * Quantity whose differences across an interface give the Fresnel
+    * coefficients: n cos(theta) for s-polarized light, cos(theta) / n for
+    * p-polarized light
+    */
+   private static Complex admittance(Complex sample, Complex ri, double sine, boolean p) {
+      Complex cos = cosine(sample, ri, sine);
+      return p ? cos.divide(ri) : cos.multiply(ri);
+   }
+
+   /**
+    * @return number of angles
+    */
+   public int getNrAngles() {
+      return angles_.length;
+   }
+
+   /**
+    * @return angles in the sample (degrees)
+    */
+   public double[] getAngles() {
+      return angles_.clone();
+   }
+
+   public double getWavelength() {
+      return wavelength_;
+   }
+
+   public Polarization getPolarization() {
+      return polarization_;
+   }
+
+   public double getSampleRI() {
+      return sampleRI_;
+   }
+
+   /**
+    * @return layers on top of the substrate, from the sample down
+    */
+   public Layer[] getLayers() {
+      return layers_.clone();
+   }
+
+   public Layer getSubstrate() {
+      return substrate_;
+   }
+
+   /**
+    * @return the smallest height difference over which the intensity at
+    * one of the angles goes through a full period (nm)
+    */
+   public double getShortestPeriod() {
+      double kMax = 0.0;
+      for (double k : k_) {
+         kMax = Math.max(kMax, Math.abs(k));
+      }
+      return 2.0 * Math.PI / kMax;
+   }
+
+   /**
+    * Intensity at a single angle
+    *
+    * @param angle index of the angle
+    * @param height height above the top layer (nm)
+    * @return intensity, relative to that of the incoming light
+    */
+   public double intensity(int angle, double height) {
+      double phase = k_[angle] * height;
+      return a_[angle] + b_[angle] * Math.cos(phase) + c_[angle] * Math.sin(phase);
+   }
+
+   /**
+    * Intensity at each angle
+    *
+    * @param height height above the top layer (nm)
+    * @param intensities receives the intensity for each angle
+    */
+   public void intensities(double height, double[] intensities) {
+      for (int i = 0; i < k_.length; i++) {
+         double phase = k_[i] * height;
+         intensities[i] = a_[i] + b_[i] * Math.cos(phase) + c_[i] * Math.sin(phase);
+      }
+   }
+
+   /**
+    * Intensity at each angle, and its derivative to the height
+    *
+    * @param height height above the top layer (nm)
+    * @param intensities receives the intensity for each angle
+    * @param derivatives receives dI/dh for each angle (per nm)
+    */
+   public void intensities(double height, double[] intensities, double[] derivatives) {
+      for (int i = 0; i < k_.length; i++) {
+         double phase = k_[i] * height;
+         double cos = Math.cos(phase);
+         double sin = Math.sin(phase);
+         intensities[i] = a_[i] + b_[i] * cos + c_[i] * sin;
+         derivatives[i] = k_[i] * (c_[i] * cos - b_[i] * sin);
+      }
+   }
+
+   /**
+    * Intensities for a number of heights
+    *
+    * @param heights heights above the top layer (nm)
+    * @param intensities receives the intensities, all angles of the first
+    * height first, at least heights.length * getNrAngles() long
+    */
+   public void intensities(double[] heights, double[] intensities) {
+      final int n = k_.length;
+      checkLength(intensities, heights.length * n);
+      for (int j = 0; j < heights.length; j++) {
+         for (int i = 0; i < n; i++) {
+            double phase = k_[i] * heights[j];
+            intensities[j * n + i] = a_[i] + b_[i] * Math.cos(phase)
+                    + c_[i] * Math.sin(phase);
+         }
+      }
+   }
+
+   /**
+    * Intensities and their derivatives to the height (the Jacobian of the
+    * intensities) for a number of heights
+    *
+    * @param heights heights above the top layer (nm)
+    * @param intensities receives the intensities, all angles of the first
+    * height first, at least heights.length * getNrAngles() long
+    * @param derivatives receives dI/dh (per nm), in the same order
+    */
+   public void jacobian(double[] heights, double[] intensities, double[] derivatives) {
+      final int n = k_.length;
+      checkLength(intensities, heights.length * n);
+      checkLength(derivatives, heights.length * n);
+      for (int j = 0; j < heights.length; j++) {
+         for (int i = 0; i < n; i++) {
+            double phase = k_[i] * heights[j];
+            double cos = Math.cos(phase);
+            double sin = Math.sin(phase);
+            intensities[j * n + i] = a_[i] + b_[i] * cos + c_[i] * sin;
+            derivatives[j * n + i] = k_[i] * (c_[i] * cos - b_[i] * sin);
+         }
+      }
+   }
+
+   /**
+    * Intensities for evenly spaced heights.  Rather than a sine and a
+    * cosine per height, the phase of each angle is rotated by a fixed step,
+    * which takes four multiplications and two additions.
+    *
+    * @param start first height (nm)
+    * @param step distance between the heights (nm)
+    * @param count number of heights
+    * @param intensities receives the intensities, all angles of the first
+    * height first, at least count * getNrAngles() long
+    */
+   public void intensities(double start, double step, int count, double[] intensities) {
+      final int n = k_.length;
+      checkLength(intensities, count * n);
+      double[] stepCos = new double[n];
+      double[] stepSin = new double[n];
+      double[] cos = new double[n];
+      double[] sin = new double[n];
+      for (int i = 0; i < n; i++) {
+         stepCos[i] = Math.cos(k_[i] * step);
+         stepSin[i] = Math.sin(k_[i] * step);
+      }
+      for (int j = 0; j < count; j++) {
+         final int row = j * n;
+         if (j % RESYNC == 0) {
+            for (int i = 0; i < n; i++) {
+               double phase = k_[i] * (start + j * step);
+               cos[i] = Math.cos(phase);
+               sin[i] = Math.sin(phase);
+            }
+         } else {
+            for (int i = 0; i < n; i++) {
+               double next = cos[i] * stepCos[i] - sin[i] * stepSin[i];
+               sin[i] = sin[i] * stepCos[i] + cos[i] * stepSin[i];
+               cos[i] = next;
+            }
+         }
+         for (int i = 0; i < n; i++) {
+            intensities[row + i] = a_[i] + b_[i] * cos[i] + c_[i] * sin[i];
+         }
+      }
+   }
+
+   private static void checkLength(double[] array, int length) {
+      if (array.length < length) {
+         throw new IllegalArgumentException("Output array is too short: "
+                 + array.length + " < " + length);
+      }
+   }
+
+   /**
+    * Models are equal when they are built from the same angles, wavelength,
+    * polarization and materials, so that they give the same intensities
+    */
+   @Override
+   public boolean equals(Object other) {
+      if (!(other instanceof SaimModel)) {
+         return false;
+      }
+      SaimModel model = (SaimModel) other;
+      return Arrays.equals(angles_, model.angles_)
+              && Double.compare(wavelength_, model.wavelength_) == 0
+              && polarization_ == model.polarization_
+              && Double.compare(sampleRI_, model.sampleRI_) == 0
+              && Arrays.equals(layers_, model.layers_)
+              && substrate_.equals(model.substrate_);
+   }
+
+   @Override
+   public int hashCode() {
+      int hash = Arrays.hashCode(angles_);
+      long bits = Double.doubleToLongBits(wavelength_);
+      hash = 31 * hash + (int) (bits ^ (bits >>> 32));
+      hash = 31 * hash + polarization_.hashCode();
+      bits = Double.doubleToLongBits(sampleRI_);
+      hash = 31 * hash + (int) (bits ^ (bits >>> 32));
+      hash = 31 * hash + Arrays.hashCode(layers_);
+      return 31 * hash + substrate_.hashCode();
+   }
+
+}
@@ -0,0 +1,333 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          HeightReconstructor.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.reconstruct;
+
+import ij.ImageStack;
+import java.lang.reflect.Array;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.micromanager.saim.exceptions.SAIMException;
+import org.micromanager.saim.model.SaimModel;
+
+/**
+ * Turns a SAIM acquisition (one image per angle) into a height map, by
+ * fitting the SAIM model to the intensities of every pixel (see
+ * PixelFitter), or by matching them against a table of model curves (see
+ * HeightTable).  The table is one to two orders of magnitude faster, and
+ * its heights can be refined by a fit that starts at the height found in
+ * the table.
+ *
+ * Pixels are independent, so the image is cut into square tiles that are
+ * fitted in parallel on a ForkJoinPool.  A tile is first copied out of the
+ * images into a float array that holds the intensities of each pixel at
+ * all angles next to each other, so that the fits run through memory in
+ * order, and the images themselves are only read once.
+ *
+ * @author nico
+ */
+public class HeightReconstructor {
+
+   /** Width and height of a tile (pixels) */
+   public static final int TILESIZE = 64;
+   /** Distance between the heights of the table (nm) */
+   public static final double TABLESTEP = 1.0;
+
+   /**
+    * How the height of each pixel is found
+    */
+   public static enum Method {
+      FIT ("Fit"),
+      TABLE ("Table"),
+      REFINEDTABLE ("Table + Fit");
+
+      private final String name_;
+      Method(String name) {
+         name_ = name;
+      }
+
+      @Override
+      public String toString() {
+         return name_;
+      }
+
+      /**
+       * @param name name as returned by toString
+       * @return method with that name, FIT when there is none
+       */
+      public static Method fromName(String name) {
+         for (Method method : values()) {
+            if (method.name_.equals(name)) {
+               return method;
+            }
+         }
+         return FIT;
+      }
+   }
+
+   private final SaimModel model_;
+   private final Method method_;
+   private final HeightTable table_;
+   private final double minHeight_;
+   private final double maxHeight_;
+   private final int nrThreads_;
+   private final ThreadLocal<Worker> workers_ = new ThreadLocal<Worker>() {
+      @Override
+      protected Worker initialValue() {
+         return new Worker();
+      }
+   };
+   private final AtomicInteger tilesDone_ = new AtomicInteger(0);
+   private final AtomicInteger iterations_ = new AtomicInteger(0);
+   private volatile int nrTiles_ = 0;
+   private volatile boolean cancelled_ = false;
+
+   /**
+    * Fitter and tile buffer of a single thread
+    */
+   private class Worker {
+      final PixelFitter fitter_ = new PixelFitter(model_, minHeight_, maxHeight_);
+      final float[] tile_ = new float[TILESIZE * TILESIZE * model_.getNrAngles()];
+      final double[] fit_ = new double[PixelFitter.NRRESULTS];
+      final float[] projected_ = table_ == null ? null
+              : new float[TILESIZE * TILESIZE * table_.getNrComponents()];
+      final double[] sums_ = new double[2 * TILESIZE * TILESIZE];
+      final float[] curve_ = new float[model_.getNrAngles()];
+   }
+
+   /**
+    * @param model model of the acquisition
+    * @param minHeight lowest height considered (nm)
+    * @param maxHeight highest height considered (nm)
+    * @param method how to find the height of each pixel
+    * @param nrThreads number of threads used for fitting
+    */
+   public HeightReconstructor(SaimModel model, double minHeight, double maxHeight,
+           Method method, int nrThreads) {
+      model_ = model;
+      minHeight_ = minHeight;
+      maxHeight_ = maxHeight;
+      method_ = method;
+      table_ = method == Method.FIT ? null
+              : HeightTable.forModel(model, minHeight, maxHeight, TABLESTEP);
+      nrThreads_ = Math.max(1, nrThreads);
+   }
+
+   /**
+    * Creates a reconstructor that fits every pixel, using all available
+    * processors
+    *
+    * @param model model of the acquisition
+    * @param minHeight lowest height considered (nm)
+    * @param maxHeight highest height considered (nm)
+    */
+   public HeightReconstructor(SaimModel model, double minHeight, double maxHeight) {
+      this(model, minHeight, maxHeight, Method.FIT,
+              Runtime.getRuntime().availableProcessors());
+   }
+
+   /**
+    * @param stack one image per angle, in the order of the angles of the model
+    * @return height map
+    * @throws SAIMException when the stack does not match the model, or when
+    * cancelled
+    */
+   public ReconstructionResult reconstruct(ImageStack stack) throws SAIMException {
+      Object[] frames = new Object[stack.getSize()];
+      for (int i = 0; i < frames.length; i++) {
+         frames[i] = stack.getPixels(i + 1);
+      }
+      return reconstruct(frames, stack.getWidth(), stack.getHeight());
+   }
+
+   /**
+    * @param frames pixels (byte[], short[] or float[]) of one image per
+    * angle, in the order of the angles of the model
+    * @param width width of the images
+    * @param height height of the images
+    * @return height map
+    * @throws SAIMException when the images do not match the model, or when
+    * cancelled
+    */
+   public ReconstructionResult reconstruct(Object[] frames, int width, int height)
+           throws SAIMException {
+      if (frames.length != model_.getNrAngles()) {
+         throw new SAIMException("Expected " + model_.getNrAngles()
+                 + " images (one per angle), got " + frames.length);
+      }
+      for (Object frame : frames) {
+         if (!(frame instanceof byte[] || frame instanceof short[] || frame instanceof float[])
+                 || Array.getLength(frame) != width * height) {
+            throw new SAIMException("Images should be 8 bit, 16 bit or float, and all "
+                    + "of the same size");
+         }
+      }
+      ReconstructionResult result = new ReconstructionResult(width, height);
+      int tilesX = (width + TILESIZE - 1) / TILESIZE;
+      int tilesY = (height + TILESIZE - 1) / TILESIZE;
+      nrTiles_ = tilesX * tilesY;
+      tilesDone_.set(0);
+      iterations_.set(0);
+      cancelled_ = false;
+      ForkJoinPool pool = new ForkJoinPool(nrThreads_);
+      try {
+         pool.invoke(new TileTask(frames, result, tilesX, 0, nrTiles_));
+      } finally {
+         pool.shutdown();
+      }
+      if (cancelled_) {
+         throw new SAIMException("Reconstruction cancelled");
+      }
+      return result;
+   }
+
+   /**
+    * Stops a running reconstruct as soon as possible
+    */
+   public void cancel() {
+      cancelled_ = true;
+   }
+
+   /**
+    * @return fraction (0 - 1) of the tiles of the running or last
+    * reconstruction that are done
+    */
+   public double getProgress() {
+      return nrTiles_ == 0 ? 0.0 : tilesDone_.get() / (double) nrTiles_;
+   }
+
+   /**
+    * @return number of Levenberg-Marquardt iterations of the last
+    * reconstruction
+    */
+   public int getIterations() {
+      return iterations_.get();
+   }
+
+   /**
+    * Splits a range of tiles in halves until a single tile is left
+    */
+   private class TileTask extends RecursiveAction {
+
+      private static final long serialVersionUID = 1L;
+
+      private final Object[] frames_;
+      private final ReconstructionResult result_;
+      private final int tilesX_;
+      private final int first_;
+      private final int end_;
+
+      TileTask(Object[] frames, ReconstructionResult result, int tilesX, int first,
+              int end) {
+         frames_ = frames;
+         result_ = result;
+         tilesX_ = tilesX;
+         first_ = first;
+         end_ = end;
+      }
+
+      @Override
+      protected void compute() {
+         if (end_ - first_ > 1) {
+            int middle = (first_ + end_) >>> 1;
+            invokeAll(new TileTask(frames_, result_, tilesX_, first_, middle),
+                    new TileTask(frames_, result_, tilesX_, middle, end_));
+         } else if (!cancelled_) {
+            fitTile(frames_, result_, (first_ % tilesX_) * TILESIZE,
+                    (first_ / tilesX_) * TILESIZE);
+            tilesDone_.incrementAndGet();
+         }
+      }
+   }
+
+   private void fitTile(Object[] frames, ReconstructionResult result, int x0, int y0) {
+      Worker worker = workers_.get();
+      final int width = result.getWidth();
+      final int tileWidth = Math.min(TILESIZE, width - x0);
+      final int tileHeight = Math.min(TILESIZE, result.getHeight() - y0);
+      final int n = frames.length;
+      final int nrPixels = tileWidth * tileHeight;
+      final float[] tile = worker.tile_;
+      // the fitter wants the intensities of a pixel next to each other, the
+      // table all intensities at an angle
+      for (int a = 0; a < n; a++) {
+         if (table_ == null) {
+            copyTile(frames[a], width, x0, y0, tileWidth, tileHeight, tile, a, n);
+         } else {
+            copyTile(frames[a], width, x0, y0, tileWidth, tileHeight, tile, a * nrPixels, 1);
+         }
+      }
+      int startIterations = worker.fitter_.getIterations();
+      if (table_ != null) {
+         table_.project(tile, nrPixels, worker.projected_, worker.sums_);
+      }
+      for (int y = 0; y < tileHeight; y++) {
+         for (int x = 0; x < tileWidth; x++) {
+            int pixel = y * tileWidth + x;
+            if (method_ == Method.FIT) {
+               worker.fitter_.fit(tile, pixel * n, worker.fit_);
+            } else {
+               table_.match(worker.projected_, worker.sums_, pixel, worker.fit_);
+               if (method_ == Method.REFINEDTABLE) {
+                  for (int a = 0; a < n; a++) {
+                     worker.curve_[a] = tile[a * nrPixels + pixel];
+                  }
+                  worker.fitter_.refine(worker.curve_, 0, worker.fit_[PixelFitter.HEIGHT],
+                          worker.fit_);
+               }
+            }
+            result.set((y0 + y) * width + x0 + x, worker.fit_);
+         }
+      }
+      iterations_.addAndGet(worker.fitter_.getIterations() - startIterations);
+   }
+
+   /**
+    * Copies a tile of a single image into the tile buffer
+    *
+    * @param start index in the tile of the first pixel
+    * @param step distance in the tile between consecutive pixels
+    */
+   private static void copyTile(Object pixels, int width, int x0, int y0, int tileWidth,
+           int tileHeight, float[] tile, int start, int step) {
+      int dest = start;
+      for (int y = y0; y < y0 + tileHeight; y++) {
+         int src = y * width + x0;
+         if (pixels instanceof short[]) {
+            short[] p = (short[]) pixels;
+            for (int x = 0; x < tileWidth; x++, dest += step) {
+               tile[dest] = p[src + x] & 0xffff;
+            }
+         } else if (pixels instanceof byte[]) {
+            byte[] p = (byte[]) pixels;
+            for (int x = 0; x < tileWidth; x++, dest += step) {
+               tile[dest] = p[src + x] & 0xff;
+            }
+         } else {
+            float[] p = (float[]) pixels;
+            for (int x = 0; x < tileWidth; x++, dest += step) {
+               tile[dest] = p[src + x];
+            }
+         }
+      }
+   }
+
+}
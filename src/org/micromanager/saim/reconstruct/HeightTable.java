@@ -0,0 +1,447 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          HeightTable.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.reconstruct;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.SingularValueDecomposition;
+import org.micromanager.saim.model.SaimModel;
+
+/**
+ * Model curves (intensity versus angle) for a dense grid of heights, used
+ * to find the height of a pixel without iterative fitting.
+ *
+ * Each curve is centered and scaled to unit length.  For a pixel with
+ * intensities y, the dot product of y with curve g is then the amplitude
+ * of the best fit with that curve (times the length of the curve), and its
+ * square is the part of the variance of y that the curve explains.  The
+ * best height is the one with the largest (positive) dot product.
+ *
+ * The curves of nearby heights are very much alike, so they span far fewer
+ * dimensions than there are angles.  The table therefore keeps the curves
+ * projected onto their principal components (enough to keep all but
+ * 1e-6 of their energy), and pixels are projected onto the same
+ * components, a tile at a time.  Pixels are matched to every stride-th
+ * curve first (a few per period of the fastest fringe, as in PixelFitter),
+ * and then to curves ever closer to the best one, halving the distance
+ * each time.  The height is interpolated
+ * between the curves by a parabola through the best three dot products.
+ *
+ * Tables are immutable, and are cached per model and height range (see
+ * forModel), as building one takes much longer than matching an image.
+ *
+ * @author nico
+ */
+public final class HeightTable {
+
+   // part of the energy of the curves kept by the projection
+   private static final double ENERGY = 1.0 - 1.0e-6;
+   // number of coarse curves per period of the fastest fringe
+   private static final int COARSEPERPERIOD = 8;
+   private static final int MAXCACHED = 4;
+   private static final Map<List<Object>, HeightTable> CACHE =
+           new LinkedHashMap<List<Object>, HeightTable>(MAXCACHED, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<List<Object>, HeightTable> eldest) {
+         return size() > MAXCACHED;
+      }
+   };
+
+   private final int nrAngles_;
+   private final int nrHeights_;
+   // components kept, and the same rounded up to a multiple of 4
+   private final int nrKept_;
+   private final int nrComponents_;
+   private final double minHeight_;
+   private final double step_;
+   private final int stride_;
+   // principal components, nrComponents_ values per angle
+   private final float[] basis_;
+   // projected curves, nrComponents_ values per height
+   private final float[] curves_;
+   // every stride_-th row of curves_, and the row of the highest height
+   private final float[] coarse_;
+   private final int[] coarseRows_;
+   // mean and length of each curve before normalization
+   private final double[] means_;
+   private final double[] lengths_;
+
+   /**
+    * Returns the table for the given model and height range, building it
+    * when it is not in the cache
+    *
+    * @param model model of the acquisition
+    * @param minHeight lowest height (nm)
+    * @param maxHeight highest height (nm)
+    * @param step distance between the heights of the table (nm)
+    * @return table
+    */
+   public static HeightTable forModel(SaimModel model, double minHeight, double maxHeight,
+           double step) {
+      List<Object> key = Arrays.<Object>asList(model, minHeight, maxHeight, step);
+      synchronized (CACHE) {
+         HeightTable table = CACHE.get(key);
+         if (table == null) {
+            table = new HeightTable(model, minHeight, maxHeight, step);
+            CACHE.put(key, table);
+         }
+         return table;
+      }
+   }
+
+   /**
+    * @param model model of the acquisition
+    * @param minHeight lowest height (nm)
+    * @param maxHeight highest height (nm)
+    * @param step distance between the heights of the table (nm)
+    */
+   public HeightTable(SaimModel model, double minHeight, double maxHeight, double step) {
+      nrAngles_ = model.getNrAngles();
+      minHeight_ = minHeight;
+      step_ = step;
+      nrHeights_ = Math.max(3, (int) Math.floor((maxHeight - minHeight) / step) + 1);
+      stride_ = Math.max(1, (int) (model.getShortestPeriod() / COARSEPERPERIOD / step));
+      means_ = new double[nrHeights_];
+      lengths_ = new double[nrHeights_];
+
+      // normalized curves
+      double[] intensities = new double[nrHeights_ * nrAngles_];
+      model.intensities(minHeight, step, nrHeights_, intensities);
+      double[][] normalized = new double[nrHeights_][nrAngles_];
+      for (int g = 0; g < nrHeights_; g++) {
+         double[] curve = normalized[g];
+         System.arraycopy(intensities, g * nrAngles_, curve, 0, nrAngles_);
+         double sum = 0.0;
+         for (int i = 0; i < nrAngles_; i++) {
+            sum += curve[i];
+         }
+         means_[g] = sum / nrAngles_;
+         double squares = 0.0;
+         for (int i = 0; i < nrAngles_; i++) {
+            curve[i] -= means_[g];
+            squares += curve[i] * curve[i];
+         }
+         lengths_[g] = Math.sqrt(squares);
+         for (int i = 0; i < nrAngles_; i++) {
+            curve[i] /= lengths_[g];
+         }
+      }
+
+      // principal components, singular values come in decreasing order
+      SingularValueDecomposition svd = new SingularValueDecomposition(
+              new Array2DRowRealMatrix(normalized, false));
+      double[] singularValues = svd.getSingularValues();
+      double total = 0.0;
+      for (double value : singularValues) {
+         total += value * value;
+      }
+      int nrComponents = 0;
+      double kept = 0.0;
+      while (nrComponents < singularValues.length && kept < ENERGY * total) {
+         kept += singularValues[nrComponents] * singularValues[nrComponents];
+         nrComponents++;
+      }
+      nrKept_ = Math.max(1, nrComponents);
+      // padded with zeros, so that dot products can be unrolled by 4
+      nrComponents_ = (nrKept_ + 3) & ~3;
+      RealMatrix v = svd.getV();
+      basis_ = new float[nrAngles_ * nrComponents_];
+      for (int k = 0; k < nrKept_; k++) {
+         for (int i = 0; i < nrAngles_; i++) {
+            basis_[i * nrComponents_ + k] = (float) v.getEntry(i, k);
+         }
+      }
+
+      curves_ = new float[nrHeights_ * nrComponents_];
+      for (int g = 0; g < nrHeights_; g++) {
+         for (int k = 0; k < nrKept_; k++) {
+            double sum = 0.0;
+            for (int i = 0; i < nrAngles_; i++) {
+               sum += normalized[g][i] * basis_[i * nrComponents_ + k];
+            }
+            curves_[g * nrComponents_ + k] = (float) sum;
+         }
+      }
+      int nrCoarse = (nrHeights_ - 1 + stride_ - 1) / stride_ + 1;
+      coarseRows_ = new int[nrCoarse];
+      coarse_ = new float[nrCoarse * nrComponents_];
+      for (int c = 0; c < nrCoarse; c++) {
+         coarseRows_[c] = Math.min(c * stride_, nrHeights_ - 1);
+         System.arraycopy(curves_, coarseRows_[c] * nrComponents_, coarse_,
+                 c * nrComponents_, nrComponents_);
+      }
+   }
+
+   /**
+    * @return number of heights in the table
+    */
+   public int getNrHeights() {
+      return nrHeights_;
+   }
+
+   /**
+    * @return number of principal components the curves are projected on,
+    * rounded up to a multiple of 4.  Projections of a pixel take this many
+    * values.
+    */
+   public int getNrComponents() {
+      return nrComponents_;
+   }
+
+   /**
+    * @param row row of the table
+    * @return height of the row (nm)
+    */
+   public double getHeight(int row) {
+      return minHeight_ + row * step_;
+   }
+
+   /**
+    * @return mean of the model intensities of the row, before normalization
+    */
+   double getMean(int row) {
+      return means_[row];
+   }
+
+   /**
+    * @return length of the centered model intensities of the row, before
+    * normalization
+    */
+   double getLength(int row) {
+      return lengths_[row];
+   }
+
+   /**
+    * @return principal components, getNrComponents values per angle.  Not
+    * copied, do not change.
+    */
+   float[] getBasis() {
+      return basis_;
+   }
+
+   /**
+    * @return projected curves, getNrComponents values per row.  Not copied,
+    * do not change.
+    */
+   float[] getCurves() {
+      return curves_;
+   }
+
+   /**
+    * Projects the intensities of a block of pixels onto the principal
+    * components, and adds up their intensities.  The projection is built up
+    * one angle at a time, so that data, projections and components are all
+    * read in order.
+    *
+    * @param data intensities, nrPixels values per angle, in the order of the
+    * angles of the model
+    * @param nrPixels number of pixels in data
+    * @param projected receives getNrComponents values per pixel
+    * @param sums receives the sum and the sum of squares of the intensities
+    * of each pixel
+    */
+   public void project(float[] data, int nrPixels, float[] projected, double[] sums) {
+      final int nc = nrComponents_;
+      Arrays.fill(projected, 0, nrPixels * nc, 0.0f);
+      Arrays.fill(sums, 0, 2 * nrPixels, 0.0);
+      for (int i = 0; i < nrAngles_; i++) {
+         final int b = i * nc;
+         final int row = i * nrPixels;
+         for (int p = 0; p < nrPixels; p++) {
+            final float y = data[row + p];
+            sums[2 * p] += y;
+            sums[2 * p + 1] += y * y;
+            final int out = p * nc;
+            for (int k = 0; k < nc; k++) {
+               projected[out + k] += y * basis_[b + k];
+            }
+         }
+      }
+   }
+
+   /**
+    * Finds the height of a single pixel
+    *
+    * @param projected projections of the pixels, as calculated by project
+    * @param sums sums of the pixels, as calculated by project
+    * @param pixel index of the pixel
+    * @param result receives height, amplitude, offset and quality (see
+    * PixelFitter).  The height is NaN when the pixel shows no modulation.
+    */
+   public void match(float[] projected, double[] sums, int pixel, double[] result) {
+      final int nc = nrComponents_;
+      final int p = pixel * nc;
+      double sumY = sums[2 * pixel];
+      double meanY = sumY / nrAngles_;
+      double totalSquares = sums[2 * pixel + 1] - sumY * meanY;
+      result[PixelFitter.HEIGHT] = Double.NaN;
+      result[PixelFitter.AMPLITUDE] = 0.0;
+      result[PixelFitter.OFFSET] = meanY;
+      result[PixelFitter.QUALITY] = 0.0;
+      if (!(totalSquares > 0.0)) {
+         return;
+      }
+
+      MatchSearch search = new MatchSearch(projected, p);
+      if (!search.run(this)) {
+         return;
+      }
+      final int best = search.row_;
+      final double bestDot = search.score_;
+      double amplitude = bestDot / lengths_[best];
+      result[PixelFitter.HEIGHT] = search.height_;
+      result[PixelFitter.AMPLITUDE] = amplitude;
+      result[PixelFitter.OFFSET] = meanY - amplitude * means_[best];
+      result[PixelFitter.QUALITY] = Math.min(1.0, bestDot * bestDot / totalSquares);
+   }
+
+   /**
+    * Search for the row of the table that fits a single pixel best.  The
+    * pixel is scored against every stride-th row (and the last one) first,
+    * then against rows ever closer to the best one, halving the distance
+    * each time.  The height is interpolated between the rows by a parabola
+    * through the best three scores.  Used both by match and by
+    * IncrementalReconstructor, which score the rows in their own way.
+    */
+   abstract static class RowSearch {
+      /** best row found by the last run */
+      int row_;
+      /** score of the best row */
+      double score_;
+      /** interpolated height (nm) */
+      double height_;
+
+      /**
+       * @param row row of the table
+       * @return score of the row for the pixel, higher is better.  Rows
+       * that do not score above 0 are never chosen.
+       */
+      abstract double score(int row);
+
+      /**
+       * Score of one of the rows that are tried first.  Override to read a
+       * compact copy of these rows.
+       *
+       * @param index index of the coarse row
+       * @param row row of the table
+       * @return the same as score(row)
+       */
+      double coarseScore(int index, int row) {
+         return score(row);
+      }
+
+      /**
+       * @param table table whose rows are searched
+       * @return false when no row scores above 0
+       */
+      final boolean run(HeightTable table) {
+         final int[] coarseRows = table.coarseRows_;
+         final int nrRows = table.nrHeights_;
+         int best = -1;
+         double bestScore = 0.0;
+         for (int c = 0; c < coarseRows.length; c++) {
+            double score = coarseScore(c, coarseRows[c]);
+            if (score > bestScore) {
+               bestScore = score;
+               best = coarseRows[c];
+            }
+         }
+         if (best < 0) {
+            return false;
+         }
+         for (int step = (table.stride_ + 1) / 2; step >= 1; step /= 2) {
+            int center = best;
+            for (int g = center - step; g <= center + step; g += 2 * step) {
+               if (g >= 0 && g < nrRows) {
+                  double score = score(g);
+                  if (score > bestScore) {
+                     bestScore = score;
+                     best = g;
+                  }
+               }
+            }
+         }
+         double height = table.getHeight(best);
+         if (best > 0 && best < nrRows - 1) {
+            double below = score(best - 1);
+            double above = score(best + 1);
+            double curvature = below - 2.0 * bestScore + above;
+            if (curvature < 0.0) {
+               height += 0.5 * (below - above) / curvature * table.step_;
+            }
+         }
+         row_ = best;
+         score_ = bestScore;
+         height_ = height;
+         return true;
+      }
+   }
+
+   /**
+    * Scores rows by their dot product with the projection of a pixel
+    */
+   private final class MatchSearch extends RowSearch {
+      private final float[] projected_;
+      private final int offset_;
+
+      MatchSearch(float[] projected, int offset) {
+         projected_ = projected;
+         offset_ = offset;
+      }
+
+      @Override
+      double score(int row) {
+         return dot(curves_, row * nrComponents_, projected_, offset_, nrComponents_);
+      }
+
+      @Override
+      double coarseScore(int index, int row) {
+         return dot(coarse_, index * nrComponents_, projected_, offset_, nrComponents_);
+      }
+   }
+
+   /**
+    * Dot product with four independent sums, so that the additions do not
+    * have to wait for each other
+    */
+   static double dot(float[] a, int aOffset, float[] b, int bOffset, int n) {
+      float sum0 = 0.0f;
+      float sum1 = 0.0f;
+      float sum2 = 0.0f;
+      float sum3 = 0.0f;
+      int k = 0;
+      for (; k + 3 < n; k += 4) {
+         sum0 += a[aOffset + k] * b[bOffset + k];
+         sum1 += a[aOffset + k + 1] * b[bOffset + k + 1];
+         sum2 += a[aOffset + k + 2] * b[bOffset + k + 2];
+         sum3 += a[aOffset + k + 3] * b[bOffset + k + 3];
+      }
+      for (; k < n; k++) {
+         sum0 += a[aOffset + k] * b[bOffset + k];
+      }
+      return (sum0 + sum1) + (sum2 + sum3);
+   }
+
+}
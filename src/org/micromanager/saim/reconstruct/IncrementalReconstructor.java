@@ -0,0 +1,267 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          IncrementalReconstructor.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.reconstruct;
+
+import java.util.Arrays;
+import org.micromanager.saim.model.SaimModel;
+
+/**
+ * Builds up a (binned) height map while the images of an acquisition come
+ * in, one angle at a time, in any order.
+ *
+ * Of each binned pixel, only the sum and the sum of squares of its
+ * intensities and their projection onto the principal components of the
+ * HeightTable are kept.  An image adds to these, so it can be forgotten as
+ * soon as it has been added.  Because the model curves of the table are
+ * (all but exactly) combinations of these components, the same numbers
+ * give the dot product of a pixel with any model curve over the angles
+ * seen so far.  For each height, the sum and sum of squares of the model
+ * intensities at those angles are kept as well, so that every height
+ * can be scored with a least squares fit of amplitude and offset, just
+ * like HeightTable.match does once all angles are in.
+ *
+ * All arrays are allocated when the reconstructor is built.  Not thread
+ * safe, add images and ask for heights from a single thread.
+ *
+ * @author nico
+ */
+public class IncrementalReconstructor {
+
+   /** Fewest angles for which heights are worked out */
+   public static final int MINANGLES = 4;
+
+   private final SaimModel model_;
+   private final HeightTable table_;
+   private final int width_;
+   private final int bin_;
+   private final int binnedWidth_;
+   private final int binnedHeight_;
+   private final int nrPixels_;
+   private final int nc_;
+   // the image being added, binned
+   private final float[] binned_;
+   // getNrComponents values per binned pixel
+   private final float[] projected_;
+   // sum and sum of squares of the intensities of each binned pixel
+   private final double[] sums_;
+   private final boolean[] seen_;
+   private int nrSeen_ = 0;
+   // sum and sum of squares of the model intensities of each row of the
+   // table, over the angles seen so far
+   private final double[] modelSums_;
+   private final double[] modelSquares_;
+   // score of a row is (length * dot + sum * shift) * scale
+   private final double[] shift_;
+   private final double[] scale_;
+   private final PixelSearch search_;
+
+   /**
+    * @param model model of the acquisition, one angle per image
+    * @param minHeight lowest height considered (nm)
+    * @param maxHeight highest height considered (nm)
+    * @param width width of the images
+    * @param height height of the images
+    * @param bin number of pixels in x and y that are added up into a single
+    * pixel of the height map
+    */
+   public IncrementalReconstructor(SaimModel model, double minHeight, double maxHeight,
+           int width, int height, int bin) {
+      model_ = model;
+      table_ = HeightTable.forModel(model, minHeight, maxHeight,
+              HeightReconstructor.TABLESTEP);
+      width_ = width;
+      bin_ = Math.max(1, bin);
+      binnedWidth_ = Math.max(1, width / bin_);
+      binnedHeight_ = Math.max(1, height / bin_);
+      nrPixels_ = binnedWidth_ * binnedHeight_;
+      nc_ = table_.getNrComponents();
+      binned_ = new float[nrPixels_];
+      projected_ = new float[nrPixels_ * nc_];
+      sums_ = new double[2 * nrPixels_];
+      seen_ = new boolean[model.getNrAngles()];
+      int nrHeights = table_.getNrHeights();
+      modelSums_ = new double[nrHeights];
+      modelSquares_ = new double[nrHeights];
+      shift_ = new double[nrHeights];
+      scale_ = new double[nrHeights];
+      search_ = new PixelSearch();
+   }
+
+   public int getBinnedWidth() {
+      return binnedWidth_;
+   }
+
+   public int getBinnedHeight() {
+      return binnedHeight_;
+   }
+
+   /**
+    * @return number of angles added so far
+    */
+   public int getNrAngles() {
+      return nrSeen_;
+   }
+
+   /**
+    * Forgets all images added so far
+    */
+   public void reset() {
+      Arrays.fill(projected_, 0.0f);
+      Arrays.fill(sums_, 0.0);
+      Arrays.fill(seen_, false);
+      Arrays.fill(modelSums_, 0.0);
+      Arrays.fill(modelSquares_, 0.0);
+      nrSeen_ = 0;
+   }
+
+   /**
+    * Adds the image taken at one of the angles.  Images of angles that were
+    * added before are ignored.
+    *
+    * @param angle index of the angle in the model
+    * @param pixels pixels of the image (byte[], short[] or float[]), at
+    * least width * height long
+    */
+   public void addImage(int angle, Object pixels) {
+      if (seen_[angle]) {
+         return;
+      }
+      seen_[angle] = true;
+      nrSeen_++;
+      bin(pixels);
+      final float[] basis = table_.getBasis();
+      final int b = angle * nc_;
+      for (int p = 0; p < nrPixels_; p++) {
+         final float y = binned_[p];
+         sums_[2 * p] += y;
+         sums_[2 * p + 1] += (double) y * y;
+         final int out = p * nc_;
+         for (int k = 0; k < nc_; k++) {
+            projected_[out + k] += y * basis[b + k];
+         }
+      }
+      for (int row = 0; row < modelSums_.length; row++) {
+         double f = model_.intensity(angle, table_.getHeight(row));
+         modelSums_[row] += f;
+         modelSquares_[row] += f * f;
+      }
+   }
+
+   private void bin(Object pixels) {
+      Arrays.fill(binned_, 0.0f);
+      for (int y = 0; y < binnedHeight_ * bin_; y++) {
+         final int src = y * width_;
+         final int dest = (y / bin_) * binnedWidth_;
+         final int end = binnedWidth_ * bin_;
+         if (pixels instanceof short[]) {
+            short[] p = (short[]) pixels;
+            for (int x = 0; x < end; x++) {
+               binned_[dest + x / bin_] += p[src + x] & 0xffff;
+            }
+         } else if (pixels instanceof byte[]) {
+            byte[] p = (byte[]) pixels;
+            for (int x = 0; x < end; x++) {
+               binned_[dest + x / bin_] += p[src + x] & 0xff;
+            }
+         } else {
+            float[] p = (float[]) pixels;
+            for (int x = 0; x < end; x++) {
+               binned_[dest + x / bin_] += p[src + x];
+            }
+         }
+      }
+   }
+
+   /**
+    * Works out the height of each binned pixel from the angles added so far
+    *
+    * @param heights receives the height of each binned pixel (nm), NaN where
+    * no height was found
+    * @param qualities receives the quality of the fit (R^2) of each binned
+    * pixel, may be null
+    * @return false when fewer than MINANGLES angles were added, and no
+    * heights were worked out
+    */
+   public boolean heights(float[] heights, float[] qualities) {
+      final int n = nrSeen_;
+      if (n < MINANGLES) {
+         return false;
+      }
+      final int nrRows = modelSums_.length;
+      for (int row = 0; row < nrRows; row++) {
+         double mean = modelSums_[row] / n;
+         double variance = modelSquares_[row] - modelSums_[row] * mean;
+         shift_[row] = table_.getMean(row) - mean;
+         scale_[row] = variance > 1.0e-12 * modelSquares_[row] ? 1.0 / Math.sqrt(variance) : 0.0;
+      }
+      for (int pixel = 0; pixel < nrPixels_; pixel++) {
+         final int p = pixel * nc_;
+         final double sum = sums_[2 * pixel];
+         final double totalSquares = sums_[2 * pixel + 1] - sum * sum / n;
+         heights[pixel] = Float.NaN;
+         if (qualities != null) {
+            qualities[pixel] = 0.0f;
+         }
+         if (!(totalSquares > 0.0)) {
+            continue;
+         }
+
+         search_.pixel(p, sum);
+         if (!search_.run(table_)) {
+            continue;
+         }
+         heights[pixel] = (float) search_.height_;
+         if (qualities != null) {
+            qualities[pixel] = (float) Math.min(1.0,
+                    search_.score_ * search_.score_ / totalSquares);
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Scores a row by the covariance of the intensities of a pixel with the
+    * model intensities of the row, divided by the standard deviation of the
+    * latter, over the angles seen so far
+    */
+   private final class PixelSearch extends HeightTable.RowSearch {
+      private final float[] curves_ = table_.getCurves();
+      private int offset_;
+      private double sum_;
+
+      /**
+       * @param offset index of the first projection of the pixel
+       * @param sum sum of the intensities of the pixel
+       */
+      void pixel(int offset, double sum) {
+         offset_ = offset;
+         sum_ = sum;
+      }
+
+      @Override
+      double score(int row) {
+         double dot = table_.getLength(row)
+                 * HeightTable.dot(curves_, row * nc_, projected_, offset_, nc_);
+         return (dot + sum_ * shift_[row]) * scale_[row];
+      }
+   }
+
+}
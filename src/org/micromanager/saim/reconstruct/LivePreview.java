@@ -0,0 +1,185 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          LivePreview.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.reconstruct;
+
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.micromanager.saim.model.SaimModel;
+
+/**
+ * Shows a binned height map of an acquisition while it runs, so that a
+ * field that is not worth the scan can be aborted early.
+ *
+ * Images are handed over with offer, which never waits: the images are
+ * added to an IncrementalReconstructor on a thread of its own, and when
+ * that thread falls behind, images are left out of the preview (the
+ * preview then simply lacks those angles).  Every few images, the height
+ * map is worked out again and shown.
+ *
+ * @author nico
+ */
+public class LivePreview implements Runnable {
+
+   // number of images that can wait to be added
+   private static final int QUEUESIZE = 4;
+   // longest side of the preview (pixels)
+   private static final int PREVIEWSIZE = 256;
+   private static final long POLLMS = 100;
+
+   private static class Item {
+      final int frameNr_;
+      final Object pixels_;
+
+      Item(int frameNr, Object pixels) {
+         frameNr_ = frameNr;
+         pixels_ = pixels;
+      }
+   }
+
+   private final IncrementalReconstructor reconstructor_;
+   private final int nrFrames_;
+   private final int refreshEvery_;
+   private final float minHeight_;
+   private final float maxHeight_;
+   private final String title_;
+   private final float[] heights_;
+   private final BlockingQueue<Item> queue_ = new ArrayBlockingQueue<Item>(QUEUESIZE);
+   private final AtomicInteger dropped_ = new AtomicInteger(0);
+   private final Thread thread_;
+   private volatile boolean finished_ = false;
+   private ImagePlus imp_ = null;
+
+   /**
+    * Builds (or takes from the cache) the height table of the model, which
+    * can take a moment, so create the preview before the acquisition starts.
+    *
+    * @param model model of the acquisition, one angle per frame
+    * @param minHeight lowest height considered (nm)
+    * @param maxHeight highest height considered (nm)
+    * @param width width of the images
+    * @param height height of the images
+    * @param refreshEvery number of images between updates of the preview
+    * @param title title of the preview window
+    */
+   public LivePreview(SaimModel model, double minHeight, double maxHeight, int width,
+           int height, int refreshEvery, String title) {
+      int bin = (Math.max(width, height) + PREVIEWSIZE - 1) / PREVIEWSIZE;
+      reconstructor_ = new IncrementalReconstructor(model, minHeight, maxHeight, width,
+              height, bin);
+      nrFrames_ = model.getNrAngles();
+      refreshEvery_ = Math.max(1, refreshEvery);
+      minHeight_ = (float) minHeight;
+      maxHeight_ = (float) maxHeight;
+      title_ = title;
+      heights_ = new float[reconstructor_.getBinnedWidth() * reconstructor_.getBinnedHeight()];
+      thread_ = new Thread(this, "SAIM Live Preview");
+      thread_.setDaemon(true);
+      thread_.start();
+   }
+
+   /**
+    * Hands over an image, without waiting.  The pixels are read later, on
+    * the thread of the preview, and should not change.
+    *
+    * @param frameNr index of the angle of the image
+    * @param pixels pixels of the image, images other than 8 bit, 16 bit or
+    * float are ignored
+    */
+   public void offer(int frameNr, Object pixels) {
+      if (!(pixels instanceof byte[] || pixels instanceof short[]
+              || pixels instanceof float[])) {
+         return;
+      }
+      if (!queue_.offer(new Item(frameNr, pixels))) {
+         dropped_.incrementAndGet();
+      }
+   }
+
+   /**
+    * Tells the preview that no more images will come.  The images still
+    * waiting are added and the preview is updated one last time, on the
+    * thread of the preview.  Does not wait.
+    */
+   public void finish() {
+      finished_ = true;
+   }
+
+   @Override
+   public void run() {
+      try {
+         int sinceRefresh = 0;
+         while (true) {
+            Item item = queue_.poll(POLLMS, TimeUnit.MILLISECONDS);
+            if (item == null) {
+               if (finished_ && queue_.isEmpty()) {
+                  break;
+               }
+               continue;
+            }
+            reconstructor_.addImage(item.frameNr_, item.pixels_);
+            sinceRefresh++;
+            if (sinceRefresh >= refreshEvery_) {
+               refresh();
+               sinceRefresh = 0;
+            }
+         }
+         if (sinceRefresh > 0) {
+            refresh();
+         }
+         if (dropped_.get() > 0) {
+            ij.IJ.log("Live preview left out " + dropped_.get() + " of " + nrFrames_
+                    + " angles to keep up with the acquisition");
+         }
+      } catch (InterruptedException ie) {
+         // stopped
+      } catch (RuntimeException ex) {
+         // the preview should never take the acquisition down
+         ij.IJ.log("Live preview stopped: " + ex.getMessage());
+      }
+   }
+
+   /**
+    * Works out the heights from the images added so far, and shows them
+    */
+   private void refresh() {
+      if (!reconstructor_.heights(heights_, null)) {
+         return;
+      }
+      FloatProcessor processor = new FloatProcessor(reconstructor_.getBinnedWidth(),
+              reconstructor_.getBinnedHeight(), heights_.clone(), null);
+      // the same range at every update, so that colors can be compared
+      processor.setMinAndMax(minHeight_, maxHeight_);
+      String title = title_ + " (" + reconstructor_.getNrAngles() + " of " + nrFrames_
+              + " angles)";
+      if (imp_ == null) {
+         imp_ = new ImagePlus(title, processor);
+         imp_.show();
+      } else {
+         imp_.setProcessor(processor);
+         imp_.setTitle(title);
+      }
+   }
+
+}
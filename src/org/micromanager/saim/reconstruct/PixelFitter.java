@@ -0,0 +1,328 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          PixelFitter.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.reconstruct;
+
+import org.micromanager.saim.model.SaimModel;
+
+/**
+ * Fits the intensities of a single pixel at all angles with
+ *    amplitude * I(height) + offset
+ * where I is the SAIM model.
+ *
+ * The intensity is periodic in the height, so a Levenberg-Marquardt fit
+ * started at a random height easily ends up in the wrong fringe.  The fit
+ * therefore first tries a grid of heights (a few per period of the fastest
+ * fringe).  For a fixed height, amplitude and offset follow from linear
+ * least squares, so each grid point costs a single dot product.  The fit is
+ * then refined by Levenberg-Marquardt on all three parameters, starting
+ * from the best grid point.
+ *
+ * All work is done in arrays allocated when the fitter is built.  Not
+ * thread safe, use one fitter per thread.
+ *
+ * @author nico
+ */
+public class PixelFitter {
+
+   /** Index of the height (nm) in the result of fit */
+   public static final int HEIGHT = 0;
+   /** Index of the amplitude in the result of fit */
+   public static final int AMPLITUDE = 1;
+   /** Index of the offset in the result of fit */
+   public static final int OFFSET = 2;
+   /** Index of the quality (coefficient of determination, R^2) in the result of fit */
+   public static final int QUALITY = 3;
+   /** Length of the result of fit */
+   public static final int NRRESULTS = 4;
+
+   // number of grid points per period of the fastest fringe
+   private static final int GRIDPERPERIOD = 8;
+   private static final int MAXITERATIONS = 50;
+   // fits stop when chi-square improves by less than this fraction
+   private static final double TOLERANCE = 1.0e-7;
+   private static final double MAXLAMBDA = 1.0e10;
+
+   private final SaimModel model_;
+   private final int n_;
+   private final double minHeight_;
+   private final double maxHeight_;
+   // model intensities at the grid heights, one row per height
+   private final double[] gridHeights_;
+   private final double[] grid_;
+   private final double[] gridMeans_;
+   // sum of squared deviations from the mean, per grid height
+   private final double[] gridVariances_;
+   private double[] f_;
+   private double[] df_;
+   private double[] trialF_;
+   private double[] trialDf_;
+   private final double[] step_ = new double[3];
+   private int iterations_ = 0;
+
+   /**
+    * @param model model of the acquisition
+    * @param minHeight lowest height considered (nm)
+    * @param maxHeight highest height considered (nm)
+    */
+   public PixelFitter(SaimModel model, double minHeight, double maxHeight) {
+      model_ = model;
+      n_ = model.getNrAngles();
+      minHeight_ = minHeight;
+      maxHeight_ = maxHeight;
+      double step = model.getShortestPeriod() / GRIDPERPERIOD;
+      int nrHeights = Math.max(2, (int) Math.ceil((maxHeight - minHeight) / step) + 1);
+      gridHeights_ = new double[nrHeights];
+      grid_ = new double[nrHeights * n_];
+      gridMeans_ = new double[nrHeights];
+      gridVariances_ = new double[nrHeights];
+      f_ = new double[n_];
+      df_ = new double[n_];
+      trialF_ = new double[n_];
+      trialDf_ = new double[n_];
+      double gridStep = (maxHeight - minHeight) / (nrHeights - 1);
+      model.intensities(minHeight, gridStep, nrHeights, grid_);
+      for (int g = 0; g < nrHeights; g++) {
+         gridHeights_[g] = minHeight + g * gridStep;
+         double sum = 0.0;
+         double sumSquares = 0.0;
+         for (int i = 0; i < n_; i++) {
+            double f = grid_[g * n_ + i];
+            sum += f;
+            sumSquares += f * f;
+         }
+         gridMeans_[g] = sum / n_;
+         gridVariances_[g] = sumSquares - sum * gridMeans_[g];
+      }
+   }
+
+   /**
+    * Fits the curve of a single pixel
+    *
+    * @param data intensities, for all angles in the order of the model
+    * @param offset index in data of the intensity at the first angle
+    * @param result receives height, amplitude, offset and quality (see
+    * HEIGHT, AMPLITUDE, OFFSET and QUALITY).  The height is NaN when the
+    * pixel shows no modulation.
+    */
+   public void fit(float[] data, int offset, double[] result) {
+      double sumY = 0.0;
+      double sumSquaresY = 0.0;
+      for (int i = 0; i < n_; i++) {
+         double y = data[offset + i];
+         sumY += y;
+         sumSquaresY += y * y;
+      }
+      double meanY = sumY / n_;
+      double totalSquares = sumSquaresY - sumY * meanY;
+      result[HEIGHT] = Double.NaN;
+      result[AMPLITUDE] = 0.0;
+      result[OFFSET] = meanY;
+      result[QUALITY] = 0.0;
+      if (!(totalSquares > 0.0)) {
+         return;
+      }
+
+      // best grid height, with a positive amplitude
+      int best = -1;
+      double bestExplained = 0.0;
+      double bestCovariance = 0.0;
+      for (int g = 0; g < gridHeights_.length; g++) {
+         double sumFY = 0.0;
+         int row = g * n_;
+         for (int i = 0; i < n_; i++) {
+            sumFY += grid_[row + i] * data[offset + i];
+         }
+         double covariance = sumFY - gridMeans_[g] * sumY;
+         if (covariance > 0.0) {
+            double explained = covariance * covariance / gridVariances_[g];
+            if (explained > bestExplained) {
+               best = g;
+               bestExplained = explained;
+               bestCovariance = covariance;
+            }
+         }
+      }
+      if (best < 0) {
+         return;
+      }
+      double amplitude = bestCovariance / gridVariances_[best];
+      model_.intensities(gridHeights_[best], f_, df_);
+      levenbergMarquardt(data, offset, gridHeights_[best], amplitude,
+              meanY - amplitude * gridMeans_[best], totalSquares, result);
+   }
+
+   /**
+    * Fits the curve of a single pixel, starting at the given height rather
+    * than searching for the best fringe
+    *
+    * @param data intensities, for all angles in the order of the model
+    * @param offset index in data of the intensity at the first angle
+    * @param height height to start from (nm), e.g. from a HeightTable
+    * @param result receives height, amplitude, offset and quality (see
+    * HEIGHT, AMPLITUDE, OFFSET and QUALITY).  The height is NaN when the
+    * pixel shows no modulation.
+    */
+   public void refine(float[] data, int offset, double height, double[] result) {
+      double sumY = 0.0;
+      double sumSquaresY = 0.0;
+      for (int i = 0; i < n_; i++) {
+         double y = data[offset + i];
+         sumY += y;
+         sumSquaresY += y * y;
+      }
+      double meanY = sumY / n_;
+      double totalSquares = sumSquaresY - sumY * meanY;
+      result[HEIGHT] = Double.NaN;
+      result[AMPLITUDE] = 0.0;
+      result[OFFSET] = meanY;
+      result[QUALITY] = 0.0;
+      if (!(totalSquares > 0.0) || Double.isNaN(height)) {
+         return;
+      }
+      // amplitude and offset by linear least squares
+      model_.intensities(height, f_, df_);
+      double sumF = 0.0;
+      double sumSquaresF = 0.0;
+      double sumFY = 0.0;
+      for (int i = 0; i < n_; i++) {
+         sumF += f_[i];
+         sumSquaresF += f_[i] * f_[i];
+         sumFY += f_[i] * data[offset + i];
+      }
+      double meanF = sumF / n_;
+      double varianceF = sumSquaresF - sumF * meanF;
+      if (!(varianceF > 0.0)) {
+         return;
+      }
+      double amplitude = (sumFY - meanF * sumY) / varianceF;
+      levenbergMarquardt(data, offset, height, amplitude, meanY - amplitude * meanF,
+              totalSquares, result);
+   }
+
+   /**
+    * Levenberg-Marquardt on height, amplitude and offset.  f_ and df_ should
+    * hold the model at the starting height.
+    */
+   private void levenbergMarquardt(float[] data, int offset, double height,
+           double amplitude, double background, double totalSquares, double[] result) {
+      double chiSquare = chiSquare(data, offset, f_, amplitude, background);
+      double lambda = 1.0e-3;
+      int iteration = 0;
+      while (iteration < MAXITERATIONS && lambda < MAXLAMBDA) {
+         iteration++;
+         // normal equations, parameters are height, amplitude and offset
+         double a00 = 0.0, a01 = 0.0, a02 = 0.0, a11 = 0.0, a12 = 0.0;
+         double b0 = 0.0, b1 = 0.0, b2 = 0.0;
+         for (int i = 0; i < n_; i++) {
+            double j0 = amplitude * df_[i];
+            double j1 = f_[i];
+            double r = data[offset + i] - amplitude * f_[i] - background;
+            a00 += j0 * j0;
+            a01 += j0 * j1;
+            a02 += j0;
+            a11 += j1 * j1;
+            a12 += j1;
+            b0 += j0 * r;
+            b1 += j1 * r;
+            b2 += r;
+         }
+         double a22 = n_;
+         if (!solve(a00 * (1.0 + lambda), a01, a02, a11 * (1.0 + lambda), a12,
+                 a22 * (1.0 + lambda), b0, b1, b2, step_)) {
+            lambda *= 10.0;
+            continue;
+         }
+         double trialHeight = Math.max(minHeight_, Math.min(maxHeight_, height + step_[0]));
+         double trialAmplitude = amplitude + step_[1];
+         double trialBackground = background + step_[2];
+         model_.intensities(trialHeight, trialF_, trialDf_);
+         double trialChiSquare = chiSquare(data, offset, trialF_, trialAmplitude,
+                 trialBackground);
+         if (trialChiSquare < chiSquare) {
+            double improvement = chiSquare - trialChiSquare;
+            height = trialHeight;
+            amplitude = trialAmplitude;
+            background = trialBackground;
+            chiSquare = trialChiSquare;
+            double[] tmp = f_;
+            f_ = trialF_;
+            trialF_ = tmp;
+            tmp = df_;
+            df_ = trialDf_;
+            trialDf_ = tmp;
+            lambda *= 0.1;
+            if (improvement < TOLERANCE * chiSquare) {
+               break;
+            }
+         } else {
+            lambda *= 10.0;
+         }
+      }
+      iterations_ += iteration;
+
+      result[HEIGHT] = height;
+      result[AMPLITUDE] = amplitude;
+      result[OFFSET] = background;
+      result[QUALITY] = 1.0 - chiSquare / totalSquares;
+   }
+
+   /**
+    * @return total number of Levenberg-Marquardt iterations done by this fitter
+    */
+   public int getIterations() {
+      return iterations_;
+   }
+
+   private double chiSquare(float[] data, int offset, double[] f, double amplitude,
+           double background) {
+      double sum = 0.0;
+      for (int i = 0; i < n_; i++) {
+         double r = data[offset + i] - amplitude * f[i] - background;
+         sum += r * r;
+      }
+      return sum;
+   }
+
+   /**
+    * Solves the symmetric 3x3 system A x = b by Cramer's rule
+    *
+    * @param x receives the solution
+    * @return false when A is singular
+    */
+   private static boolean solve(double a00, double a01, double a02, double a11,
+           double a12, double a22, double b0, double b1, double b2, double[] x) {
+      double c00 = a11 * a22 - a12 * a12;
+      double c01 = a02 * a12 - a01 * a22;
+      double c02 = a01 * a12 - a02 * a11;
+      double det = a00 * c00 + a01 * c01 + a02 * c02;
+      if (!(Math.abs(det) > 0.0)) {
+         return false;
+      }
+      double c11 = a00 * a22 - a02 * a02;
+      double c12 = a01 * a02 - a00 * a12;
+      double c22 = a00 * a11 - a01 * a01;
+      x[0] = (c00 * b0 + c01 * b1 + c02 * b2) / det;
+      x[1] = (c01 * b0 + c11 * b1 + c12 * b2) / det;
+      x[2] = (c02 * b0 + c12 * b1 + c22 * b2) / det;
+      return true;
+   }
+
+}
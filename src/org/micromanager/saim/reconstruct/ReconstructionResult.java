@@ -0,0 +1,126 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ReconstructionResult.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.reconstruct;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+
+/**
+ * Height map of a SAIM acquisition, together with the other fitted
+ * parameters and the quality of the fit of each pixel.  Maps are stored
+ * row by row, as ImageJ does.
+ *
+ * @author nico
+ */
+public class ReconstructionResult {
+
+   private final int width_;
+   private final int height_;
+   private final float[] heights_;
+   private final float[] amplitudes_;
+   private final float[] offsets_;
+   private final float[] qualities_;
+
+   /**
+    * Creates a result with all maps set to 0
+    *
+    * @param width width of the images (pixels)
+    * @param height height of the images (pixels)
+    */
+   public ReconstructionResult(int width, int height) {
+      width_ = width;
+      height_ = height;
+      heights_ = new float[width * height];
+      amplitudes_ = new float[width * height];
+      offsets_ = new float[width * height];
+      qualities_ = new float[width * height];
+   }
+
+   public int getWidth() {
+      return width_;
+   }
+
+   public int getHeight() {
+      return height_;
+   }
+
+   /**
+    * @return height above the oxide of each pixel (nm), NaN where no height
+    * could be found
+    */
+   public float[] getHeights() {
+      return heights_;
+   }
+
+   /**
+    * @return amplitude of the modulation of each pixel
+    */
+   public float[] getAmplitudes() {
+      return amplitudes_;
+   }
+
+   /**
+    * @return background of each pixel
+    */
+   public float[] getOffsets() {
+      return offsets_;
+   }
+
+   /**
+    * @return quality of the fit (coefficient of determination, R^2) of each
+    * pixel
+    */
+   public float[] getQualities() {
+      return qualities_;
+   }
+
+   /**
+    * Stores the fit of a single pixel
+    *
+    * @param index index of the pixel (y * width + x)
+    * @param fit height, amplitude, offset and quality, as returned by
+    * PixelFitter.fit
+    */
+   public void set(int index, double[] fit) {
+      heights_[index] = (float) fit[PixelFitter.HEIGHT];
+      amplitudes_[index] = (float) fit[PixelFitter.AMPLITUDE];
+      offsets_[index] = (float) fit[PixelFitter.OFFSET];
+      qualities_[index] = (float) fit[PixelFitter.QUALITY];
+   }
+
+   /**
+    * @param title title of the image
+    * @return stack with the height, quality, amplitude and offset maps.
+    * The maps are not copied.
+    */
+   public ImagePlus toImagePlus(String title) {
+      ImageStack stack = new ImageStack(width_, height_);
+      stack.addSlice("Height (nm)", new FloatProcessor(width_, height_, heights_, null));
+      stack.addSlice("Quality (R^2)", new FloatProcessor(width_, height_, qualities_, null));
+      stack.addSlice("Amplitude", new FloatProcessor(width_, height_, amplitudes_, null));
+      stack.addSlice("Offset", new FloatProcessor(width_, height_, offsets_, null));
+      ImagePlus imp = new ImagePlus(title, stack);
+      imp.getProcessor().resetMinAndMax();
+      return imp;
+   }
+
+}
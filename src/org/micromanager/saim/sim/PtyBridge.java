@@ -0,0 +1,124 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          PtyBridge.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.sim;
+
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Serves a SimulatedDetector on a (pseudo) terminal, so that it can be
+ * reached through a real tty, for instance by a TtySerialLink or by
+ * Micro-Manager's serial port adapter.  Create a pair of connected
+ * pseudo-terminals with:
+ *    socat -d -d pty,raw,echo=0 pty,raw,echo=0
+ * and hand one end to the bridge and the other to the client.  The bridge
+ * end needs to be non-blocking:
+ *    stty -F /dev/pts/N raw -echo min 0 time 0
+ *
+ * @author nico
+ */
+public class PtyBridge {
+
+   private static final int CHUNKBYTES = 4096;
+
+   private final SimulatedDetector detector_;
+   private final RandomAccessFile file_;
+   private final FileChannel channel_;
+   private volatile boolean running_ = false;
+   private volatile Exception error_;
+   private Thread thread_;
+
+   /**
+    * @param detector simulated device to serve
+    * @param path path to the (pseudo) terminal
+    * @throws Exception when the terminal can not be opened
+    */
+   public PtyBridge(SimulatedDetector detector, String path) throws Exception {
+      detector_ = detector;
+      file_ = new RandomAccessFile(path, "rw");
+      channel_ = file_.getChannel();
+   }
+
+   public synchronized void start() {
+      if (running_) {
+         return;
+      }
+      running_ = true;
+      thread_ = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            serve();
+         }
+      }, "SAIM Simulator Bridge");
+      thread_.setDaemon(true);
+      thread_.start();
+   }
+
+   public synchronized void stop() throws Exception {
+      if (thread_ == null) {
+         return;
+      }
+      running_ = false;
+      thread_.join();
+      thread_ = null;
+      file_.close();
+   }
+
+   /**
+    * @return problem that stopped the bridge, null if none
+    */
+   public Exception getError() {
+      return error_;
+   }
+
+   private void serve() {
+      final ByteBuffer in = ByteBuffer.allocate(64);
+      final ByteBuffer out = ByteBuffer.allocateDirect(CHUNKBYTES);
+      try {
+         while (running_) {
+            boolean idle = true;
+            in.clear();
+            if (channel_.read(in) > 0) {
+               idle = false;
+               for (int i = 0; i < in.position(); i++) {
+                  detector_.command((char) (in.get(i) & 0xFF));
+               }
+            }
+            out.clear();
+            if (detector_.transmit(out) > 0) {
+               idle = false;
+               out.flip();
+               while (out.hasRemaining()) {
+                  channel_.write(out);
+               }
+            }
+            if (idle) {
+               Thread.sleep(1);
+            }
+         }
+      } catch (Exception ex) {
+         error_ = ex;
+         running_ = false;
+      }
+   }
+
+}
@@ -0,0 +1,241 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ReconstructionBenchmark.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.sim;
+
+import java.util.Random;
+import org.micromanager.saim.model.SaimModel;
+import org.micromanager.saim.reconstruct.HeightReconstructor;
+import org.micromanager.saim.reconstruct.HeightTable;
+import org.micromanager.saim.reconstruct.IncrementalReconstructor;
+import org.micromanager.saim.reconstruct.ReconstructionResult;
+
+/**
+ * Reconstructs a simulated SAIM acquisition of a sample with known heights,
+ * without Micro-Manager or a GUI, and reports speed and accuracy.
+ *
+ * Usage: java org.micromanager.saim.sim.ReconstructionBenchmark [options]
+ *    -size n           width and height of the images (512)
+ *    -angle deg        angles run from -deg to deg (45)
+ *    -step deg         angle step size (1)
+ *    -wavelength nm    excitation wavelength (488)
+ *    -oxide nm         thickness of the oxide layer (1900)
+ *    -polarization p   s, p or Unpolarized (s)
+ *    -max nm           heights in the sample run from 0 to this height (1000)
+ *    -noise f          noise, as a fraction of the amplitude (0.02)
+ *    -method m         Fit, Table or "Table + Fit" (Fit)
+ *    -threads n        number of threads (all processors)
+ *    -seed n           seed for the noise (1)
+ *    -preview bin      also times the live preview, binning bin x bin pixels
+ *
+ * @author nico
+ */
+public class ReconstructionBenchmark {
+
+   private static final double AMPLITUDE = 1000.0;
+   private static final double BACKGROUND = 100.0;
+
+   public static void main(String[] args) throws Exception {
+      int size = 512;
+      double maxAngle = 45.0;
+      double angleStep = 1.0;
+      double wavelength = 488.0;
+      double oxideThickness = 1900.0;
+      SaimModel.Polarization polarization = SaimModel.Polarization.S;
+      double maxHeight = 1000.0;
+      double noise = 0.02;
+      int nrThreads = Runtime.getRuntime().availableProcessors();
+      long seed = 1;
+      int previewBin = 0;
+      HeightReconstructor.Method method = HeightReconstructor.Method.FIT;
+      for (int i = 0; i < args.length; i++) {
+         String arg = args[i];
+         if (arg.equals("-size")) {
+            size = Integer.parseInt(args[++i]);
+         } else if (arg.equals("-angle")) {
+            maxAngle = Double.parseDouble(args[++i]);
+         } else if (arg.equals("-step")) {
+            angleStep = Double.parseDouble(args[++i]);
+         } else if (arg.equals("-wavelength")) {
+            wavelength = Double.parseDouble(args[++i]);
+         } else if (arg.equals("-oxide")) {
+            oxideThickness = Double.parseDouble(args[++i]);
+         } else if (arg.equals("-polarization")) {
+            polarization = SaimModel.Polarization.fromName(args[++i]);
+         } else if (arg.equals("-max")) {
+            maxHeight = Double.parseDouble(args[++i]);
+         } else if (arg.equals("-noise")) {
+            noise = Double.parseDouble(args[++i]);
+         } else if (arg.equals("-method")) {
+            method = HeightReconstructor.Method.fromName(args[++i]);
+         } else if (arg.equals("-threads")) {
+            nrThreads = Integer.parseInt(args[++i]);
+         } else if (arg.equals("-seed")) {
+            seed = Long.parseLong(args[++i]);
+         } else if (arg.equals("-preview")) {
+            previewBin = Integer.parseInt(args[++i]);
+         } else {
+            System.err.println("Unknown option: " + arg);
+            System.exit(1);
+         }
+      }
+
+      int nrAngles = (int) Math.round(2 * maxAngle / angleStep) + 1;
+      double[] angles = new double[nrAngles];
+      for (int i = 0; i < nrAngles; i++) {
+         angles[i] = -maxAngle + i * angleStep;
+      }
+      SaimModel model = new SaimModel(angles, wavelength, oxideThickness, polarization);
+
+      // a smooth landscape covering the whole height range
+      float[] heights = new float[size * size];
+      for (int y = 0; y < size; y++) {
+         for (int x = 0; x < size; x++) {
+            heights[y * size + x] = (float) (maxHeight * (0.5
+                    + 0.25 * Math.sin(6.0 * x / size) + 0.2 * Math.cos(4.0 * y / size)));
+         }
+      }
+      short[][] frames = simulate(model, heights, noise, seed);
+
+      long start = System.nanoTime();
+      HeightReconstructor reconstructor = new HeightReconstructor(model, 0.0, maxHeight,
+              method, nrThreads);
+      double setupSeconds = (System.nanoTime() - start) / 1.0e9;
+      start = System.nanoTime();
+      ReconstructionResult result = reconstructor.reconstruct(frames, size, size);
+      double seconds = (System.nanoTime() - start) / 1.0e9;
+
+      System.out.println("Stack:            " + size + " x " + size + " x " + nrAngles
+              + " angles, " + wavelength + " nm, oxide " + oxideThickness + " nm, "
+              + "polarization " + polarization);
+      System.out.println("Method:           " + method + ", " + nrThreads + " threads");
+      if (method != HeightReconstructor.Method.FIT) {
+         HeightTable table = HeightTable.forModel(model, 0.0, maxHeight,
+                 HeightReconstructor.TABLESTEP);
+         System.out.println("Table:            " + table.getNrHeights() + " heights, "
+                 + table.getNrComponents() + " components, built in "
+                 + String.format("%.3f s", setupSeconds));
+      }
+      System.out.println("Total time:       " + String.format("%.3f s", seconds));
+      System.out.println("Pixels/s:         " + String.format("%.0f", size * size / seconds));
+      System.out.println("LM iterations:    " + String.format("%.2f",
+              reconstructor.getIterations() / (double) (size * size)) + " per pixel");
+      report(result, heights);
+      if (previewBin > 0) {
+         preview(model, frames, heights, size, maxHeight, previewBin);
+      }
+   }
+
+   /**
+    * Adds the frames one at a time to an IncrementalReconstructor, as the
+    * live preview does, and reports the time taken and the heights found
+    * with a quarter, half and all of the angles
+    */
+   static void preview(SaimModel model, short[][] frames, float[] heights, int size,
+           double maxHeight, int bin) {
+      IncrementalReconstructor reconstructor = new IncrementalReconstructor(model, 0.0,
+              maxHeight, size, size, bin);
+      int binnedSize = reconstructor.getBinnedWidth();
+      // real height of each binned pixel
+      float[] binnedHeights = new float[binnedSize * binnedSize];
+      for (int y = 0; y < binnedSize * bin; y++) {
+         for (int x = 0; x < binnedSize * bin; x++) {
+            binnedHeights[(y / bin) * binnedSize + x / bin] += heights[y * size + x]
+                    / (bin * bin);
+         }
+      }
+      float[] found = new float[binnedHeights.length];
+      float[] qualities = new float[binnedHeights.length];
+      int n = frames.length;
+      long addNs = 0;
+      for (int a = 0; a < n; a++) {
+         long start = System.nanoTime();
+         reconstructor.addImage(a, frames[a]);
+         addNs += System.nanoTime() - start;
+         if (a + 1 == n / 4 || a + 1 == n / 2 || a + 1 == n) {
+            start = System.nanoTime();
+            reconstructor.heights(found, qualities);
+            double ms = (System.nanoTime() - start) / 1.0e6;
+            ReconstructionResult result = new ReconstructionResult(binnedSize, binnedSize);
+            System.arraycopy(found, 0, result.getHeights(), 0, found.length);
+            System.arraycopy(qualities, 0, result.getQualities(), 0, qualities.length);
+            System.out.println("Preview, " + (a + 1) + " of " + n + " angles: "
+                    + binnedSize + " x " + binnedSize + " in " + String.format("%.1f ms", ms));
+            report(result, binnedHeights);
+         }
+      }
+      System.out.println("Preview, adding a frame: "
+              + String.format("%.2f ms", addNs / 1.0e6 / n));
+   }
+
+   /**
+    * Images of a sample with the given heights
+    *
+    * @return one image per angle of the model
+    */
+   static short[][] simulate(SaimModel model, float[] heights, double noise, long seed) {
+      Random random = new Random(seed);
+      short[][] frames = new short[model.getNrAngles()][heights.length];
+      double[] intensities = new double[model.getNrAngles()];
+      for (int p = 0; p < heights.length; p++) {
+         model.intensities(heights[p], intensities);
+         for (int a = 0; a < intensities.length; a++) {
+            double value = BACKGROUND + AMPLITUDE * intensities[a]
+                    + noise * AMPLITUDE * random.nextGaussian();
+            frames[a][p] = (short) Math.max(0, Math.min(65535, Math.round(value)));
+         }
+      }
+      return frames;
+   }
+
+   /**
+    * Prints how well the reconstructed heights match the real ones
+    */
+   static void report(ReconstructionResult result, float[] heights) {
+      float[] found = result.getHeights();
+      float[] qualities = result.getQualities();
+      double sumSquaredError = 0.0;
+      double sumQuality = 0.0;
+      int nrFound = 0;
+      int nrOff = 0;
+      for (int p = 0; p < heights.length; p++) {
+         if (Float.isNaN(found[p])) {
+            continue;
+         }
+         double error = found[p] - heights[p];
+         // pixels that ended up in another fringe are counted, not averaged
+         if (Math.abs(error) > 20.0) {
+            nrOff++;
+         } else {
+            sumSquaredError += error * error;
+         }
+         sumQuality += qualities[p];
+         nrFound++;
+      }
+      System.out.println("Heights found:    " + nrFound + " of " + heights.length
+              + " pixels, " + nrOff + " off by more than 20 nm");
+      if (nrFound > nrOff) {
+         System.out.println("Height error (nm): rms "
+                 + String.format("%.2f", Math.sqrt(sumSquaredError / (nrFound - nrOff)))
+                 + ", mean R^2 " + String.format("%.4f", sumQuality / nrFound));
+      }
+   }
+
+}
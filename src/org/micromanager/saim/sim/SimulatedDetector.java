@@ -0,0 +1,380 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          SimulatedDetector.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.sim;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.zip.CRC32;
+import org.micromanager.saim.calibration.SaimOptics;
+import org.micromanager.saim.detector.DetectorFrameReader;
+import org.micromanager.saim.detector.FrameDecoder;
+import org.micromanager.saim.detector.Packed12;
+
+/**
+ * Simulates the calibration device (two TSL1412S line sensors read out by an
+ * Arduino Due) at the level of the bytes it sends.  Understands the same
+ * commands as the firmware ('1' raw frame, '2' framed frame, '3' start
+ * streaming, '4' stop streaming, '5' packed frame, '6' start streaming packed
+ * frames, 'r' set the region of interest), and answers with the same byte
+ * layout.
+ *
+ * Both sensors see a Gaussian beam on top of an offset, with Gaussian noise,
+ * clipped at the range of the 12 bit ADC.  The angle of the beam follows a
+ * polynomial of the position of a SimulatedTirfMotor, and the beam centers
+ * are placed such that the geometry of SaimOptics (63.5 um pixels, sensors
+ * 12.95 mm apart) recovers that angle.
+ *
+ * Timing is simulated as well: a frame is exposed and digitized during the
+ * exposure time, and then trickles out at the configured transfer rate.
+ * Bytes are produced on demand when transmit is called, so no thread is
+ * needed.  All methods are thread safe.
+ *
+ * @author nico
+ */
+public class SimulatedDetector {
+
+   /** Distance between pixel centers (mm), as used by CalibrationPanel */
+   public static final double PIXELSIZEMM = SaimOptics.PIXELSIZEMM;
+   /** Distance between the centers of the two sensors (mm) */
+   public static final double DETECTORDISTANCEMM = SaimOptics.DETECTORDISTANCEMM;
+   /** Largest value the 12 bit ADC of the Due can report */
+   public static final int SATURATION = 4095;
+
+   private final SimulatedTirfMotor motor_;
+   private final Random random_;
+   private final CRC32 crc_ = new CRC32();
+   private final short[] lower_ = new short[DetectorFrameReader.NRPIXELS];
+   private final short[] upper_ = new short[DetectorFrameReader.NRPIXELS];
+   private final byte[] out_ = new byte[FrameDecoder.MAXFRAMEBYTES];
+   private final ByteBuffer outBuffer_ =
+           ByteBuffer.wrap(out_).order(ByteOrder.LITTLE_ENDIAN);
+   private final StringBuilder commands_ = new StringBuilder();
+
+   // default values give a beam that crosses about 120 pixels between
+   // -30 and +30 degrees, for motor positions between 0 and 10000
+   private double[] angleLaw_ = {-30.0, 0.006};
+   private double center_ = DetectorFrameReader.NRPIXELS / 2;
+   private double width_ = 40.0;
+   private double amplitude_ = 3000.0;
+   private double offset_ = 100.0;
+   private double noise_ = 20.0;
+   private double corruptionRate_ = 0.0;
+   private long exposureNs_ = 45000000L;
+   private double bytesPerSecond_ = 0.0;
+
+   private boolean streaming_ = false;
+   private boolean packed_ = false;
+   private int roiStart1_ = 0;
+   private int roiStart2_ = 0;
+   private int roiWidth_ = DetectorFrameReader.NRPIXELS;
+   private int sequence_ = 0;
+   private long framesSent_ = 0;
+   private int outLength_ = 0;
+   private int outSent_ = 0;
+   private long outStart_;
+
+   /**
+    * @param motor motor that sets the angle of the beam, can be null in
+    * which case the beam is at the angle of motor position 0
+    * @param seed seed for the noise, so that runs can be repeated
+    */
+   public SimulatedDetector(SimulatedTirfMotor motor, long seed) {
+      motor_ = motor;
+      random_ = new Random(seed);
+   }
+
+   /**
+    * @param coefficients angle of the beam (degrees) as polynomial of the
+    * motor position, lowest order first
+    */
+   public synchronized void setAngleLaw(double[] coefficients) {
+      angleLaw_ = coefficients.clone();
+   }
+
+   /**
+    * @param center pixel hit by the beam when it comes in at 0 degrees
+    * @param width standard deviation of the beam profile (pixels)
+    * @param amplitude peak height of the beam above the offset
+    */
+   public synchronized void setBeam(double center, double width, double amplitude) {
+      center_ = center;
+      width_ = width;
+      amplitude_ = amplitude;
+   }
+
+   /**
+    * @param offset dark level of the sensors
+    * @param noise standard deviation of the noise on each pixel
+    */
+   public synchronized void setBackground(double offset, double noise) {
+      offset_ = offset;
+      noise_ = noise;
+   }
+
+   /**
+    * @param exposureMs time needed to expose and digitize a frame (ms)
+    * @param bytesPerSecond transfer rate of the serial connection, 0 for
+    * unlimited (native USB is much faster than the rest of the system)
+    */
+   public synchronized void setTiming(double exposureMs, double bytesPerSecond) {
+      exposureNs_ = (long) (exposureMs * 1.0e6);
+      bytesPerSecond_ = bytesPerSecond;
+   }
+
+   /**
+    * @param rate probability that a frame has a byte damaged in transfer
+    */
+   public synchronized void setCorruptionRate(double rate) {
+      corruptionRate_ = rate;
+   }
+
+   /**
+    * @param position motor position
+    * @return angle of the beam (degrees) at that position
+    */
+   public synchronized double angleAt(double position) {
+      double result = 0.0;
+      for (int i = angleLaw_.length - 1; i >= 0; i--) {
+         result = result * position + angleLaw_[i];
+      }
+      return result;
+   }
+
+   /**
+    * @param angle angle of the beam (degrees)
+    * @return beam center on the lower (index 0) and upper (index 1) sensor
+    */
+   public synchronized double[] beamCenters(double angle) {
+      double separation = Math.tan(Math.toRadians(angle)) * DETECTORDISTANCEMM
+              / PIXELSIZEMM;
+      return new double[] {center_ + separation / 2.0, center_ - separation / 2.0};
+   }
+
+   /**
+    * @return number of frames completely sent so far
+    */
+   public synchronized long getFramesSent() {
+      return framesSent_;
+   }
+
+   /**
+    * Hands a command to the device, as if it was written to the serial port
+    *
+    * @param command single character command
+    */
+   public synchronized void command(char command) {
+      commands_.append(command);
+      startNext(System.nanoTime());
+   }
+
+   /**
+    * Copies the bytes the device has sent by now into dest, as if they were
+    * read from the serial port
+    *
+    * @param dest buffer that receives the bytes, starting at its position
+    * @return number of bytes copied
+    */
+   public synchronized int transmit(ByteBuffer dest) {
+      final long now = System.nanoTime();
+      int total = 0;
+      while (dest.hasRemaining() && outLength_ > 0) {
+         int available = outLength_;
+         if (now < outStart_) {
+            available = 0;
+         } else if (bytesPerSecond_ > 0) {
+            available = (int) Math.min(outLength_,
+                    (now - outStart_) * bytesPerSecond_ / 1.0e9);
+         }
+         int nrBytes = Math.min(available - outSent_, dest.remaining());
+         if (nrBytes <= 0) {
+            break;
+         }
+         dest.put(out_, outSent_, nrBytes);
+         outSent_ += nrBytes;
+         total += nrBytes;
+         if (outSent_ == outLength_) {
+            long end = outStart_ + transferNs(outLength_);
+            outLength_ = 0;
+            framesSent_++;
+            // when nobody read for a while, the device was held up by flow
+            // control, and only just exposed the next frame
+            startNext(Math.max(end, now - exposureNs_));
+         }
+      }
+      return total;
+   }
+
+   /**
+    * Starts sending the next frame if the device is idle and has something
+    * to do
+    *
+    * @param exposureStart time the exposure of the next frame starts
+    */
+   private void startNext(long exposureStart) {
+      while (outLength_ == 0) {
+         if (commands_.length() > 0) {
+            char command = commands_.charAt(0);
+            commands_.deleteCharAt(0);
+            switch (command) {
+               case '1':
+                  queueFrame(false, exposureStart);
+                  break;
+               case '2':
+                  packed_ = false;
+                  queueFrame(true, exposureStart);
+                  break;
+               case '3':
+                  packed_ = false;
+                  streaming_ = true;
+                  break;
+               case '5':
+                  packed_ = true;
+                  queueFrame(true, exposureStart);
+                  break;
+               case '6':
+                  packed_ = true;
+                  streaming_ = true;
+                  break;
+               case 'r':
+                  int end = commands_.indexOf("\n");
+                  if (end < 0) {
+                     // wait for the rest of the arguments
+                     commands_.insert(0, command);
+                     return;
+                  }
+                  setRoi(commands_.substring(0, end));
+                  commands_.delete(0, end + 1);
+                  break;
+               case '4':
+                  streaming_ = false;
+                  break;
+               default:
+                  break;
+            }
+         } else if (streaming_) {
+            queueFrame(true, exposureStart);
+         } else {
+            return;
+         }
+      }
+   }
+
+   /**
+    * Sets the region of interest from the arguments of the r command, and
+    * falls back to full frames when they make no sense, like the firmware
+    */
+   private void setRoi(String arguments) {
+      String[] parts = arguments.split(",");
+      int start1 = -1;
+      int start2 = -1;
+      int width = 0;
+      try {
+         start1 = Integer.parseInt(parts[0].trim());
+         start2 = Integer.parseInt(parts[1].trim());
+         width = Integer.parseInt(parts[2].trim());
+      } catch (RuntimeException ex) {
+         // leaves an invalid window
+      }
+      final int nrPixels = DetectorFrameReader.NRPIXELS;
+      if (width < 2 || width > nrPixels || width % 2 != 0 || start1 < 0
+              || start2 < 0 || start1 + width > nrPixels || start2 + width > nrPixels) {
+         start1 = 0;
+         start2 = 0;
+         width = nrPixels;
+      }
+      roiStart1_ = start1;
+      roiStart2_ = start2;
+      roiWidth_ = width;
+   }
+
+   private long transferNs(int nrBytes) {
+      if (bytesPerSecond_ <= 0) {
+         return 0;
+      }
+      return (long) (nrBytes / bytesPerSecond_ * 1.0e9);
+   }
+
+   /**
+    * Exposes a frame and puts it in the output buffer
+    */
+   private void queueFrame(boolean framed, long exposureStart) {
+      double position = motor_ == null ? 0.0
+              : motor_.positionAt(exposureStart + exposureNs_ / 2);
+      double[] centers = beamCenters(angleAt(position));
+      expose(lower_, centers[0]);
+      expose(upper_, centers[1]);
+
+      final boolean packed = framed && packed_;
+      // raw frames always contain whole detectors
+      final int start1 = framed ? roiStart1_ : 0;
+      final int start2 = framed ? roiStart2_ : 0;
+      final int width = framed ? roiWidth_ : DetectorFrameReader.NRPIXELS;
+      outBuffer_.clear();
+      if (framed) {
+         outBuffer_.put(FrameDecoder.MAGIC);
+         outBuffer_.put((byte) FrameDecoder.VERSION);
+         outBuffer_.put((byte) (packed ? FrameDecoder.FLAGPACKED12 : 0));
+         outBuffer_.putShort((short) sequence_);
+         outBuffer_.putShort((short) width);
+         outBuffer_.putShort((short) start1);
+         outBuffer_.putShort((short) start2);
+         sequence_ = (sequence_ + 1) & 0xFFFF;
+      }
+      if (packed) {
+         final int detectorBytes = Packed12.packedBytes(width);
+         Packed12.pack(lower_, start1, out_, outBuffer_.position(), width);
+         Packed12.pack(upper_, start2, out_, outBuffer_.position() + detectorBytes,
+                 width);
+         outBuffer_.position(outBuffer_.position() + 2 * detectorBytes);
+      } else {
+         for (int i = start1; i < start1 + width; i++) {
+            outBuffer_.putShort(lower_[i]);
+         }
+         for (int i = start2; i < start2 + width; i++) {
+            outBuffer_.putShort(upper_[i]);
+         }
+      }
+      if (framed) {
+         crc_.reset();
+         crc_.update(out_, FrameDecoder.MAGIC.length,
+                 outBuffer_.position() - FrameDecoder.MAGIC.length);
+         outBuffer_.putInt((int) crc_.getValue());
+      }
+      outLength_ = outBuffer_.position();
+      if (corruptionRate_ > 0 && random_.nextDouble() < corruptionRate_) {
+         out_[random_.nextInt(outLength_)] ^= (byte) (1 << random_.nextInt(8));
+      }
+      outSent_ = 0;
+      outStart_ = exposureStart + exposureNs_;
+   }
+
+   private void expose(short[] pixels, double center) {
+      final double factor = -1.0 / (2.0 * width_ * width_);
+      for (int i = 0; i < pixels.length; i++) {
+         double d = i - center;
+         double value = offset_ + amplitude_ * Math.exp(d * d * factor)
+                 + noise_ * random_.nextGaussian();
+         pixels[i] = (short) Math.max(0, Math.min(SATURATION, Math.round(value)));
+      }
+   }
+
+}
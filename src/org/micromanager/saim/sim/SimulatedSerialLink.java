@@ -0,0 +1,55 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          SimulatedSerialLink.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.sim;
+
+import java.nio.ByteBuffer;
+import org.micromanager.saim.detector.SerialLink;
+
+/**
+ * In-memory SerialLink to a SimulatedDetector
+ *
+ * @author nico
+ */
+public class SimulatedSerialLink implements SerialLink {
+
+   private final SimulatedDetector detector_;
+
+   public SimulatedSerialLink(SimulatedDetector detector) {
+      detector_ = detector;
+   }
+
+   @Override
+   public void send(String command) {
+      for (int i = 0; i < command.length(); i++) {
+         detector_.command(command.charAt(i));
+      }
+   }
+
+   @Override
+   public int read(ByteBuffer dest) {
+      return detector_.transmit(dest);
+   }
+
+   @Override
+   public void close() {
+   }
+
+}
@@ -0,0 +1,92 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          SimulatedTirfMotor.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.sim;
+
+import org.micromanager.saim.detector.TirfMotor;
+
+/**
+ * Fake TIRF motor.  Moves at a constant speed and then takes some time to
+ * settle, like a stepper motor, and remembers its trajectory so that the
+ * simulated detector can ask where the motor was at any given time.
+ *
+ * @author nico
+ */
+public class SimulatedTirfMotor implements TirfMotor {
+
+   private final double speed_;
+   private final long settleNs_;
+
+   private double from_;
+   private double to_;
+   private long moveStart_;
+   private long moveEnd_;
+
+   /**
+    * @param speed speed of the motor (position units per second)
+    * @param settleMs time the motor needs to settle after a move (ms)
+    * @param position initial position of the motor
+    */
+   public SimulatedTirfMotor(double speed, double settleMs, double position) {
+      speed_ = speed;
+      settleNs_ = (long) (settleMs * 1.0e6);
+      from_ = position;
+      to_ = position;
+      moveStart_ = System.nanoTime();
+      moveEnd_ = moveStart_;
+   }
+
+   @Override
+   public void setPosition(double position) throws Exception {
+      long arrival;
+      synchronized (this) {
+         from_ = positionAt(System.nanoTime());
+         to_ = position;
+         moveStart_ = System.nanoTime();
+         moveEnd_ = moveStart_ + (long) (Math.abs(to_ - from_) / speed_ * 1.0e9);
+         arrival = moveEnd_ + settleNs_;
+      }
+      long wait = arrival - System.nanoTime();
+      if (wait > 0) {
+         Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+      }
+   }
+
+   @Override
+   public double getPosition() {
+      return positionAt(System.nanoTime());
+   }
+
+   /**
+    * @param nanoTime moment of interest, as given by System.nanoTime()
+    * @return position the motor had, or will have, at the given time
+    */
+   public synchronized double positionAt(long nanoTime) {
+      if (nanoTime >= moveEnd_) {
+         return to_;
+      }
+      if (nanoTime <= moveStart_) {
+         return from_;
+      }
+      double fraction = (double) (nanoTime - moveStart_) / (moveEnd_ - moveStart_);
+      return from_ + fraction * (to_ - from_);
+   }
+
+}
@@ -0,0 +1,461 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          SimulatorBenchmark.java
+//PROJECT:       SAIM-calibration
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman, Kate Carbone
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.saim.sim;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.micromanager.saim.calibration.AdaptiveSampler;
+import org.micromanager.saim.calibration.ChannelCalibration;
+import org.micromanager.saim.calibration.LiveCalibration;
+import org.micromanager.saim.calibration.RoiTracker;
+import org.micromanager.saim.calibration.SaimOptics;
+import org.micromanager.saim.calibration.ScanFitSession;
+import org.micromanager.saim.calibration.ScanPipeline;
+import org.micromanager.saim.calibration.ScanStep;
+import org.micromanager.saim.detector.DetectorFrame;
+import org.micromanager.saim.detector.LineSensorSource;
+import org.micromanager.saim.detector.SerialLineSensorSource;
+import org.micromanager.saim.detector.SerialLink;
+import org.micromanager.saim.detector.TtySerialLink;
+import org.micromanager.saim.fit.Fitter;
+import org.micromanager.saim.fit.PeakEstimator;
+import org.micromanager.saim.fit.PolynomialFitter;
+
+/**
+ * Runs a calibration scan against the simulator, without Micro-Manager or a
+ * GUI, and reports throughput and fit latency.  The analysis does the same
+ * fits as CalibrationPanel, but skips plotting and the refractive index
+ * corrections, so that the recovered angles can be compared with the angle
+ * law of the simulator.
+ *
+ * Usage: java org.micromanager.saim.sim.SimulatorBenchmark [options]
+ *    -steps n          number of calibration steps (100)
+ *    -start p, -end p  first and last motor position (0, 10000)
+ *    -workers n        number of analysis threads (processors - 1)
+ *    -stream           let the detector stream frames
+ *    -packed           let the detector send packed 12 bit frames
+ *    -roi width        track the beam with a window of width pixels
+ *    -fit type         Gaussian, Centroid, Caruana or ThreePoint (Gaussian)
+ *    -cold             start every Gaussian fit from a guess based on the
+ *                      frame, rather than from the previous steps
+ *    -adaptive deg     sample adaptively until the calibrated angle is known
+ *                      to deg degrees, using at most the given number of steps
+ *    -range deg        acquisitions use angles from -deg to deg (all angles)
+ *    -converge deg     take the steps coarse to fine, and stop as soon as the
+ *                      coefficients give the angle to within deg degrees
+ *    -channels n       calibrate n channels in one sweep.  Each channel has a
+ *                      slightly different angle law, as a different laser
+ *                      line would (1)
+ *    -exposure ms      exposure and readout time per frame (45)
+ *    -rate bytes/s     serial transfer rate, 0 for unlimited (0)
+ *    -speed p/s        motor speed (20000)
+ *    -settle ms        motor settle time (10)
+ *    -corrupt p        probability that a frame is damaged (0)
+ *    -seed n           seed for the noise (1)
+ *    -pty dev host     serve the simulator on pseudo-terminal dev, and read
+ *                      it through pseudo-terminal host (see PtyBridge)
+ *
+ * @author nico
+ */
+public class SimulatorBenchmark {
+
+   // the angle conversion is timed over this many passes through the scan
+   private static final int KERNELREPEATS = 1000;
+
+   public static void main(String[] args) throws Exception {
+      int nrSteps = 100;
+      double start = 0.0;
+      double end = 10000.0;
+      int nrWorkers = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+      boolean streaming = false;
+      boolean packed = false;
+      int roiWidth = 0;
+      Fitter.FunctionType fitType = Fitter.FunctionType.Gaussian;
+      boolean warmStart = true;
+      double target = Double.NaN;
+      double range = Double.NaN;
+      double tolerance = Double.NaN;
+      int nrChannels = 1;
+      double exposureMs = 45.0;
+      double rate = 0.0;
+      double speed = 20000.0;
+      double settleMs = 10.0;
+      double corruption = 0.0;
+      long seed = 1;
+      String ptyDevice = null;
+      String ptyHost = null;
+      for (int i = 0; i < args.length; i++) {
+         String arg = args[i];
+         if (arg.equals("-steps")) {
+            nrSteps = Integer.parseInt(args[++i]);
+         } else if (arg.equals("-start")) {
+            start = Double.parseDouble(args[++i]);
+         } else if (arg.equals("-end")) {
+            end = Double.parseDouble(args[++i]);
+         } else if (arg.equals("-workers")) {
+            nrWorkers = Integer.parseInt(args[++i]);
+         } else if (arg.equals("-stream")) {
+            streaming = true;
+         } else if (arg.equals("-packed")) {
+            packed = true;
+         } else if (arg.equals("-roi")) {
+            roiWidth = Integer.parseInt(args[++i]);
+         } else if (arg.equals("-fit")) {
+            fitType = Fitter.FunctionType.valueOf(args[++i]);
+         } else if (arg.equals("-cold")) {
+            warmStart = false;
+         } else if (arg.equals("-adaptive")) {
+            target = Double.parseDouble(args[++i]);
+         } else if (arg.equals("-converge")) {
+            tolerance = Double.parseDouble(args[++i]);
+         } else if (arg.equals("-range")) {
+            range = Math.abs(Double.parseDouble(args[++i]));
+         } else if (arg.equals("-channels")) {
+            nrChannels = Math.max(1, Integer.parseInt(args[++i]));
+         } else if (arg.equals("-exposure")) {
+            exposureMs = Double.parseDouble(args[++i]);
+         } else if (arg.equals("-rate")) {
+            rate = Double.parseDouble(args[++i]);
+         } else if (arg.equals("-speed")) {
+            speed = Double.parseDouble(args[++i]);
+         } else if (arg.equals("-settle")) {
+            settleMs = Double.parseDouble(args[++i]);
+         } else if (arg.equals("-corrupt")) {
+            corruption = Double.parseDouble(args[++i]);
+         } else if (arg.equals("-seed")) {
+            seed = Long.parseLong(args[++i]);
+         } else if (arg.equals("-pty")) {
+            ptyDevice = args[++i];
+            ptyHost = args[++i];
+         } else {
+            System.err.println("Unknown option: " + arg);
+            System.exit(1);
+         }
+      }
+
+      final SimulatedTirfMotor motor = new SimulatedTirfMotor(speed, settleMs, start);
+      final SimulatedDetector detector = new SimulatedDetector(motor, seed);
+      detector.setTiming(exposureMs, rate);
+      detector.setCorruptionRate(corruption);
+      PtyBridge bridge = null;
+      SerialLink link;
+      if (ptyDevice != null) {
+         bridge = new PtyBridge(detector, ptyDevice);
+         bridge.start();
+         link = new TtySerialLink(ptyHost);
+      } else {
+         link = new SimulatedSerialLink(detector);
+      }
+      SerialLineSensorSource serialSource = new SerialLineSensorSource(link, motor);
+      final RoiTracker tracker = roiWidth > 0 ? new RoiTracker(serialSource, roiWidth) : null;
+      LineSensorSource source = tracker != null ? tracker : serialSource;
+
+      final double[] positions = new double[nrSteps + 1];
+      for (int i = 0; i <= nrSteps; i++) {
+         positions[i] = start + i * (end - start) / nrSteps;
+      }
+      final long[] fitNs = new long[positions.length * nrChannels];
+      final AtomicInteger nrFits = new AtomicInteger(0);
+      final int[] failures = new int[1];
+      final Fitter.FunctionType beamFit = fitType;
+
+      // geometry only, the simulator knows nothing about refractive indices
+      final SaimOptics optics = new SaimOptics(SimulatedDetector.PIXELSIZEMM,
+              SimulatedDetector.DETECTORDISTANCEMM, 0.0, 1.0, 1.0, 1.0);
+      final AdaptiveSampler sampler = Double.isNaN(target) ? null
+              : new AdaptiveSampler(start, end, nrSteps, target, -range, range);
+      final boolean earlyStop = !Double.isNaN(tolerance);
+      final ChannelCalibration[] channels = new ChannelCalibration[nrChannels];
+      for (int c = 0; c < nrChannels; c++) {
+         ScanFitSession session = new ScanFitSession(Fitter.WeightMethod.Top50Linear);
+         session.setWarmStart(warmStart);
+         channels[c] = new ChannelCalibration("Channel " + c, Double.NaN, optics,
+                 session, new LiveCalibration(earlyStop ? tolerance : 0.0, -range, range));
+      }
+      final LiveCalibration live = channels[0].getLive();
+      ScanPipeline.ChannelSwitcher switcher = null;
+      if (nrChannels > 1) {
+         switcher = new ScanPipeline.ChannelSwitcher() {
+            @Override
+            public void select(int channel) {
+               detector.setAngleLaw(channelLaw(channel));
+            }
+         };
+      }
+
+      List<ScanStep> steps = new ArrayList<ScanStep>();
+      long startTime = System.nanoTime();
+      try {
+         serialSource.setPacked(packed);
+         serialSource.setStreaming(streaming);
+         ScanPipeline.Analyzer analyzer = new ScanPipeline.Analyzer() {
+            @Override
+            public void analyze(ScanStep step) {
+               long fitStart = System.nanoTime();
+               double[] means = findBeams(step.getFrame(), step.getPosition(),
+                       beamFit, channels[step.getChannel()].getFitSession());
+               fitNs[nrFits.getAndIncrement()] = System.nanoTime() - fitStart;
+               if (means != null) {
+                  step.setMeans(means[0], means[1]);
+                  if (tracker != null && step.getChannel() == 0) {
+                     tracker.update(step.getPosition(), means[0], means[1]);
+                  }
+               }
+            }
+         };
+         ScanPipeline.Monitor monitor = new ScanPipeline.Monitor() {
+            @Override
+            public boolean isAborted() {
+               return false;
+            }
+
+            @Override
+            public boolean isFinished() {
+               return earlyStop && ChannelCalibration.allConverged(channels);
+            }
+
+            @Override
+            public void stepCompleted(ScanStep step) {
+               ChannelCalibration channel = channels[step.getChannel()];
+               step.setTrueAngle(channel.getOptics().trueAngle(step.getLowerMean(),
+                       step.getUpperMean()));
+               channel.getLive().add(step);
+            }
+
+            @Override
+            public void acquisitionFailed(double position, Exception ex) {
+               failures[0]++;
+            }
+         };
+         ScanPipeline pipeline = new ScanPipeline(nrWorkers);
+         double[] roundPositions = sampler != null ? sampler.initialPositions()
+                 : earlyStop ? LiveCalibration.coarseToFine(positions) : positions;
+         while (roundPositions.length > 0 && !monitor.isFinished()) {
+            steps.addAll(pipeline.run(roundPositions, nrChannels, switcher, source,
+                    analyzer, monitor));
+            roundPositions = sampler != null
+                    ? sampler.nextPositions(ChannelCalibration.stepsOf(steps, 0))
+                    : new double[0];
+         }
+      } finally {
+         source.close();
+         if (bridge != null) {
+            bridge.stop();
+         }
+      }
+      double seconds = (System.nanoTime() - startTime) / 1.0e9;
+
+      double[] lowerMeans = new double[steps.size()];
+      double[] upperMeans = new double[steps.size()];
+      double[] trueAngles = new double[steps.size()];
+      for (int i = 0; i < steps.size(); i++) {
+         lowerMeans[i] = steps.get(i).getLowerMean();
+         upperMeans[i] = steps.get(i).getUpperMean();
+      }
+      long kernelStart = System.nanoTime();
+      for (int r = 0; r < KERNELREPEATS; r++) {
+         optics.trueAngles(lowerMeans, upperMeans, steps.size(), trueAngles);
+      }
+      double kernelNs = (System.nanoTime() - kernelStart)
+              / (double) (KERNELREPEATS * Math.max(1, steps.size()));
+
+      int nrValid = 0;
+      double sumSquaredError = 0.0;
+      long[] latencies = Arrays.copyOf(fitNs, nrFits.get());
+      for (int i = 0; i < steps.size(); i++) {
+         ScanStep step = steps.get(i);
+         if (step.isValid()) {
+            double error = step.getTrueAngle() - evaluate(channelLaw(step.getChannel()),
+                    step.getPosition());
+            sumSquaredError += error * error;
+            nrValid++;
+         }
+      }
+      Arrays.sort(latencies);
+      double calibrationError = 0.0;
+      for (int c = 0; c < nrChannels; c++) {
+         calibrationError = Math.max(calibrationError, calibrationError(
+                 ChannelCalibration.stepsOf(steps, c), channelLaw(c), range));
+      }
+      int nrWarm = 0;
+      int nrCold = 0;
+      int nrRedone = 0;
+      double nrIterations = 0.0;
+      for (ChannelCalibration channel : channels) {
+         ScanFitSession session = channel.getFitSession();
+         nrWarm += session.getWarmFits();
+         nrCold += session.getColdFits();
+         nrRedone += session.getFallbacks();
+         nrIterations += session.getIterationsPerFit()
+                 * (session.getWarmFits() + session.getColdFits());
+      }
+
+      System.out.println("Steps:            " + positions.length + " ("
+              + steps.size() + " acquired, " + failures[0] + " failed, "
+              + nrValid + " valid)");
+      if (nrChannels > 1) {
+         System.out.println("Channels:         " + nrChannels + ", "
+                 + String.format("%.1f", steps.size() / (double) nrChannels)
+                 + " motor positions");
+      }
+      System.out.println("Workers:          " + nrWorkers
+              + (streaming ? ", streaming" : ", snapshots")
+              + (packed ? ", packed" : "")
+              + (tracker != null ? ", window of " + roiWidth + " pixels" : "")
+              + (ptyDevice != null ? ", pty" : ", in memory"));
+      System.out.println("Total time:       " + String.format("%.3f s", seconds));
+      System.out.println("Frames/s:         " + String.format("%.2f", steps.size() / seconds));
+      System.out.println("Frames sent:      " + detector.getFramesSent());
+      if (sampler != null) {
+         System.out.println("Adaptive:         " + sampler.getScannedCount() + " of "
+                 + positions.length + " steps in " + sampler.getRounds()
+                 + " rounds, angle uncertainty "
+                 + String.format("%.4f", sampler.getUncertainty()) + " deg");
+      }
+      if (earlyStop) {
+         System.out.println("Converged:        "
+                 + (ChannelCalibration.allConverged(channels) ? "yes" : "no")
+                 + ", after " + live.getCount() + " valid steps, "
+                 + String.format("+/- %.4f", live.getAngleError()) + " deg");
+      }
+      if (tracker != null) {
+         System.out.println("Windowed frames:  " + tracker.getRoiFrames() + " ("
+                 + tracker.getFallbacks() + " fell back to full frames, "
+                 + tracker.getFullFrames() + " full frames in total)");
+      }
+      if (nrWarm + nrCold > 0) {
+         System.out.println("Gaussian fits:    " + String.format("%.2f",
+                 nrIterations / (nrWarm + nrCold)) + " iterations per fit, "
+                 + nrWarm + " warm starts (" + nrRedone + " redone), "
+                 + nrCold + " cold starts");
+      }
+      if (latencies.length > 0) {
+         System.out.println("Fit latency (ms): median "
+                 + String.format("%.2f", latencies[latencies.length / 2] / 1.0e6)
+                 + ", 95% " + String.format("%.2f",
+                         latencies[(int) (0.95 * (latencies.length - 1))] / 1.0e6)
+                 + ", max " + String.format("%.2f",
+                         latencies[latencies.length - 1] / 1.0e6));
+      }
+      System.out.println("Angle kernel:     " + String.format("%.1f", kernelNs)
+              + " ns per step");
+      if (nrValid > 0) {
+         System.out.println("Angle error (deg): rms "
+                 + String.format("%.4f", Math.sqrt(sumSquaredError / nrValid)));
+      }
+      if (!Double.isNaN(calibrationError)) {
+         System.out.println("Calibration error (deg): rms "
+                 + String.format("%.4f", calibrationError)
+                 + (nrChannels > 1 ? " (worst channel)" : ""));
+      }
+   }
+
+   /**
+    * Fits the calibration curve the way CalibrationPanel does, and compares
+    * the angles it gives with the angle law of the simulator
+    *
+    * @param law angle law the steps were taken with
+    * @param range angles from -range to range are checked, NaN to check the
+    * range of angles seen in the scan
+    * @return rms error (degrees), NaN if no curve could be fitted
+    */
+   private static double calibrationError(List<ScanStep> steps, double[] law,
+           double range) {
+      double[] angles = new double[steps.size()];
+      double[] positions = new double[steps.size()];
+      int n = 0;
+      for (ScanStep step : steps) {
+         if (step.isValid()) {
+            angles[n] = step.getTrueAngle();
+            positions[n] = step.getPosition();
+            n++;
+         }
+      }
+      double[] curve;
+      try {
+         curve = new PolynomialFitter(3).fit(angles, positions, null, n, null);
+      } catch (RuntimeException ex) {
+         return Double.NaN;
+      }
+      double low = Double.isNaN(range) ? Double.POSITIVE_INFINITY : -range;
+      double high = Double.isNaN(range) ? Double.NEGATIVE_INFINITY : range;
+      for (int i = 0; i < n && Double.isNaN(range); i++) {
+         low = Math.min(low, angles[i]);
+         high = Math.max(high, angles[i]);
+      }
+      final int nrChecks = 100;
+      double sumSquaredError = 0.0;
+      for (int i = 0; i <= nrChecks; i++) {
+         double angle = low + i * (high - low) / nrChecks;
+         double error = evaluate(law, evaluate(curve, angle)) - angle;
+         sumSquaredError += error * error;
+      }
+      return Math.sqrt(sumSquaredError / (nrChecks + 1));
+   }
+
+   /**
+    * @param channel index of a channel
+    * @return angle law of the simulator for the channel.  Channel 0 has the
+    * default law of SimulatedDetector, the others are a little steeper.
+    */
+   private static double[] channelLaw(int channel) {
+      double scale = 1.0 + 0.01 * channel;
+      return new double[] {-30.0 * scale, 0.006 * scale};
+   }
+
+   private static double evaluate(double[] coefficients, double x) {
+      double result = 0.0;
+      for (int k = coefficients.length - 1; k >= 0; k--) {
+         result = result * x + coefficients[k];
+      }
+      return result;
+   }
+
+   /**
+    * Fits both detectors the way CalibrationPanel does
+    *
+    * @return beam center on the lower and upper detector, null if a fit failed
+    */
+   private static double[] findBeams(DetectorFrame frame, double position,
+           Fitter.FunctionType type, ScanFitSession session) {
+      try {
+         double[] result1 = findBeam(type, session, ScanFitSession.LOWER, position,
+                 frame.getLower(), frame.getLowerOffset(), frame.getWidth());
+         double[] result2 = findBeam(type, session, ScanFitSession.UPPER, position,
+                 frame.getUpper(), frame.getUpperOffset(), frame.getWidth());
+         return new double[] {result1[1], result2[1]};
+      } catch (Exception ex) {
+         return null;
+      }
+   }
+
+   private static double[] findBeam(Fitter.FunctionType type, ScanFitSession session,
+           int detector, double position, short[] pixels, int offset, int width) {
+      if (type == Fitter.FunctionType.Gaussian) {
+         return session.fit(detector, position, pixels, offset, width);
+      }
+      return PeakEstimator.forThread().estimate(type, pixels, offset, width,
+              Fitter.WeightMethod.Top50Linear, null);
+   }
+
+}